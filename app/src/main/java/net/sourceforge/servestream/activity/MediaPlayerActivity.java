@@ -936,7 +936,7 @@ public class MediaPlayerActivity extends ActionBarActivity implements MusicUtils
     	int count = 0;
     	
     	try {
-			count = mService.getQueue().length + 2;
+			count = mService.getQueueSize() + 2;
 		} catch (RemoteException e) {
 			finish();
 		}
@@ -968,8 +968,8 @@ public class MediaPlayerActivity extends ActionBarActivity implements MusicUtils
 						position--;
 						
 						if (position == -1) {
-							position = mService.getQueue().length - 1;
-						} else if (position == mService.getQueue().length) {
+							position = mService.getQueueSize() - 1;
+						} else if (position == mService.getQueueSize()) {
 							position = 0;
 						}
 						
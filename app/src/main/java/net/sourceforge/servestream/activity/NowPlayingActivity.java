@@ -62,6 +62,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.MenuItem.OnMenuItemClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ImageView;
@@ -69,7 +71,12 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class NowPlayingActivity extends ActionBarActivity implements
 			View.OnCreateContextMenuListener,
@@ -160,6 +167,20 @@ public class NowPlayingActivity extends ActionBarActivity implements
 			}
 		});
 		
+		mList.setOnScrollListener(new OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+				if (scrollState == OnScrollListener.SCROLL_STATE_IDLE) {
+					prioritizeVisibleTracks();
+				}
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+			}
+		});
+		
 	    DragSortController controller = new DragSortController(mList);
 		controller.setDragInitMode(DragSortController.ON_DRAG);
 		controller.setDragHandleId(R.id.drag);
@@ -204,6 +225,27 @@ public class NowPlayingActivity extends ActionBarActivity implements
         }
     }
     
+    /**
+     * Asks the service to retrieve the metadata of the tracks on screen first.
+     */
+    private void prioritizeVisibleTracks() {
+    	if (MusicUtils.sService == null) {
+    		return;
+    	}
+    	
+    	int first = mList.getFirstVisiblePosition();
+    	int count = mList.getChildCount();
+    	long [] ids = new long[count];
+    	for (int i = 0; i < count; i++) {
+    		ids[i] = mList.getItemIdAtPosition(first + i);
+    	}
+    	
+    	try {
+    		MusicUtils.sService.prioritizeMetadata(ids);
+    	} catch (RemoteException ex) {
+    	}
+    }
+    
     public void onServiceDisconnected(ComponentName name) {
         finish();
     }
@@ -356,6 +398,12 @@ public class NowPlayingActivity extends ActionBarActivity implements
                     mDeletedOneRow = false;
                     return;
                 }
+                // a single change is applied to the cursor as it is
+                if (mAdapter != null && mTrackCursor instanceof NowPlayingCursor &&
+                        ((NowPlayingCursor) mTrackCursor).applyQueueChange(intent)) {
+                    mAdapter.notifyDataSetChanged();
+                    return;
+                }
                 // The service could disappear while the broadcast was in flight,
                 // so check to see if it's still valid
                 if (MusicUtils.sService == null) {
@@ -495,6 +543,12 @@ public class NowPlayingActivity extends ActionBarActivity implements
 
     private class NowPlayingCursor extends AbstractCursor
     {
+        // the queue is read from the service and looked up in the database a
+        // page at a time as the list scrolls, so a long queue isn't copied
+        // or queried as a whole
+        private static final int PAGE_SIZE = 100;
+        private static final int MAX_PAGES = 4;
+        
         public NowPlayingCursor(IMediaPlaybackService service, String [] cols)
         {
             mCols = cols;
@@ -502,71 +556,15 @@ public class NowPlayingActivity extends ActionBarActivity implements
             makeNowPlayingCursor();
         }
         private void makeNowPlayingCursor() {
+            closePages();
+            mDropped.clear();
             mCurrentPlaylistCursor = null;
-            try {
-                mNowPlaying = mService.getQueue();
-            } catch (RemoteException ex) {
-                mNowPlaying = new long[0];
-            }
-            mSize = mNowPlaying.length;
-            if (mSize == 0) {
-                return;
-            }
-
-            StringBuilder where = new StringBuilder();
-            where.append(Media.MediaColumns._ID + " IN (");
-            for (int i = 0; i < mSize; i++) {
-                where.append(mNowPlaying[i]);
-                if (i < mSize - 1) {
-                    where.append(",");
-                }
-            }
-            where.append(")");
-
-            mCurrentPlaylistCursor = MusicUtils.query(NowPlayingActivity.this,
-            		Media.MediaColumns.CONTENT_URI,
-                    mCols, where.toString(), null, Media.MediaColumns._ID);
-
-            if (mCurrentPlaylistCursor == null) {
-                mSize = 0;
-                return;
-            }
-            
-            int size = mCurrentPlaylistCursor.getCount();
-            mCursorIdxs = new long[size];
-            mCurrentPlaylistCursor.moveToFirst();
-            int colidx = mCurrentPlaylistCursor.getColumnIndexOrThrow(Media.MediaColumns._ID);
-            for (int i = 0; i < size; i++) {
-                mCursorIdxs[i] = mCurrentPlaylistCursor.getLong(colidx);
-                mCurrentPlaylistCursor.moveToNext();
-            }
-            mCurrentPlaylistCursor.moveToFirst();
             mCurPos = -1;
-            
-            // At this point we can verify the 'now playing' list we got
-            // earlier to make sure that all the items in there still exist
-            // in the database, and remove those that aren't. This way we
-            // don't get any blank items in the list.
             try {
-                int removed = 0;
-                for (int i = mNowPlaying.length - 1; i >= 0; i--) {
-                    long trackid = mNowPlaying[i];
-                    int crsridx = Arrays.binarySearch(mCursorIdxs, trackid);
-                    if (crsridx < 0) {
-                        //Log.i("@@@@@", "item no longer exists in db: " + trackid);
-                        removed += mService.removeTrack(trackid);
-                    }
-                }
-                if (removed > 0) {
-                    mNowPlaying = mService.getQueue();
-                    mSize = mNowPlaying.length;
-                    if (mSize == 0) {
-                        mCursorIdxs = null;
-                        return;
-                    }
-                }
+                mVersion = mService.getQueueVersion();
+                mSize = mService.getQueueSize();
             } catch (RemoteException ex) {
-                mNowPlaying = new long[0];
+                mSize = 0;
             }
         }
 
@@ -582,7 +580,13 @@ public class NowPlayingActivity extends ActionBarActivity implements
             if (oldPosition == newPosition)
                 return true;
             
-            if (mNowPlaying == null || mCursorIdxs == null || newPosition >= mNowPlaying.length) {
+            if (newPosition < 0 || newPosition >= mSize) {
+                return false;
+            }
+            
+            Page page = getPage(newPosition / PAGE_SIZE);
+            int index = newPosition % PAGE_SIZE;
+            if (page == null || index >= page.mIds.length) {
                 return false;
             }
 
@@ -590,8 +594,9 @@ public class NowPlayingActivity extends ActionBarActivity implements
             // in queue-order, so we need to figure out where in the cursor we
             // should be.
            
-            long newid = mNowPlaying[newPosition];
-            int crsridx = Arrays.binarySearch(mCursorIdxs, newid);
+            long newid = page.mIds[index];
+            int crsridx = Arrays.binarySearch(page.mCursorIdxs, newid);
+            mCurrentPlaylistCursor = page.mCursor;
             mCurrentPlaylistCursor.moveToPosition(crsridx);
             mCurPos = newPosition;
             
@@ -601,15 +606,14 @@ public class NowPlayingActivity extends ActionBarActivity implements
         public boolean removeItem(int which)
         {
             try {
-                if (mService.removeTracks(which, which) == 0) {
+                int version = mVersion;
+                int position = toServicePosition(which);
+                if (mService.removeTracks(position, position) == 0) {
                     return false; // delete failed
                 }
-                int i = (int) which;
                 mSize--;
-                while (i < mSize) {
-                    mNowPlaying[i] = mNowPlaying[i+1];
-                    i++;
-                }
+                closePages(which, Integer.MAX_VALUE);
+                syncVersion(version + 1);
                 onMove(-1, (int) mCurPos);
             } catch (RemoteException ex) {
             }
@@ -618,12 +622,279 @@ public class NowPlayingActivity extends ActionBarActivity implements
         
         public void moveItem(int from, int to) {
             try {
-                mService.moveQueueItem(from, to);
-                mNowPlaying = mService.getQueue();
+                int version = mVersion;
+                mService.moveQueueItem(toServicePosition(from), toServicePosition(to));
+                closePages(Math.min(from, to), Math.max(from, to));
+                syncVersion(version + 1);
                 onMove(-1, mCurPos); // update the underlying cursor
             } catch (RemoteException ex) {
             }
         }
+        
+        /**
+         * Applies the change described by a QUEUE_CHANGED broadcast.
+         * 
+         * @return false if the change can't be applied and the cursor has
+         * to be made again.
+         */
+        public boolean applyQueueChange(Intent intent) {
+            int version = intent.getIntExtra(MediaPlaybackService.QUEUE_VERSION, -1);
+            if (version == mVersion) {
+                // already applied, e.g. a change made through this cursor
+                return true;
+            } else if (version != mVersion + 1 || !mDropped.isEmpty()) {
+                // the tracks left out of the pages are gone from the
+                // queue by now
+                return false;
+            }
+            
+            int first = intent.getIntExtra(MediaPlaybackService.QUEUE_CHANGE_FIRST, 0);
+            int count = intent.getIntExtra(MediaPlaybackService.QUEUE_CHANGE_COUNT, 0);
+            switch (intent.getIntExtra(MediaPlaybackService.QUEUE_CHANGE,
+            		MediaPlaybackService.QUEUE_CHANGE_RESET)) {
+                case MediaPlaybackService.QUEUE_CHANGE_INSERT:
+                    mSize += count;
+                    closePages(first, Integer.MAX_VALUE);
+                    break;
+                case MediaPlaybackService.QUEUE_CHANGE_REMOVE:
+                    mSize -= count;
+                    closePages(first, Integer.MAX_VALUE);
+                    break;
+                case MediaPlaybackService.QUEUE_CHANGE_MOVE:
+                    int to = intent.getIntExtra(MediaPlaybackService.QUEUE_CHANGE_TO, 0);
+                    closePages(Math.min(first, to), Math.max(first, to));
+                    break;
+                default:
+                    return false;
+            }
+            
+            mVersion = version;
+            if (mSize <= 0) {
+                return false;
+            }
+            onMove(-1, mCurPos);
+            return true;
+        }
+        
+        /**
+         * Takes on the version of the queue after a change made through this
+         * cursor, and starts over if another change came in between.
+         */
+        private void syncVersion(int expected) throws RemoteException {
+            mVersion = mService.getQueueVersion();
+            if (mVersion != expected) {
+                closePages();
+                mDropped.clear();
+                mSize = mService.getQueueSize();
+            }
+        }
+        
+        /**
+         * @return the page, read from the service and looked up in the
+         * database if it isn't loaded, or null if it can't be.
+         */
+        private Page getPage(int index) {
+            Page page = mPages.get(index);
+            if (page != null) {
+                return page;
+            }
+            
+            int first = index * PAGE_SIZE;
+            int position = toServicePosition(first);
+            long [] ids;
+            try {
+                ids = mService.getQueueSlice(position, PAGE_SIZE);
+            } catch (RemoteException ex) {
+                return null;
+            }
+            if (ids.length == 0) {
+                return null;
+            }
+
+            Cursor cursor = queryTracks(ids, mCols);
+            if (cursor == null) {
+                return null;
+            }
+            long [] cursorIdxs = getTrackIds(cursor);
+            
+            // At this point we can verify the part of the 'now playing' list
+            // we got to make sure that all the items in there still exist in
+            // the database. The ones that don't are left out of the page,
+            // which is filled up from the rest of the queue, and removed by
+            // the service in the background; the list is made again when it
+            // announces the change.
+            ArrayList<Long> missing = new ArrayList<Long>();
+            long [] existing = dropMissing(ids, position, cursorIdxs, missing);
+            if (existing.length < ids.length) {
+                cursor.close();
+                ids = fillPage(existing, position + ids.length, missing);
+                cursor = ids.length > 0 ? queryTracks(ids, mCols) : null;
+                if (cursor == null) {
+                    return null;
+                }
+                cursorIdxs = getTrackIds(cursor);
+                // the pages after this one start further on in the queue now
+                closePages(first, Integer.MAX_VALUE);
+            }
+            if (!missing.isEmpty()) {
+                removeMissingTracks(missing);
+            }
+            
+            // the page used least recently makes room
+            if (mPages.size() >= MAX_PAGES) {
+                Iterator<Page> it = mPages.values().iterator();
+                Page eldest = it.next();
+                it.remove();
+                closePage(eldest);
+            }
+            
+            page = new Page(ids, cursor, cursorIdxs);
+            mPages.put(index, page);
+            return page;
+        }
+        
+        /**
+         * Adds the ids that follow the given position in the queue until the
+         * page is full, leaving out the ones that aren't in the database.
+         */
+        private long [] fillPage(long [] ids, int position, ArrayList<Long> missing) {
+            while (ids.length < PAGE_SIZE) {
+                long [] slice;
+                try {
+                    slice = mService.getQueueSlice(position, PAGE_SIZE - ids.length);
+                } catch (RemoteException ex) {
+                    break;
+                }
+                if (slice.length == 0) {
+                    break;
+                }
+                
+                Cursor cursor = queryTracks(slice, new String [] { Media.MediaColumns._ID });
+                if (cursor == null) {
+                    break;
+                }
+                long [] existing = dropMissing(slice, position, getTrackIds(cursor), missing);
+                cursor.close();
+                
+                long [] filled = Arrays.copyOf(ids, ids.length + existing.length);
+                System.arraycopy(existing, 0, filled, ids.length, existing.length);
+                ids = filled;
+                position += slice.length;
+            }
+            return ids;
+        }
+        
+        /**
+         * @return the ids, starting at the given position in the queue, that
+         * are in cursorIdxs and weren't left out before. The others are
+         * remembered as left out and added to missing.
+         */
+        private long [] dropMissing(long [] ids, int position, long [] cursorIdxs,
+        		ArrayList<Long> missing) {
+            long [] existing = new long[ids.length];
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                int index = Collections.binarySearch(mDropped, position + i);
+                if (index >= 0) {
+                    continue;
+                }
+                if (Arrays.binarySearch(cursorIdxs, ids[i]) < 0) {
+                    mDropped.add(-index - 1, position + i);
+                    missing.add(ids[i]);
+                    continue;
+                }
+                existing[count++] = ids[i];
+            }
+            return count < ids.length ? Arrays.copyOf(existing, count) : existing;
+        }
+        
+        /**
+         * @return the position in the service's queue of a position in this
+         * cursor, counting the tracks that were left out before it.
+         */
+        private int toServicePosition(int position) {
+            for (int dropped : mDropped) {
+                if (dropped > position) {
+                    break;
+                }
+                position++;
+            }
+            return position;
+        }
+        
+        private void removeMissingTracks(ArrayList<Long> missing) {
+            long [] list = new long[missing.size()];
+            for (int i = 0; i < list.length; i++) {
+                list[i] = missing.get(i);
+            }
+            try {
+                // posted by the service, the list doesn't wait for it
+                mService.removeTrackIds(list);
+            } catch (RemoteException ex) {
+            }
+        }
+        
+        private Cursor queryTracks(long [] ids, String [] cols) {
+            StringBuilder where = new StringBuilder();
+            where.append(Media.MediaColumns._ID + " IN (");
+            for (int i = 0; i < ids.length; i++) {
+                where.append(ids[i]);
+                if (i < ids.length - 1) {
+                    where.append(",");
+                }
+            }
+            where.append(")");
+
+            return MusicUtils.query(NowPlayingActivity.this,
+            		Media.MediaColumns.CONTENT_URI,
+                    cols, where.toString(), null, Media.MediaColumns._ID);
+        }
+        
+        /**
+         * @return the ids in the cursor, in the cursor's order, which is left
+         * on its first row.
+         */
+        private long [] getTrackIds(Cursor cursor) {
+            int size = cursor.getCount();
+            long [] cursorIdxs = new long[size];
+            cursor.moveToFirst();
+            int colidx = cursor.getColumnIndexOrThrow(Media.MediaColumns._ID);
+            for (int i = 0; i < size; i++) {
+                cursorIdxs[i] = cursor.getLong(colidx);
+                cursor.moveToNext();
+            }
+            cursor.moveToFirst();
+            return cursorIdxs;
+        }
+        
+        /**
+         * Closes the pages that hold any of the positions from first to last.
+         */
+        private void closePages(int first, int last) {
+            Iterator<Map.Entry<Integer, Page>> it = mPages.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Page> entry = it.next();
+                int pageFirst = entry.getKey() * PAGE_SIZE;
+                if (pageFirst + PAGE_SIZE > first && pageFirst <= last) {
+                    closePage(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        
+        private void closePages() {
+            for (Page page : mPages.values()) {
+                closePage(page);
+            }
+            mPages.clear();
+        }
+        
+        private void closePage(Page page) {
+            if (page.mCursor == mCurrentPlaylistCursor) {
+                mCurrentPlaylistCursor = null;
+            }
+            page.mCursor.close();
+        }
 
         @Override
         public String getString(int column)
@@ -697,17 +968,31 @@ public class NowPlayingActivity extends ActionBarActivity implements
 
         @Override
         public void close() {
-        	if (mCurrentPlaylistCursor != null) {
-        		mCurrentPlaylistCursor.close();
-        		mCurrentPlaylistCursor = null;
-        	}
+        	closePages();
+        }
+        
+        private final class Page {
+            private final long [] mIds;     // in queue order
+            private final Cursor mCursor;
+            private final long [] mCursorIdxs; // the ids in the cursor, sorted
+            
+            private Page(long [] ids, Cursor cursor, long [] cursorIdxs) {
+                mIds = ids;
+                mCursor = cursor;
+                mCursorIdxs = cursorIdxs;
+            }
         }
         
         private String [] mCols;
         private Cursor mCurrentPlaylistCursor;     // updated in onMove
         private int mSize;          // size of the queue
-        private long[] mNowPlaying;
-        private long[] mCursorIdxs;
+        private int mVersion;       // version of the queue
+        // positions in the service's queue of the tracks left out because
+        // they aren't in the database, sorted
+        private final ArrayList<Integer> mDropped = new ArrayList<Integer>();
+        // page index -> page, in order of use
+        private final LinkedHashMap<Integer, Page> mPages =
+        		new LinkedHashMap<Integer, Page>(MAX_PAGES, 0.75f, true);
         private int mCurPos;
         private IMediaPlaybackService mService;
     }
@@ -0,0 +1,262 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.bitmap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A byte-capped pool of mutable bitmaps that can be handed to the decoder through
+ * {@link BitmapFactory.Options#inBitmap}. Bitmaps are held by strong references, bucketed
+ * by config and allocation size, and the least recently pooled bitmaps are evicted first
+ * once the pool grows past its maximum size.
+ */
+public class BitmapPool {
+    // From KitKat onward a bitmap can be reused for a smaller one, but don't tie up
+    // a large allocation for an image that needs only a fraction of it
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final Map<Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets =
+            new HashMap<Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+    // bitmaps in the order they were added, used for eviction
+    private final LinkedHashSet<Bitmap> mLruOrder = new LinkedHashSet<Bitmap>();
+
+    private final int mMaxSize;
+    private int mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize The maximum number of bytes the pooled bitmaps can occupy
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap that is no longer displayed to the pool. Immutable or recycled bitmaps
+     * can't be used for inBitmap and are ignored.
+     *
+     * @param bitmap The bitmap to pool
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || mLruOrder.contains(bitmap)) {
+            return;
+        }
+
+        final int size = ImageCache.getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        final Config config = getConfig(bitmap.getConfig());
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+            mBuckets.put(config, sizes);
+        }
+
+        LinkedList<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            sizes.put(size, bucket);
+        }
+
+        bucket.addFirst(bitmap);
+        mLruOrder.add(bitmap);
+        mSize += size;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Removes and returns a bitmap that can be used to decode an image described by the
+     * options.
+     *
+     * @param options BitmapFactory.Options with out* options and inSampleSize populated
+     * @return A bitmap that can be used for inBitmap, or null if none is available
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Config config = getConfig(options.inPreferredConfig);
+        final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = options.outWidth / sampleSize;
+        final int height = options.outHeight / sampleSize;
+        final int byteCount = width * height * getBytesPerPixel(config);
+
+        Bitmap bitmap = null;
+
+        if (sizes != null && byteCount > 0) {
+            if (Utils.hasKitKat()) {
+                // Any allocation at least as large as the new bitmap can be reused
+                Integer size = sizes.ceilingKey(byteCount);
+                if (size != null && size <= byteCount * MAX_SIZE_MULTIPLE) {
+                    bitmap = sizes.get(size).removeFirst();
+                }
+            } else if (sampleSize == 1) {
+                // On earlier versions, the dimensions must match exactly and the inSampleSize
+                // must be 1
+                final LinkedList<Bitmap> bucket = sizes.get(byteCount);
+                if (bucket != null) {
+                    final Iterator<Bitmap> iterator = bucket.iterator();
+                    while (iterator.hasNext()) {
+                        final Bitmap item = iterator.next();
+                        if (item.getWidth() == width && item.getHeight() == height) {
+                            iterator.remove();
+                            bitmap = item;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        final int size = ImageCache.getBitmapSize(bitmap);
+        removeEmptyBucket(sizes, size);
+        mLruOrder.remove(bitmap);
+        mSize -= size;
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Evicts the least recently pooled bitmaps until the pool is no larger than maxSize.
+     *
+     * @param maxSize The maximum size of the pool in bytes, -1 evicts all bitmaps
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Bitmap> iterator = mLruOrder.iterator();
+
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            final int size = ImageCache.getBitmapSize(bitmap);
+            final TreeMap<Integer, LinkedList<Bitmap>> sizes =
+                    mBuckets.get(getConfig(bitmap.getConfig()));
+            sizes.get(size).remove(bitmap);
+            removeEmptyBucket(sizes, size);
+
+            mSize -= size;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return The number of bytes occupied by the pooled bitmaps
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The maximum number of bytes the pooled bitmaps can occupy
+     */
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return The number of times {@link #get} returned a bitmap
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of times {@link #get} returned null and a new bitmap was allocated
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The number of bitmaps that were evicted to keep the pool under its maximum size
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    private static void removeEmptyBucket(TreeMap<Integer, LinkedList<Bitmap>> sizes, int size) {
+        final LinkedList<Bitmap> bucket = sizes.get(size);
+        if (bucket != null && bucket.isEmpty()) {
+            sizes.remove(size);
+        }
+    }
+
+    /**
+     * The decoder uses ARGB_8888 when no config was requested.
+     */
+    private static Config getConfig(Config config) {
+        return config != null ? config : Config.ARGB_8888;
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+}
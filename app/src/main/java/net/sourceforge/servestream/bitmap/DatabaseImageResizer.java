@@ -20,16 +20,19 @@ import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import net.sourceforge.servestream.BuildConfig;
 import net.sourceforge.servestream.provider.Media;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
 /**
  * A simple subclass of {@link ImageWorker} that resizes images from resources given a target width
  * and height. Useful for when the input images might be too large to simply load directly into
@@ -95,25 +98,33 @@ public class DatabaseImageResizer extends ImageWorker {
             Log.d(TAG, "processBitmap - " + resId);
         }
         
-        byte [] blob = null;
+        Bitmap bitmap = null;
         
         ContentResolver res = mContext.getContentResolver();
-        Uri uri = ContentUris.withAppendedId(Media.MediaColumns.CONTENT_URI, resId);      
-        	
-        if (uri != null) {
-        	Cursor cursor = res.query(uri, null, null, null, null);            	
-                    
-            if (cursor != null && cursor.moveToNext()) {
-            	blob = cursor.getBlob(cursor.getColumnIndexOrThrow(Media.MediaColumns.ARTWORK));
-            }
-                
-            if (cursor != null) {
-            	cursor.close();
-            }
+        Uri uri = Uri.withAppendedPath(
+        		ContentUris.withAppendedId(Media.MediaColumns.CONTENT_URI, resId),
+        		Media.MediaColumns.ARTWORK_PATH);
+        
+        // the artwork is decoded straight from the artwork store
+        ParcelFileDescriptor pfd = null;
+        try {
+        	pfd = res.openFileDescriptor(uri, "r");
+        	if (pfd != null) {
+        		bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(pfd.getFileDescriptor(),
+        				mImageWidth, mImageHeight, getImageCache());
+        	}
+        } catch (FileNotFoundException e) {
+        	// the media file has no artwork
+        } finally {
+        	if (pfd != null) {
+        		try {
+        			pfd.close();
+        		} catch (IOException e) {
+        		}
+        	}
         }
         
-        return decodeSampledBitmapFromByteArray(blob, mImageWidth,
-        		mImageHeight, getImageCache());
+        return bitmap;
     }
 
     @Override
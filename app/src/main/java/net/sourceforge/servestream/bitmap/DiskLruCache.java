@@ -503,7 +503,12 @@ public final class DiskLruCache implements Closeable {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        File[] files = new File[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            files[i] = entry.getCleanFile(i);
+        }
+
+        return new Snapshot(key, entry.sequenceNumber, ins, files);
     }
 
     /**
@@ -731,11 +736,13 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final File[] files;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, File[] files) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.files = files;
         }
 
         /**
@@ -761,6 +768,15 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the file with the value for {@code index}. The file is
+         * deleted when the entry is removed or evicted, files that are open
+         * when that happens remain readable.
+         */
+        public File getFile(int index) {
+            return files[index];
+        }
+
         @Override public void close() {
             for (InputStream in : ins) {
                 closeQuietly(in);
@@ -820,6 +836,20 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns the file to write the value at {@code index} to, as an
+         * alternative to {@link #newOutputStream}. An existing file can be
+         * renamed to it.
+         */
+        public File getFile(int index) {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return entry.getDirtyFile(index);
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -20,7 +20,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -40,13 +39,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -64,6 +58,9 @@ public class ImageCache {
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
+    // Default size of the pool of reusable bitmaps in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 2; // 2MB
+
     // Compression settings when writing images to disk cache
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
@@ -80,7 +77,9 @@ public class ImageCache {
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    // Shared by all caches so that bitmaps evicted by one list can be reused by the next
+    private static BitmapPool sBitmapPool;
+    private BitmapPool mBitmapPool;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -145,18 +144,12 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
+            // If we're running on Honeycomb or newer, use a pool of reusable bitmaps that can be
+            // populated into the inBitmap field of BitmapFactory.Options. The pool holds strong
+            // references, so its size is capped separately from the bitmap LruCache and the
+            // least recently pooled bitmaps are dropped first.
             if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+                mBitmapPool = getBitmapPool(mCacheParams.bitmapPoolSize * 1024);
             }
 
             mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
@@ -174,10 +167,10 @@ public class ImageCache {
                     } else {
                         // The removed entry is a standard BitmapDrawable
 
-                        if (Utils.hasHoneycomb()) {
+                        if (mBitmapPool != null) {
                             // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the pool for possible use with inBitmap later
+                            mBitmapPool.put(oldValue.getBitmap());
                         }
                     }
                 }
@@ -258,38 +251,53 @@ public class ImageCache {
             mMemoryCache.put(data, value);
         }
 
+        // Only the journal operations are done under the lock. DiskLruCache hands out a single
+        // editor per key, so the compression below never races another writer of the same key
+        // and doesn't hold up readers or writers of other keys.
+        final String key = hashKeyForDisk(data);
+        DiskLruCache.Editor editor = null;
         synchronized (mDiskCacheLock) {
             // Add to disk cache
             if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
                 try {
                     DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
                     if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
+                        editor = mDiskLruCache.edit(key);
                     } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                        snapshot.close();
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "addBitmapToCache - " + e);
                 } catch (Exception e) {
                     Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
                 }
             }
         }
+
+        if (editor != null) {
+            OutputStream out = null;
+            try {
+                out = editor.newOutputStream(DISK_CACHE_INDEX);
+                value.getBitmap().compress(
+                        mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                out.close();
+                out = null;
+                editor.commit();
+            } catch (final IOException e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+                abortQuietly(editor);
+            } catch (Exception e) {
+                // the cache may have been cleared or closed while compressing
+                Log.e(TAG, "addBitmapToCache - " + e);
+                abortQuietly(editor);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {}
+            }
+        }
         //END_INCLUDE(add_bitmap_to_cache)
     }
 
@@ -325,7 +333,10 @@ public class ImageCache {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
+        InputStream inputStream = null;
 
+        // The lock only covers the journal lookup, the open file stays readable even if the
+        // entry is evicted or the cache is cleared while the bitmap is being decoded
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
@@ -333,7 +344,6 @@ public class ImageCache {
                 } catch (InterruptedException e) {}
             }
             if (mDiskLruCache != null) {
-                InputStream inputStream = null;
                 try {
                     final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
                     if (snapshot != null) {
@@ -341,67 +351,75 @@ public class ImageCache {
                             Log.d(TAG, "Disk cache hit");
                         }
                         inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
                 }
             }
-            return bitmap;
         }
+
+        if (inputStream != null) {
+            try {
+                FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                // Decode bitmap, but we don't want to sample so give
+                // MAX_VALUE as the target dimensions
+                bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
+                        fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {}
+            }
+        }
+        return bitmap;
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
+    /**
+     * Aborts an edit, ignoring any failure as the entry is discarded either way.
+     */
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException e) {
+        } catch (IllegalStateException e) {}
+    }
+
     /**
      * @param options - BitmapFactory.Options with out* options populated
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
         //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+        if (mBitmapPool == null) {
+            return null;
+        }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
+        final Bitmap bitmap = mBitmapPool.get(options);
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, (bitmap != null ? "Bitmap pool hit " : "Bitmap pool miss ") + mBitmapPool);
         }
 
         return bitmap;
         //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
+    /**
+     * Return the bitmap pool shared by all caches, creating it the first time it is needed.
+     *
+     * @param maxSize The maximum size of the pool in bytes if it needs to be created
+     */
+    private static synchronized BitmapPool getBitmapPool(int maxSize) {
+        if (sBitmapPool == null) {
+            sBitmapPool = new BitmapPool(maxSize);
+        }
+        return sBitmapPool;
+    }
+
     /**
      * Clears both the memory and disk cache associated with this ImageCache object. Note that
      * this includes disk access so this should not be executed on the main/UI thread.
@@ -484,6 +502,7 @@ public class ImageCache {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -520,50 +539,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
@@ -619,10 +594,20 @@ public class ImageCache {
      * @param value
      * @return size in bytes
      */
-    @TargetApi(VERSION_CODES.KITKAT)
     public static int getBitmapSize(BitmapDrawable value) {
-        Bitmap bitmap = value.getBitmap();
+        return getBitmapSize(value.getBitmap());
+    }
 
+    /**
+     * Get the size in bytes of a bitmap. Note that from Android 4.4 (KitKat) onward this returns
+     * the allocated memory size of the bitmap which can be larger than the actual bitmap data
+     * byte count (in the case it was re-used).
+     *
+     * @param bitmap
+     * @return size in bytes
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    public static int getBitmapSize(Bitmap bitmap) {
         // From KitKat onward use getAllocationByteCount() as allocated bytes can potentially be
         // larger than bitmap byte count.
         if (Utils.hasKitKat()) {
@@ -21,19 +21,30 @@ import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Process;
 import android.util.Log;
 
 import net.sourceforge.servestream.BuildConfig;
+import net.sourceforge.servestream.transport.HttpClient;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images fetched from a URL.
@@ -43,6 +54,22 @@ public class ImageFetcher extends ImageResizer {
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final String HTTP_CACHE_DIR = "http";
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int DOWNLOAD_THREADS = 4;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ImageFetcher #" + mCount.getAndIncrement());
+        }
+    };
+
+    /**
+     * Downloads run on their own bounded pool so that slow servers don't hold up the threads
+     * that decode bitmaps, and so that several images can be fetched at once.
+     */
+    private static final Executor DOWNLOAD_EXECUTOR =
+            Executors.newFixedThreadPool(DOWNLOAD_THREADS, sThreadFactory);
 
     private DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
@@ -50,6 +77,9 @@ public class ImageFetcher extends ImageResizer {
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
 
+    // downloads that are queued or running, keyed by URL
+    private final Map<String, Download> mDownloads = new HashMap<String, Download>();
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -189,36 +219,28 @@ public class ImageFetcher extends ImageResizer {
             Log.d(TAG, "processBitmap - " + data);
         }
 
+        // Wait for the download (or the cache lookup) to complete, a download that was cancelled
+        // because nobody needed it anymore is requested once more
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                obtainDownload(data).get();
+                break;
+            } catch (InterruptedException e) {
+                return null;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "processBitmap - " + e);
+                break;
+            } catch (CancellationException e) {}
+        }
+
         final String key = ImageCache.hashKeyForDisk(data);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
         DiskLruCache.Snapshot snapshot;
         synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
-
             if (mHttpDiskCache != null) {
                 try {
                     snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
                     if (snapshot != null) {
                         fileInputStream =
                                 (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
@@ -256,6 +278,152 @@ public class ImageFetcher extends ImageResizer {
         return processBitmap(String.valueOf(data));
     }
 
+    /**
+     * Starts downloading the image as soon as the work is queued, the decode task picks up the
+     * result once it runs.
+     */
+    @Override
+    protected Object onWorkQueued(Object data) {
+        final Download download = obtainDownload(String.valueOf(data));
+        synchronized (mDownloads) {
+            download.mRequests++;
+        }
+        return download;
+    }
+
+    /**
+     * Cancels a download that hasn't started yet once no queued work is waiting for it, e.g.
+     * when the list it was requested for has been scrolled past.
+     */
+    @Override
+    protected void onWorkFinished(Object data, Object tag) {
+        if (tag instanceof Download) {
+            final Download download = (Download) tag;
+            synchronized (mDownloads) {
+                if (--download.mRequests > 0 || download.mStarted) {
+                    return;
+                }
+            }
+            download.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the download in progress for the URL, or queues a new one. Concurrent requests for
+     * the same URL share a single download.
+     */
+    private Download obtainDownload(String data) {
+        Download download;
+        synchronized (mDownloads) {
+            download = mDownloads.get(data);
+            if (download != null) {
+                return download;
+            }
+            download = new Download(data);
+            mDownloads.put(data, download);
+        }
+        DOWNLOAD_EXECUTOR.execute(download);
+        return download;
+    }
+
+    /**
+     * Copies the image at the URL into the HTTP disk cache unless it is already there. Only the
+     * journal operations happen under the cache lock, the transfer itself doesn't block other
+     * lookups.
+     *
+     * @param data The URL of the image to fetch
+     * @return true if the image is in the HTTP disk cache, false otherwise
+     */
+    private boolean fetchToHttpCache(String data) {
+        final String key = ImageCache.hashKeyForDisk(data);
+        DiskLruCache.Editor editor = null;
+        synchronized (mHttpDiskCacheLock) {
+            // Wait for disk cache to initialize
+            while (mHttpDiskCacheStarting) {
+                try {
+                    mHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+
+            if (mHttpDiskCache == null) {
+                return false;
+            }
+
+            try {
+                DiskLruCache.Snapshot snapshot = mHttpDiskCache.get(key);
+                if (snapshot != null) {
+                    snapshot.close();
+                    return true;
+                }
+                editor = mHttpDiskCache.edit(key);
+            } catch (IOException e) {
+                Log.e(TAG, "fetchToHttpCache - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "fetchToHttpCache - " + e);
+            }
+        }
+
+        if (editor == null) {
+            return false;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "fetchToHttpCache, not found in http cache, downloading...");
+        }
+
+        try {
+            if (downloadUrlToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))) {
+                editor.commit();
+                return true;
+            } else {
+                editor.abort();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "fetchToHttpCache - " + e);
+        } catch (IllegalStateException e) {
+            // the cache was cleared or closed while downloading
+            Log.e(TAG, "fetchToHttpCache - " + e);
+        }
+        return false;
+    }
+
+    /**
+     * A queued download of a single URL.
+     */
+    private class Download extends FutureTask<Boolean> {
+        private final String mData;
+        // guarded by mDownloads
+        private int mRequests = 0;
+        private boolean mStarted = false;
+
+        public Download(final String data) {
+            super(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    return fetchToHttpCache(data);
+                }
+            });
+            mData = data;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mDownloads) {
+                mStarted = true;
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mDownloads) {
+                if (mDownloads.get(mData) == this) {
+                    mDownloads.remove(mData);
+                }
+            }
+        }
+    }
+
     /**
      * Download a bitmap from a URL and write the content to an output stream.
      *
@@ -265,33 +433,28 @@ public class ImageFetcher extends ImageResizer {
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
 
         try {
             final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            urlConnection = HttpClient.open(url);
+            in = urlConnection.getInputStream();
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
             }
+            HttpClient.release(urlConnection, in);
+            urlConnection = null;
             return true;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            // the response wasn't read to the end
+            HttpClient.disconnect(urlConnection, in);
             try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
+                outputStream.close();
             } catch (final IOException e) {}
         }
         return false;
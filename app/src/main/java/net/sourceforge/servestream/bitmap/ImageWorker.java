@@ -94,6 +94,7 @@ public abstract class ImageWorker {
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
+            task.mTag = onWorkQueued(data);
 
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
@@ -199,7 +200,23 @@ public abstract class ImageWorker {
             }
         }
     }
-    
+
+    /**
+     * Returns the image specified by the data parameter if it is already in the
+     * memory cache, without touching the disk cache or processing the image.
+     *
+     * @param data The URL of the image.
+     * @return The cached bitmap, or null if it isn't in memory.
+     */
+    public Bitmap getBitmapFromMemCache(Object data) {
+        if (data == null || mImageCache == null) {
+            return null;
+        }
+
+        BitmapDrawable value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+        return value != null ? value.getBitmap() : null;
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      *
@@ -279,6 +296,27 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Called on the UI thread when background work has been queued for data that wasn't found
+     * in the memory cache. Subclasses can override this to start slow I/O (such as a download)
+     * before the task reaches the front of the decode queue.
+     *
+     * @param data The data the work was queued for
+     * @return A tag that is passed back to {@link ImageWorker#onWorkFinished(Object, Object)}
+     */
+    protected Object onWorkQueued(Object data) {
+        return null;
+    }
+
+    /**
+     * Called on the UI thread once the work queued for the data has completed or was cancelled.
+     *
+     * @param data The data the work was queued for
+     * @param tag The tag returned by {@link ImageWorker#onWorkQueued(Object)}
+     */
+    protected void onWorkFinished(Object data, Object tag) {
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
@@ -348,6 +386,7 @@ public abstract class ImageWorker {
      */
     private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
         private Object mData;
+        private Object mTag;
         private final WeakReference<ImageView> imageViewReference;
 
         public BitmapWorkerTask(Object data, ImageView imageView) {
@@ -429,6 +468,8 @@ public abstract class ImageWorker {
         @Override
         protected void onPostExecute(BitmapDrawable value) {
             //BEGIN_INCLUDE(complete_background_work)
+            onWorkFinished(mData, mTag);
+
             // if cancel was called on this task or the "exit early" flag is set then we're done
             if (isCancelled() || mExitTasksEarly) {
                 value = null;
@@ -447,6 +488,7 @@ public abstract class ImageWorker {
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
+            onWorkFinished(mData, mTag);
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
@@ -157,10 +157,12 @@ public abstract class AbstractMediaPlayer {
      * player will not be started.
      *
      * @param next the player to start after this one completes playback.
-     *
+     * @return true if this player will start <code>next</code> itself, false
+     * if the caller has to start it once this player completes.
      */
-    // TODO add this back
-    //public abstract void setNextMediaPlayer(AbstractMediaPlayer next);
+    public boolean setNextMediaPlayer(AbstractMediaPlayer next) {
+    	return false;
+    }
 
     /**
      * Releases resources associated with this MediaPlayer object.
@@ -327,6 +329,35 @@ public abstract class AbstractMediaPlayer {
 
     protected OnErrorListener mOnErrorListener;
     
+    /**
+     * Interface definition of a callback to be invoked indicating buffering
+     * status of a media resource being streamed over the network.
+     */
+    public interface OnBufferingUpdateListener
+    {
+        /**
+         * Called to update the status of the buffer between the network
+         * and the decoder.
+         *
+         * @param mp      the MediaPlayer the update pertains to
+         * @param percent the percentage (0-100) of the buffer that is filled
+         */
+        void onBufferingUpdate(AbstractMediaPlayer mp, int percent);
+    }
+    
+    /**
+     * Register a callback to be invoked when the status of a network
+     * stream's buffer has changed.
+     *
+     * @param listener the callback that will be run.
+     */
+    public void setOnBufferingUpdateListener(OnBufferingUpdateListener listener)
+    {
+        mOnBufferingUpdateListener = listener;
+    }
+
+    protected OnBufferingUpdateListener mOnBufferingUpdateListener;
+    
     /**
      * Interface definition of a callback to be invoked to communicate some
      * info and/or warning about the media or its playback.
@@ -346,6 +377,8 @@ public abstract class AbstractMediaPlayer {
          * <li>{@link #MEDIA_INFO_BAD_INTERLEAVING}
          * <li>{@link #MEDIA_INFO_NOT_SEEKABLE}
          * <li>{@link #MEDIA_INFO_METADATA_UPDATE}
+         * <li>{@link #MEDIA_INFO_BUFFERED_BYTES}
+         * <li>{@link #MEDIA_INFO_DOWNLOAD_RATE}
          * </ul>
          * @param extra an extra code, specific to the info. Typically
          * implementation dependant.
@@ -361,6 +394,17 @@ public abstract class AbstractMediaPlayer {
      */
     public static final int MEDIA_INFO_METADATA_UPDATE = 802;
     
+    /** The number of bytes downloaded ahead of the playback position has
+     * changed, extra is the number of bytes. Not defined by
+     * android.media.MediaPlayer.
+     */
+    public static final int MEDIA_INFO_BUFFERED_BYTES = 1001;
+    
+    /** The download rate has changed, extra is the rate in bytes per
+     * second. Not defined by android.media.MediaPlayer.
+     */
+    public static final int MEDIA_INFO_DOWNLOAD_RATE = 1002;
+    
     /**
      * Register a callback to be invoked when an info/warning is available.
      *
@@ -0,0 +1,182 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Works out how much of a file has to be downloaded before playback can
+ * start: a few seconds of audio at the bitrate of the stream, plus any tag
+ * that precedes the audio. The bitrate comes from the icy-br header when
+ * the server sends one, otherwise from the first MPEG audio frame header.
+ */
+final class BufferThreshold {
+
+	// the amount of audio buffered before playback starts
+	private static final int BUFFER_SECONDS = 5;
+
+	// used when the bitrate can't be determined, 5 seconds at 128 kbps
+	static final long DEFAULT_THRESHOLD = 80 * 1024;
+
+	private static final long MIN_THRESHOLD = 16 * 1024;
+	private static final long MAX_THRESHOLD = 512 * 1024;
+
+	private static final int ID3V2_HEADER_SIZE = 10;
+
+	// how far past the tags to look for a frame header
+	private static final int SCAN_SIZE = 4096;
+
+	// kbps by bitrate index, for MPEG-1 layers I, II, III and MPEG-2/2.5
+	// layer I and layers II/III
+	private static final int [][] BITRATES = {
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+	};
+
+	private BufferThreshold() {
+
+	}
+
+	/**
+	 * @param kbps The bitrate of the stream.
+	 * @param offset The number of bytes that precede the audio.
+	 * @param length The length of the file, or -1 if it isn't known.
+	 * @return the number of bytes to buffer.
+	 */
+	static long forBitrate(int kbps, long offset, long length) {
+		long threshold = (long) kbps * 1000 / 8 * BUFFER_SECONDS;
+		threshold = offset + Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, threshold));
+		return length != -1 ? Math.min(threshold, length) : threshold;
+	}
+
+	/**
+	 * Estimates the threshold from the start of the file.
+	 *
+	 * @param file The file being downloaded.
+	 * @param available The number of bytes present from the start of the file.
+	 * @param length The length of the file, or -1 if it isn't known.
+	 * @return the number of bytes to buffer, or -1 if more of the file is
+	 * needed to tell.
+	 */
+	static long estimate(RandomAccessFile file, long available, long length) throws IOException {
+		boolean isWholeFile = length != -1 && available >= length;
+
+		if (available < ID3V2_HEADER_SIZE) {
+			return isWholeFile ? length : -1;
+		}
+
+		byte [] header = new byte[ID3V2_HEADER_SIZE];
+		file.seek(0);
+		file.readFully(header);
+		long offset = getId3v2Size(header);
+
+		if (available < offset + SCAN_SIZE && !isWholeFile) {
+			return -1;
+		}
+
+		byte [] data = new byte[(int) Math.max(0, Math.min(SCAN_SIZE, available - offset))];
+		file.seek(offset);
+		file.readFully(data);
+
+		int kbps = findBitrate(data);
+		if (kbps <= 0) {
+			long threshold = offset + DEFAULT_THRESHOLD;
+			return length != -1 ? Math.min(threshold, length) : threshold;
+		}
+
+		return forBitrate(kbps, offset, length);
+	}
+
+	/**
+	 * Parses the value of an icy-br header, which some servers send as a
+	 * comma separated list.
+	 *
+	 * @return the bitrate in kbps, or -1 if the value is missing or invalid.
+	 */
+	static int parseIcyBitrate(String value) {
+		if (value == null) {
+			return -1;
+		}
+
+		int comma = value.indexOf(',');
+		try {
+			return Integer.parseInt((comma != -1 ? value.substring(0, comma) : value).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the size of the ID3v2 tag, header included, or 0 if the file
+	 * doesn't start with one.
+	 */
+	private static long getId3v2Size(byte [] header) {
+		if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+			return 0;
+		}
+
+		// the size is a 28 bit synchsafe integer
+		long size = ((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14) |
+				((header[8] & 0x7f) << 7) | (header[9] & 0x7f);
+
+		// a footer doubles the header
+		if ((header[5] & 0x10) != 0) {
+			size += ID3V2_HEADER_SIZE;
+		}
+
+		return ID3V2_HEADER_SIZE + size;
+	}
+
+	/**
+	 * @return the bitrate of the first MPEG audio frame header in data, or
+	 * -1 if there is none.
+	 */
+	private static int findBitrate(byte [] data) {
+		for (int i = 0; i + 2 < data.length; i++) {
+			if ((data[i] & 0xff) != 0xff || (data[i + 1] & 0xe0) != 0xe0) {
+				continue;
+			}
+
+			int version = (data[i + 1] >> 3) & 0x03;
+			int layer = (data[i + 1] >> 1) & 0x03;
+			int bitrateIndex = (data[i + 2] >> 4) & 0x0f;
+			int sampleRateIndex = (data[i + 2] >> 2) & 0x03;
+
+			// reserved values mean this isn't a frame header
+			if (version == 1 || layer == 0 || bitrateIndex == 0 ||
+					bitrateIndex == 15 || sampleRateIndex == 3) {
+				continue;
+			}
+
+			int table;
+			if (version == 3) {
+				table = 3 - layer;
+			} else {
+				table = layer == 3 ? 3 : 4;
+			}
+
+			return BITRATES[table][bitrateIndex];
+		}
+
+		return -1;
+	}
+}
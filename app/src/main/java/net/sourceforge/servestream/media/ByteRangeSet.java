@@ -0,0 +1,125 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of non-overlapping byte ranges, used to track which parts of a
+ * file have been downloaded. Adjacent and overlapping ranges are merged.
+ * This class is not thread safe.
+ */
+final class ByteRangeSet {
+	// range start -> range end (exclusive)
+	private final TreeMap<Long, Long> mRanges = new TreeMap<Long, Long>();
+	private long mSize = 0;
+
+	/**
+	 * Adds the range [start, end).
+	 */
+	void add(long start, long end) {
+		if (end <= start) {
+			return;
+		}
+
+		// merge with a range that starts before and reaches start
+		Map.Entry<Long, Long> floor = mRanges.floorEntry(start);
+		if (floor != null && floor.getValue() >= start) {
+			start = floor.getKey();
+			end = Math.max(end, floor.getValue());
+			remove(floor.getKey());
+		}
+
+		// merge with the ranges that start inside the new range
+		Map.Entry<Long, Long> next;
+		while ((next = mRanges.ceilingEntry(start)) != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			remove(next.getKey());
+		}
+
+		mRanges.put(start, end);
+		mSize += end - start;
+	}
+
+	/**
+	 * @return true if the byte at position is in the set.
+	 */
+	boolean contains(long position) {
+		Map.Entry<Long, Long> floor = mRanges.floorEntry(position);
+		return floor != null && floor.getValue() > position;
+	}
+
+	/**
+	 * @return the end of the range that contains position, or position if
+	 * the byte at position isn't in the set.
+	 */
+	long getRangeEnd(long position) {
+		Map.Entry<Long, Long> floor = mRanges.floorEntry(position);
+		if (floor != null && floor.getValue() > position) {
+			return floor.getValue();
+		}
+		return position;
+	}
+
+	/**
+	 * @return the start of the first range after position, or
+	 * Long.MAX_VALUE if there is none.
+	 */
+	long getNextRangeStart(long position) {
+		Long start = mRanges.higherKey(position);
+		return start != null ? start : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the number of bytes in the set.
+	 */
+	long size() {
+		return mSize;
+	}
+
+	/**
+	 * @return true if the set covers [0, length).
+	 */
+	boolean isComplete(long length) {
+		return getRangeEnd(0) >= length;
+	}
+
+	void clear() {
+		mRanges.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return the ranges as consecutive start, end pairs.
+	 */
+	long [] toArray() {
+		long [] ranges = new long[mRanges.size() * 2];
+		int i = 0;
+		for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+			ranges[i++] = range.getKey();
+			ranges[i++] = range.getValue();
+		}
+		return ranges;
+	}
+
+	private void remove(long start) {
+		Long end = mRanges.remove(start);
+		mSize -= end - start;
+	}
+}
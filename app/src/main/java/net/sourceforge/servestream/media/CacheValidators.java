@@ -0,0 +1,142 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import net.sourceforge.servestream.transport.AbsTransport;
+import net.sourceforge.servestream.transport.HTTP;
+import net.sourceforge.servestream.transport.HTTPS;
+import net.sourceforge.servestream.transport.TransportFactory;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * The HTTP validators (ETag, Last-Modified and Content-Length) of a media
+ * file, used to tell whether the metadata stored for it is still current.
+ */
+final class CacheValidators {
+	private static final String TAG = CacheValidators.class.getName();
+
+	final String mETag;
+	final String mLastModified;
+	final long mContentLength;
+
+	CacheValidators(String etag, String lastModified, long contentLength) {
+		mETag = etag;
+		mLastModified = lastModified;
+		mContentLength = contentLength;
+	}
+
+	/**
+	 * @return true if the server provided nothing to validate against.
+	 */
+	boolean isEmpty() {
+		return mETag == null && mLastModified == null;
+	}
+
+	/**
+	 * @return true if both validators describe the same version of the
+	 * media file.
+	 */
+	boolean matches(CacheValidators other) {
+		if (other == null) {
+			return false;
+		}
+
+		if (mETag != null && other.mETag != null) {
+			return mETag.equals(other.mETag);
+		}
+
+		if (mLastModified != null && other.mLastModified != null) {
+			return mLastModified.equals(other.mLastModified) &&
+					mContentLength == other.mContentLength;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Issues a HEAD request for the media file, made conditional on the
+	 * cached validators if there are any.
+	 *
+	 * @param uri The uri of the media file.
+	 * @param cached The validators stored with the metadata, or null.
+	 * @return The current validators, the cached validators if the server
+	 * responded 304 Not Modified, or null if the media file isn't served over
+	 * HTTP or the request failed.
+	 */
+	static CacheValidators fetch(String uri, CacheValidators cached) {
+		Uri target = TransportFactory.getUri(uri);
+		if (target == null) {
+			return null;
+		}
+
+		AbsTransport transport = TransportFactory.getTransport(target.getScheme());
+		if (!(transport instanceof HTTP) && !(transport instanceof HTTPS)) {
+			return null;
+		}
+
+		transport.setUri(transport.createUri(target));
+		transport.setRequestMethod("HEAD");
+
+		if (cached != null) {
+			if (cached.mETag != null) {
+				transport.setRequestProperty("If-None-Match", cached.mETag);
+			}
+			if (cached.mLastModified != null) {
+				transport.setRequestProperty("If-Modified-Since", cached.mLastModified);
+			}
+		}
+
+		try {
+			transport.connect();
+
+			int responseCode = transport.getResponseCode();
+
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return cached;
+			} else if (responseCode != HttpURLConnection.HTTP_OK) {
+				return null;
+			}
+
+			return new CacheValidators(transport.getHeaderField("ETag"),
+					transport.getHeaderField("Last-Modified"),
+					parseLong(transport.getHeaderField("Content-Length")));
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to validate " + uri);
+			return null;
+		} finally {
+			transport.close();
+		}
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -17,15 +17,10 @@
 
 package net.sourceforge.servestream.media;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.transport.HTTP;
@@ -41,15 +36,16 @@ import android.util.Log;
 public class DownloadPlayer extends FFmpegMediaPlayer {
 	private static final String TAG = DownloadPlayer.class.getName();
 	
-	private long mTotalSizeInBytes = -1;
-	
 	private URL mUrl = null;
 	private long mId = -1;
-	private long mLength = -1;
+	private volatile long mDuration = -1;
 	private File mPartialFile = null;
 	private File mCompleteFile = null;
-	private DownloadTask mDownloadTask = null;
-	private PollingAsyncTask mPollingAsyncTask = null;
+	private File mIndexFile = null;
+	private SegmentedDownload mDownload = null;
+	// the URL the proxy serves the download at
+	private String mDownloadUrl = null;
+	private MediaCache mMediaCache = null;
 	
 	public DownloadPlayer() {
 		super();
@@ -59,22 +55,35 @@ public class DownloadPlayer extends FFmpegMediaPlayer {
 	public void setDataSource(Context context, long id) throws IOException,
 			IllegalArgumentException, SecurityException, IllegalStateException {
 		mId = id;
+		mUrl = getUrl(context, id);
+		
+		if (mUrl == null) {
+			throw new IllegalArgumentException();
+		}
+		
+		mMediaCache = MediaCache.getInstance(context);
+	}
+	
+	/**
+	 * @return the URL of the media file, or null if it can't be downloaded.
+	 */
+	static URL getUrl(Context context, long id) {
 		String path = getUri(context, id);		
 		Uri uri = TransportFactory.getUri(path);
 
 		if (uri == null ||
 				(!uri.getScheme().equals(HTTP.getProtocolName()) &&
 				!uri.getScheme().equals(HTTPS.getProtocolName()))) {
-			throw new IllegalArgumentException();
+			return null;
 		}
 		
 		UriBean uriBean = TransportFactory.getTransport(uri.getScheme()).createUri(uri);
 		
 		if (uriBean == null) {
-			throw new IllegalArgumentException();
+			return null;
 		}
 		
-		mUrl = uriBean.getURL();
+		return uriBean.getURL();
 	}
 	
 	@Override
@@ -88,16 +97,15 @@ public class DownloadPlayer extends FFmpegMediaPlayer {
         cancelDownload();
 	}
 	
-	@Override
-	public void seekTo(int msec) throws IllegalStateException {
-		if (isCompleteFileAvailable()) {
-			super.seekTo(msec);
-		}
-	}
-	
 	@Override
 	public int getDuration() {
-		if (isCompleteFileAvailable()) {
+		// the player only sees the part of the file that has been downloaded,
+		// the duration is read from the container header instead
+		long duration = mDuration;
+		
+		if (duration > 0) {
+			return (int) duration;
+		} else if (isCompleteFileAvailable()) {
 			return super.getDuration();
 		} else {
 			return 0;
@@ -108,44 +116,168 @@ public class DownloadPlayer extends FFmpegMediaPlayer {
 	public void release() {
 		super.release();
     	cancelDownload();
-    	Utils.deleteAllFiles();
 	}
 	
 	@Override
 	public void reset() {
 		super.reset();
     	cancelDownload();
-    	Utils.deleteAllFiles();
 	}
 	
 	private void download() {
-		mTotalSizeInBytes = -1;
-		mLength = -1;
+		mDuration = -1;
 		mPartialFile = new File(Utils.getDownloadDirectory(), "mediafile" + mId + ".partial.dat");
         mCompleteFile = new File(Utils.getDownloadDirectory(), "mediafile" + mId + ".complete.dat");
-        Utils.deleteFile(mPartialFile);
-        Utils.deleteFile(mCompleteFile);
+        mIndexFile = new File(Utils.getDownloadDirectory(), "mediafile" + mId + ".partial.idx");
+        
+        // the files of this track are kept so an interrupted download resumes
+        deleteOtherDownloads();
+        
+        final MediaCache mediaCache = mMediaCache;
+        File cachedFile = mediaCache != null ? mediaCache.get(mUrl) : null;
+        if (cachedFile != null) {
+        	// the download finds the complete file and doesn't connect
+        	mCompleteFile = cachedFile;
+        }
         
         Log.v(TAG, "=============> " + mPartialFile.toString());
-		mDownloadTask = new DownloadTask(mUrl, mPartialFile, mCompleteFile);
-        mDownloadTask.execute();
-        mPollingAsyncTask = new PollingAsyncTask();
-        mPollingAsyncTask.execute();
+        mDownload = new SegmentedDownload(mUrl, mPartialFile, mCompleteFile, mIndexFile);
+        mDownload.setOnCompletionListener(new SegmentedDownload.OnCompletionListener() {
+			@Override
+			public void onCompletion(SegmentedDownload download) {
+				addToCache(download, mediaCache);
+				
+				if (mOnInfoListener != null) {
+					mOnInfoListener.onInfo(DownloadPlayer.this, AbstractMediaPlayer.MEDIA_INFO_METADATA_UPDATE, 0);
+					reportProgress(download.getBufferedBytes(), 0);
+				}
+			}
+		});
+        mDownload.setOnErrorListener(new SegmentedDownload.OnErrorListener() {
+			@Override
+			public void onError(SegmentedDownload download, int responseCode) {
+				AbstractMediaPlayer.OnErrorListener listener = mOnErrorListener;
+				
+				if (download == mDownload && listener != null) {
+					listener.onError(DownloadPlayer.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, responseCode);
+				}
+			}
+		});
+        mDownload.setOnBufferedListener(new SegmentedDownload.OnBufferedListener() {
+			@Override
+			public void onBuffered(SegmentedDownload download) {
+				startPlayback(download);
+			}
+		});
+        mDownload.setOnProgressListener(new SegmentedDownload.OnProgressListener() {
+			@Override
+			public void onProgress(SegmentedDownload download, long bufferedBytes, long bytesPerSecond) {
+				if (download == mDownload) {
+					reportProgress(bufferedBytes, bytesPerSecond);
+				}
+			}
+		});
+        
+        // the proxy has to serve the download before it can report it's buffered
+        StreamProxy proxy = StreamProxy.getInstance();
+        if (proxy == null) {
+        	Log.e(TAG, "Unable to serve the download, the stream proxy isn't running");
+        	cancelDownload();
+        	return;
+        }
+        mDownloadUrl = proxy.addDownload(mDownload, mPartialFile.getName());
+        
+        mDownload.start();
+	}
+	
+	/**
+	 * Called by the download once enough of the file is present to start
+	 * playback.
+	 */
+	private void startPlayback(SegmentedDownload download) {
+		String url = mDownloadUrl;
+		
+		if (download != mDownload || url == null) {
+			// the download was cancelled
+			return;
+		}
+		
+		Log.v(TAG, "setDataSource called");
+		try {
+			super.setDataSource(url);
+			super.prepareAsync();
+			retrieveDuration(download, url);
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		} catch (SecurityException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Moves a completely downloaded file into the media cache. The download
+	 * keeps reading the file it has open, so playback isn't affected.
+	 */
+	private synchronized void addToCache(SegmentedDownload download, MediaCache mediaCache) {
+		if (mediaCache == null || download != mDownload || isCached()) {
+			// the file is in the cache already, or the download was cancelled
+			return;
+		}
+		
+		File cachedFile = mediaCache.put(mUrl, mCompleteFile);
+		if (cachedFile != null) {
+			mCompleteFile = cachedFile;
+		}
+	}
+	
+	private void reportProgress(long bufferedBytes, long bytesPerSecond) {
+		AbstractMediaPlayer.OnInfoListener listener = mOnInfoListener;
+		
+		if (listener != null) {
+			listener.onInfo(this, AbstractMediaPlayer.MEDIA_INFO_BUFFERED_BYTES, (int) Math.min(bufferedBytes, Integer.MAX_VALUE));
+			listener.onInfo(this, AbstractMediaPlayer.MEDIA_INFO_DOWNLOAD_RATE, (int) Math.min(bytesPerSecond, Integer.MAX_VALUE));
+		}
 	}
 	
 	public void cancelDownload() {
-		if (mDownloadTask != null) {
-	    	DownloadTask downloadTask = mDownloadTask;
-	    	downloadTask.cancel();
-	    	mDownloadTask = null;
+		SegmentedDownload download = mDownload;
+		
+		if (download != null) {
+			download.cancel();
+			mDownload = null;
+		}
+		
+		if (mDownloadUrl != null) {
+			mDownloadUrl = null;
+			StreamProxy proxy = StreamProxy.getInstance();
+			if (proxy != null && download != null) {
+				proxy.removeDownload(download);
+			}
 		}
 	}
 	
-	public void cancelPollingTask() {
-		if (mPollingAsyncTask != null) {
-			PollingAsyncTask pollingAsyncTask = mPollingAsyncTask;
-			pollingAsyncTask.cancel();
-	    	mPollingAsyncTask = null;
+	/**
+	 * Deletes the files of every download but the current one.
+	 */
+	private void deleteOtherDownloads() {
+		File directory = Utils.getDownloadDirectory();
+		
+		if (directory == null) {
+			return;
+		}
+		
+		String prefix = "mediafile" + mId + ".";
+		File [] files = directory.listFiles();
+		
+		for (int i = 0; files != null && i < files.length; i++) {
+			// the media cache lives in a subdirectory
+			if (files[i].isFile() && !files[i].getName().startsWith(prefix)) {
+				Utils.deleteFile(files[i]);
+			}
 		}
 	}
 	
@@ -157,21 +289,6 @@ public class DownloadPlayer extends FFmpegMediaPlayer {
 		return null;
 	}
 	
-	public long getCompleteFileDuration() {
-        long duration = 0;
-        
-    	MediaPlayer mediaPlayer = new MediaPlayer();
-        try {
-			mediaPlayer.setDataSource(getCompleteFile().toString());
-			mediaPlayer.prepare();
-			duration = mediaPlayer.getDuration();
-			mediaPlayer.release();
-		} catch (Exception e) {
-		}
-		
-		return duration;
-	}
-	
 	public File getPartialFile() {
 		return mPartialFile;
 	}
@@ -189,196 +306,79 @@ public class DownloadPlayer extends FFmpegMediaPlayer {
 			return 1.0;
 		}
 
-		return (double) mPartialFile.length() / (double) mTotalSizeInBytes;
+		SegmentedDownload download = mDownload;
+		if (download == null || download.getLength() <= 0) {
+			return 0.0;
+		}
+		
+		return (double) download.getDownloadedBytes() / (double) download.getLength();
 	}
 
 	public synchronized boolean isDownloadCancelled() {
-		return mDownloadTask != null && mDownloadTask.isCancelled();
+		return mDownload != null && mDownload.isCancelled();
 	}
 	
 	public void delete() {
 		cancelDownload();
-		cancelPollingTask();
 		Utils.deleteFile(mPartialFile);
-		Utils.deleteFile(mCompleteFile);
+		Utils.deleteFile(mIndexFile);
+		
+		// files in the media cache are left for the cache to evict
+		if (!isCached()) {
+			Utils.deleteFile(mCompleteFile);
+		}
 	}
 	
 	/**
-	 * @return the length
+	 * @return true if the complete file is in the media cache rather than
+	 * the download directory.
 	 */
-	public long getLength() {
-		long length = -1;
-		
-		if (isCompleteFileAvailable()) {
-			if (mLength == -1) {
-				mLength = getCompleteFileDuration();
-			}
-			
-			length = mLength;
-		}
-		
-		return length;
+	private boolean isCached() {
+		return mCompleteFile != null &&
+				!mCompleteFile.getParentFile().equals(Utils.getDownloadDirectory());
 	}
 	
-	private class DownloadTask implements Runnable {
-		
-		private boolean mIsCancelled;
-	
-		private URL mUrl = null;
-		private File mPartialFile = null;
-		private File mCompleteFile = null;
-		
-		public DownloadTask(URL url, File partialFile, File completeFile) {
-	    	mIsCancelled = false;
-	    	mUrl = url;
-			mPartialFile = partialFile;
-			mCompleteFile = completeFile;
-		}
-		
-		@Override
-		public void run() {
-        	HttpURLConnection conn = null;
-        	BufferedInputStream in = null;
-            FileOutputStream out = null;
-            boolean appendToFile = false;
-            
-            byte[] buffer = new byte[1024 * 16];
-            //long count = 0;
-            
-			Log.v(TAG, "starting download task");
-            while (!mCompleteFile.exists() && !isCancelled()) {
-            	try {
-                	conn = determineRange(mUrl, mPartialFile.length());
-            
-                	if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
-                		appendToFile = true;
-                	} else {
-                		mTotalSizeInBytes = conn.getContentLength();
-                	}
-            
-                	in = new BufferedInputStream(conn.getInputStream());
-                	out = new FileOutputStream(mPartialFile, appendToFile);
-
-                	int i;
-                	while (((i = in.read(buffer)) != -1) && !isCancelled()) {
-                		out.write(buffer, 0, i);
-                		//count += i;
-                	}
-                	out.flush();
-                	out.close();
-                
-                	Utils.copyFile(mPartialFile, mCompleteFile);
-        			Log.v(TAG, "download task is complete");
-        			
-        			if (mOnInfoListener != null) {
-        				mOnInfoListener.onInfo(DownloadPlayer.this, AbstractMediaPlayer.MEDIA_INFO_METADATA_UPDATE, 0);
-        			}
-            	} catch (IOException e) {
-            		e.printStackTrace();
-            	} finally {
-            		Utils.closeInputStream(in);
-            		Utils.closeHttpConnection(conn);
-            		Utils.closeOutputStream(out);
-            	}
-            }
-        }
-	
-        private HttpURLConnection determineRange(URL url, long bytesProcessed) {
-        	HttpURLConnection conn = null;
-		
-        	try {
-        		if (url.getProtocol().equalsIgnoreCase("http")) {
-        			conn = (HttpURLConnection) url.openConnection();
-        		} else if (url.getProtocol().equalsIgnoreCase("https")) {
-        			conn = (HttpsURLConnection) url.openConnection();        		
-        		}
-    	
-        		if (conn == null) {
-        			return null;
-        		}
-		
-        		conn.setRequestProperty("User-Agent", "ServeStream");
-        		conn.setConnectTimeout(6000);
-        		conn.setReadTimeout(6000);
-        		conn.setRequestProperty("Range", "bytes=" + bytesProcessed + "-");
-        		conn.setRequestMethod("GET");
-        		conn.connect();
-        	} catch (IOException e) {
-        		e.printStackTrace();
-        	}
-		
-        	return conn;
-        }
-        
-		private synchronized boolean isCancelled() {
-			return mIsCancelled;
-		}
-		
-		public synchronized void cancel() {
-			mIsCancelled = true;
-		}
-		
-		public synchronized void execute() {
-			new Thread(this, "").start();
-		}
+	/**
+	 * @return the duration in milliseconds, or -1 if it isn't known yet
+	 */
+	public long getLength() {
+		return mDuration > 0 ? mDuration : -1;
 	}
-        
-	private class PollingAsyncTask implements Runnable {
-		
-		private boolean mIsCancelled;
-		
-		//int INITIAL_BUFFER = Math.max(100000, 160 * 1024 / 8 * 5);
-		int INITIAL_BUFFER = 81920;
-		
-	    public PollingAsyncTask() {
-	    	mIsCancelled = false;
-	    }
-	    
-		@Override
-		public void run() {
-			Log.v(TAG, "polling task started");
-			
-			while (!bufferingComplete() && !isCancelled()) {
+	
+	/**
+	 * Reads the duration from the container header. This only needs the
+	 * header and, for some formats, the end of the file, which the
+	 * download fetches ahead of the rest.
+	 */
+	private void retrieveDuration(final SegmentedDownload download, final String url) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				FFmpegMediaMetadataRetriever mmr = new FFmpegMediaMetadataRetriever();
+				
 				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+					mmr.setDataSource(url);
+					String duration = mmr.extractMetadata(FFmpegMediaMetadataRetriever.METADATA_KEY_DURATION);
+					
+					if (duration != null && download == mDownload) {
+						mDuration = Long.parseLong(duration);
+						
+						if (mOnInfoListener != null) {
+							mOnInfoListener.onInfo(DownloadPlayer.this, AbstractMediaPlayer.MEDIA_INFO_METADATA_UPDATE, 0);
+						}
+					}
+				} catch (IllegalArgumentException e) {
+					Log.e(TAG, "Unable to retrieve the duration");
+				} catch (NumberFormatException e) {
+					Log.e(TAG, "Unable to retrieve the duration");
+				} finally {
+					mmr.release();
 				}
 			}
-			
-			Log.v(TAG, "setDataSource called");
-			try {
-				DownloadPlayer.super.setDataSource(getPartialFile().getPath());
-				DownloadPlayer.super.prepareAsync();
-			} catch (IllegalArgumentException e) {
-				e.printStackTrace();
-			} catch (SecurityException e) {
-				e.printStackTrace();
-			} catch (IllegalStateException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		private boolean bufferingComplete() {
-			return getPartialFile().length() >= INITIAL_BUFFER;
-		}
-		
-		private synchronized boolean isCancelled() {
-			return mIsCancelled;
-		}
-		
-		public synchronized void cancel() {
-			mIsCancelled = true;
-		}
-		
-		public synchronized void execute() {
-			new Thread(this, "").start();
-		}
+		}, "").start();
 	}
 	
-	private String getUri(Context context, long id) {
+	private static String getUri(Context context, long id) {
 		String uri = null;
 		
 		// Form an array specifying which columns to return. 
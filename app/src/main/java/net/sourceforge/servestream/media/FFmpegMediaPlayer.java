@@ -1766,12 +1766,12 @@ public class FFmpegMediaPlayer extends AbstractMediaPlayer
      *
      * @param listener the callback that will be run.
      */
-    public void setOnBufferingUpdateListener(OnBufferingUpdateListener listener)
+    /*public void setOnBufferingUpdateListener(OnBufferingUpdateListener listener)
     {
         mOnBufferingUpdateListener = listener;
     }
 
-    private OnBufferingUpdateListener mOnBufferingUpdateListener;
+    private OnBufferingUpdateListener mOnBufferingUpdateListener;*/
 
     /**
      * Interface definition of a callback to be invoked indicating
@@ -0,0 +1,147 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Removes the metadata blocks a SHOUTcast or Icecast server interleaves
+ * with the audio when asked to with an Icy-MetaData header. A block
+ * follows every icy-metaint bytes of audio: a length byte, in units of
+ * 16 bytes, and the metadata padded with zeros, e.g.
+ * "StreamTitle='Artist - Title';".
+ */
+final class IcyMetadataInputStream extends FilterInputStream {
+
+	interface OnMetadataListener {
+		/**
+		 * Called from the reading thread for every metadata block that isn't
+		 * empty.
+		 */
+		void onMetadata(String metadata);
+	}
+
+	private final int mInterval;
+	private final OnMetadataListener mListener;
+
+	// the number of audio bytes before the next metadata block
+	private int mRemaining;
+
+	/**
+	 * @param in The response stream.
+	 * @param interval The value of the icy-metaint header.
+	 */
+	IcyMetadataInputStream(InputStream in, int interval, OnMetadataListener listener) {
+		super(in);
+		mInterval = interval;
+		mRemaining = interval;
+		mListener = listener;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte [] b = new byte[1];
+		int count;
+
+		while ((count = read(b, 0, 1)) == 0) {
+		}
+
+		return count == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte [] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		if (mRemaining == 0 && !readMetadata()) {
+			return -1;
+		}
+
+		int count = in.read(b, off, Math.min(len, mRemaining));
+		if (count > 0) {
+			mRemaining -= count;
+		}
+
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte [] buffer = new byte[(int) Math.min(n, 4096)];
+		long skipped = 0;
+
+		while (skipped < n) {
+			int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (count == -1) {
+				break;
+			}
+			skipped += count;
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(in.available(), mRemaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * @return false if the stream ended before the block.
+	 */
+	private boolean readMetadata() throws IOException {
+		int length = in.read();
+		if (length == -1) {
+			return false;
+		}
+
+		length *= 16;
+		byte [] block = new byte[length];
+		int offset = 0;
+
+		while (offset < length) {
+			int count = in.read(block, offset, length - offset);
+			if (count == -1) {
+				throw new EOFException("Truncated metadata block");
+			}
+			offset += count;
+		}
+
+		// the block is padded with zeros
+		while (length > 0 && block[length - 1] == 0) {
+			length--;
+		}
+
+		if (length > 0 && mListener != null) {
+			mListener.onMetadata(new String(block, 0, length, "UTF-8"));
+		}
+
+		mRemaining = mInterval;
+		return true;
+	}
+}
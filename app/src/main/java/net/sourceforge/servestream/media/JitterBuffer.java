@@ -0,0 +1,321 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.os.SystemClock;
+
+/**
+ * Buffers a live stream between the server and the player. Data is held
+ * back until the buffer holds its target amount of audio, at the start and
+ * whenever the buffer runs dry. The target grows after every underrun and
+ * shrinks slowly while the stream plays without one, so a flaky link gets
+ * a deeper buffer and a good one doesn't add more delay than it needs.
+ */
+final class JitterBuffer {
+
+	// used when the stream doesn't tell its bitrate
+	private static final int DEFAULT_KBPS = 128;
+
+	static final long MAX_TARGET_MILLIS = 30000;
+
+	// the target shrinks by a tenth after this long without an underrun
+	private static final long STABLE_PERIOD = 60000;
+
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	// the player is taken to be starving once it has less audio than this
+	private static final long STARVING_MILLIS = 500;
+
+	/**
+	 * The state of the buffer of a stream, kept across the connections the
+	 * player makes to it.
+	 */
+	static final class Stats {
+		private final long mMinTargetMillis;
+		private long mTargetMillis;
+		private int mBytesPerSecond;
+		private long mDepthBytes;
+		private int mUnderruns;
+		private long mRebufferMillis;
+
+		Stats(long minTargetMillis) {
+			mMinTargetMillis = minTargetMillis;
+			mTargetMillis = minTargetMillis;
+		}
+
+		/**
+		 * @return the target the buffer starts with, in milliseconds.
+		 */
+		long getMinTargetMillis() {
+			return mMinTargetMillis;
+		}
+
+		/**
+		 * @return the amount of audio in the buffer, in milliseconds.
+		 */
+		synchronized long getDepthMillis() {
+			return mBytesPerSecond > 0 ? mDepthBytes * 1000 / mBytesPerSecond : 0;
+		}
+
+		/**
+		 * @return the amount of audio the buffer fills up to before
+		 * releasing data, in milliseconds.
+		 */
+		synchronized long getTargetMillis() {
+			return mTargetMillis;
+		}
+
+		/**
+		 * @return the number of times the buffer ran dry.
+		 */
+		synchronized int getUnderrunCount() {
+			return mUnderruns;
+		}
+
+		/**
+		 * @return the time spent refilling the buffer after underruns, in
+		 * milliseconds.
+		 */
+		synchronized long getRebufferMillis() {
+			return mRebufferMillis;
+		}
+
+		private synchronized void onUnderrun() {
+			mUnderruns++;
+			mTargetMillis = Math.min(MAX_TARGET_MILLIS, Math.max(mTargetMillis * 3 / 2, mTargetMillis + 1000));
+		}
+
+		private synchronized void onStable() {
+			mTargetMillis = Math.max(mMinTargetMillis, mTargetMillis * 9 / 10);
+		}
+	}
+
+	private final InputStream mIn;
+	private final Stats mStats;
+
+	private final byte [] mBuffer;
+	private int mReadPosition = 0;
+	private int mCount = 0;
+	private boolean mIsEnded = false;
+	private boolean mIsClosed = false;
+	private IOException mError = null;
+
+	// the audio written to the player and the time it would have started
+	// playing if it had played without a break, to tell how far ahead of
+	// the playback position the player's own buffer is
+	private long mDeliveredBytes = 0;
+	private long mPlaybackStart = -1;
+
+	/**
+	 * @param in The response stream.
+	 * @param kbps The bitrate of the stream, or -1 if it isn't known.
+	 * @param stats The state of the buffer of the stream.
+	 */
+	JitterBuffer(InputStream in, int kbps, Stats stats) {
+		mIn = in;
+		mStats = stats;
+
+		synchronized (stats) {
+			stats.mBytesPerSecond = (kbps > 0 ? kbps : DEFAULT_KBPS) * 1000 / 8;
+			stats.mDepthBytes = 0;
+			mBuffer = new byte[(int) (stats.mBytesPerSecond * MAX_TARGET_MILLIS / 1000) + CHUNK_SIZE];
+		}
+	}
+
+	/**
+	 * Copies the stream to the player until either side closes it.
+	 */
+	void transferTo(OutputStream out) throws IOException {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		}, "").start();
+
+		try {
+			drain(out);
+		} finally {
+			synchronized (this) {
+				mIsClosed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads the stream into the buffer, waiting while it is full.
+	 */
+	private void fill() {
+		byte [] chunk = new byte[CHUNK_SIZE];
+
+		try {
+			while (true) {
+				int count = mIn.read(chunk);
+
+				synchronized (this) {
+					if (count == -1 || mIsClosed) {
+						break;
+					}
+
+					int offset = 0;
+					while (offset < count) {
+						while (mCount == mBuffer.length && !mIsClosed) {
+							wait();
+						}
+
+						if (mIsClosed) {
+							return;
+						}
+
+						int writePosition = (mReadPosition + mCount) % mBuffer.length;
+						int length = Math.min(count - offset, Math.min(mBuffer.length - mCount,
+								mBuffer.length - writePosition));
+						System.arraycopy(chunk, offset, mBuffer, writePosition, length);
+						mCount += length;
+						offset += length;
+						setDepth();
+						notifyAll();
+					}
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				mError = e;
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			synchronized (this) {
+				mIsEnded = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffer to the player, holding data back while the buffer
+	 * fills up to its target.
+	 */
+	private void drain(OutputStream out) throws IOException {
+		byte [] chunk = new byte[CHUNK_SIZE];
+		boolean isBuffering = true;
+		boolean isFirstFill = true;
+		long bufferingSince = SystemClock.elapsedRealtime();
+		long stableSince = bufferingSince;
+
+		while (true) {
+			int length;
+
+			synchronized (this) {
+				try {
+					while (!mIsEnded && (isBuffering ?
+							mCount < getTargetBytes() && mCount < mBuffer.length : mCount == 0)) {
+						// an empty buffer only matters once the player has used
+						// up what it read ahead
+						if (!isBuffering && isPlayerStarving()) {
+							isBuffering = true;
+							bufferingSince = SystemClock.elapsedRealtime();
+							mStats.onUnderrun();
+						}
+						wait(isBuffering ? 0 : STARVING_MILLIS / 2);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				long now = SystemClock.elapsedRealtime();
+				if (isBuffering) {
+					isBuffering = false;
+					stableSince = now;
+
+					if (isFirstFill) {
+						isFirstFill = false;
+					} else {
+						synchronized (mStats) {
+							mStats.mRebufferMillis += now - bufferingSince;
+						}
+					}
+				} else if (now - stableSince > STABLE_PERIOD) {
+					mStats.onStable();
+					stableSince = now;
+				}
+
+				if (mCount == 0) {
+					// the stream ended and everything was written
+					if (mError != null) {
+						throw mError;
+					}
+					return;
+				}
+
+				length = Math.min(chunk.length, Math.min(mCount, mBuffer.length - mReadPosition));
+				System.arraycopy(mBuffer, mReadPosition, chunk, 0, length);
+				if (mPlaybackStart == -1) {
+					mPlaybackStart = now;
+				}
+				mDeliveredBytes += length;
+				mReadPosition = (mReadPosition + length) % mBuffer.length;
+				mCount -= length;
+				setDepth();
+				notifyAll();
+			}
+
+			out.write(chunk, 0, length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return true if the player has less than {@link #STARVING_MILLIS} of
+	 * audio left, assuming it plays in real time once it has data.
+	 */
+	private boolean isPlayerStarving() {
+		if (mPlaybackStart == -1) {
+			return true;
+		}
+
+		long deliveredMillis;
+		synchronized (mStats) {
+			deliveredMillis = mDeliveredBytes * 1000 / mStats.mBytesPerSecond;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (now - mPlaybackStart > deliveredMillis) {
+			// the player can't have played more than it got, it stalled
+			mPlaybackStart = now - deliveredMillis;
+		}
+
+		return deliveredMillis - (now - mPlaybackStart) < STARVING_MILLIS;
+	}
+
+	private long getTargetBytes() {
+		synchronized (mStats) {
+			return mStats.mTargetMillis * mStats.mBytesPerSecond / 1000;
+		}
+	}
+
+	private void setDepth() {
+		synchronized (mStats) {
+			mStats.mDepthBytes = mCount;
+		}
+	}
+}
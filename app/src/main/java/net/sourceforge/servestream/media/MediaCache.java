@@ -0,0 +1,285 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+
+import net.sourceforge.servestream.bitmap.DiskLruCache;
+import net.sourceforge.servestream.bitmap.ImageCache;
+import net.sourceforge.servestream.preference.PreferenceConstants;
+import net.sourceforge.servestream.utils.Utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * A size capped cache of downloaded media files, keyed by URL. The least
+ * recently played files are evicted first, so replaying a track or a
+ * playlist doesn't download it again.
+ */
+public final class MediaCache {
+	private static final String TAG = MediaCache.class.getName();
+
+	private static final String CACHE_DIRECTORY_NAME = "cache";
+	private static final int APP_VERSION = 1;
+	private static final int VALUE_COUNT = 1;
+	private static final int FILE_INDEX = 0;
+
+	public static final String DEFAULT_SIZE_MB = "256";
+
+	private static MediaCache sInstance = null;
+
+	private final DiskLruCache mCache;
+	// the size set in the preferences, the cache may be smaller if space is short
+	private final long mRequestedSize;
+
+	private int mHits = 0;
+	private int mMisses = 0;
+	private long mBytesSaved = 0;
+
+	private MediaCache(DiskLruCache cache, long requestedSize) {
+		mCache = cache;
+		mRequestedSize = requestedSize;
+	}
+
+	/**
+	 * @return the cache, or null if it is disabled or the download directory
+	 * isn't available.
+	 */
+	public static synchronized MediaCache getInstance(Context context) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		long maxSize;
+		try {
+			maxSize = Long.parseLong(preferences.getString(PreferenceConstants.MEDIA_CACHE_SIZE, DEFAULT_SIZE_MB)) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			maxSize = Long.parseLong(DEFAULT_SIZE_MB) * 1024 * 1024;
+		}
+
+		if (sInstance != null) {
+			if (sInstance.mRequestedSize == maxSize && !sInstance.mCache.isClosed()) {
+				return sInstance;
+			}
+
+			// the size was changed in the settings
+			sInstance.close();
+			sInstance = null;
+		}
+
+		if (maxSize <= 0) {
+			return null;
+		}
+
+		File directory = Utils.getDownloadDirectory();
+		if (directory == null) {
+			return null;
+		}
+
+		directory = new File(directory, CACHE_DIRECTORY_NAME);
+		if (!directory.exists() && !directory.mkdirs()) {
+			return null;
+		}
+
+		// leave room for the file being downloaded
+		long size = Math.min(maxSize, ImageCache.getUsableSpace(directory) / 2 + getSize(directory));
+
+		try {
+			DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Math.max(1, size));
+			// evicts entries if the size was lowered
+			cache.flush();
+			sInstance = new MediaCache(cache, maxSize);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open the media cache", e);
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Looks up a media file and marks it as the most recently used.
+	 *
+	 * @return the cached file, or null if the URL isn't cached.
+	 */
+	public File get(URL url) {
+		String key = getKey(url);
+		File file = null;
+
+		try {
+			DiskLruCache.Snapshot snapshot = mCache.get(key);
+			mCache.flush();
+
+			if (snapshot != null) {
+				file = snapshot.getFile(FILE_INDEX);
+				snapshot.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read the media cache", e);
+		} catch (IllegalStateException e) {
+			// the cache was closed
+		}
+
+		synchronized (this) {
+			if (file != null) {
+				mHits++;
+				mBytesSaved += file.length();
+			} else {
+				mMisses++;
+			}
+
+			Log.v(TAG, "media cache " + (file != null ? "hit" : "miss") + ", hit ratio " +
+					mHits + "/" + (mHits + mMisses) + ", " + mBytesSaved + " bytes saved");
+		}
+
+		return file;
+	}
+
+	/**
+	 * Looks up a media file without affecting the eviction order or the
+	 * statistics.
+	 *
+	 * @return the size of the cached file, or -1 if the URL isn't cached.
+	 */
+	public long getCachedSize(URL url) {
+		File file = new File(mCache.getDirectory(), getKey(url) + "." + FILE_INDEX);
+		return file.exists() ? file.length() : -1;
+	}
+
+	/**
+	 * Moves a completely downloaded file into the cache.
+	 *
+	 * @return the file in the cache, or null if the file couldn't be added.
+	 */
+	public File put(URL url, File file) {
+		String key = getKey(url);
+		DiskLruCache.Editor editor = null;
+
+		try {
+			editor = mCache.edit(key);
+
+			if (editor == null) {
+				// the file is being added already
+				return null;
+			}
+
+			if (!file.renameTo(editor.getFile(FILE_INDEX))) {
+				editor.abort();
+				return null;
+			}
+
+			editor.commit();
+			mCache.flush();
+
+			DiskLruCache.Snapshot snapshot = mCache.get(key);
+			if (snapshot == null) {
+				// evicted right away, the file is larger than the cache
+				return null;
+			}
+			snapshot.close();
+			return snapshot.getFile(FILE_INDEX);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to add " + url + " to the media cache", e);
+			return null;
+		} catch (IllegalStateException e) {
+			// the cache was closed
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found the file in the cache.
+	 */
+	public synchronized int getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return the number of lookups that didn't find the file in the cache.
+	 */
+	public synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * @return the number of bytes that didn't have to be downloaded because
+	 * the file was cached.
+	 */
+	public synchronized long getBytesSaved() {
+		return mBytesSaved;
+	}
+
+	/**
+	 * @return the number of bytes stored in the cache.
+	 */
+	public long size() {
+		return mCache.size();
+	}
+
+	private void close() {
+		try {
+			mCache.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return the cache key of the URL. The scheme and host are case
+	 * insensitive and default ports and fragments are ignored, so different
+	 * spellings of the same URL share an entry.
+	 */
+	static String getKey(URL url) {
+		String protocol = url.getProtocol().toLowerCase(Locale.US);
+		int port = url.getPort();
+
+		if (port == url.getDefaultPort()) {
+			port = -1;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(protocol).append("://");
+		if (url.getUserInfo() != null) {
+			sb.append(url.getUserInfo()).append('@');
+		}
+		sb.append(url.getHost().toLowerCase(Locale.US));
+		if (port != -1) {
+			sb.append(':').append(port);
+		}
+		sb.append(url.getPath().length() > 0 ? url.getPath() : "/");
+		if (url.getQuery() != null) {
+			sb.append('?').append(url.getQuery());
+		}
+
+		return ImageCache.hashKeyForDisk(sb.toString());
+	}
+
+	private static long getSize(File directory) {
+		long size = 0;
+		File [] files = directory.listFiles();
+
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				size += files[i].length();
+			}
+		}
+
+		return size;
+	}
+}
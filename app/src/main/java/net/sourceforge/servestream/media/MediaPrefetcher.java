@@ -0,0 +1,410 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.sourceforge.servestream.utils.Utils;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Downloads the upcoming tracks of the queue into the {@link MediaCache}
+ * in the background, one at a time and over a single connection. Nothing
+ * is downloaded on metered networks or on a low battery, and the download
+ * is paused whenever the track that is playing runs low on buffered data.
+ * An interrupted download resumes where it stopped.
+ */
+public final class MediaPrefetcher implements Runnable {
+	private static final String TAG = MediaPrefetcher.class.getName();
+
+	private static final String PREFETCH_DIRECTORY_NAME = "prefetch";
+
+	// prefetching pauses when the playing track has less than this buffered
+	private static final long MIN_FOREGROUND_BUFFER = 256 * 1024;
+	// and resumes once it has this much
+	private static final long RESUME_FOREGROUND_BUFFER = 1024 * 1024;
+
+	// the battery level below which nothing is prefetched unless charging
+	private static final int MIN_BATTERY_PERCENT = 30;
+
+	// a download that makes no progress for this long is given up
+	private static final long STALL_TIMEOUT = 60000;
+
+	private final Context mContext;
+	private long [] mQueue = new long[0];
+	private long mMaxBytes = 0;
+	private boolean mIsPaused = false;
+	private boolean mIsStopped = false;
+	private Thread mThread = null;
+
+	// the download in progress and the track it belongs to
+	private SegmentedDownload mDownload = null;
+	private long mDownloadId = -1;
+
+	private final Map<Long, URL> mUrls = new HashMap<Long, URL>();
+	// tracks that can't be prefetched
+	private final Set<Long> mSkipped = new HashSet<Long>();
+
+	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			update();
+		}
+	};
+
+	public MediaPrefetcher(Context context) {
+		mContext = context.getApplicationContext();
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		filter.addAction(Intent.ACTION_BATTERY_LOW);
+		filter.addAction(Intent.ACTION_BATTERY_OKAY);
+		mContext.registerReceiver(mReceiver, filter);
+	}
+
+	/**
+	 * Sets the tracks to prefetch. A download of a track that is no longer
+	 * in the list is stopped.
+	 *
+	 * @param list The ids of the upcoming tracks, in the order they'll be
+	 * played.
+	 * @param maxBytes The maximum number of bytes the tracks may take up
+	 * together.
+	 */
+	public synchronized void setQueue(long [] list, long maxBytes) {
+		mQueue = list;
+		mMaxBytes = maxBytes;
+
+		if (mThread == null && list.length > 0 && !mIsStopped) {
+			mThread = new Thread(this, "MediaPrefetcher");
+			mThread.start();
+		}
+
+		update();
+	}
+
+	/**
+	 * Called when the amount of data buffered by the playing track changes.
+	 *
+	 * @param bufferedBytes The number of bytes buffered ahead of the playback
+	 * position, or -1 if the playing track isn't being downloaded.
+	 */
+	public synchronized void setForegroundBuffer(long bufferedBytes) {
+		if (bufferedBytes != -1 && bufferedBytes < MIN_FOREGROUND_BUFFER) {
+			mIsPaused = true;
+		} else if (bufferedBytes == -1 || bufferedBytes >= RESUME_FOREGROUND_BUFFER) {
+			mIsPaused = false;
+		}
+
+		update();
+	}
+
+	/**
+	 * Stops prefetching for good. A download that is in progress is kept
+	 * and resumed by the next instance.
+	 */
+	public synchronized void stop() {
+		if (mIsStopped) {
+			return;
+		}
+
+		mIsStopped = true;
+		mContext.unregisterReceiver(mReceiver);
+		update();
+	}
+
+	/**
+	 * Stops the download in progress if it isn't wanted anymore and wakes
+	 * up the prefetch thread.
+	 */
+	private synchronized void update() {
+		if (mDownload != null && (mIsStopped || mIsPaused ||
+				!contains(mQueue, mDownloadId) || !isAllowed())) {
+			Log.v(TAG, "pausing prefetch of " + mDownloadId);
+			mDownload.cancel();
+		}
+
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		try {
+			while (true) {
+				long [] queue;
+				long maxBytes;
+
+				synchronized (this) {
+					while (!mIsStopped && (mIsPaused || mQueue.length == 0 || !isAllowed())) {
+						wait();
+					}
+
+					if (mIsStopped) {
+						break;
+					}
+
+					queue = mQueue;
+					maxBytes = mMaxBytes;
+				}
+
+				MediaCache cache = MediaCache.getInstance(mContext);
+				if (cache == null || !prefetchNext(cache, queue, maxBytes)) {
+					// everything that fits is cached, wait for the queue to change
+					synchronized (this) {
+						if (queue == mQueue && !mIsStopped) {
+							wait();
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+
+		synchronized (this) {
+			mThread = null;
+		}
+	}
+
+	/**
+	 * Downloads the first track of the queue that isn't cached yet.
+	 *
+	 * @return false if there was nothing left to download.
+	 */
+	private boolean prefetchNext(MediaCache cache, long [] queue, long maxBytes)
+			throws InterruptedException {
+		long usedBytes = 0;
+
+		for (int i = 0; i < queue.length; i++) {
+			long id = queue[i];
+			URL url = getUrl(id);
+
+			if (url == null || isSkipped(id)) {
+				continue;
+			}
+
+			long cachedSize = cache.getCachedSize(url);
+			if (cachedSize != -1) {
+				usedBytes += cachedSize;
+				continue;
+			}
+
+			if (usedBytes >= maxBytes) {
+				return false;
+			}
+
+			prefetch(cache, id, url, maxBytes - usedBytes);
+			return true;
+		}
+
+		return false;
+	}
+
+	private void prefetch(MediaCache cache, long id, URL url, long maxBytes)
+			throws InterruptedException {
+		File directory = getPrefetchDirectory();
+		if (directory == null) {
+			skip(id);
+			return;
+		}
+
+		String key = MediaCache.getKey(url);
+		File partialFile = new File(directory, key + ".partial.dat");
+		File completeFile = new File(directory, key + ".complete.dat");
+		File indexFile = new File(directory, key + ".partial.idx");
+
+		// only the most recent prefetch is resumed
+		File [] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (!files[i].getName().startsWith(key + ".")) {
+				Utils.deleteFile(files[i]);
+			}
+		}
+
+		SegmentedDownload download = new SegmentedDownload(url, partialFile, completeFile, indexFile);
+		download.setBackground(true);
+		download.setOnCompletionListener(new SegmentedDownload.OnCompletionListener() {
+			@Override
+			public void onCompletion(SegmentedDownload download) {
+				synchronized (MediaPrefetcher.this) {
+					MediaPrefetcher.this.notifyAll();
+				}
+			}
+		});
+
+		synchronized (this) {
+			if (mIsStopped || mIsPaused || !contains(mQueue, id)) {
+				return;
+			}
+			mDownload = download;
+			mDownloadId = id;
+		}
+
+		Log.v(TAG, "prefetching " + url);
+		download.start();
+
+		boolean isTooLarge = false;
+		boolean isStalled = false;
+		long downloadedBytes = -1;
+		long lastProgress = System.currentTimeMillis();
+
+		synchronized (this) {
+			while (!download.isComplete() && !download.isCancelled() && !download.isFailed()) {
+				if (download.getLength() > maxBytes || download.getDownloadedBytes() > maxBytes) {
+					isTooLarge = true;
+					break;
+				}
+
+				if (download.getDownloadedBytes() != downloadedBytes) {
+					downloadedBytes = download.getDownloadedBytes();
+					lastProgress = System.currentTimeMillis();
+				} else if (System.currentTimeMillis() - lastProgress > STALL_TIMEOUT) {
+					isStalled = true;
+					break;
+				}
+
+				wait(1000);
+			}
+
+			mDownload = null;
+			mDownloadId = -1;
+		}
+
+		if (download.isFailed()) {
+			Log.v(TAG, "not prefetching " + url + ", the server refused it");
+			download.cancel();
+			skip(id);
+			return;
+		}
+
+		if (isTooLarge || isStalled) {
+			Log.v(TAG, "not prefetching " + url + (isTooLarge ? ", too large" : ", stalled"));
+			download.cancel();
+			skip(id);
+			return;
+		}
+
+		if (download.isComplete() && cache.put(url, completeFile) == null) {
+			// the file doesn't fit in the cache
+			Utils.deleteFile(completeFile);
+			skip(id);
+		}
+	}
+
+	private URL getUrl(long id) {
+		synchronized (this) {
+			if (mUrls.containsKey(id)) {
+				return mUrls.get(id);
+			}
+		}
+
+		URL url = DownloadPlayer.getUrl(mContext, id);
+
+		synchronized (this) {
+			mUrls.put(id, url);
+		}
+		return url;
+	}
+
+	private synchronized boolean isSkipped(long id) {
+		return mSkipped.contains(id);
+	}
+
+	private synchronized void skip(long id) {
+		mSkipped.add(id);
+	}
+
+	/**
+	 * @return true if the device is on an unmetered network and either
+	 * charging or has enough battery left.
+	 */
+	private boolean isAllowed() {
+		ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm.getActiveNetworkInfo();
+
+		if (info == null || !info.isConnected() || isMetered(cm, info)) {
+			return false;
+		}
+
+		// the battery status is a sticky broadcast, no receiver is needed
+		Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) {
+			return true;
+		}
+
+		if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+			return true;
+		}
+
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		return level >= 0 && scale > 0 && level * 100 / scale >= MIN_BATTERY_PERCENT;
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static boolean isMetered(ConnectivityManager cm, NetworkInfo info) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return cm.isActiveNetworkMetered();
+		}
+
+		return info.getType() != ConnectivityManager.TYPE_WIFI &&
+				info.getType() != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	private File getPrefetchDirectory() {
+		File directory = Utils.getDownloadDirectory();
+		if (directory == null) {
+			return null;
+		}
+
+		directory = new File(directory, PREFETCH_DIRECTORY_NAME);
+		if (!directory.exists() && !directory.mkdirs()) {
+			return null;
+		}
+
+		return directory;
+	}
+
+	private static boolean contains(long [] list, long id) {
+		for (int i = 0; i < list.length; i++) {
+			if (list[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
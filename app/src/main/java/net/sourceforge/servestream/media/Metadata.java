@@ -184,6 +184,21 @@ public class Metadata
      * The metadata key to retrieve the album artwork.
      */
     public static final String METADATA_KEY_ARTWORK = "artwork";
+    /**
+     * The metadata key to retrieve the HTTP entity tag of the source the
+     * metadata was read from.
+     */
+    public static final String METADATA_KEY_ETAG = "etag";
+    /**
+     * The metadata key to retrieve the HTTP Last-Modified date of the source
+     * the metadata was read from.
+     */
+    public static final String METADATA_KEY_LAST_MODIFIED = "last_modified";
+    /**
+     * The metadata key to retrieve the length in bytes of the source the
+     * metadata was read from.
+     */
+    public static final String METADATA_KEY_CONTENT_LENGTH = "content_length";
     
     // Shorthands to set the MediaPlayer's metadata filter.
     /**
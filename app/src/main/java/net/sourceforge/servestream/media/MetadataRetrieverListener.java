@@ -25,4 +25,13 @@ public interface MetadataRetrieverListener {
 	 * @param metadata The retrieved metadata.
 	 */
     public void onMetadataParsed(long id, Metadata metadata);
+    
+	/**
+	 * Register a callback to be invoked when the metadata of a batch of
+	 * media files has been retrieved.
+	 * 
+	 * @param ids The ids of the media files associated with the metadata.
+	 * @param metadata The retrieved metadata, in the same order as the ids.
+	 */
+    public void onMetadataParsed(long [] ids, Metadata [] metadata);
 }
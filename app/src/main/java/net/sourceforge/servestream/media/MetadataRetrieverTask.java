@@ -17,7 +17,16 @@
 
 package net.sourceforge.servestream.media;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.preference.PreferenceConstants;
@@ -27,25 +36,96 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import android.util.SparseArray;
 
+/**
+ * Retrieves the metadata of a list of tracks on a thread pool shared by all
+ * tasks. Tracks are retrieved in priority order (see {@link #prioritize}),
+ * no more than {@link #MAX_CONNECTIONS_PER_HOST} tracks are retrieved from the
+ * same HTTP server at a time, tracks that already have metadata are skipped
+ * and the results are delivered to the listener in batches.
+ */
 public class MetadataRetrieverTask implements Runnable {
 	private static final String TAG = MetadataRetrieverTask.class.getName();
+
+	public static final int PRIORITY_CURRENT = 0;
+	public static final int PRIORITY_NEXT = 1;
+	public static final int PRIORITY_VISIBLE = 2;
+	public static final int PRIORITY_DEFAULT = 3;
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 3;
+	public static final int MAX_CONCURRENCY = 6;
+
+	private static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+	// deliver the results once this many tracks have been retrieved or
+	// once this much time has passed since the last delivery
+	private static final int BATCH_SIZE = 10;
+	private static final long BATCH_INTERVAL = 2000;
+
+	// runs the workers and the URI lookups of every task, a task keeps at
+	// most its own maxConcurrency workers on it
+	private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+			MAX_CONCURRENCY, MAX_CONCURRENCY, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "MetadataRetriever #" + mCount.getAndIncrement());
+				}
+			});
+
+	static {
+		sExecutor.allowCoreThreadTimeOut(true);
+	}
 	
 	private boolean mIsCancelled;
 	private AsyncTask.Status mStatus;
 	private Context mContext = null;
-	private long [] mList;
 	private MetadataRetrieverListener mListener;
+	private boolean mRetrieveArtwork;
+
+	private final int mMaxConcurrency;
+	private int mWorkerCount = 0;
+	private int mResolverCount = 0;
+	private long mSequence = 0;
+
+	private final TreeSet<Request> mQueue = new TreeSet<Request>();
+	// queued and running requests by track id
+	private final HashMap<Long, Request> mRequests = new HashMap<Long, Request>();
+	private final HashMap<Long, Integer> mPriorities = new HashMap<Long, Integer>();
+	private final HashMap<String, Integer> mHostConnections = new HashMap<String, Integer>();
+
+	private ArrayList<Long> mBatchIds = new ArrayList<Long>();
+	private ArrayList<Metadata> mBatchMetadata = new ArrayList<Metadata>();
+	private long mLastDelivery = 0;
+
+	private long [] mList;
 		
 	public MetadataRetrieverTask(Context context, long [] list) {
+		this(context, list, DEFAULT_MAX_CONCURRENCY);
+	}
+
+	/**
+	 * @param context The context, must implement {@link MetadataRetrieverListener}.
+	 * @param list The ids of the tracks to retrieve the metadata of.
+	 * @param maxConcurrency The maximum number of tracks to retrieve at a
+	 * time, from 1 to {@link #MAX_CONCURRENCY}.
+	 */
+	public MetadataRetrieverTask(Context context, long [] list, int maxConcurrency) {
+		if (maxConcurrency <= 0 || maxConcurrency > MAX_CONCURRENCY) {
+			throw new IllegalArgumentException("maxConcurrency out of range: " + maxConcurrency);
+		}
+
 		mIsCancelled = false;
 		mStatus = AsyncTask.Status.PENDING;
 		
 		mContext = context;
 	    mList = list;
+	    mMaxConcurrency = maxConcurrency;
 		
 		// Verify that the host activity implements the callback interface
 	    try {
@@ -56,60 +136,278 @@ public class MetadataRetrieverTask implements Runnable {
 	        throw new ClassCastException(context.toString()
 	        	+ " must implement MetadataRetrieverListener");
 	    }
+
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+		// only attempt to retrieve album art if the user has enabled that option
+		mRetrieveArtwork = preferences.getBoolean(PreferenceConstants.RETRIEVE_ALBUM_ART, false);
 	}
 	    
+	/**
+	 * Worker loop, retrieves queued tracks until the queue is empty.
+	 */
 	@Override
 	public void run() {
-		mStatus = AsyncTask.Status.RUNNING;
+		FFmpegMediaMetadataRetriever mmr = new FFmpegMediaMetadataRetriever();
 		
 		try {
-			Thread.sleep(3000);
-		} catch (InterruptedException e) {
-		}
+			Request request;
 		
-		FFmpegMediaMetadataRetriever mmr = new FFmpegMediaMetadataRetriever();
+			while ((request = nextRequest()) != null) {
+				Metadata metadata = null;
+				boolean probe = !request.mPopulated;
+				CacheValidators validators = null;
 		
-		SparseArray<String> uris = getUris(mContext, mList);
+				if (request.mHttp) {
+					validators = CacheValidators.fetch(request.mUri, request.mValidators);
 		
-		for (int i = 0; i < mList.length; i++) {
-			if (isCancelled()) {
-				break;
-			}
-			
-			String uri = uris.get((int) mList[i]);
-			
-			if (uri != null) {
-				try {
-					mmr.setDataSource(uri.toString());
-					
-					Metadata metadata;
-					
-					if ((metadata = getMetadata(mContext, mList[i], mmr)) != null) {
-						if (mListener != null) {
-							mListener.onMetadataParsed(mList[i], metadata);
-						}
+					// only re-read stored metadata if the server says the file changed,
+					// a file that can't be validated keeps the metadata it has
+					if (request.mPopulated && validators != null &&
+							!validators.isEmpty() && !validators.matches(request.mValidators)) {
+						probe = true;
 					}
+				}
 					
+				if (probe && !isCancelled()) {
 					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e) {
+						mmr.setDataSource(request.mUri);
+						metadata = getMetadata(mmr, validators);
+					} catch (IllegalArgumentException ex) {
+						Log.e(TAG, "Metadata for track could not be retrieved");
 					}
-				} catch(IllegalArgumentException ex) {
-					Log.e(TAG, "Metadata for track could not be retrieved");
 				}
+
+				finishRequest(request, metadata);
 			}
+		} finally {
+			mmr.release();
+			finishWorker();
 		}
+    }
 			
-		mmr.release();
+	/**
+	 * Adds tracks to the task. Tracks that are already queued are ignored,
+	 * tracks that already have metadata are only retrieved again if they are
+	 * served over HTTP and their validators changed.
+	 *
+	 * @param list The ids of the tracks to retrieve the metadata of.
+	 */
+	public synchronized void add(final long [] list) {
+		if (mIsCancelled || list == null || list.length == 0) {
+			return;
+		}
 		
-		mStatus = AsyncTask.Status.FINISHED;
-    }
+		mStatus = AsyncTask.Status.RUNNING;
+		mResolverCount++;
+
+		// look up the tracks off the calling thread
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Request> requests = null;
+
+				try {
+					requests = getRequests(list);
+				} finally {
+					enqueue(requests);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Changes the priority of tracks, tracks that previously had this
+	 * priority are returned to {@link #PRIORITY_DEFAULT}.
+	 *
+	 * @param list The ids of the tracks.
+	 * @param priority One of {@link #PRIORITY_CURRENT}, {@link #PRIORITY_NEXT}
+	 * or {@link #PRIORITY_VISIBLE}.
+	 */
+	public synchronized void prioritize(long [] list, int priority) {
+		Iterator<Integer> iterator = mPriorities.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() == priority) {
+				iterator.remove();
+			}
+		}
+
+		for (int i = 0; i < list.length; i++) {
+			Integer current = mPriorities.get(list[i]);
+			if (current == null || current > priority) {
+				mPriorities.put(list[i], priority);
+			}
+		}
+
+		// re-sort the queued requests whose priority changed
+		ArrayList<Request> changed = new ArrayList<Request>();
+		for (Request request : mQueue) {
+			if (request.mPriority != getPriority(request.mId)) {
+				changed.add(request);
+			}
+		}
+
+		for (Request request : changed) {
+			mQueue.remove(request);
+			request.mPriority = getPriority(request.mId);
+			mQueue.add(request);
+		}
+	}
+
+	private synchronized void enqueue(List<Request> requests) {
+		mResolverCount--;
+
+		if (!mIsCancelled && requests != null) {
+			for (Request request : requests) {
+				if (mRequests.containsKey(request.mId)) {
+					continue;
+				}
+
+				request.mPriority = getPriority(request.mId);
+				request.mSequence = mSequence++;
+				mRequests.put(request.mId, request);
+				mQueue.add(request);
+			}
+
+			startWorkers();
+		}
+
+		updateStatus();
+	}
+
+	/**
+	 * Starts as many workers as there is work for. Must be called with the
+	 * lock held.
+	 */
+	private void startWorkers() {
+		while (!mIsCancelled && mWorkerCount < mMaxConcurrency && mWorkerCount < mQueue.size()) {
+			mWorkerCount++;
+			sExecutor.execute(this);
+		}
+	}
+
+	/**
+	 * Takes the first queued track that can be retrieved without exceeding
+	 * the connection limit of its server. Local files have no limit.
+	 *
+	 * @return The request, or null if there is none or the task was
+	 * cancelled. The worker stops then rather than hold a pool thread, a
+	 * new one is started when a server is below its limit again.
+	 */
+	private synchronized Request nextRequest() {
+		if (mIsCancelled) {
+			return null;
+		}
+
+		for (Request request : mQueue) {
+			if (!request.mHttp) {
+				mQueue.remove(request);
+				return request;
+			}
+
+			int connections = getConnections(request.mHost);
+			if (connections < MAX_CONNECTIONS_PER_HOST) {
+				mQueue.remove(request);
+				mHostConnections.put(request.mHost, connections + 1);
+				return request;
+			}
+		}
+
+		return null;
+	}
+
+	private void finishRequest(Request request, Metadata metadata) {
+		long [] ids = null;
+		Metadata [] batch = null;
+
+		synchronized (this) {
+			mRequests.remove(request.mId);
+			if (request.mHttp) {
+				mHostConnections.put(request.mHost, getConnections(request.mHost) - 1);
+				startWorkers();
+			}
+
+			if (metadata != null) {
+				mBatchIds.add(request.mId);
+				mBatchMetadata.add(metadata);
+			}
+
+			// the tracks the user is waiting on are delivered right away
+			if (mBatchIds.size() >= BATCH_SIZE ||
+					(!mBatchIds.isEmpty() && request.mPriority <= PRIORITY_VISIBLE) ||
+					(!mBatchIds.isEmpty() && SystemClock.elapsedRealtime() - mLastDelivery >= BATCH_INTERVAL)) {
+				ids = takeBatchIds();
+				batch = takeBatchMetadata();
+			}
+		}
+
+		deliver(ids, batch);
+	}
+
+	private void finishWorker() {
+		long [] ids = null;
+		Metadata [] batch = null;
+
+		synchronized (this) {
+			mWorkerCount--;
+
+			if (mWorkerCount == 0 && !mBatchIds.isEmpty()) {
+				ids = takeBatchIds();
+				batch = takeBatchMetadata();
+			}
+
+			updateStatus();
+		}
+
+		deliver(ids, batch);
+	}
+
+	private void deliver(long [] ids, Metadata [] batch) {
+		if (ids != null && !isCancelled() && mListener != null) {
+			mListener.onMetadataParsed(ids, batch);
+		}
+	}
+
+	private long [] takeBatchIds() {
+		long [] ids = new long[mBatchIds.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = mBatchIds.get(i);
+		}
+		mBatchIds.clear();
+		mLastDelivery = SystemClock.elapsedRealtime();
+		return ids;
+	}
+
+	private Metadata [] takeBatchMetadata() {
+		Metadata [] batch = mBatchMetadata.toArray(new Metadata[mBatchMetadata.size()]);
+		mBatchMetadata.clear();
+		return batch;
+	}
+
+	private void updateStatus() {
+		if (mWorkerCount == 0 && mResolverCount == 0) {
+			mStatus = AsyncTask.Status.FINISHED;
+		}
+	}
 	
-	private SparseArray<String> getUris(Context context, long [] list) {
-		SparseArray<String> uris = new SparseArray<String>();
+	private int getPriority(long id) {
+		Integer priority = mPriorities.get(id);
+		return priority != null ? priority : PRIORITY_DEFAULT;
+	}
+
+	private int getConnections(String host) {
+		Integer connections = mHostConnections.get(host);
+		return connections != null ? connections : 0;
+	}
+
+	/**
+	 * Looks up the URIs of the tracks. Tracks that already have metadata are
+	 * skipped so a restarted task resumes where the last one stopped, unless
+	 * they can be validated against the server.
+	 */
+	private List<Request> getRequests(long [] list) {
+		List<Request> requests = new ArrayList<Request>();
 		StringBuffer selection = new StringBuffer(Media.MediaColumns._ID + " IN (");
-		int id = -1;
-		String uri = null;
 		
 		for (int i = 0; i < list.length; i++) {
 			if (i == 0) {
@@ -122,30 +420,59 @@ public class MetadataRetrieverTask implements Runnable {
 		selection.append(")");
 		
 		// Form an array specifying which columns to return. 
-		String [] projection = new String [] { Media.MediaColumns._ID, Media.MediaColumns.URI };
+		String [] projection = new String [] { Media.MediaColumns._ID,
+				Media.MediaColumns.URI,
+				Media.MediaColumns.ALBUM,
+				Media.MediaColumns.ARTIST,
+				Media.MediaColumns.ETAG,
+				Media.MediaColumns.LAST_MODIFIED,
+				Media.MediaColumns.CONTENT_LENGTH };
 
 		// Get the base URI for the Media Files table in the Media content provider.
         Uri mediaFile = Media.MediaColumns.CONTENT_URI;
 		
 		// Make the query.
-		Cursor cursor = context.getContentResolver().query(mediaFile, 
+		Cursor cursor = mContext.getContentResolver().query(mediaFile,
 				projection,
 				selection.toString(),
 				null,
 				null);    	
 	
+		if (cursor == null) {
+			return requests;
+		}
+
 		while (cursor.moveToNext()) {
-			id = cursor.getInt(cursor.getColumnIndex(Media.MediaColumns._ID));
-			uri = cursor.getString(cursor.getColumnIndex(Media.MediaColumns.URI));
-			uris.put(id, uri);
+			long id = cursor.getLong(cursor.getColumnIndex(Media.MediaColumns._ID));
+			String uri = cursor.getString(cursor.getColumnIndex(Media.MediaColumns.URI));
+			String album = cursor.getString(cursor.getColumnIndex(Media.MediaColumns.ALBUM));
+			String artist = cursor.getString(cursor.getColumnIndex(Media.MediaColumns.ARTIST));
+
+			if (uri == null) {
+				continue;
+			}
+
+			Request request = new Request(id, uri);
+			request.mPopulated = !Media.UNKNOWN_STRING.equals(album) ||
+					!Media.UNKNOWN_STRING.equals(artist);
+
+			int lengthColumn = cursor.getColumnIndex(Media.MediaColumns.CONTENT_LENGTH);
+			request.mValidators = new CacheValidators(
+					cursor.getString(cursor.getColumnIndex(Media.MediaColumns.ETAG)),
+					cursor.getString(cursor.getColumnIndex(Media.MediaColumns.LAST_MODIFIED)),
+					cursor.isNull(lengthColumn) ? -1 : cursor.getLong(lengthColumn));
+
+			if (!request.mPopulated || request.mHttp) {
+				requests.add(request);
+			}
 		}
 		
 		cursor.close();
 		
-		return uris;
+		return requests;
 	}
 	
-	private Metadata getMetadata(Context context, long id, FFmpegMediaMetadataRetriever mmr) {
+	private Metadata getMetadata(FFmpegMediaMetadataRetriever mmr, CacheValidators validators) {
 		byte [] artwork = null;
 		
 		String title =  mmr.extractMetadata(FFmpegMediaMetadataRetriever.METADATA_KEY_TITLE);
@@ -153,10 +480,7 @@ public class MetadataRetrieverTask implements Runnable {
 		String artist = mmr.extractMetadata(FFmpegMediaMetadataRetriever.METADATA_KEY_ARTIST);
 		String duration = mmr.extractMetadata(FFmpegMediaMetadataRetriever.METADATA_KEY_DURATION);
 		
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        
-		// only attempt to retrieve album art if the user has enabled that option
-		if (preferences.getBoolean(PreferenceConstants.RETRIEVE_ALBUM_ART, false)) {
+		if (mRetrieveArtwork) {
 			artwork = mmr.getEmbeddedPicture();
 		}
 		
@@ -175,6 +499,12 @@ public class MetadataRetrieverTask implements Runnable {
 		meta.put(Metadata.METADATA_KEY_DURATION, duration);
 		meta.put(Metadata.METADATA_KEY_ARTWORK, artwork);
 		
+		if (validators != null) {
+			meta.put(Metadata.METADATA_KEY_ETAG, validators.mETag);
+			meta.put(Metadata.METADATA_KEY_LAST_MODIFIED, validators.mLastModified);
+			meta.put(Metadata.METADATA_KEY_CONTENT_LENGTH, String.valueOf(validators.mContentLength));
+		}
+
 		// Form an array specifying which columns to return. 
 		Metadata metadata = new Metadata();
 		metadata.parse(meta);
@@ -189,6 +519,8 @@ public class MetadataRetrieverTask implements Runnable {
 	public synchronized boolean cancel() {
 		if (mStatus != AsyncTask.Status.FINISHED) {
 			mIsCancelled = true;
+			mQueue.clear();
+			notifyAll();
 			return true;
 		}
 		
@@ -200,6 +532,40 @@ public class MetadataRetrieverTask implements Runnable {
 	}
 	
 	public void execute() {
-		new Thread(this, "").start();
+		add(mList);
+	}
+
+	private static class Request implements Comparable<Request> {
+		final long mId;
+		final String mUri;
+		final String mHost;
+		final boolean mHttp;
+		boolean mPopulated;
+		CacheValidators mValidators;
+		int mPriority;
+		long mSequence;
+
+		Request(long id, String uri) {
+			mId = id;
+			mUri = uri;
+
+			Uri parsed = Uri.parse(uri);
+			String host = parsed.getHost();
+			mHost = host != null ? host : "";
+			mHttp = "http".equals(parsed.getScheme()) || "https".equals(parsed.getScheme());
+		}
+
+		@Override
+		public int compareTo(Request another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+
+			if (mSequence != another.mSequence) {
+				return mSequence < another.mSequence ? -1 : 1;
+			}
+
+			return 0;
+		}
 	}
 }
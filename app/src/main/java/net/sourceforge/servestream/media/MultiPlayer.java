@@ -20,7 +20,9 @@ package net.sourceforge.servestream.media;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -31,6 +33,7 @@ import net.sourceforge.servestream.transport.HTTPS;
 import net.sourceforge.servestream.transport.MMS;
 import net.sourceforge.servestream.transport.MMSH;
 import net.sourceforge.servestream.transport.MMST;
+import net.sourceforge.servestream.transport.ProbeCache;
 import net.sourceforge.servestream.transport.RTSP;
 import net.sourceforge.servestream.utils.HTTPRequestTask;
 import net.sourceforge.servestream.utils.HTTPRequestTask.HTTPRequestListener;
@@ -50,6 +53,41 @@ public final class MultiPlayer implements HTTPRequestListener {
 	private FFmpegMediaPlayer mFFmpegMediaPlayer;
 	private AbstractMediaPlayer mMediaPlayer = mNativeMediaPlayer;
     private boolean mIsInitialized = false;
+    private int mBufferPercent = 0;
+    private volatile long mBufferedBytes = 0;
+    private volatile long mDownloadRate = 0;
+    private boolean mUseStreamProxy = false;
+    // the path of the current track if it was opened by path
+    private volatile String mPath = null;
+    // the path whose content type is being looked up for the current track
+    private String mPendingRequestPath = null;
+    private boolean mUseFFmpegPlayer = false;
+    
+    // a track that dropped is reopened as the policy allows before the
+    // error is passed on; the policy starts over once it plays for a while
+    private static final long STABLE_PLAYBACK_TIME = 30000;
+    private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private boolean mIsReconnecting = false;
+    private long mPreparedAt = 0;
+    // the last known position and duration of the current track, the
+    // player can't be asked once it failed
+    private long mLastPosition = 0;
+    private long mLastDuration = 0;
+    // the position to seek to when the reconnected track is prepared, or -1
+    private long mResumePosition = -1;
+    
+    // the player for the upcoming track, prepared while the current one plays
+	private AbstractMediaPlayer mNextMediaPlayer;
+	private String mNextPath;
+	private boolean mNextUseFFmpegPlayer;
+	private boolean mNextIsPrepared = false;
+	private boolean mNextIsHandedOff = false;
+	// the next track asked for before the current one was prepared, it is
+	// only prepared once the current track turns out to have a duration
+	private String mPendingNextPath;
+	private boolean mPendingNextUseFFmpegPlayer;
+	// the last volume set, the next player takes it over
+	private float mVolume = 1.0f;
 
     /**
      * Default constructor
@@ -63,18 +101,40 @@ public final class MultiPlayer implements HTTPRequestListener {
     }
     
     public void setDataSource(Context context, long id) {
+    	cancelReconnect();
+    	mReconnectPolicy.reset();
+    	mLastPosition = 0;
+    	mLastDuration = 0;
     	setDataSource(context, null, id, true, false, null);
     }
     
     public void setDataSource(String path, boolean useFFmpegPlayer) {
+    	cancelReconnect();
+    	mReconnectPolicy.reset();
+    	mUseFFmpegPlayer = useFFmpegPlayer;
+    	mLastPosition = 0;
+    	mLastDuration = 0;
+    	
+    	if (promoteNextPlayer(path, useFFmpegPlayer)) {
+    		Log.v(TAG, "Using prepared next player");
+    		mHandler.sendEmptyMessage(MediaPlaybackService.PREPARED);
+    		return;
+    	}
+    	
     	setDataSource(null, path, -1, false, useFFmpegPlayer, null);
     }
     
     private void setDataSource(Context context, String path, long id, boolean isLocalFile, boolean useFFmpegPlayer, String contentType) {
         try {
             mMediaPlayer.reset();
+            mBufferPercent = 0;
+            mBufferedBytes = 0;
+            mDownloadRate = 0;
+            mPath = path;
+            mPendingRequestPath = null;
             
             if (!isLocalFile && contentType == null && path.startsWith(HTTP.getProtocolName())) {
+            	mPendingRequestPath = path;
             	new HTTPRequestTask(path, useFFmpegPlayer, this).execute();
             	return;
             }
@@ -96,12 +156,13 @@ public final class MultiPlayer implements HTTPRequestListener {
             mMediaPlayer.setOnCompletionListener(onCompletionListener);
             mMediaPlayer.setOnErrorListener(onErrorListener);
             mMediaPlayer.setOnInfoListener(onInfoListener);
+            mMediaPlayer.setOnBufferingUpdateListener(onBufferingUpdateListener);
             
             if (isLocalFile) {
                 mMediaPlayer.setDataSource(context, id);
             	mMediaPlayer.prepareAsync();
             } else {
-                mMediaPlayer.setDataSource(URLUtils.encodeURL(path));
+                mMediaPlayer.setDataSource(getPlayableUrl(path));
             	mMediaPlayer.prepareAsync();
             }
             
@@ -126,12 +187,21 @@ public final class MultiPlayer implements HTTPRequestListener {
     }
 
     public void stop() {
+        cancelReconnect();
         mMediaPlayer.reset();
         mIsInitialized = false;
+        mPendingRequestPath = null;
+        
+        synchronized (this) {
+        	// resetting the player also drops its link to the next player
+        	mNextIsHandedOff = false;
+        	mPendingNextPath = null;
+        }
     }
 
     public void release() {
         stop();
+        releaseNextPlayer();
         mMediaPlayer.release();
         
         if (mNativeMediaPlayer != null) {
@@ -151,47 +221,149 @@ public final class MultiPlayer implements HTTPRequestListener {
     }
         
     public void pause() {
+        // the player being reconnected has nothing to pause yet
+        if (mIsReconnecting) {
+            return;
+        }
+        
         mMediaPlayer.pause();
     }
     
+    /**
+     * @param handler The handler the player reports to. The player has to
+     * be created on the thread of the handler, which then owns it: the
+     * players deliver their events there and the methods of this class are
+     * only called there.
+     */
     public void setHandler(Handler handler) {
         mHandler = handler;
     }
     
+    /**
+     * @return true on the thread of the handler. The players report on the
+     * thread that created them, but a download reports its progress from
+     * its own threads, which have to post it over.
+     */
+    private boolean isPlayerThread() {
+        return Looper.myLooper() == mHandler.getLooper();
+    }
+    
+    /**
+     * @param useStreamProxy true if HTTP streams should be played through
+     * the {@link StreamProxy}, which passes their ICY metadata on and
+     * buffers live streams.
+     */
+    public void setUseStreamProxy(boolean useStreamProxy) {
+        mUseStreamProxy = useStreamProxy;
+    }
+    
     private AbstractMediaPlayer.OnPreparedListener onPreparedListener = new AbstractMediaPlayer.OnPreparedListener() {
-		public void onPrepared(AbstractMediaPlayer mp) {
+		public void onPrepared(final AbstractMediaPlayer mp) {
+			if (!isPlayerThread()) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onPrepared(mp);
+					}
+				});
+				return;
+			}
+			
 			Log.i(TAG, "onPreparedListener called");
 			
 	        mIsInitialized = true;
+	        mPreparedAt = SystemClock.elapsedRealtime();
+	        
+	        if (mIsReconnecting) {
+	        	mIsReconnecting = false;
+	        	
+	        	// a live stream can only be picked up where it is now
+	        	if (mResumePosition > 0 && mp.getDuration() > 0) {
+	        		Log.i(TAG, "Resuming at " + mResumePosition + " ms");
+	        		mp.seekTo((int) mResumePosition);
+	        	}
+	        	mResumePosition = -1;
+	        }
+	        
+	        synchronized (MultiPlayer.this) {
+	        	if (mNextIsPrepared && !mNextIsHandedOff) {
+	        		mNextIsHandedOff = mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+	        	}
+	        	
+	        	// the duration tells now whether the next track is needed
+	        	if (mPendingNextPath != null) {
+	        		String path = mPendingNextPath;
+	        		mPendingNextPath = null;
+	        		setNextDataSource(path, mPendingNextUseFFmpegPlayer);
+	        	}
+	        }
 	        mHandler.sendEmptyMessage(MediaPlaybackService.PREPARED);
 		}
     };
     
     private AbstractMediaPlayer.OnCompletionListener onCompletionListener = new AbstractMediaPlayer.OnCompletionListener() {
-        public void onCompletion(AbstractMediaPlayer mp) {
+        public void onCompletion(final AbstractMediaPlayer mp) {
+        	if (!isPlayerThread()) {
+        		mHandler.post(new Runnable() {
+        			@Override
+        			public void run() {
+        				onCompletion(mp);
+        			}
+        		});
+        		return;
+        	}
+        	
         	Log.i(TAG, "onCompletionListener called");
         	
             if (mIsInitialized) {
-                mHandler.sendEmptyMessage(MediaPlaybackService.TRACK_ENDED);
+            	if (startNextPlayer()) {
+            		mHandler.sendEmptyMessage(MediaPlaybackService.TRACK_WENT_TO_NEXT);
+            	} else {
+            		mHandler.sendEmptyMessage(MediaPlaybackService.TRACK_ENDED);
+            	}
             }
         }
     };
 
     private AbstractMediaPlayer.OnErrorListener onErrorListener = new AbstractMediaPlayer.OnErrorListener() {
-        public boolean onError(AbstractMediaPlayer mp, int what, int extra) {
+        public boolean onError(final AbstractMediaPlayer mp, final int what, final int extra) {
+        	if (!isPlayerThread()) {
+        		mHandler.post(new Runnable() {
+        			@Override
+        			public void run() {
+        				onError(mp, what, extra);
+        			}
+        		});
+        		return true;
+        	}
+        	
         	Log.i(TAG, "onErrorListener called");
         	Log.d(TAG, "Error: " + what + "," + extra);
         	
+        	// only a track that was playing, or is being reconnected, dropped;
+        	// a track that failed to open is skipped as before
+        	boolean isRetry = mIsReconnecting;
+        	boolean isDropped = mIsInitialized || isRetry;
+        	
             switch (what) {
             	case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
             		release();
             		mNativeMediaPlayer = new NativePlayer();
             		mMediaPlayer = mNativeMediaPlayer;
             		
+            		if (isDropped && scheduleReconnect(isRetry)) {
+            			return true;
+            		}
+            		
                     sendErrorMessage(MediaPlaybackService.SERVER_DIED);
             		return true;
             	default:
             		mIsInitialized = false;
+            		
+            		if (isDropped && scheduleReconnect(isRetry)) {
+            			return true;
+            		}
+            		
             		sendErrorMessage(0);
             		break;
             }
@@ -201,24 +373,169 @@ public final class MultiPlayer implements HTTPRequestListener {
 
     private AbstractMediaPlayer.OnInfoListener onInfoListener = new AbstractMediaPlayer.OnInfoListener() {
 		@Override
-		public boolean onInfo(AbstractMediaPlayer mp, int what, int extra) {
+		public boolean onInfo(final AbstractMediaPlayer mp, final int what, final int extra) {
+			if (!isPlayerThread()) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onInfo(mp, what, extra);
+					}
+				});
+				return true;
+			}
+			
 			switch (what) {
 				case AbstractMediaPlayer.MEDIA_INFO_METADATA_UPDATE:
                     mHandler.sendEmptyMessage(MediaPlaybackService.INFO);
 					return true;
+				case AbstractMediaPlayer.MEDIA_INFO_BUFFERED_BYTES:
+					if (mp == mMediaPlayer) {
+						mBufferedBytes = extra;
+						mHandler.sendEmptyMessage(MediaPlaybackService.BUFFER_UPDATE);
+					}
+					return true;
+				case AbstractMediaPlayer.MEDIA_INFO_DOWNLOAD_RATE:
+					if (mp == mMediaPlayer) {
+						mDownloadRate = extra;
+					}
+					return true;
     			default:
     				break;    	
 			}
     		return false;
 		}
     };
+    
+    private AbstractMediaPlayer.OnBufferingUpdateListener onBufferingUpdateListener = new AbstractMediaPlayer.OnBufferingUpdateListener() {
+		@Override
+		public void onBufferingUpdate(final AbstractMediaPlayer mp, final int percent) {
+			if (!isPlayerThread()) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onBufferingUpdate(mp, percent);
+					}
+				});
+				return;
+			}
+			
+			if (mp == mMediaPlayer) {
+				mBufferPercent = percent;
+				
+				if (mIsInitialized) {
+					mLastPosition = mp.getCurrentPosition();
+					mLastDuration = mp.getDuration();
+				}
+			}
+		}
+    };
     	
     public long duration() {
-        return mMediaPlayer.getDuration();
+        mLastDuration = mMediaPlayer.getDuration();
+        return mLastDuration;
     }
 
     public long position() {
-        return mMediaPlayer.getCurrentPosition();
+        mLastPosition = mMediaPlayer.getCurrentPosition();
+        return mLastPosition;
+    }
+
+    /**
+     * @return true while a track that dropped is waiting to be reopened.
+     */
+    public boolean isReconnecting() {
+        return mIsReconnecting;
+    }
+
+    /**
+     * Gives up reopening a track that dropped, e.g. when playback is
+     * stopped.
+     */
+    public void cancelReconnect() {
+        if (mIsReconnecting) {
+            Log.v(TAG, "Reconnect cancelled");
+        }
+        
+        mIsReconnecting = false;
+        mResumePosition = -1;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mReconnect);
+        }
+    }
+
+    /**
+     * @return the fill level (0-100) of the current player's network buffer,
+     * or 0 if the player doesn't report it.
+     */
+    public int bufferPercent() {
+        return mBufferPercent;
+    }
+
+    /**
+     * @return the number of bytes the current player has downloaded ahead
+     * of the playback position, or 0 if the player doesn't report it.
+     */
+    public long bufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    /**
+     * @return true if the current track is being downloaded rather than
+     * played from a complete file.
+     */
+    public boolean isDownloading() {
+        return mMediaPlayer instanceof DownloadPlayer &&
+                !((DownloadPlayer) mMediaPlayer).isCompleteFileAvailable();
+    }
+
+    /**
+     * @return the current player's download rate in bytes per second, or 0
+     * if the player doesn't report it.
+     */
+    public long downloadRate() {
+        return mDownloadRate;
+    }
+
+    /**
+     * @return the amount of audio in the live stream buffer of the current
+     * track in milliseconds, or 0 if it isn't buffered.
+     */
+    public long liveBufferDepth() {
+        JitterBuffer.Stats stats = getLiveBufferStats();
+        return stats != null ? stats.getDepthMillis() : 0;
+    }
+
+    /**
+     * @return the amount of audio the live stream buffer of the current
+     * track fills up to in milliseconds, or 0 if it isn't buffered.
+     */
+    public long liveBufferTarget() {
+        JitterBuffer.Stats stats = getLiveBufferStats();
+        return stats != null ? stats.getTargetMillis() : 0;
+    }
+
+    /**
+     * @return the number of times the live stream buffer of the current
+     * track ran dry.
+     */
+    public int underrunCount() {
+        JitterBuffer.Stats stats = getLiveBufferStats();
+        return stats != null ? stats.getUnderrunCount() : 0;
+    }
+
+    /**
+     * @return the time the current track spent rebuffering after underruns
+     * in milliseconds.
+     */
+    public long rebufferTime() {
+        JitterBuffer.Stats stats = getLiveBufferStats();
+        return stats != null ? stats.getRebufferMillis() : 0;
+    }
+
+    private JitterBuffer.Stats getLiveBufferStats() {
+        String path = mPath;
+        StreamProxy proxy = path != null ? StreamProxy.getInstance() : null;
+        return proxy != null ? proxy.getStats(path) : null;
     }
 
     public long seek(long msec) {
@@ -227,7 +544,16 @@ public final class MultiPlayer implements HTTPRequestListener {
     }
 
     public void setVolume(float vol) {
+        mVolume = vol;
         mMediaPlayer.setVolume(vol, vol);
+        
+        synchronized (this) {
+        	// a preparing player can't take the volume yet, it gets it once
+        	// it is prepared
+        	if (mNextMediaPlayer != null && mNextIsPrepared) {
+        		mNextMediaPlayer.setVolume(vol, vol);
+        	}
+        }
     }
     
     public void setAudioSessionId(int sessionId) {
@@ -238,8 +564,284 @@ public final class MultiPlayer implements HTTPRequestListener {
         return mMediaPlayer.getAudioSessionId();
     }
 
-    public void setNextDataSource(String path) {
+    /**
+     * Prepares the track that follows the current one in the background so
+     * that it can be started as soon as the current track completes.
+     * 
+     * @param path the URI of the next track, or null to discard the next player.
+     * @param useFFmpegPlayer true if the FFmpeg player should be used.
+     */
+    public synchronized void setNextDataSource(String path, boolean useFFmpegPlayer) {
+    	mPendingNextPath = null;
+    	
+    	if (path != null && path.equals(mNextPath) && useFFmpegPlayer == mNextUseFFmpegPlayer) {
+    		// the requested track is already being prepared
+    		if (mNextIsPrepared && !mNextIsHandedOff) {
+    			mNextIsHandedOff = mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+    		}
+    		return;
+    	}
+    	
+    	releaseNextPlayer();
+    	
+    	if (path == null) {
+    		return;
+    	}
+    	
+    	if (!mIsInitialized) {
+    		// whether the current track ends isn't known until it is prepared
+    		mPendingNextPath = path;
+    		mPendingNextUseFFmpegPlayer = useFFmpegPlayer;
+    		return;
+    	}
+    	
+    	if (mMediaPlayer.getDuration() <= 0) {
+    		// a live stream doesn't complete, a second connection would be
+    		// held open for nothing
+    		Log.v(TAG, "Not preparing the next track, the current track has no duration");
+    		return;
+    	}
     	
+    	mNextPath = path;
+    	mNextUseFFmpegPlayer = useFFmpegPlayer;
+    	
+    	if (path.startsWith(HTTP.getProtocolName())) {
+    		new HTTPRequestTask(path, useFFmpegPlayer, mNextRequestListener).execute();
+    	} else {
+    		prepareNextPlayer(path, useFFmpegPlayer);
+    	}
+    }
+    
+    private synchronized void prepareNextPlayer(String path, boolean useFFmpegPlayer) {
+    	AbstractMediaPlayer player = null;
+    	
+    	try {
+    		if (useFFmpegPlayer || isFFmpegUri(path)) {
+    			player = new FFmpegMediaPlayer();
+    		} else {
+    			player = new NativePlayer();
+    		}
+    		
+    		player.setOnPreparedListener(onNextPreparedListener);
+    		player.setOnErrorListener(onNextErrorListener);
+    		player.setDataSource(getPlayableUrl(path));
+    		player.setVolume(mVolume, mVolume);
+    		player.prepareAsync();
+    		mNextMediaPlayer = player;
+    		
+    		Log.v(TAG, "Preparing next media player");
+    	} catch (IOException ex) {
+    		Log.v(TAG, "Error initializing next media player");
+    		if (player != null) {
+    			player.release();
+    		}
+    	} catch (IllegalArgumentException ex) {
+    		Log.v(TAG, "Error initializing next media player");
+    		if (player != null) {
+    			player.release();
+    		}
+    	}
+    }
+    
+    private synchronized void releaseNextPlayer() {
+    	if (mNextIsHandedOff) {
+    		mMediaPlayer.setNextMediaPlayer(null);
+    	}
+    	
+    	if (mNextMediaPlayer != null) {
+    		mNextMediaPlayer.release();
+    		mNextMediaPlayer = null;
+    	}
+    	
+    	mNextPath = null;
+    	mNextIsPrepared = false;
+    	mNextIsHandedOff = false;
+    }
+    
+    /**
+     * Starts the prepared next player, unless the platform has already
+     * started it, and makes it the current player.
+     * 
+     * @return true if the next player took over playback.
+     */
+    private synchronized boolean startNextPlayer() {
+    	if (mNextMediaPlayer == null || !mNextIsPrepared) {
+    		return false;
+    	}
+    	
+    	boolean handedOff = mNextIsHandedOff;
+    	swapInNextPlayer();
+    	
+    	if (!handedOff) {
+    		mMediaPlayer.start();
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Makes the prepared next player the current player if it was prepared
+     * for the specified track, e.g. when the user skips ahead.
+     * 
+     * @return true if the next player is now the current player.
+     */
+    private synchronized boolean promoteNextPlayer(String path, boolean useFFmpegPlayer) {
+    	if (mNextMediaPlayer == null || !mNextIsPrepared ||
+    			!path.equals(mNextPath) || useFFmpegPlayer != mNextUseFFmpegPlayer) {
+    		return false;
+    	}
+    	
+    	swapInNextPlayer();
+    	return true;
+    }
+    
+    private void swapInNextPlayer() {
+    	AbstractMediaPlayer previous = mMediaPlayer;
+    	
+    	mMediaPlayer = mNextMediaPlayer;
+    	mNextMediaPlayer = null;
+    	mPath = mNextPath;
+    	mUseFFmpegPlayer = mNextUseFFmpegPlayer;
+    	mLastPosition = 0;
+    	mLastDuration = 0;
+    	mPreparedAt = SystemClock.elapsedRealtime();
+    	mReconnectPolicy.reset();
+    	mNextPath = null;
+    	mNextIsPrepared = false;
+    	mNextIsHandedOff = false;
+    	
+    	mMediaPlayer.setOnPreparedListener(onPreparedListener);
+    	mMediaPlayer.setOnCompletionListener(onCompletionListener);
+    	mMediaPlayer.setOnErrorListener(onErrorListener);
+    	mMediaPlayer.setOnInfoListener(onInfoListener);
+    	mMediaPlayer.setOnBufferingUpdateListener(onBufferingUpdateListener);
+    	// a duck or fade may have changed the volume since it was prepared
+    	mMediaPlayer.setVolume(mVolume, mVolume);
+    	mBufferPercent = 0;
+    	mBufferedBytes = 0;
+    	mDownloadRate = 0;
+    	
+    	// the new current player replaces the cached instance of the same type
+    	if (previous == mNativeMediaPlayer) {
+    		mNativeMediaPlayer = null;
+    	} else if (previous == mFFmpegMediaPlayer) {
+    		mFFmpegMediaPlayer = null;
+    	} else if (previous == mDownloadMediaPlayer) {
+    		mDownloadMediaPlayer = null;
+    	}
+    	previous.release();
+    	
+    	if (mMediaPlayer instanceof NativePlayer) {
+    		if (mNativeMediaPlayer != null) {
+    			mNativeMediaPlayer.release();
+    		}
+    		mNativeMediaPlayer = (NativePlayer) mMediaPlayer;
+    	} else if (mMediaPlayer instanceof FFmpegMediaPlayer) {
+    		if (mFFmpegMediaPlayer != null) {
+    			mFFmpegMediaPlayer.release();
+    		}
+    		mFFmpegMediaPlayer = (FFmpegMediaPlayer) mMediaPlayer;
+    	}
+    	
+    	mIsInitialized = true;
+    }
+    
+    private AbstractMediaPlayer.OnPreparedListener onNextPreparedListener = new AbstractMediaPlayer.OnPreparedListener() {
+		public void onPrepared(final AbstractMediaPlayer mp) {
+			if (!isPlayerThread()) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onPrepared(mp);
+					}
+				});
+				return;
+			}
+			
+			synchronized (MultiPlayer.this) {
+				if (mp != mNextMediaPlayer) {
+					return;
+				}
+				
+				Log.i(TAG, "Next media player prepared");
+				
+				mNextIsPrepared = true;
+				mNextMediaPlayer.setVolume(mVolume, mVolume);
+				mNextIsHandedOff = mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+			}
+		}
+    };
+    
+    private AbstractMediaPlayer.OnErrorListener onNextErrorListener = new AbstractMediaPlayer.OnErrorListener() {
+        public boolean onError(final AbstractMediaPlayer mp, final int what, final int extra) {
+        	if (!isPlayerThread()) {
+        		mHandler.post(new Runnable() {
+        			@Override
+        			public void run() {
+        				onError(mp, what, extra);
+        			}
+        		});
+        		return true;
+        	}
+        	
+        	Log.d(TAG, "Next player error: " + what + "," + extra);
+        	
+        	// the next track will be opened the regular way once it is reached
+        	synchronized (MultiPlayer.this) {
+        		if (mp == mNextMediaPlayer) {
+        			releaseNextPlayer();
+        		}
+        	}
+        	return true;
+        }
+    };
+    
+    // the request runs on a thread of its own, its result is posted to the
+    // player thread
+    private HTTPRequestListener mNextRequestListener = new HTTPRequestListener() {
+
+		@Override
+		public void onContentTypeObtained(final String path, final boolean useFFmpegPlayer,
+				final String contentType) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					onNextContentTypeObtained(path, useFFmpegPlayer, contentType);
+				}
+			});
+		}
+
+		@Override
+		public void onHTTPRequestError(final String path, final boolean useFFmpegPlayer) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (MultiPlayer.this) {
+						if (path.equals(mNextPath)) {
+							prepareNextPlayer(path, useFFmpegPlayer);
+						}
+					}
+				}
+			});
+		}
+    };
+    
+    private synchronized void onNextContentTypeObtained(String path, boolean useFFmpegPlayer,
+    		String contentType) {
+    	if (!path.equals(mNextPath)) {
+    		return;
+    	}
+    	
+    	if (isFFmpegContentType(contentType)) {
+    		useFFmpegPlayer = true;
+    	} else if (isAsfContentType(contentType)) {
+    		// the stream is played through an MMSH URI, which won't
+    		// match the path the service opens; don't prepare it
+    		discardProxiedResponse(path);
+    		return;
+    	}
+    	
+    	prepareNextPlayer(path, useFFmpegPlayer);
     }
     
     /**
@@ -249,24 +851,94 @@ public final class MultiPlayer implements HTTPRequestListener {
      * @return a media player.
      */
 	private AbstractMediaPlayer getMediaPlayer(String uri) {
+		if (isFFmpegUri(uri)) {
+			return getFFmpegPlayer();
+		} else {
+			return getNativePlayer();
+		}
+	}
+	
+	/**
+	 * @param uri path to a file.
+	 * @return true if the URI can only be played by the FFmpeg player.
+	 */
+	private static boolean isFFmpegUri(String uri) {
 		if (uri.startsWith(HTTP.getProtocolName())) {
-			return mNativeMediaPlayer;
+			return false;
 		} else if (uri.startsWith(HTTPS.getProtocolName())) {
-			return mNativeMediaPlayer;
+			return false;
 		} else if (uri.startsWith(File.getProtocolName())) {
-			return mNativeMediaPlayer;
+			return false;
 		} else if (uri.startsWith(RTSP.getProtocolName())) {
-			return mNativeMediaPlayer;
+			return false;
 		} else if (uri.startsWith(MMS.getProtocolName())) {
-			return getFFmpegPlayer();
+			return true;
 		} else if (uri.startsWith(MMSH.getProtocolName())) {
-			return getFFmpegPlayer();
+			return true;
 		} else if (uri.startsWith(MMST.getProtocolName())) {
-			return getFFmpegPlayer();
+			return true;
 		} else {
-			return mNativeMediaPlayer;
+			return false;
 		}
 	}
+	
+	/**
+	 * @return the URL the player should open: the {@link StreamProxy} if
+	 * it holds the response of the request that found out the content type
+	 * or if the proxy should extract the ICY metadata, otherwise the encoded
+	 * path.
+	 */
+	private String getPlayableUrl(String path) {
+		if (path.startsWith(HTTP.getProtocolName()) || path.startsWith(HTTPS.getProtocolName())) {
+			StreamProxy proxy = StreamProxy.getInstance();
+			String url = null;
+			
+			if (proxy != null) {
+				url = proxy.getUrl(path);
+				
+				// the proxy can only forward requests that a probe has shown
+				// HttpURLConnection to handle, e.g. not "ICY 200 OK" responses
+				if (url == null && mUseStreamProxy && ProbeCache.get(path) != null) {
+					url = proxy.getProxyUrl(path);
+				}
+			}
+			
+			if (url != null) {
+				Log.v(TAG, "Playing " + path + " through the stream proxy");
+				return url;
+			}
+		}
+		
+		return URLUtils.encodeURL(path);
+	}
+	
+	private static void discardProxiedResponse(String path) {
+		StreamProxy proxy = StreamProxy.getInstance();
+		if (proxy != null) {
+			proxy.discard(path);
+		}
+	}
+	
+	private static boolean isAsfContentType(String contentType) {
+		return contentType.equalsIgnoreCase("video/x-ms-asf") || 
+				contentType.equalsIgnoreCase("application/vnd.ms-asf");
+	}
+	
+	private static boolean isFFmpegContentType(String contentType) {
+		return contentType.equals("audio/aacp") ||
+				contentType.equals("audio/3gpp") ||
+				contentType.equals("audio/3gpp2");
+	}
+	
+	private NativePlayer getNativePlayer() {
+		// the native player is replaced when a prepared next
+		// player takes over, so it may need to be recreated
+		if (mNativeMediaPlayer == null) {
+			mNativeMediaPlayer = new NativePlayer();
+		}
+		
+		return mNativeMediaPlayer;
+	}
     
 	private DownloadPlayer getDownloadPlayer() {
 		// allow for lazy initialization of Download player
@@ -289,27 +961,100 @@ public final class MultiPlayer implements HTTPRequestListener {
 	}
 	
 	@Override
-	public void onContentTypeObtained(String path, boolean useFFmpegPlayer, 
-			String contentType) {
-		if (contentType.equalsIgnoreCase("video/x-ms-asf") || 
-				contentType.equalsIgnoreCase("application/vnd.ms-asf")) {
+	public void onContentTypeObtained(final String path, final boolean useFFmpegPlayer, 
+			final String contentType) {
+		// the request runs on a thread of its own
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (path.equals(mPendingRequestPath)) {
+					openWithContentType(path, useFFmpegPlayer, contentType);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onHTTPRequestError(final String path, final boolean useFFmpegPlayer) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (path.equals(mPendingRequestPath)) {
+					setDataSource(null, path, -1, false, useFFmpegPlayer, "");
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Opens the current track once its content type is known.
+	 */
+	private void openWithContentType(String path, boolean useFFmpegPlayer, String contentType) {
+		if (isAsfContentType(contentType)) {
+			discardProxiedResponse(path);
 			path = path.replace(HTTP.getProtocolName(), MMSH.getProtocolName());
-		} else if (contentType.equals("audio/aacp") ||
-				contentType.equals("audio/3gpp") ||
-				contentType.equals("audio/3gpp2")) {
+		} else if (isFFmpegContentType(contentType)) {
 			useFFmpegPlayer = true;
 		}
 		
 		setDataSource(null, path, -1, false, useFFmpegPlayer, contentType);
 	}
-
-	@Override
-	public void onHTTPRequestError(String path, boolean useFFmpegPlayer) {
-		setDataSource(null, path, -1, false, useFFmpegPlayer, "");
+	
+	/**
+	 * Schedules the current track to be reopened, at the position it
+	 * dropped at if it has a duration.
+	 * 
+	 * @param isRetry true if an earlier attempt failed.
+	 * @return false if the track can't be reopened or the policy is
+	 * exhausted, the error should be passed on then.
+	 */
+	private boolean scheduleReconnect(boolean isRetry) {
+		String path = mPath;
+		
+		// a local file won't come back by waiting
+		if (path == null || path.startsWith(File.getProtocolName())) {
+			return false;
+		}
+		
+		if (!isRetry && SystemClock.elapsedRealtime() - mPreparedAt > STABLE_PLAYBACK_TIME) {
+			mReconnectPolicy.reset();
+		}
+		
+		long delay = mReconnectPolicy.nextDelay();
+		if (delay == -1) {
+			Log.i(TAG, "Giving up reconnecting to " + path);
+			cancelReconnect();
+			mReconnectPolicy.reset();
+			return false;
+		}
+		
+		mResumePosition = mLastDuration > 0 ? mLastPosition : -1;
+		mIsReconnecting = true;
+		mIsInitialized = false;
+		
+		Log.i(TAG, "Reconnecting to " + path + " in " + delay + " ms, attempt " +
+				mReconnectPolicy.getAttemptCount());
+		mHandler.removeCallbacks(mReconnect);
+		mHandler.postDelayed(mReconnect, delay);
+		return true;
 	}
 	
+	private final Runnable mReconnect = new Runnable() {
+		@Override
+		public void run() {
+			String path = mPath;
+			if (!mIsReconnecting || path == null) {
+				return;
+			}
+			
+			// the content type is looked up again, which also tells whether
+			// the server is back
+			setDataSource(null, path, -1, false, mUseFFmpegPlayer, null);
+		}
+	};
+	
 	private void sendErrorMessage(int arg1) {
-        Message message = mHandler.obtainMessage();
+        Message message = mHandler.obtainMessage(MediaPlaybackService.ERROR);
         message.arg1 = arg1;
         mHandler.sendMessage(message);
 	}
@@ -21,8 +21,10 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.MediaPlayer;
+import android.os.Build;
 import android.util.Log;
 
 public class NativePlayer extends AbstractMediaPlayer {
@@ -89,6 +91,32 @@ public class NativePlayer extends AbstractMediaPlayer {
 		return mMediaPlayer.getDuration();
 	}
 	
+	@SuppressLint("NewApi")
+	@Override
+	public boolean setNextMediaPlayer(AbstractMediaPlayer next) {
+		// gapless transitions are only available on Android 4.1+ and only
+		// between two platform players
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+			return false;
+		}
+		
+		if (next != null && !(next instanceof NativePlayer)) {
+			return false;
+		}
+		
+		try {
+			mMediaPlayer.setNextMediaPlayer(next == null ? null : ((NativePlayer) next).mMediaPlayer);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Next media player could not be set");
+			return false;
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Next media player could not be set");
+			return false;
+		}
+		
+		return next != null;
+	}
+	
 	@Override
 	public void release() {
 		mMediaPlayer.release();
@@ -0,0 +1,87 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before reconnecting to a stream that dropped
+ * and when to give up. The delay doubles with every attempt, up to a
+ * maximum, and half of it is random so players that lost the same server
+ * don't all come back at the same moment.
+ */
+final class ReconnectPolicy {
+
+	static final long DEFAULT_BASE_DELAY = 1000;
+	static final long DEFAULT_MAX_DELAY = 16000;
+	static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	private final long mBaseDelay;
+	private final long mMaxDelay;
+	private final int mMaxAttempts;
+	private final Random mRandom = new Random();
+
+	private int mAttempts = 0;
+
+	ReconnectPolicy() {
+		this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * @param baseDelay The delay before the first attempt, in milliseconds.
+	 * @param maxDelay The longest delay, in milliseconds.
+	 * @param maxAttempts The number of attempts before giving up.
+	 */
+	ReconnectPolicy(long baseDelay, long maxDelay, int maxAttempts) {
+		mBaseDelay = baseDelay;
+		mMaxDelay = maxDelay;
+		mMaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Counts an attempt.
+	 *
+	 * @return the time to wait before the attempt in milliseconds, or -1 if
+	 * there are no attempts left.
+	 */
+	synchronized long nextDelay() {
+		if (mAttempts >= mMaxAttempts) {
+			return -1;
+		}
+
+		long delay = Math.min(mMaxDelay, mBaseDelay << Math.min(mAttempts, 30));
+		mAttempts++;
+
+		return delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2));
+	}
+
+	/**
+	 * @return the number of attempts made since the policy was reset.
+	 */
+	synchronized int getAttemptCount() {
+		return mAttempts;
+	}
+
+	/**
+	 * Starts over with the shortest delay, once a connection has proven
+	 * itself.
+	 */
+	synchronized void reset() {
+		mAttempts = 0;
+	}
+}
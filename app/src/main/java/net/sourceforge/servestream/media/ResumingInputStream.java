@@ -0,0 +1,228 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import net.sourceforge.servestream.transport.HttpClient;
+import net.sourceforge.servestream.utils.URLUtils;
+
+import android.util.Log;
+
+/**
+ * The body of a response for a file of known length. If the connection
+ * drops before the end of the file, the rest is requested with a Range
+ * header and reading continues where it stopped, so the player doesn't
+ * notice a short outage. Responses without a length, i.e. live streams,
+ * are read as they are.
+ * <p>
+ * Closing the stream closes the connections it opened itself; the
+ * response stream it was created with is left to its owner.
+ */
+final class ResumingInputStream extends InputStream {
+	private static final String TAG = ResumingInputStream.class.getName();
+
+	// short, the player gives up on a stalled connection itself
+	private static final long BASE_DELAY = 500;
+	private static final long MAX_DELAY = 4000;
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final String mUri;
+	private final String mValidator;
+	private final ReconnectPolicy mPolicy;
+
+	// the offset of the next byte in the file and of the byte after the
+	// last one requested
+	private long mPosition;
+	private long mEnd;
+
+	private InputStream mIn;
+	// the connection of a resumed request, null while reading the original
+	private HttpURLConnection mConnection = null;
+	private boolean mIsResumed = false;
+
+	/**
+	 * @param uri The URI of the file.
+	 * @param in The response stream.
+	 * @param responseCode The status code of the response.
+	 * @param contentLength The value of the Content-Length header.
+	 * @param contentRange The value of the Content-Range header.
+	 * @param validator The ETag or Last-Modified header, or null if the
+	 * server sent neither.
+	 */
+	ResumingInputStream(String uri, InputStream in, int responseCode, String contentLength,
+			String contentRange, String validator) {
+		mUri = uri;
+		mIn = in;
+		mValidator = validator;
+
+		long length = parseLong(contentLength);
+		long start = -1;
+		if (responseCode == HttpURLConnection.HTTP_OK) {
+			start = 0;
+		} else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+			start = parseStart(contentRange);
+		}
+
+		if (length > 0 && start != -1) {
+			mPosition = start;
+			mEnd = start + length;
+			mPolicy = new ReconnectPolicy(BASE_DELAY, MAX_DELAY, MAX_ATTEMPTS);
+		} else {
+			mPolicy = null;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte [] b = new byte[1];
+		int count;
+
+		while ((count = read(b, 0, 1)) == 0) {
+		}
+
+		return count == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte [] b, int off, int len) throws IOException {
+		while (true) {
+			try {
+				int count = mIn.read(b, off, len);
+
+				if (count > 0) {
+					mPosition += count;
+
+					if (mIsResumed) {
+						mIsResumed = false;
+						mPolicy.reset();
+					}
+				} else if (count == -1 && mPolicy != null && mPosition < mEnd) {
+					throw new IOException("Response ended " + (mEnd - mPosition) + " bytes early");
+				}
+
+				return count;
+			} catch (IOException e) {
+				if (mPolicy == null || mPosition >= mEnd || !resume()) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mIn.available();
+	}
+
+	@Override
+	public void close() {
+		if (mConnection == null) {
+			return;
+		}
+
+		if (mPosition >= mEnd) {
+			HttpClient.release(mConnection, mIn);
+		} else {
+			HttpClient.disconnect(mConnection, mIn);
+		}
+		mConnection = null;
+	}
+
+	/**
+	 * Requests the rest of the file, waiting between attempts as the
+	 * policy says.
+	 *
+	 * @return true if reading can continue.
+	 */
+	private boolean resume() {
+		long delay;
+
+		while ((delay = mPolicy.nextDelay()) != -1) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return false;
+			}
+
+			Log.v(TAG, "resuming " + mUri + " at byte " + mPosition + ", attempt " +
+					mPolicy.getAttemptCount());
+
+			HttpURLConnection conn = null;
+			try {
+				conn = HttpClient.open(new URL(URLUtils.encodeURL(mUri)));
+				conn.setRequestProperty("Range", "bytes=" + mPosition + "-" + (mEnd - 1));
+				if (mValidator != null) {
+					conn.setRequestProperty("If-Range", mValidator);
+				}
+
+				// anything but the requested part means the file changed or
+				// the server doesn't do ranges, the player has to start over
+				if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+						parseStart(conn.getHeaderField("Content-Range")) != mPosition) {
+					Log.v(TAG, "unable to resume " + mUri + ": " + conn.getResponseCode());
+					HttpClient.disconnect(conn, null);
+					return false;
+				}
+
+				InputStream in = conn.getInputStream();
+				if (mConnection != null) {
+					HttpClient.disconnect(mConnection, mIn);
+				}
+				mConnection = conn;
+				mIn = in;
+				mIsResumed = true;
+				return true;
+			} catch (IOException e) {
+				Log.v(TAG, "unable to resume " + mUri + ": " + e.getMessage());
+				HttpClient.disconnect(conn, null);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the first byte of a "bytes first-last/length" Content-Range
+	 * header, or -1 if it can't be parsed.
+	 */
+	private static long parseStart(String contentRange) {
+		if (contentRange == null || !contentRange.trim().startsWith("bytes ")) {
+			return -1;
+		}
+
+		String range = contentRange.trim().substring(6).trim();
+		int dash = range.indexOf('-');
+		return dash != -1 ? parseLong(range.substring(0, dash)) : -1;
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
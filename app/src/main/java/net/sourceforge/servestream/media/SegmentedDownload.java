@@ -0,0 +1,1075 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sourceforge.servestream.transport.HttpClient;
+import net.sourceforge.servestream.utils.Utils;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Downloads a file over HTTP into a sparse local file. If the server
+ * supports range requests the file is fetched in segments over several
+ * connections, starting with the segment a reader is waiting on, and the
+ * downloaded ranges are recorded in an index file so an interrupted
+ * download resumes where it stopped. Once every byte has been downloaded
+ * the partial file is renamed to the complete file.
+ */
+final class SegmentedDownload {
+	private static final String TAG = SegmentedDownload.class.getName();
+
+	/**
+	 * Interface definition for a callback to be invoked when the download
+	 * has completed.
+	 */
+	interface OnCompletionListener {
+		void onCompletion(SegmentedDownload download);
+	}
+
+	/**
+	 * Interface definition for a callback to be invoked when the server
+	 * keeps refusing the file, e.g. with 404, and the download gives up.
+	 */
+	interface OnErrorListener {
+		void onError(SegmentedDownload download, int responseCode);
+	}
+
+	/**
+	 * Interface definition for a callback to be invoked once enough of the
+	 * file has been downloaded to start playback.
+	 */
+	interface OnBufferedListener {
+		void onBuffered(SegmentedDownload download);
+	}
+
+	/**
+	 * Interface definition for a callback to be invoked periodically while
+	 * the file downloads.
+	 */
+	interface OnProgressListener {
+		/**
+		 * @param bufferedBytes The number of bytes downloaded ahead of the
+		 * reader.
+		 * @param bytesPerSecond The current download rate.
+		 */
+		void onProgress(SegmentedDownload download, long bufferedBytes, long bytesPerSecond);
+	}
+
+	private static final int MAX_CONNECTIONS = 3;
+	private static final long SEGMENT_SIZE = 512 * 1024;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final long MIN_RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 30000;
+	// a client error such as 404 won't go away by retrying, the download
+	// fails after this many in a row
+	private static final int MAX_CLIENT_ERRORS = 3;
+
+	// the index is written each time this many more bytes have been downloaded
+	private static final long INDEX_INTERVAL = 1024 * 1024;
+	private static final int INDEX_VERSION = 1;
+
+	// the download rate is measured, and progress reported, this often
+	private static final long PROGRESS_INTERVAL = 1000;
+
+	private final URL mUrl;
+	private final File mPartialFile;
+	private final File mCompleteFile;
+	private final File mIndexFile;
+	// shared by the readers, stays valid when the file is renamed or moved
+	private RandomAccessFile mReadFile;
+	private OnCompletionListener mOnCompletionListener;
+	private OnErrorListener mOnErrorListener;
+	private OnBufferedListener mOnBufferedListener;
+	private OnProgressListener mOnProgressListener;
+
+	private final ByteRangeSet mRanges = new ByteRangeSet();
+	// segments that are being downloaded, start -> end (exclusive)
+	private final TreeMap<Long, Long> mActiveSegments = new TreeMap<Long, Long>();
+	private final Object mReadLock = new Object();
+	private long mLength = -1;
+	private String mValidator = null;
+	private boolean mIsProbed = false;
+	private boolean mRangesSupported = false;
+	private long mPriorityOffset = 0;
+	private long mUnsavedBytes = 0;
+	private int mFailures = 0;
+	private int mClientErrors = 0;
+	private int mErrorResponseCode = 0;
+	private int mWorkerCount = 0;
+	private int mMaxConnections = MAX_CONNECTIONS;
+	private boolean mIsBackground = false;
+	private boolean mIsCancelled = false;
+	private boolean mIsComplete = false;
+	private boolean mIsFailed = false;
+	private boolean mIsFailureReported = false;
+	// a worker got the whole file instead of a range and waits for the
+	// others to stop before it starts over
+	private boolean mIsRestarting = false;
+
+	private int mIcyBitrate = -1;
+	private long mBufferThreshold = -1;
+	private boolean mIsBuffered = false;
+	private long mReadPosition = 0;
+	private long mRateBytes = 0;
+	private long mRateStart = 0;
+	private long mBytesPerSecond = 0;
+
+	SegmentedDownload(URL url, File partialFile, File completeFile, File indexFile) {
+		mUrl = url;
+		mPartialFile = partialFile;
+		mCompleteFile = completeFile;
+		mIndexFile = indexFile;
+	}
+
+	void setOnCompletionListener(OnCompletionListener listener) {
+		mOnCompletionListener = listener;
+	}
+
+	void setOnErrorListener(OnErrorListener listener) {
+		mOnErrorListener = listener;
+	}
+
+	void setOnBufferedListener(OnBufferedListener listener) {
+		mOnBufferedListener = listener;
+	}
+
+	void setOnProgressListener(OnProgressListener listener) {
+		mOnProgressListener = listener;
+	}
+
+	/**
+	 * Downloads over a single connection at background priority, so the
+	 * download doesn't compete with playback. Must be called before
+	 * {@link #start}.
+	 */
+	synchronized void setBackground(boolean background) {
+		mIsBackground = background;
+		mMaxConnections = background ? 1 : MAX_CONNECTIONS;
+	}
+
+	/**
+	 * Starts or resumes the download.
+	 */
+	void start() {
+		synchronized (this) {
+			if (mCompleteFile.exists()) {
+				mLength = mCompleteFile.length();
+				mRanges.add(0, mLength);
+				mIsProbed = true;
+				mIsComplete = true;
+			} else {
+				loadIndex();
+
+				if (mLength != -1 && mRanges.isComplete(mLength) &&
+						mPartialFile.renameTo(mCompleteFile)) {
+					// the last attempt stopped right before the rename
+					Utils.deleteFile(mIndexFile);
+					mIsProbed = true;
+					mIsComplete = true;
+				}
+			}
+
+			if (!mIsComplete) {
+				// the first request tells whether the server supports ranges,
+				// the other connections are opened once it does
+				mRateStart = System.currentTimeMillis();
+				mWorkerCount++;
+				new Thread(new Worker(), "SegmentedDownload worker").start();
+			}
+		}
+
+		if (isComplete()) {
+			setBuffered();
+
+			if (mOnCompletionListener != null) {
+				mOnCompletionListener.onCompletion(this);
+			}
+		}
+	}
+
+	void cancel() {
+		synchronized (this) {
+			mIsCancelled = true;
+			notifyAll();
+		}
+
+		synchronized (mReadLock) {
+			if (mReadFile != null) {
+				try {
+					mReadFile.close();
+				} catch (IOException e) {
+				}
+				mReadFile = null;
+			}
+		}
+	}
+
+	synchronized boolean isCancelled() {
+		return mIsCancelled;
+	}
+
+	synchronized boolean isComplete() {
+		return mIsComplete;
+	}
+
+	/**
+	 * @return true if the download gave up because the server refused the
+	 * file.
+	 */
+	synchronized boolean isFailed() {
+		return mIsFailed;
+	}
+
+	/**
+	 * Downloads the segment at offset before any other. If no connection is
+	 * about to reach offset an extra connection is opened for it, and a
+	 * segment that covers offset but is still far from it is cut short there.
+	 */
+	synchronized void prioritize(long offset) {
+		mPriorityOffset = offset;
+
+		if (!mRangesSupported || mIsComplete || isStopping() ||
+				offset >= mLength || mRanges.contains(offset)) {
+			return;
+		}
+
+		Map.Entry<Long, Long> active = mActiveSegments.floorEntry(offset);
+		if (active != null && active.getValue() > offset) {
+			long progress = mRanges.getRangeEnd(active.getKey());
+
+			if (offset - progress <= SEGMENT_SIZE / 4) {
+				// the connection will get there soon enough
+				return;
+			}
+
+			mActiveSegments.put(active.getKey(), offset);
+		}
+
+		if (mWorkerCount <= mMaxConnections) {
+			mWorkerCount++;
+			new Thread(new Worker(), "SegmentedDownload worker").start();
+		}
+	}
+
+	/**
+	 * @return the length of the file, or -1 if it isn't known (yet).
+	 */
+	synchronized long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Blocks until the first response from the server has been received.
+	 *
+	 * @return the length of the file, or -1 if the server didn't report it.
+	 */
+	synchronized long waitForLength() throws InterruptedException {
+		while (!mIsProbed && !mIsCancelled && !mIsFailed) {
+			wait();
+		}
+
+		return mLength;
+	}
+
+	/**
+	 * @return the number of bytes downloaded so far.
+	 */
+	synchronized long getDownloadedBytes() {
+		return mRanges.size();
+	}
+
+	/**
+	 * @return the number of bytes that have been downloaded without gaps
+	 * from the start of the file.
+	 */
+	synchronized long getContiguousBytes() {
+		return mRanges.getRangeEnd(0);
+	}
+
+	/**
+	 * @return the number of bytes that have been downloaded without gaps
+	 * from the position of the last read.
+	 */
+	synchronized long getBufferedBytes() {
+		return mRanges.getRangeEnd(mReadPosition) - mReadPosition;
+	}
+
+	/**
+	 * @return the download rate over the last second, in bytes per second.
+	 */
+	synchronized long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * Reads from the file, blocking until the byte at position has been
+	 * downloaded. The file is opened once and kept open, so the complete
+	 * file can be moved, into the media cache for instance, while it is
+	 * being read.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the file or if
+	 * the download was cancelled or failed.
+	 */
+	int read(long position, byte [] buffer, int offset, int length)
+			throws IOException, InterruptedException {
+		long available;
+		File file;
+
+		synchronized (this) {
+			while (!mIsCancelled && !mIsFailed && !mRanges.contains(position) &&
+					!(mLength != -1 && position >= mLength)) {
+				// the reader is waiting on this byte, fetch it first
+				if (mPriorityOffset != position) {
+					prioritize(position);
+				}
+				wait();
+			}
+
+			if (mIsCancelled || (mLength != -1 && position >= mLength) ||
+					!mRanges.contains(position)) {
+				return -1;
+			}
+
+			available = mRanges.getRangeEnd(position) - position;
+			mReadPosition = position;
+			file = mIsComplete ? mCompleteFile : mPartialFile;
+		}
+
+		synchronized (mReadLock) {
+			if (isCancelled()) {
+				return -1;
+			}
+
+			if (mReadFile == null) {
+				mReadFile = new RandomAccessFile(file, "r");
+			}
+
+			mReadFile.seek(position);
+			return mReadFile.read(buffer, offset, (int) Math.min(length, available));
+		}
+	}
+
+	private synchronized long [] nextSegment() {
+		if (isStopping() || mIsComplete) {
+			return null;
+		}
+
+		if (!mIsProbed) {
+			// only the first worker runs until the server has responded
+			long start = mRanges.getRangeEnd(0);
+			mActiveSegments.put(start, start + SEGMENT_SIZE);
+			return new long [] { start, start + SEGMENT_SIZE };
+		}
+
+		if (!mRangesSupported) {
+			// the file can only be downloaded in one piece
+			if (!mActiveSegments.isEmpty()) {
+				return null;
+			}
+			mActiveSegments.put(0L, Long.MAX_VALUE);
+			return new long [] { 0, Long.MAX_VALUE };
+		}
+
+		long start = findMissing(mPriorityOffset);
+		if (start == -1 && mPriorityOffset > 0) {
+			start = findMissing(0);
+		}
+
+		if (start == -1) {
+			// every missing byte is being downloaded by another worker
+			return null;
+		}
+
+		long end = Math.min(start + SEGMENT_SIZE, mLength);
+		end = Math.min(end, mRanges.getNextRangeStart(start));
+		Long nextActive = mActiveSegments.higherKey(start);
+		if (nextActive != null) {
+			end = Math.min(end, nextActive);
+		}
+
+		mActiveSegments.put(start, end);
+		return new long [] { start, end };
+	}
+
+	/**
+	 * @return the first byte at or after position that is neither
+	 * downloaded nor being downloaded, or -1 if there is none.
+	 */
+	private long findMissing(long position) {
+		while (position < mLength) {
+			long next = mRanges.getRangeEnd(position);
+
+			Map.Entry<Long, Long> active = mActiveSegments.floorEntry(next);
+			if (active != null && active.getValue() > next) {
+				next = active.getValue();
+			}
+
+			if (next == position) {
+				return position;
+			}
+			position = next;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Records that [start, end) has been written.
+	 *
+	 * @return true if the index should be written.
+	 */
+	private synchronized boolean onDownloaded(long start, long end) {
+		mRanges.add(start, end);
+		mUnsavedBytes += end - start;
+		notifyAll();
+
+		if (mRangesSupported && mUnsavedBytes >= INDEX_INTERVAL) {
+			mUnsavedBytes = 0;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Notifies the listener once the bytes needed to start playback are
+	 * present. The threshold is estimated from the icy-br header or from the
+	 * start of the file as soon as there is enough of it.
+	 */
+	private void checkBuffered(RandomAccessFile file) {
+		long contiguous;
+		long length;
+		long threshold;
+		int icyBitrate;
+
+		synchronized (this) {
+			if (mIsBuffered) {
+				return;
+			}
+
+			contiguous = mRanges.getRangeEnd(0);
+			length = mLength;
+			threshold = mBufferThreshold;
+			icyBitrate = mIcyBitrate;
+		}
+
+		if (threshold == -1) {
+			if (icyBitrate > 0) {
+				threshold = BufferThreshold.forBitrate(icyBitrate, 0, length);
+			} else {
+				try {
+					threshold = BufferThreshold.estimate(file, contiguous, length);
+				} catch (IOException e) {
+					// the file was truncated by a restart, try again later
+					return;
+				}
+			}
+
+			if (threshold == -1) {
+				return;
+			}
+
+			synchronized (this) {
+				mBufferThreshold = threshold;
+			}
+			Log.v(TAG, "buffering " + threshold + " bytes before playback");
+		}
+
+		if (contiguous >= threshold) {
+			setBuffered();
+		}
+	}
+
+	private void setBuffered() {
+		synchronized (this) {
+			if (mIsBuffered) {
+				return;
+			}
+			mIsBuffered = true;
+		}
+
+		if (mOnBufferedListener != null) {
+			mOnBufferedListener.onBuffered(this);
+		}
+	}
+
+	/**
+	 * Accounts for count downloaded bytes and reports the progress once per
+	 * interval.
+	 */
+	private void updateProgress(int count) {
+		long bufferedBytes;
+		long bytesPerSecond;
+
+		synchronized (this) {
+			mRateBytes += count;
+
+			long now = System.currentTimeMillis();
+			long elapsed = now - mRateStart;
+			if (elapsed < PROGRESS_INTERVAL) {
+				return;
+			}
+
+			mBytesPerSecond = mRateBytes * 1000 / elapsed;
+			mRateBytes = 0;
+			mRateStart = now;
+
+			bufferedBytes = mRanges.getRangeEnd(mReadPosition) - mReadPosition;
+			bytesPerSecond = mBytesPerSecond;
+		}
+
+		if (mOnProgressListener != null) {
+			mOnProgressListener.onProgress(this, bufferedBytes, bytesPerSecond);
+		}
+	}
+
+	/**
+	 * @return true if this call completed the download.
+	 */
+	private synchronized boolean finishSegment(long [] segment, boolean success) {
+		mActiveSegments.remove(segment[0]);
+
+		if (success) {
+			mFailures = 0;
+			mClientErrors = 0;
+		}
+
+		if (mLength != -1 && !mIsComplete && mRanges.isComplete(mLength)) {
+			Utils.deleteFile(mIndexFile);
+
+			// the partial file holds the whole file now, a rename is all that's needed
+			if (!mPartialFile.renameTo(mCompleteFile)) {
+				Log.e(TAG, "Unable to rename " + mPartialFile + " to " + mCompleteFile);
+				return false;
+			}
+
+			mIsComplete = true;
+			notifyAll();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Waits before retrying a failed request, the delay doubles with every
+	 * consecutive failure.
+	 *
+	 * @return false if the download was cancelled while waiting.
+	 */
+	private synchronized boolean backOff() throws InterruptedException {
+		long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(mFailures, 5));
+		mFailures++;
+
+		Log.v(TAG, "retrying in " + delay + " ms");
+		long end = System.currentTimeMillis() + delay;
+		long remaining;
+		while (!isStopping() && (remaining = end - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+
+		return !isStopping();
+	}
+
+	/**
+	 * @return true if the workers should stop: the download was cancelled
+	 * or failed, or a worker is about to start it over.
+	 */
+	private boolean isStopping() {
+		return mIsCancelled || mIsFailed || mIsRestarting;
+	}
+
+	private synchronized boolean isStopped() {
+		return isStopping();
+	}
+
+	/**
+	 * Counts a response that retrying won't change and fails the download
+	 * after {@link #MAX_CLIENT_ERRORS} of them in a row. Request Timeout
+	 * and Too Many Requests are worth retrying and aren't counted.
+	 */
+	private synchronized void onClientError(int responseCode) {
+		// 429 is Too Many Requests, which HttpURLConnection has no name for
+		if (responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429) {
+			return;
+		}
+
+		mClientErrors++;
+		if (mClientErrors >= MAX_CLIENT_ERRORS && !mIsFailed) {
+			Log.e(TAG, "Giving up on " + mUrl + " after response " + responseCode);
+			mIsFailed = true;
+			mErrorResponseCode = responseCode;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the response the download failed with the first time it is
+	 * called after the failure, so only one worker reports it, otherwise 0.
+	 */
+	private synchronized int takeFailure() {
+		if (!mIsFailed || mIsFailureReported) {
+			return 0;
+		}
+
+		mIsFailureReported = true;
+		return mErrorResponseCode;
+	}
+
+	/**
+	 * @return true if a connection opened by {@link #prioritize} pushed the
+	 * number of connections over the limit.
+	 */
+	private synchronized boolean hasTooManyWorkers() {
+		return mWorkerCount > mMaxConnections;
+	}
+
+	/**
+	 * @return the end of the segment, which {@link #prioritize} may have
+	 * moved closer to its start.
+	 */
+	private synchronized long getSegmentEnd(long [] segment) {
+		Long end = mActiveSegments.get(segment[0]);
+		return end != null ? Math.min(end, segment[1]) : segment[1];
+	}
+
+	private void finishWorker() {
+		synchronized (this) {
+			mWorkerCount--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Opens a connection for the segment, the first response decides how
+	 * the rest of the file is downloaded.
+	 *
+	 * @return the open connection, or null if the response can't be used.
+	 */
+	private HttpURLConnection connect(long [] segment) throws IOException {
+		HttpURLConnection conn = HttpClient.open(mUrl);
+		conn.setRequestMethod("GET");
+
+		String validator;
+		synchronized (this) {
+			validator = mValidator;
+		}
+
+		if (segment[1] != Long.MAX_VALUE) {
+			conn.setRequestProperty("Range", "bytes=" + segment[0] + "-" + (segment[1] - 1));
+
+			// the server sends the whole file if it changed since the index was written
+			if (validator != null) {
+				conn.setRequestProperty("If-Range", validator);
+			}
+		}
+
+		int responseCode = conn.getResponseCode();
+
+		if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+			long [] range = parseContentRange(conn.getHeaderField("Content-Range"));
+
+			if (range == null || range[0] != segment[0]) {
+				Log.e(TAG, "Unexpected Content-Range " + conn.getHeaderField("Content-Range"));
+				HttpClient.disconnect(conn, null);
+				return null;
+			}
+
+			boolean startWorkers = false;
+			synchronized (this) {
+				if (mLength != -1 && range[2] != mLength) {
+					// the file changed size, what was downloaded is useless
+					mRanges.clear();
+				}
+
+				mLength = range[2];
+				if (!mIsProbed) {
+					mValidator = getValidator(conn);
+					mIcyBitrate = BufferThreshold.parseIcyBitrate(conn.getHeaderField("icy-br"));
+					mIsProbed = true;
+					mRangesSupported = true;
+					startWorkers = true;
+					notifyAll();
+				}
+
+				// the last segment may be shorter than requested
+				mActiveSegments.put(segment[0], Math.min(segment[1], mLength));
+				segment[1] = Math.min(segment[1], mLength);
+
+				while (startWorkers && mWorkerCount < mMaxConnections) {
+					mWorkerCount++;
+					new Thread(new Worker(), "SegmentedDownload worker").start();
+				}
+			}
+		} else if (responseCode == HttpURLConnection.HTTP_OK) {
+			// ranges aren't supported or the file changed, start over
+			synchronized (this) {
+				if (mIsRestarting) {
+					// another worker is starting over already
+					HttpClient.disconnect(conn, null);
+					return null;
+				}
+
+				// the other connections are still writing segments of the
+				// old file, they have to stop before it's truncated
+				mIsRestarting = true;
+				notifyAll();
+				try {
+					while (mWorkerCount > 1) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					HttpClient.disconnect(conn, null);
+					return null;
+				} finally {
+					mIsRestarting = false;
+				}
+
+				if (mIsCancelled) {
+					HttpClient.disconnect(conn, null);
+					return null;
+				}
+
+				mRanges.clear();
+				mLength = HttpClient.getContentLength(conn);
+				mValidator = null;
+				mIcyBitrate = BufferThreshold.parseIcyBitrate(conn.getHeaderField("icy-br"));
+				mIsProbed = true;
+				mRangesSupported = false;
+				notifyAll();
+
+				mActiveSegments.remove(segment[0]);
+				mActiveSegments.put(0L, Long.MAX_VALUE);
+				segment[0] = 0;
+				segment[1] = Long.MAX_VALUE;
+			}
+			Utils.deleteFile(mIndexFile);
+		} else {
+			Log.e(TAG, "Unexpected response " + responseCode);
+			HttpClient.disconnect(conn, null);
+
+			if (responseCode >= 400 && responseCode < 500) {
+				onClientError(responseCode);
+			}
+			return null;
+		}
+
+		return conn;
+	}
+
+	/**
+	 * Downloads the segment.
+	 *
+	 * @return true if the whole segment was downloaded.
+	 */
+	private boolean fetch(RandomAccessFile file, long [] segment) {
+		HttpURLConnection conn = null;
+		InputStream in = null;
+		boolean success = false;
+		boolean isReusable = true;
+
+		try {
+			conn = connect(segment);
+			if (conn == null) {
+				return false;
+			}
+
+			if (segment[0] == 0 && segment[1] == Long.MAX_VALUE) {
+				file.setLength(0);
+			}
+
+			in = new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE);
+			byte [] buffer = new byte[BUFFER_SIZE];
+			long position = segment[0];
+			long requestedEnd = segment[1];
+
+			while (position < segment[1] && !isStopped()) {
+				int count = in.read(buffer, 0, (int) Math.min(buffer.length, segment[1] - position));
+				if (count == -1) {
+					break;
+				}
+
+				file.seek(position);
+				file.write(buffer, 0, count);
+
+				if (onDownloaded(position, position + count)) {
+					saveIndex(file);
+				}
+				checkBuffered(file);
+				updateProgress(count);
+
+				position += count;
+				segment[1] = getSegmentEnd(segment);
+			}
+
+			if (segment[1] == Long.MAX_VALUE) {
+				synchronized (this) {
+					// without a Content-Length the end of the stream is the end of the file
+					if (mLength == -1 && !mIsCancelled) {
+						mLength = position;
+						notifyAll();
+					}
+					success = mLength != -1 && position >= mLength;
+				}
+			} else {
+				success = position >= segment[1];
+
+				// the rest of a segment that was cut short can't be read on this connection
+				if (success && segment[1] < requestedEnd) {
+					isReusable = false;
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Segment " + segment[0] + "-" + segment[1] + " failed: " + e.getMessage());
+		} finally {
+			// a fully read response leaves the connection open for the next request
+			if (success && isReusable) {
+				HttpClient.release(conn, in);
+			} else {
+				HttpClient.disconnect(conn, in);
+			}
+		}
+
+		return success;
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			RandomAccessFile file = null;
+			boolean completed = false;
+
+			synchronized (SegmentedDownload.this) {
+				if (mIsBackground) {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				}
+			}
+
+			try {
+				file = new RandomAccessFile(mPartialFile, "rw");
+
+				long [] segment;
+				while ((segment = nextSegment()) != null) {
+					boolean success = fetch(file, segment);
+
+					if (finishSegment(segment, success)) {
+						completed = true;
+					}
+
+					if (isStopped()) {
+						break;
+					}
+
+					if (!success && !backOff()) {
+						break;
+					}
+
+					if (hasTooManyWorkers()) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to write " + mPartialFile, e);
+			} catch (InterruptedException e) {
+			} finally {
+				if (file != null) {
+					if (!completed && !isComplete()) {
+						saveIndex(file);
+					}
+
+					try {
+						file.close();
+					} catch (IOException e) {
+					}
+				}
+
+				finishWorker();
+			}
+
+			int responseCode = takeFailure();
+			if (responseCode != 0 && mOnErrorListener != null) {
+				mOnErrorListener.onError(SegmentedDownload.this, responseCode);
+			}
+
+			if (completed) {
+				Log.v(TAG, "download task is complete");
+
+				// a file shorter than the threshold is buffered once it's complete
+				setBuffered();
+
+				if (mOnCompletionListener != null) {
+					mOnCompletionListener.onCompletion(SegmentedDownload.this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the downloaded ranges to the index file. The data is synced
+	 * first so the index never lists bytes that aren't on disk.
+	 */
+	private void saveIndex(RandomAccessFile file) {
+		long [] ranges;
+		long length;
+		String validator;
+
+		try {
+			file.getFD().sync();
+		} catch (IOException e) {
+			return;
+		}
+
+		synchronized (this) {
+			if (!mRangesSupported || mIsComplete) {
+				return;
+			}
+
+			ranges = mRanges.toArray();
+			length = mLength;
+			validator = mValidator;
+		}
+
+		File tempFile = new File(mIndexFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(INDEX_VERSION);
+			out.writeUTF(mUrl.toString());
+			out.writeUTF(validator != null ? validator : "");
+			out.writeLong(length);
+			out.writeInt(ranges.length / 2);
+			for (int i = 0; i < ranges.length; i++) {
+				out.writeLong(ranges[i]);
+			}
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(mIndexFile)) {
+				Utils.deleteFile(tempFile);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write " + mIndexFile, e);
+			Utils.deleteFile(tempFile);
+		} finally {
+			Utils.closeOutputStream(out);
+		}
+	}
+
+	/**
+	 * Restores the downloaded ranges of an earlier attempt, an index that
+	 * doesn't match the partial file is discarded.
+	 */
+	private void loadIndex() {
+		if (!mIndexFile.exists() || !mPartialFile.exists()) {
+			Utils.deleteFile(mIndexFile);
+			Utils.deleteFile(mPartialFile);
+			return;
+		}
+
+		long fileLength = mPartialFile.length();
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+
+			if (in.readInt() != INDEX_VERSION || !in.readUTF().equals(mUrl.toString())) {
+				throw new IOException("index doesn't match");
+			}
+
+			String validator = in.readUTF();
+			long length = in.readLong();
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+				long start = in.readLong();
+				long end = in.readLong();
+
+				if (end > fileLength || end > length) {
+					throw new IOException("index doesn't match");
+				}
+				mRanges.add(start, end);
+			}
+
+			mLength = length;
+			mValidator = validator.length() > 0 ? validator : null;
+			Log.v(TAG, "resuming download, " + mRanges.size() + " of " + length + " bytes present");
+		} catch (IOException e) {
+			mRanges.clear();
+			Utils.deleteFile(mIndexFile);
+			Utils.deleteFile(mPartialFile);
+		} finally {
+			Utils.closeInputStream(in);
+		}
+	}
+
+	private static String getValidator(HttpURLConnection conn) {
+		String etag = conn.getHeaderField("ETag");
+
+		// weak entity tags can't be used with If-Range
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+
+		return conn.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * Parses "bytes first-last/length".
+	 *
+	 * @return first, last and length, or null if the header is invalid or the
+	 * length is unknown.
+	 */
+	private static long [] parseContentRange(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return null;
+		}
+
+		try {
+			String [] parts = contentRange.substring(6).trim().split("[-/]");
+			if (parts.length != 3 || parts[2].equals("*")) {
+				return null;
+			}
+
+			return new long [] { Long.parseLong(parts[0].trim()),
+					Long.parseLong(parts[1].trim()),
+					Long.parseLong(parts[2].trim()) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -27,21 +27,22 @@ import net.sourceforge.servestream.provider.Media;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 
-public class ShoutCastRetrieverTask {
+/**
+ * Passes the titles a SHOUTcast or Icecast stream sends to the
+ * {@link MetadataRetrieverListener} as they arrive. The titles are read
+ * from the stream the player receives through the {@link StreamProxy}.
+ */
+public class ShoutCastRetrieverTask implements StreamProxy.OnIcyMetadataListener {
 	private Context mContext = null;
 	private long mId;
 	private MetadataRetrieverListener mListener;
-	private MetadataTask mTask;
-	private boolean mNoMetadata;
+	private String mUri;
 	
 	public ShoutCastRetrieverTask(Context context, long id) {
 		mContext = context;
 	    mId = id;
-		
-	    mTask = null;
-	    mNoMetadata = false;
+	    mUri = null;
 	    
 		// Verify that the host activity implements the callback interface
 	    try {
@@ -80,169 +81,97 @@ public class ShoutCastRetrieverTask {
 	}
 	
 	public synchronized void start() {
-		if (mTask != null && mTask.getStatus() != AsyncTask.Status.FINISHED) {
-			mTask.cancel();
+		stop();
+		
+		mUri = getUri(mContext, mId);
+		if (mUri == null) {
+			return;
 		}
 		
-		if (!mNoMetadata) {
-			mTask = new MetadataTask();
-			mTask.execute();
+		StreamProxy proxy = StreamProxy.getInstance();
+		if (proxy != null) {
+			proxy.setOnIcyMetadataListener(mUri, this);
 		}
 	}
 	
 	public synchronized void stop() {
-		if (mTask != null && mTask.getStatus() != AsyncTask.Status.FINISHED) {
-			mTask.cancel();
+		if (mUri == null) {
+			return;
+		}
+		
+		StreamProxy proxy = StreamProxy.getInstance();
+		if (proxy != null) {
+			proxy.removeOnIcyMetadataListener(mUri, this);
 		}
+		mUri = null;
 	}
 	
-	private class MetadataTask implements Runnable {
-		private boolean mIsCancelled;
-		private AsyncTask.Status mStatus;
+	@Override
+	public void onIcyMetadata(String uri, String icyMetadata) {
+		Metadata metadata = parseMetadata(icyMetadata);
 		
-		private MetadataTask() {
-			mStatus = AsyncTask.Status.PENDING;
+		if (metadata != null && mListener != null) {
+			mListener.onMetadataParsed(mId, metadata);
 		}
+	}
+	
+	private Metadata parseMetadata(String icyMetadata) {		
+		String title = null;
+		String artist = null;
+		Metadata metadata = null;
 		
-		@Override
-		public void run() {
-			mStatus = AsyncTask.Status.RUNNING;
-			
-			int retries = 0;
-			boolean metadataFound;
-		
-			try {
-				Thread.sleep(3000);
-			} catch (InterruptedException e) {
-			}
-			
-			if (isCancelled()) {
-				return;
-			}
-			
-			String uri = getUri(mContext, mId);
-		
-			if (uri != null) {
-				while (!isCancelled()) {
-					Metadata metadata = null;
-					metadataFound = false;
-					FFmpegMediaMetadataRetriever mmr = new FFmpegMediaMetadataRetriever();
-					try {
-						mmr.setDataSource(uri);
-						
-						String icyMetadata = mmr.extractMetadata(FFmpegMediaMetadataRetriever.METADATA_KEY_ICY_METADATA);
-						
-						if ((metadata = parseMetadata(icyMetadata)) != null) {
-							metadataFound = true;
-						}
-					} catch (IllegalArgumentException ex) {
-					} finally {
-						mmr.release();
-					}
-					
-					if (metadataFound) {
-						if (mListener != null) {
-							mListener.onMetadataParsed(mId, metadata);
-						}
-						
-						retries = 0;
-					} else {
-						retries++;
-						if (retries >= 2) {
-							mNoMetadata = true;
-							break;
-						}
-					}
-					
-					try {
-						Thread.sleep(10000);
-					} catch (InterruptedException e) {
-					}
-				}
-			}
-			
-			mStatus = AsyncTask.Status.FINISHED;
+		if (icyMetadata == null) {
+			return metadata;
 		}
 		
-		private Metadata parseMetadata(String icyMetadata) {		
-			String title = null;
-			String artist = null;
-			Metadata metadata = null;
-			
-			if (icyMetadata == null) {
-				return metadata;
-			}
-			
-			String streamTitle = null;
-			Map<String, String> parsedMetadata = new HashMap<String, String>();
-			String[] metaParts = icyMetadata.split(";");
-			Pattern p = Pattern.compile("^([a-zA-Z]+)=\\'([^\\']*)\\'$");
-			Matcher m;
-			
-			for (int i = 0; i < metaParts.length; i++) {
-				m = p.matcher(metaParts[i]);
-				if (m.find()) {
-					parsedMetadata.put((String)m.group(1), (String)m.group(2));				
-				}
+		String streamTitle = null;
+		Map<String, String> parsedMetadata = new HashMap<String, String>();
+		String[] metaParts = icyMetadata.split(";");
+		Pattern p = Pattern.compile("^([a-zA-Z]+)=\\'([^\\']*)\\'$");
+		Matcher m;
+		
+		for (int i = 0; i < metaParts.length; i++) {
+			m = p.matcher(metaParts[i]);
+			if (m.find()) {
+				parsedMetadata.put((String)m.group(1), (String)m.group(2));				
 			}
+		}
 
-			streamTitle = parsedMetadata.get("StreamTitle");
+		streamTitle = parsedMetadata.get("StreamTitle");
+		
+		if (streamTitle == null || streamTitle.trim().equals("")) {
+			streamTitle = parsedMetadata.get("StreamTitleReplay");
 			
 			if (streamTitle == null || streamTitle.trim().equals("")) {
-				streamTitle = parsedMetadata.get("StreamTitleReplay");
-				
-				if (streamTitle == null || streamTitle.trim().equals("")) {
-					return metadata;
-				}	
-			}
-			
-			// check if the stream title contain a "-" character. This is usually done
-			// to indicate "artist - title". If not, don't try to parse up the string
-			// just store it
-			if (streamTitle.indexOf("-") != -1) {
-				artist = streamTitle.substring(0, streamTitle.indexOf("-")).trim();
-				title = streamTitle.substring(streamTitle.indexOf("-") + 1).trim();
-			} else {
-				artist = streamTitle.trim();
-				title = "";
-			}
-			
-			// if we didn't obtain at least the title and artist then don't store
-			// the metadata since it's pretty useless
-			if (title != null && 
-					artist != null) {
-			
-				HashMap<String, Object> meta = new HashMap<String, Object>();
-				meta.put(Metadata.METADATA_KEY_TITLE, title);
-				meta.put(Metadata.METADATA_KEY_ARTIST, artist);
-				
-				// Form an array specifying which columns to return. 
-				metadata = new Metadata();
-				metadata.parse(meta);
-			}
-			
-			return metadata;
+				return metadata;
+			}	
 		}
 		
-		private synchronized boolean isCancelled() {
-			return mIsCancelled;
+		// check if the stream title contain a "-" character. This is usually done
+		// to indicate "artist - title". If not, don't try to parse up the string
+		// just store it
+		if (streamTitle.indexOf("-") != -1) {
+			artist = streamTitle.substring(0, streamTitle.indexOf("-")).trim();
+			title = streamTitle.substring(streamTitle.indexOf("-") + 1).trim();
+		} else {
+			artist = streamTitle.trim();
+			title = "";
 		}
 		
-		public synchronized boolean cancel() {
-			if (mStatus != AsyncTask.Status.FINISHED) {
-				mIsCancelled = true;
-				return true;
-			}
-			
-			return false;
-		}
+		// if we didn't obtain at least the title and artist then don't store
+		// the metadata since it's pretty useless
+		if (title != null && 
+				artist != null) {
 		
-		public synchronized AsyncTask.Status getStatus() {
-			return mStatus;
+			HashMap<String, Object> meta = new HashMap<String, Object>();
+			meta.put(Metadata.METADATA_KEY_TITLE, title);
+			meta.put(Metadata.METADATA_KEY_ARTIST, artist);
+			
+			// Form an array specifying which columns to return. 
+			metadata = new Metadata();
+			metadata.parse(meta);
 		}
 		
-		public void execute() {
-			new Thread(this, "").start();
-		}
-    }
+		return metadata;
+	}
 }
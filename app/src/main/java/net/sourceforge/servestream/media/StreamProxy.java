@@ -0,0 +1,907 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.servestream.transport.AbsTransport;
+import net.sourceforge.servestream.transport.HttpClient;
+import net.sourceforge.servestream.transport.ProbeCache;
+import net.sourceforge.servestream.utils.URLUtils;
+
+import android.util.Log;
+
+/**
+ * An HTTP proxy on the loopback interface that the players connect to.
+ * <p>
+ * A response that was opened to find out the content type of a stream is
+ * held for a few seconds and served to the player's first request, so
+ * playing the stream doesn't cost another request. Requests for other
+ * ranges and later requests are forwarded to the server.
+ * <p>
+ * Streams are requested with an Icy-MetaData header. The metadata blocks
+ * a SHOUTcast or Icecast server then interleaves with the audio are
+ * removed before the audio reaches the player, and title changes are
+ * passed to the {@link OnIcyMetadataListener} of the stream as they
+ * arrive.
+ * <p>
+ * Live streams, which have no length, are passed through a
+ * {@link JitterBuffer} when a live buffer time is set. Files of known
+ * length are resumed with a Range request if the connection to the server
+ * drops part way.
+ * <p>
+ * A {@link SegmentedDownload} can be served too, see
+ * {@link #addDownload(SegmentedDownload, String)}.
+ * <p>
+ * Streams are served under a random id, so other apps on the device can't
+ * find the user's streams by guessing URLs, and at most
+ * {@link #MAX_CONNECTIONS} requests are served at a time.
+ */
+public final class StreamProxy implements Runnable {
+	private static final String TAG = StreamProxy.class.getName();
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_HEADER_LENGTH = 8 * 1024;
+
+	// a response that isn't claimed by the player in this time is closed
+	private static final int HOLD_TIMEOUT = 10000;
+
+	// the number of streams the proxy keeps forwarding requests for
+	private static final int MAX_ROUTES = 8;
+
+	// the players open a new connection when they seek while the previous
+	// one may still be in use, a few per stream is plenty
+	private static final int MAX_CONNECTIONS = 16;
+
+	private static StreamProxy sInstance = null;
+
+	// the initial target of the jitter buffer of live streams, 0 if disabled
+	private static long sLiveBufferMillis = 0;
+
+	private ServerSocket mServerSocket;
+
+	private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, MAX_CONNECTIONS,
+			HOLD_TIMEOUT, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "StreamProxy connection #" + mCount.getAndIncrement());
+				}
+			});
+
+	// id -> stream, the oldest stream is forgotten first
+	private final Map<String, Route> mRoutes = new LinkedHashMap<String, Route>();
+	// id -> download, guarded by mRoutes
+	private final Map<String, DownloadRoute> mDownloads = new HashMap<String, DownloadRoute>();
+
+	// keyed by ProbeCache.getKey()
+	private final Map<String, OnIcyMetadataListener> mListeners = new HashMap<String, OnIcyMetadataListener>();
+	private final Map<String, String> mMetadata = new HashMap<String, String>();
+
+	public interface OnIcyMetadataListener {
+		/**
+		 * Called from a proxy thread when the metadata of a stream changes.
+		 *
+		 * @param uri The URI of the stream.
+		 * @param metadata The metadata block, e.g.
+		 * "StreamTitle='Artist - Title';".
+		 */
+		void onIcyMetadata(String uri, String metadata);
+	}
+
+	private static final class Route {
+		private final String mUri;
+		// the last segment of the path the player requests
+		private final String mName;
+		private AbsTransport mHeldResponse;
+		private long mHeldSince;
+		private JitterBuffer.Stats mStats;
+
+		private Route(String uri, AbsTransport transport) {
+			mUri = uri;
+			mName = getName(uri);
+			mHeldResponse = transport;
+			mHeldSince = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the state of the jitter buffer of the stream, or null if
+		 * live streams aren't buffered.
+		 */
+		private JitterBuffer.Stats getStats() {
+			long millis = getLiveBufferTime();
+
+			if (millis <= 0) {
+				mStats = null;
+			} else if (mStats == null || mStats.getMinTargetMillis() != millis) {
+				mStats = new JitterBuffer.Stats(millis);
+			}
+
+			return mStats;
+		}
+
+		private AbsTransport takeHeldResponse() {
+			AbsTransport transport = mHeldResponse;
+			mHeldResponse = null;
+			return transport;
+		}
+	}
+
+	private static final class DownloadRoute {
+		private final SegmentedDownload mDownload;
+		private final String mName;
+
+		private DownloadRoute(SegmentedDownload download, String name) {
+			mDownload = download;
+			mName = name;
+		}
+	}
+
+	private StreamProxy() {
+
+	}
+
+	/**
+	 * @return the proxy, or null if it couldn't be started.
+	 */
+	public static synchronized StreamProxy getInstance() {
+		if (sInstance == null) {
+			StreamProxy proxy = new StreamProxy();
+
+			try {
+				proxy.mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+				// wakes up the server to close responses nobody claimed
+				proxy.mServerSocket.setSoTimeout(HOLD_TIMEOUT);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to start the stream proxy", e);
+				return null;
+			}
+
+			new Thread(proxy, "StreamProxy").start();
+			sInstance = proxy;
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Sets how much of a live stream is buffered before the player gets it.
+	 * The buffer grows from there when the stream underruns.
+	 *
+	 * @param millis The initial buffer time, or 0 to pass live streams on
+	 * as they arrive.
+	 */
+	public static synchronized void setLiveBufferTime(long millis) {
+		sLiveBufferMillis = Math.min(millis, JitterBuffer.MAX_TARGET_MILLIS);
+	}
+
+	private static synchronized long getLiveBufferTime() {
+		return sLiveBufferMillis;
+	}
+
+	/**
+	 * @return the state of the jitter buffer of the stream, or null if it
+	 * isn't buffered.
+	 */
+	JitterBuffer.Stats getStats(String uri) {
+		synchronized (mRoutes) {
+			Route route = findRoute(uri);
+			return route != null ? route.mStats : null;
+		}
+	}
+
+	/**
+	 * Hands a connected transport to the proxy, which closes it once it has
+	 * been served or wasn't claimed in time.
+	 *
+	 * @param uri The URI the transport is connected to.
+	 */
+	public void offer(String uri, AbsTransport transport) {
+		AbsTransport replaced = null;
+
+		synchronized (mRoutes) {
+			Route route = findRoute(uri);
+
+			if (route != null) {
+				replaced = route.takeHeldResponse();
+				route.mHeldResponse = transport;
+				route.mHeldSince = System.currentTimeMillis();
+			} else {
+				replaced = makeRoom();
+				addRoute(new Route(uri, transport));
+			}
+		}
+
+		close(replaced);
+	}
+
+	/**
+	 * Closes the response held for the URI, if any, because it won't be
+	 * played.
+	 */
+	public void discard(String uri) {
+		AbsTransport transport = null;
+
+		synchronized (mRoutes) {
+			Route route = findRoute(uri);
+			if (route != null) {
+				transport = route.takeHeldResponse();
+			}
+		}
+
+		close(transport);
+	}
+
+	/**
+	 * @return the URL the player should open to play the URI, or null if
+	 * no response is held for it.
+	 */
+	public String getUrl(String uri) {
+		synchronized (mRoutes) {
+			String key = ProbeCache.getKey(uri);
+
+			for (Map.Entry<String, Route> entry : mRoutes.entrySet()) {
+				Route route = entry.getValue();
+
+				if (route.mHeldResponse != null && ProbeCache.getKey(route.mUri).equals(key)) {
+					return getUrl(entry.getKey(), route);
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the URL the player should open to play the URI through the
+	 * proxy, whether or not a response is held for it.
+	 */
+	public String getProxyUrl(String uri) {
+		AbsTransport replaced = null;
+		String url = null;
+
+		synchronized (mRoutes) {
+			String key = ProbeCache.getKey(uri);
+
+			for (Map.Entry<String, Route> entry : mRoutes.entrySet()) {
+				if (ProbeCache.getKey(entry.getValue().mUri).equals(key)) {
+					url = getUrl(entry.getKey(), entry.getValue());
+					break;
+				}
+			}
+
+			if (url == null) {
+				Route route = new Route(uri, null);
+				replaced = makeRoom();
+				url = getUrl(addRoute(route), route);
+			}
+		}
+
+		close(replaced);
+		return url;
+	}
+
+	/**
+	 * Serves a download until it is removed. Reads of bytes that haven't
+	 * been downloaded yet block until they arrive instead of hitting the end
+	 * of the partial file or a hole in it, and range requests make the file
+	 * seekable while it downloads.
+	 *
+	 * @param name The file name used in the URL, the player may use its
+	 * extension as a hint.
+	 * @return the URL the player should open.
+	 */
+	String addDownload(SegmentedDownload download, String name) {
+		DownloadRoute route = new DownloadRoute(download, getName(name));
+		String id = UUID.randomUUID().toString();
+
+		synchronized (mRoutes) {
+			mDownloads.put(id, route);
+		}
+
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + id + "/" + route.mName;
+	}
+
+	/**
+	 * Stops serving a download. Requests that are being served end once
+	 * the download is cancelled.
+	 */
+	void removeDownload(SegmentedDownload download) {
+		synchronized (mRoutes) {
+			Iterator<DownloadRoute> it = mDownloads.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().mDownload == download) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the listener to the metadata of a stream. The listener is called
+	 * right away if the stream has sent metadata already.
+	 *
+	 * @param uri The URI of the stream.
+	 */
+	public void setOnIcyMetadataListener(String uri, OnIcyMetadataListener listener) {
+		String key = ProbeCache.getKey(uri);
+		String metadata;
+
+		synchronized (mListeners) {
+			mListeners.put(key, listener);
+			metadata = mMetadata.get(key);
+		}
+
+		if (metadata != null) {
+			listener.onIcyMetadata(uri, metadata);
+		}
+	}
+
+	/**
+	 * Removes the listener to the metadata of a stream, unless another
+	 * listener has replaced it.
+	 */
+	public void removeOnIcyMetadataListener(String uri, OnIcyMetadataListener listener) {
+		String key = ProbeCache.getKey(uri);
+
+		synchronized (mListeners) {
+			if (mListeners.get(key) == listener) {
+				mListeners.remove(key);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final Socket client;
+
+			try {
+				client = mServerSocket.accept();
+			} catch (SocketTimeoutException e) {
+				expireHeldResponses();
+				continue;
+			} catch (IOException e) {
+				Log.e(TAG, "Stream proxy stopped", e);
+				break;
+			}
+
+			expireHeldResponses();
+
+			// the player opens a new connection when it seeks while the
+			// previous one may still be in use
+			try {
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (IOException e) {
+							// the player or the server closed the connection
+						} finally {
+							closeQuietly(client);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				Log.e(TAG, "Too many connections, rejecting one");
+				closeQuietly(client);
+			}
+		}
+
+		mExecutor.shutdown();
+
+		synchronized (StreamProxy.class) {
+			sInstance = null;
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		// a client that never finishes its request would hold a pool thread
+		client.setSoTimeout(HOLD_TIMEOUT);
+		String [] lines = readHeader(client.getInputStream());
+		client.setSoTimeout(0);
+		OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+
+		String [] request = lines.length > 0 ? lines[0].split(" ") : new String[0];
+		if (request.length < 2 || (!request[0].equals("GET") && !request[0].equals("HEAD"))) {
+			writeStatus(out, "400 Bad Request");
+			return;
+		}
+
+		String range = null;
+		for (int i = 1; i < lines.length; i++) {
+			if (lines[i].toLowerCase(Locale.US).startsWith("range:")) {
+				range = lines[i].substring(6).trim();
+			}
+		}
+
+		// the path is /id/name, or /id/path relative to the stream, e.g.
+		// the segments of an HLS playlist
+		String path = request[1].startsWith("/") ? request[1].substring(1) : request[1];
+		int slash = path.indexOf('/');
+		String id = slash != -1 ? path.substring(0, slash) : path;
+		String relativePath = slash != -1 ? path.substring(slash + 1) : "";
+
+		String uri = null;
+		boolean isStream = false;
+		AbsTransport transport = null;
+		JitterBuffer.Stats stats = null;
+		SegmentedDownload download = null;
+
+		synchronized (mRoutes) {
+			DownloadRoute downloadRoute = mDownloads.get(id);
+			if (downloadRoute != null && relativePath.equals(downloadRoute.mName)) {
+				download = downloadRoute.mDownload;
+			}
+
+			Route route = mRoutes.get(id);
+			if (route != null) {
+				isStream = relativePath.equals(route.mName);
+				uri = isStream ? route.mUri : resolve(route.mUri, relativePath);
+				stats = isStream ? route.getStats() : null;
+
+				// the held response starts at the beginning of the stream
+				if (isStream && request[0].equals("GET") &&
+						(range == null || range.matches("bytes=0-\\s*"))) {
+					transport = route.takeHeldResponse();
+				}
+			}
+		}
+
+		if (download != null) {
+			serveDownload(download, request[0], range, out);
+		} else if (uri == null) {
+			writeStatus(out, "404 Not Found");
+		} else if (transport != null) {
+			serveHeldResponse(uri, transport, stats, out);
+		} else {
+			forward(uri, isStream, stats, request[0], range, out);
+		}
+	}
+
+	private void serveHeldResponse(String uri, AbsTransport transport, JitterBuffer.Stats stats,
+			OutputStream out) throws IOException {
+		Log.v(TAG, "serving held response");
+
+		try {
+			StringBuilder header = new StringBuilder();
+			header.append("HTTP/1.1 200 OK\r\n");
+			appendHeader(header, "Content-Type", transport.getContentType());
+			appendHeader(header, "Content-Length", transport.getHeaderField("Content-Length"));
+			appendHeader(header, "Accept-Ranges", transport.getHeaderField("Accept-Ranges"));
+			header.append("Connection: close\r\n\r\n");
+			out.write(header.toString().getBytes());
+			out.flush();
+
+			InputStream in = resumable(uri, transport.getConnection(), transport.getResponseCode(),
+					transport.getHeaderField("Content-Length"), transport.getHeaderField("Content-Range"),
+					transport.getHeaderField("ETag"), transport.getHeaderField("Last-Modified"),
+					transport.getHeaderField("icy-metaint"));
+			try {
+				transfer(demux(uri, in, transport.getHeaderField("icy-metaint")),
+						transport.getHeaderField("Content-Length") == null ? stats : null,
+						transport.getHeaderField("icy-br"), out);
+			} finally {
+				in.close();
+			}
+		} finally {
+			transport.close();
+		}
+	}
+
+	private void serveDownload(SegmentedDownload download, String method, String range,
+			OutputStream out) throws IOException {
+		long start = 0;
+		boolean isRangeRequest = false;
+
+		if (range != null && range.toLowerCase(Locale.US).startsWith("bytes=")) {
+			String value = range.substring(6).trim();
+			int dash = value.indexOf('-');
+
+			try {
+				start = Long.parseLong(value.substring(0, dash > 0 ? dash : value.length()).trim());
+				isRangeRequest = true;
+			} catch (NumberFormatException e) {
+			}
+		}
+
+		try {
+			long length = download.waitForLength();
+
+			if (length != -1 && start >= length && start > 0) {
+				out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"
+						+ "Content-Range: bytes */" + length + "\r\n"
+						+ "Connection: close\r\n\r\n").getBytes());
+				out.flush();
+				return;
+			}
+
+			StringBuilder header = new StringBuilder();
+			if (length == -1) {
+				// the length is unknown until the download finishes, the file
+				// can only be played from the start
+				start = 0;
+				header.append("HTTP/1.1 200 OK\r\n");
+			} else if (isRangeRequest) {
+				header.append("HTTP/1.1 206 Partial Content\r\n");
+				header.append("Content-Range: bytes " + start + "-" + (length - 1) + "/" + length + "\r\n");
+				header.append("Content-Length: " + (length - start) + "\r\n");
+				header.append("Accept-Ranges: bytes\r\n");
+			} else {
+				header.append("HTTP/1.1 200 OK\r\n");
+				header.append("Content-Length: " + length + "\r\n");
+				header.append("Accept-Ranges: bytes\r\n");
+			}
+			header.append("Content-Type: application/octet-stream\r\n");
+			header.append("Connection: close\r\n\r\n");
+
+			out.write(header.toString().getBytes());
+			out.flush();
+
+			if (method.equals("HEAD")) {
+				return;
+			}
+
+			download.prioritize(start);
+
+			byte [] buffer = new byte[BUFFER_SIZE];
+			long position = start;
+			int count;
+
+			while ((count = download.read(position, buffer, 0, buffer.length)) != -1) {
+				out.write(buffer, 0, count);
+				out.flush();
+				position += count;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Makes the request to the server and copies the response.
+	 *
+	 * @param isStream true if the URI is the stream itself rather than a
+	 * file relative to it.
+	 * @param stats The state of the jitter buffer of the stream, or null if
+	 * it isn't buffered.
+	 */
+	private void forward(String uri, boolean isStream, JitterBuffer.Stats stats,
+			String method, String range, OutputStream out) throws IOException {
+		HttpURLConnection conn = null;
+		InputStream in = null;
+		boolean isHeaderWritten = false;
+		boolean success = false;
+
+		try {
+			conn = HttpClient.open(new URL(URLUtils.encodeURL(uri)));
+			conn.setRequestMethod(method);
+			if (range != null) {
+				conn.setRequestProperty("Range", range);
+			}
+			if (isStream) {
+				conn.setRequestProperty("Icy-MetaData", "1");
+			}
+
+			int responseCode = conn.getResponseCode();
+
+			StringBuilder header = new StringBuilder();
+			header.append("HTTP/1.1 " + responseCode + " " + conn.getResponseMessage() + "\r\n");
+			appendHeader(header, "Content-Type", conn.getContentType());
+			appendHeader(header, "Content-Length", conn.getHeaderField("Content-Length"));
+			appendHeader(header, "Content-Range", conn.getHeaderField("Content-Range"));
+			appendHeader(header, "Accept-Ranges", conn.getHeaderField("Accept-Ranges"));
+			header.append("Connection: close\r\n\r\n");
+			out.write(header.toString().getBytes());
+			out.flush();
+			isHeaderWritten = true;
+
+			if (method.equals("HEAD")) {
+				success = true;
+				return;
+			}
+
+			in = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ?
+					conn.getInputStream() : conn.getErrorStream();
+			if (in != null) {
+				InputStream body = resumable(uri, in, responseCode, conn.getHeaderField("Content-Length"),
+						conn.getHeaderField("Content-Range"), conn.getHeaderField("ETag"),
+						conn.getHeaderField("Last-Modified"), conn.getHeaderField("icy-metaint"));
+				try {
+					transfer(demux(uri, body, conn.getHeaderField("icy-metaint")),
+							conn.getHeaderField("Content-Length") == null ? stats : null,
+							conn.getHeaderField("icy-br"), out);
+				} finally {
+					body.close();
+				}
+			}
+			success = true;
+		} catch (IOException e) {
+			if (!isHeaderWritten) {
+				Log.e(TAG, "Unable to forward the request for " + uri + ": " + e.getMessage());
+				writeStatus(out, "502 Bad Gateway");
+			}
+			throw e;
+		} finally {
+			if (success) {
+				HttpClient.release(conn, in);
+			} else {
+				HttpClient.disconnect(conn, in);
+			}
+		}
+	}
+
+	/**
+	 * @return the stream with the metadata blocks removed, or the stream
+	 * itself if the server doesn't send metadata.
+	 */
+	private InputStream demux(final String uri, InputStream in, String metaint) {
+		int interval;
+		try {
+			interval = metaint != null ? Integer.parseInt(metaint.trim()) : 0;
+		} catch (NumberFormatException e) {
+			interval = 0;
+		}
+
+		if (interval <= 0) {
+			return in;
+		}
+
+		// what an earlier response said may not be true anymore
+		synchronized (mListeners) {
+			mMetadata.remove(ProbeCache.getKey(uri));
+		}
+
+		return new IcyMetadataInputStream(in, interval, new IcyMetadataInputStream.OnMetadataListener() {
+			@Override
+			public void onMetadata(String metadata) {
+				onIcyMetadata(uri, metadata);
+			}
+		});
+	}
+
+	private void onIcyMetadata(String uri, String metadata) {
+		String key = ProbeCache.getKey(uri);
+		OnIcyMetadataListener listener;
+
+		synchronized (mListeners) {
+			// servers repeat the metadata until it changes
+			if (metadata.equals(mMetadata.get(key))) {
+				return;
+			}
+
+			mMetadata.put(key, metadata);
+			listener = mListeners.get(key);
+		}
+
+		Log.v(TAG, "metadata of " + uri + ": " + metadata);
+
+		if (listener != null) {
+			listener.onIcyMetadata(uri, metadata);
+		}
+	}
+
+	/**
+	 * Forgets the oldest route if there are too many to add another.
+	 *
+	 * @return the response held by the forgotten route, which the caller
+	 * must close.
+	 */
+	private AbsTransport makeRoom() {
+		AbsTransport removed = null;
+
+		if (mRoutes.size() >= MAX_ROUTES) {
+			Iterator<Route> it = mRoutes.values().iterator();
+			Route route = it.next();
+			removed = route.takeHeldResponse();
+			it.remove();
+
+			synchronized (mListeners) {
+				mMetadata.remove(ProbeCache.getKey(route.mUri));
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * @return the id the route is served under, random so that it can't be
+	 * guessed by other apps.
+	 */
+	private String addRoute(Route route) {
+		String id = UUID.randomUUID().toString();
+		mRoutes.put(id, route);
+		return id;
+	}
+
+	private String getUrl(String id, Route route) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + id + "/" + route.mName;
+	}
+
+	/**
+	 * @return the path resolved against the URI of the stream, or null if
+	 * it can't be.
+	 */
+	private static String resolve(String uri, String relativePath) {
+		try {
+			return new URL(new URL(uri), relativePath).toString();
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private void expireHeldResponses() {
+		long oldest = System.currentTimeMillis() - HOLD_TIMEOUT;
+		List<AbsTransport> expired = new ArrayList<AbsTransport>();
+
+		synchronized (mRoutes) {
+			for (Route route : mRoutes.values()) {
+				if (route.mHeldResponse != null && route.mHeldSince < oldest) {
+					Log.v(TAG, "held response for " + route.mUri + " wasn't claimed");
+					expired.add(route.takeHeldResponse());
+				}
+			}
+		}
+
+		for (int i = 0; i < expired.size(); i++) {
+			close(expired.get(i));
+		}
+	}
+
+	private static void close(AbsTransport transport) {
+		if (transport != null) {
+			transport.close();
+		}
+	}
+
+	private Route findRoute(String uri) {
+		String key = ProbeCache.getKey(uri);
+
+		for (Route route : mRoutes.values()) {
+			if (ProbeCache.getKey(route.mUri).equals(key)) {
+				return route;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the file name at the end of the URI, the player may use its
+	 * extension as a hint.
+	 */
+	private static String getName(String uri) {
+		String path = uri;
+		int end = path.length();
+
+		if (path.indexOf('?') != -1) {
+			end = path.indexOf('?');
+		}
+		path = path.substring(0, end);
+
+		String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "");
+		return name.length() > 0 ? name : "stream";
+	}
+
+	/**
+	 * @return the response stream, resumed with a Range request if the
+	 * connection drops before the end of the file.
+	 */
+	private static InputStream resumable(String uri, InputStream in, int responseCode,
+			String contentLength, String contentRange, String eTag, String lastModified,
+			String metaint) {
+		// a resumed response would start a new metadata interval, and the
+		// audio can't be told apart from the metadata anymore
+		if (metaint != null) {
+			contentLength = null;
+		}
+
+		return new ResumingInputStream(uri, in, responseCode, contentLength, contentRange,
+				eTag != null ? eTag : lastModified);
+	}
+
+	/**
+	 * Copies the response to the player, through a jitter buffer if the
+	 * stream is live and buffered.
+	 */
+	private static void transfer(InputStream in, JitterBuffer.Stats stats, String icyBitrate,
+			OutputStream out) throws IOException {
+		if (stats == null) {
+			pipe(in, out);
+			return;
+		}
+
+		new JitterBuffer(in, BufferThreshold.parseIcyBitrate(icyBitrate), stats).transferTo(out);
+	}
+
+	private static void pipe(InputStream in, OutputStream out) throws IOException {
+		byte [] buffer = new byte[BUFFER_SIZE];
+		int count;
+
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+			out.flush();
+		}
+	}
+
+	private static void appendHeader(StringBuilder header, String name, String value) {
+		if (value != null) {
+			header.append(name).append(": ").append(value).append("\r\n");
+		}
+	}
+
+	private static void writeStatus(OutputStream out, String status) throws IOException {
+		Log.e(TAG, "Rejecting request: " + status);
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes());
+		out.flush();
+	}
+
+	/**
+	 * Reads the request line and headers up to the empty line.
+	 */
+	private static String [] readHeader(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+
+		while ((c = in.read()) != -1 && sb.length() < MAX_HEADER_LENGTH) {
+			sb.append((char) c);
+
+			int length = sb.length();
+			if (length >= 4 && sb.charAt(length - 1) == '\n' && sb.charAt(length - 2) == '\r'
+					&& sb.charAt(length - 3) == '\n' && sb.charAt(length - 4) == '\r') {
+				break;
+			}
+		}
+
+		return sb.toString().trim().split("\r\n");
+	}
+}
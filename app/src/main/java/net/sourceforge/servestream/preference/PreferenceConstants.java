@@ -26,12 +26,17 @@ public final class PreferenceConstants {
 
 	public static final String AUTOSAVE = "autosave";
 	public static final String PROGRESSIVE_DOWNLOAD = "progressivedownload";
+	public static final String MEDIA_CACHE_SIZE = "mediacachesize";
+	public static final String PREFETCH_COUNT = "prefetchcount";
+	public static final String PREFETCH_SIZE = "prefetchsize";
+	public static final String LIVE_BUFFER = "livebuffer";
 	public static final String USE_FFMPEG_PLAYER = "ffmpegplayer";
 	public static final String WAKELOCK = "wakelock";
 	public static final String WIFI_LOCK = "wifilock";
 	public static final String HEADPHONE_PAUSE = "headphonepause";
 	public static final String RETRIEVE_METADATA = "retrievemetadata";
 	public static final String RETRIEVE_ALBUM_ART = "retrievealbumart";
+	public static final String METADATA_CONNECTIONS = "metadataconnections";
 	public static final String RETRIEVE_SHOUTCAST_METADATA = "retrieveshoutcastmetadata";
 	public static final String SEND_SCROBBLER_INFO = "sendscrobblerinfo";
 	public static final String SEND_BLUETOOTH_METADATA = "sendbluetoothmetadata";
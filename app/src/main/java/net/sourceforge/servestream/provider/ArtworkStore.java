@@ -0,0 +1,141 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Stores artwork as files named after the SHA-1 hash of their content, so
+ * that tracks sharing the same cover (e.g. every track of an album) share
+ * a single copy.
+ */
+final class ArtworkStore {
+	private static final String TAG = ArtworkStore.class.getName();
+
+	private static final String ARTWORK_DIRECTORY = "artwork";
+
+	// This class cannot be instantiated
+	private ArtworkStore() {}
+
+	/**
+	 * Writes the artwork to the store unless identical artwork is already
+	 * present.
+	 *
+	 * @param context the context to use.
+	 * @param artwork the encoded image.
+	 * @return the hash that identifies the artwork, or null if it couldn't
+	 * be stored.
+	 */
+	static String put(Context context, byte [] artwork) {
+		if (artwork == null || artwork.length == 0) {
+			return null;
+		}
+
+		String hash = hash(artwork);
+		if (hash == null) {
+			return null;
+		}
+
+		File file = getFile(context, hash);
+		if (file.exists()) {
+			return hash;
+		}
+
+		File directory = file.getParentFile();
+		if (!directory.exists() && !directory.mkdirs()) {
+			Log.e(TAG, "Unable to create " + directory);
+			return null;
+		}
+
+		// write to a temporary file first so a partially written file
+		// is never mistaken for the artwork
+		File tempFile = new File(directory, hash + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			out.write(artwork);
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(file)) {
+				Log.e(TAG, "Unable to rename " + tempFile + " to " + file);
+				tempFile.delete();
+				return null;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write artwork " + hash, e);
+			tempFile.delete();
+			return null;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * @param context the context to use.
+	 * @param hash the hash that identifies the artwork.
+	 * @return the file the artwork is stored in.
+	 */
+	static File getFile(Context context, String hash) {
+		return new File(new File(context.getFilesDir(), ARTWORK_DIRECTORY), hash);
+	}
+
+	/**
+	 * Deletes the artwork from the store.
+	 *
+	 * @param context the context to use.
+	 * @param hash the hash that identifies the artwork.
+	 */
+	static void delete(Context context, String hash) {
+		getFile(context, hash).delete();
+	}
+
+	private static String hash(byte [] artwork) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte [] bytes = digest.digest(artwork);
+
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (int i = 0; i < bytes.length; i++) {
+				String hex = Integer.toHexString(0xFF & bytes[i]);
+				if (hex.length() == 1) {
+					sb.append('0');
+				}
+				sb.append(hex);
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(TAG, "SHA-1 is not available", e);
+			return null;
+		}
+	}
+}
@@ -109,9 +109,44 @@ public final class Media {
         public static final String YEAR = "year";
         
         /**
-         * The artwork associated with the media file, if any 
+         * The artwork associated with the media file, if any. This column is
+         * write only, the image is moved to the artwork store and can be read
+         * by opening {@link #ARTWORK_PATH} below the uri of the media file.
          * <P>Type: BLOB</P>
          */
         public static final String ARTWORK = "artwork";
+        
+        /**
+         * The content hash of the artwork associated with the media file, if any 
+         * <P>Type: TEXT</P>
+         */
+        public static final String ARTWORK_HASH = "artwork_hash";
+        
+        /**
+         * The path segment that is appended to the uri of a single media file
+         * to open its artwork with {@link android.content.ContentResolver#openFileDescriptor}.
+         */
+        public static final String ARTWORK_PATH = "artwork";
+        
+        /**
+         * The HTTP entity tag of the media file when its metadata was
+         * retrieved, if any 
+         * <P>Type: TEXT</P>
+         */
+        public static final String ETAG = "etag";
+        
+        /**
+         * The HTTP Last-Modified date of the media file when its metadata
+         * was retrieved, if any 
+         * <P>Type: TEXT</P>
+         */
+        public static final String LAST_MODIFIED = "last_modified";
+        
+        /**
+         * The length of the media file in bytes when its metadata was
+         * retrieved, if known 
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String CONTENT_LENGTH = "content_length";
     }
 }
@@ -20,9 +20,12 @@ package net.sourceforge.servestream.provider;
 import net.sourceforge.servestream.provider.Media.MediaColumns;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -31,10 +34,16 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Provides access to a database of media files. Each media has a title, the note
@@ -45,13 +54,20 @@ public class MediaProvider extends ContentProvider {
     private static final String TAG = MediaProvider.class.getName();
 
     private static final String DATABASE_NAME = "media.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 5;
     private static final String MEDIA_TABLE_NAME = "media_files";
+    private static final String MEDIA_URI_INDEX_NAME = "media_files_uri_index";
+    private static final String MEDIA_ARTWORK_HASH_INDEX_NAME = "media_files_artwork_hash_index";
+    
+    // artwork BLOBs larger than this don't fit a CursorWindow with room to spare
+    // and are dropped instead of moved to the artwork store
+    private static final int MAX_ARTWORK_ROW_SIZE = 1024 * 1024;
 
     private static HashMap<String, String> sMediaProjectionMap;
 
     private static final int MEDIA = 1;
     private static final int MEDIA_ID = 2;
+    private static final int MEDIA_ID_ARTWORK = 3;
 
     private static final UriMatcher sUriMatcher;
 
@@ -60,8 +76,11 @@ public class MediaProvider extends ContentProvider {
      */
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
+        private final Context mContext;
+        
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mContext = context;
         }
 
         @Override
@@ -75,17 +94,128 @@ public class MediaProvider extends ContentProvider {
                     + MediaColumns.DURATION + " INTEGER,"
                     + MediaColumns.TRACK + " TEXT,"
                     + MediaColumns.YEAR + " INTEGER,"
-                    + MediaColumns.ARTWORK + " BLOB"
+                    + MediaColumns.ARTWORK_HASH + " TEXT,"
+                    + MediaColumns.ETAG + " TEXT,"
+                    + MediaColumns.LAST_MODIFIED + " TEXT,"
+                    + MediaColumns.CONTENT_LENGTH + " INTEGER"
                     + ");");
+            createUriIndex(db);
+            createArtworkHashIndex(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion >= 2 && oldVersion <= 4) {
+                if (oldVersion == 2) {
+                    Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                            + newVersion + ", removing duplicate uris");
+                    
+                    // keep the oldest row for every uri, which is the row
+                    // previous versions resolved duplicate uris to
+                    db.execSQL("DELETE FROM " + MEDIA_TABLE_NAME + " WHERE " + MediaColumns._ID
+                            + " NOT IN (SELECT MIN(" + MediaColumns._ID + ") FROM " + MEDIA_TABLE_NAME
+                            + " GROUP BY " + MediaColumns.URI + ")");
+                    createUriIndex(db);
+                }
+                
+                if (oldVersion < 4) {
+                    Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                            + newVersion + ", moving artwork to the artwork store");
+                    moveArtworkToStore(db);
+                }
+                
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", adding cache validators");
+                addValidatorColumns(db);
+                return;
+            }
+            
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + MEDIA_TABLE_NAME);
             onCreate(db);
         }
+        
+        private void createUriIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + MEDIA_URI_INDEX_NAME
+                    + " ON " + MEDIA_TABLE_NAME + " (" + MediaColumns.URI + ");");
+        }
+        
+        private void createArtworkHashIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + MEDIA_ARTWORK_HASH_INDEX_NAME
+                    + " ON " + MEDIA_TABLE_NAME + " (" + MediaColumns.ARTWORK_HASH + ");");
+        }
+        
+        private void addValidatorColumns(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + MEDIA_TABLE_NAME + " ADD COLUMN "
+                    + MediaColumns.ETAG + " TEXT;");
+            db.execSQL("ALTER TABLE " + MEDIA_TABLE_NAME + " ADD COLUMN "
+                    + MediaColumns.LAST_MODIFIED + " TEXT;");
+            db.execSQL("ALTER TABLE " + MEDIA_TABLE_NAME + " ADD COLUMN "
+                    + MediaColumns.CONTENT_LENGTH + " INTEGER;");
+        }
+        
+        /**
+         * Writes the artwork BLOBs of earlier versions to the artwork store and
+         * replaces them with a reference. SQLite can't drop the old column, it
+         * is cleared instead so its pages are reused.
+         */
+        private void moveArtworkToStore(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + MEDIA_TABLE_NAME + " ADD COLUMN "
+                    + MediaColumns.ARTWORK_HASH + " TEXT;");
+            createArtworkHashIndex(db);
+            
+            // only the ids and sizes are read up front, a cursor over the BLOBs
+            // themselves could overflow its window
+            Cursor cursor = db.query(MEDIA_TABLE_NAME,
+                    new String [] { MediaColumns._ID, "length(" + MediaColumns.ARTWORK + ")" },
+                    MediaColumns.ARTWORK + " IS NOT NULL", null, null, null, null);
+            
+            if (cursor != null) {
+                ContentValues values = new ContentValues();
+                
+                try {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        
+                        if (cursor.getLong(1) > MAX_ARTWORK_ROW_SIZE) {
+                            Log.w(TAG, "Dropping artwork of media " + id + ", "
+                                    + cursor.getLong(1) + " bytes is too large to read");
+                            continue;
+                        }
+                        
+                        String hash = ArtworkStore.put(mContext, getArtwork(db, id));
+                        
+                        if (hash != null) {
+                            values.put(MediaColumns.ARTWORK_HASH, hash);
+                            db.update(MEDIA_TABLE_NAME, values,
+                                    MediaColumns._ID + "=" + id, null);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            
+            db.execSQL("UPDATE " + MEDIA_TABLE_NAME + " SET " + MediaColumns.ARTWORK + " = NULL;");
+        }
+        
+        private byte [] getArtwork(SQLiteDatabase db, long id) {
+            byte [] artwork = null;
+            
+            Cursor cursor = db.query(MEDIA_TABLE_NAME,
+                    new String [] { MediaColumns.ARTWORK },
+                    MediaColumns._ID + "=" + id, null, null, null, null);
+            
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    artwork = cursor.getBlob(0);
+                }
+                cursor.close();
+            }
+            
+            return artwork;
+        }
     }
 
     private DatabaseHelper mOpenHelper;
@@ -191,7 +321,11 @@ public class MediaProvider extends ContentProvider {
         }
         
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(MEDIA_TABLE_NAME, MediaColumns.URI, values);
+        long rowId;
+        synchronized (this) {
+            storeArtwork(values);
+            rowId = db.insert(MEDIA_TABLE_NAME, MediaColumns.URI, values);
+        }
         if (rowId > 0) {
             Uri audioUri = ContentUris.withAppendedId(MediaColumns.CONTENT_URI, rowId);
             getContext().getContentResolver().notifyChange(audioUri, null);
@@ -214,9 +348,10 @@ public class MediaProvider extends ContentProvider {
         db.beginTransaction();
         	        
         try {
-        	//standard SQL insert statement, that can be reused
+        	// standard SQL insert statement, that can be reused, uris
+        	// that are already present are left untouched
             SQLiteStatement insert = 
-            		db.compileStatement("insert into " + MEDIA_TABLE_NAME 
+            		db.compileStatement("insert or ignore into " + MEDIA_TABLE_NAME 
             				+ " (" + MediaColumns.URI + ","
         	                + MediaColumns.TITLE + ","
         	                + MediaColumns.ALBUM + ","
@@ -263,8 +398,9 @@ public class MediaProvider extends ContentProvider {
         	    insert.bindLong(5, value.getAsInteger(MediaColumns.DURATION));
         	    insert.bindString(6, value.getAsString(MediaColumns.TRACK));
         	    insert.bindLong(7, value.getAsInteger(MediaColumns.YEAR));
-        	    insert.execute();
-        	    numInserted++;
+        	    if (insert.executeInsert() != -1) {
+        	    	numInserted++;
+        	    }
         	}
             
         	db.setTransactionSuccessful();
@@ -275,25 +411,46 @@ public class MediaProvider extends ContentProvider {
         return numInserted;
     }
     
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // apply the whole batch in a single transaction instead of one per operation
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         switch (sUriMatcher.match(uri)) {
         case MEDIA:
-            count = db.delete(MEDIA_TABLE_NAME, where, whereArgs);
             break;
 
         case MEDIA_ID:
             String noteId = uri.getPathSegments().get(1);
-            count = db.delete(MEDIA_TABLE_NAME, MediaColumns._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+            where = MediaColumns._ID + "=" + noteId
+                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
             break;
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        synchronized (this) {
+            Set<String> hashes = getArtworkHashes(db, where, whereArgs);
+            count = db.delete(MEDIA_TABLE_NAME, where, whereArgs);
+            releaseArtwork(db, hashes);
+        }
+
         getContext().getContentResolver().notifyChange(uri, null);
         return count;
     }
@@ -304,27 +461,132 @@ public class MediaProvider extends ContentProvider {
         int count;
         switch (sUriMatcher.match(uri)) {
         case MEDIA:
-            count = db.update(MEDIA_TABLE_NAME, values, where, whereArgs);
             break;
 
         case MEDIA_ID:
             String noteId = uri.getPathSegments().get(1);
-            count = db.update(MEDIA_TABLE_NAME, values, MediaColumns._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+            where = MediaColumns._ID + "=" + noteId
+                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
             break;
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        synchronized (this) {
+            if (values.containsKey(MediaColumns.ARTWORK)) {
+                values = new ContentValues(values);
+                
+                Set<String> hashes = getArtworkHashes(db, where, whereArgs);
+                storeArtwork(values);
+                count = db.update(MEDIA_TABLE_NAME, values, where, whereArgs);
+                releaseArtwork(db, hashes);
+            } else {
+                count = db.update(MEDIA_TABLE_NAME, values, where, whereArgs);
+            }
+        }
+
         getContext().getContentResolver().notifyChange(uri, null);
         return count;
     }
 
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != MEDIA_ID_ARTWORK) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Artwork can only be opened for reading: " + uri);
+        }
+        
+        String hash = null;
+        
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor cursor = db.query(MEDIA_TABLE_NAME,
+                new String [] { MediaColumns.ARTWORK_HASH },
+                MediaColumns._ID + "=" + uri.getPathSegments().get(1), null, null, null, null);
+        
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                hash = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        
+        if (hash == null) {
+            throw new FileNotFoundException("No artwork for " + uri);
+        }
+        
+        File file = ArtworkStore.getFile(getContext(), hash);
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+    
+    /**
+     * Replaces artwork in the values with a reference to the copy in the
+     * artwork store.
+     */
+    private void storeArtwork(ContentValues values) {
+        if (!values.containsKey(MediaColumns.ARTWORK)) {
+            return;
+        }
+        
+        String hash = ArtworkStore.put(getContext(), values.getAsByteArray(MediaColumns.ARTWORK));
+        values.remove(MediaColumns.ARTWORK);
+        
+        // no artwork, or artwork that couldn't be stored, clears the reference
+        // to what the row had before
+        if (hash != null) {
+            values.put(MediaColumns.ARTWORK_HASH, hash);
+        } else {
+            values.putNull(MediaColumns.ARTWORK_HASH);
+        }
+    }
+    
+    private Set<String> getArtworkHashes(SQLiteDatabase db, String where, String[] whereArgs) {
+        Set<String> hashes = new HashSet<String>();
+        
+        Cursor cursor = db.query(true, MEDIA_TABLE_NAME,
+                new String [] { MediaColumns.ARTWORK_HASH },
+                where, whereArgs, null, null, null, null);
+        
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    hashes.add(cursor.getString(0));
+                }
+            }
+            cursor.close();
+        }
+        
+        return hashes;
+    }
+    
+    /**
+     * Deletes artwork from the store that is no longer referenced by any
+     * media file.
+     */
+    private void releaseArtwork(SQLiteDatabase db, Set<String> hashes) {
+        for (String hash : hashes) {
+            Cursor cursor = db.query(MEDIA_TABLE_NAME,
+                    new String [] { MediaColumns._ID },
+                    MediaColumns.ARTWORK_HASH + "=?", new String [] { hash },
+                    null, null, null, "1");
+            
+            if (cursor != null) {
+                if (cursor.getCount() == 0) {
+                    ArtworkStore.delete(getContext(), hash);
+                }
+                cursor.close();
+            }
+        }
+    }
+
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(Media.AUTHORITY, "uris", MEDIA);
         sUriMatcher.addURI(Media.AUTHORITY, "uris/#", MEDIA_ID);
+        sUriMatcher.addURI(Media.AUTHORITY, "uris/#/" + MediaColumns.ARTWORK_PATH, MEDIA_ID_ARTWORK);
 
         sMediaProjectionMap = new HashMap<String, String>();
         sMediaProjectionMap.put(MediaColumns._ID, MediaColumns._ID);
@@ -335,6 +597,9 @@ public class MediaProvider extends ContentProvider {
         sMediaProjectionMap.put(MediaColumns.DURATION, MediaColumns.DURATION);
         sMediaProjectionMap.put(MediaColumns.TRACK, MediaColumns.TRACK);
         sMediaProjectionMap.put(MediaColumns.YEAR, MediaColumns.YEAR);
-        sMediaProjectionMap.put(MediaColumns.ARTWORK, MediaColumns.ARTWORK);
+        sMediaProjectionMap.put(MediaColumns.ARTWORK_HASH, MediaColumns.ARTWORK_HASH);
+        sMediaProjectionMap.put(MediaColumns.ETAG, MediaColumns.ETAG);
+        sMediaProjectionMap.put(MediaColumns.LAST_MODIFIED, MediaColumns.LAST_MODIFIED);
+        sMediaProjectionMap.put(MediaColumns.CONTENT_LENGTH, MediaColumns.CONTENT_LENGTH);
     }
 }
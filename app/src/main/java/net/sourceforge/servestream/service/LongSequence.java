@@ -0,0 +1,348 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+/**
+ * A list of longs kept in chunks of at most {@link #CHUNK_CAPACITY}
+ * values, used for the play queue. Inserting, removing or moving values
+ * only shifts the values of one chunk and the table of chunks, instead of
+ * everything after the position as a single array would, and the memory
+ * of removed values is given back chunk by chunk. Finding a position is a
+ * binary search over the chunks.
+ * <p>
+ * Not thread safe, the queue is only touched on the playback thread.
+ */
+final class LongSequence {
+
+	static final int CHUNK_CAPACITY = 1024;
+
+	// chunks made by bulk inserts and splits are filled this far, so
+	// inserts into them don't have to split them again right away
+	private static final int FILL = CHUNK_CAPACITY / 2;
+
+	// a chunk this small is merged into a neighbour when it fits
+	private static final int MIN_FILL = CHUNK_CAPACITY / 4;
+
+	private long [][] mChunks = new long[4][];
+	private int [] mSizes = new int[4];
+	// the index of the first value of each chunk
+	private int [] mStarts = new int[4];
+	private int mChunkCount = 0;
+	private int mSize = 0;
+
+	int size() {
+		return mSize;
+	}
+
+	long get(int index) {
+		checkIndex(index, mSize);
+		int chunk = findChunk(index);
+		return mChunks[chunk][index - mStarts[chunk]];
+	}
+
+	void set(int index, long value) {
+		checkIndex(index, mSize);
+		int chunk = findChunk(index);
+		mChunks[chunk][index - mStarts[chunk]] = value;
+	}
+
+	void clear() {
+		mChunks = new long[4][];
+		mSizes = new int[4];
+		mStarts = new int[4];
+		mChunkCount = 0;
+		mSize = 0;
+	}
+
+	void add(long value) {
+		insert(mSize, new long [] { value }, 0, 1);
+	}
+
+	void insert(int index, long [] values) {
+		insert(index, values, 0, values.length);
+	}
+
+	/**
+	 * Inserts count values, starting at offset in the array, before the
+	 * value at index.
+	 */
+	void insert(int index, long [] values, int offset, int count) {
+		checkIndex(index, mSize + 1);
+		if (count == 0) {
+			return;
+		}
+
+		if (mChunkCount == 0) {
+			insertChunks(0, values, offset, count, null, 0, 0);
+			mSize = count;
+			updateStarts(0);
+			return;
+		}
+
+		// a value at the end of a chunk goes into that chunk rather than at
+		// the start of the next one
+		int chunk = index == mSize ? mChunkCount - 1 : findChunk(index);
+		int position = index - mStarts[chunk];
+		long [] values0 = mChunks[chunk];
+		int size = mSizes[chunk];
+
+		if (size + count <= CHUNK_CAPACITY) {
+			System.arraycopy(values0, position, values0, position + count, size - position);
+			System.arraycopy(values, offset, values0, position, count);
+			mSizes[chunk] += count;
+		} else {
+			// the chunk is split at the position and the values go between
+			// the halves, in chunks of their own
+			mSizes[chunk] = position;
+			insertChunks(chunk + 1, values, offset, count, values0, position, size - position);
+
+			if (position == 0) {
+				removeChunk(chunk);
+			}
+		}
+
+		mSize += count;
+		updateStarts(chunk);
+	}
+
+	/**
+	 * Removes count values starting at index.
+	 */
+	void remove(int index, int count) {
+		if (count == 0) {
+			return;
+		}
+		checkIndex(index, mSize);
+		checkIndex(index + count - 1, mSize);
+
+		int chunk = findChunk(index);
+		int position = index - mStarts[chunk];
+		int first = chunk;
+		int left = count;
+
+		while (left > 0) {
+			int removed = Math.min(left, mSizes[chunk] - position);
+
+			if (removed == mSizes[chunk]) {
+				removeChunk(chunk);
+			} else {
+				long [] values = mChunks[chunk];
+				System.arraycopy(values, position + removed, values, position,
+						mSizes[chunk] - position - removed);
+				mSizes[chunk] -= removed;
+				chunk++;
+			}
+
+			left -= removed;
+			position = 0;
+		}
+
+		mSize -= count;
+
+		// the chunk that was removed from may have become too small
+		first = Math.min(first, mChunkCount - 1);
+		if (first >= 0) {
+			first = mergeSmall(first);
+		}
+		updateStarts(Math.max(first, 0));
+	}
+
+	/**
+	 * Moves the value at from so that it ends up at index to.
+	 */
+	void move(int from, int to) {
+		checkIndex(from, mSize);
+		checkIndex(to, mSize);
+		if (from == to) {
+			return;
+		}
+
+		long value = get(from);
+		remove(from, 1);
+		insert(to, new long [] { value }, 0, 1);
+	}
+
+	/**
+	 * Copies count values starting at index into the array.
+	 */
+	void getRange(int index, long [] dest, int offset, int count) {
+		if (count == 0) {
+			return;
+		}
+		checkIndex(index, mSize);
+		checkIndex(index + count - 1, mSize);
+
+		int chunk = findChunk(index);
+		int position = index - mStarts[chunk];
+
+		while (count > 0) {
+			int length = Math.min(count, mSizes[chunk] - position);
+			System.arraycopy(mChunks[chunk], position, dest, offset, length);
+			offset += length;
+			count -= length;
+			position = 0;
+			chunk++;
+		}
+	}
+
+	long [] toArray() {
+		long [] array = new long[mSize];
+		getRange(0, array, 0, mSize);
+		return array;
+	}
+
+	/**
+	 * @return the index of the first occurrence of the value at or after
+	 * index from, or -1 if there is none.
+	 */
+	int indexOf(long value, int from) {
+		if (from >= mSize) {
+			return -1;
+		}
+
+		int chunk = findChunk(Math.max(from, 0));
+		int position = Math.max(from, 0) - mStarts[chunk];
+
+		for (; chunk < mChunkCount; chunk++) {
+			long [] values = mChunks[chunk];
+			for (int i = position; i < mSizes[chunk]; i++) {
+				if (values[i] == value) {
+					return mStarts[chunk] + i;
+				}
+			}
+			position = 0;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the chunk that holds the value at index.
+	 */
+	private int findChunk(int index) {
+		int low = 0;
+		int high = mChunkCount - 1;
+
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (mStarts[middle] <= index) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Adds chunks holding the values and then the tail, the values after
+	 * a split, before the chunk at the given index.
+	 */
+	private void insertChunks(int chunk, long [] values, int offset, int count,
+			long [] tail, int tailOffset, int tailCount) {
+		int chunks = (count + FILL - 1) / FILL + (tailCount > 0 ? 1 : 0);
+		ensureChunkCapacity(mChunkCount + chunks);
+
+		System.arraycopy(mChunks, chunk, mChunks, chunk + chunks, mChunkCount - chunk);
+		System.arraycopy(mSizes, chunk, mSizes, chunk + chunks, mChunkCount - chunk);
+		mChunkCount += chunks;
+
+		while (count > 0) {
+			int length = Math.min(count, FILL);
+			mChunks[chunk] = new long[CHUNK_CAPACITY];
+			System.arraycopy(values, offset, mChunks[chunk], 0, length);
+			mSizes[chunk] = length;
+			offset += length;
+			count -= length;
+			chunk++;
+		}
+
+		if (tailCount > 0) {
+			mChunks[chunk] = new long[CHUNK_CAPACITY];
+			System.arraycopy(tail, tailOffset, mChunks[chunk], 0, tailCount);
+			mSizes[chunk] = tailCount;
+		}
+	}
+
+	private void removeChunk(int chunk) {
+		System.arraycopy(mChunks, chunk + 1, mChunks, chunk, mChunkCount - chunk - 1);
+		System.arraycopy(mSizes, chunk + 1, mSizes, chunk, mChunkCount - chunk - 1);
+		mChunkCount--;
+		mChunks[mChunkCount] = null;
+	}
+
+	/**
+	 * Merges the chunk into its previous or next chunk if it is small and
+	 * fits.
+	 *
+	 * @return the first chunk whose start may have changed.
+	 */
+	private int mergeSmall(int chunk) {
+		if (mSizes[chunk] >= MIN_FILL) {
+			return chunk;
+		}
+
+		if (chunk > 0 && mSizes[chunk - 1] + mSizes[chunk] <= FILL) {
+			System.arraycopy(mChunks[chunk], 0, mChunks[chunk - 1], mSizes[chunk - 1], mSizes[chunk]);
+			mSizes[chunk - 1] += mSizes[chunk];
+			removeChunk(chunk);
+			return chunk - 1;
+		}
+
+		if (chunk + 1 < mChunkCount && mSizes[chunk] + mSizes[chunk + 1] <= FILL) {
+			System.arraycopy(mChunks[chunk + 1], 0, mChunks[chunk], mSizes[chunk], mSizes[chunk + 1]);
+			mSizes[chunk] += mSizes[chunk + 1];
+			removeChunk(chunk + 1);
+		}
+
+		return chunk;
+	}
+
+	private void updateStarts(int chunk) {
+		int start = chunk > 0 ? mStarts[chunk - 1] + mSizes[chunk - 1] : 0;
+
+		for (int i = chunk; i < mChunkCount; i++) {
+			mStarts[i] = start;
+			start += mSizes[i];
+		}
+	}
+
+	private void ensureChunkCapacity(int count) {
+		if (count <= mChunks.length) {
+			return;
+		}
+
+		int capacity = Math.max(count, mChunks.length * 2);
+		long [][] chunks = new long[capacity][];
+		int [] sizes = new int[capacity];
+		int [] starts = new int[capacity];
+		System.arraycopy(mChunks, 0, chunks, 0, mChunkCount);
+		System.arraycopy(mSizes, 0, sizes, 0, mChunkCount);
+		System.arraycopy(mStarts, 0, starts, 0, mChunkCount);
+		mChunks = chunks;
+		mSizes = sizes;
+		mStarts = starts;
+	}
+
+	private static void checkIndex(int index, int size) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+	}
+}
@@ -24,12 +24,15 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.BroadcastReceiver;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -43,7 +46,9 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
@@ -57,19 +62,30 @@ import android.widget.Toast;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import net.sourceforge.servestream.R;
 import net.sourceforge.servestream.activity.MediaPlayerActivity;
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.bitmap.DatabaseImageResizer;
 import net.sourceforge.servestream.bitmap.ImageCache;
+import net.sourceforge.servestream.media.MediaPrefetcher;
 import net.sourceforge.servestream.media.Metadata;
 import net.sourceforge.servestream.media.MetadataRetrieverTask;
 import net.sourceforge.servestream.media.MultiPlayer;
 import net.sourceforge.servestream.media.MetadataRetrieverListener;
 import net.sourceforge.servestream.media.ShoutCastRetrieverTask;
+import net.sourceforge.servestream.media.StreamProxy;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.receiver.ConnectivityReceiver;
 import net.sourceforge.servestream.receiver.MediaButtonIntentReceiver;
@@ -79,7 +95,6 @@ import net.sourceforge.servestream.transport.TransportFactory;
 import net.sourceforge.servestream.utils.DetermineActionTask;
 import net.sourceforge.servestream.utils.MusicUtils;
 import net.sourceforge.servestream.preference.PreferenceConstants;
-import net.sourceforge.servestream.utils.Utils;
 
 /**
  * Provides "background" audio playback capabilities, allowing the
@@ -111,6 +126,23 @@ public class MediaPlaybackService extends Service implements
     public static final String META_RETRIEVED = "net.sourceforge.servestream.meta_retrieved";
     public static final String ART_CHANGED = "net.sourceforge.servestream.artchanged";
     public static final String QUEUE_CHANGED = "net.sourceforge.servestream.queuechanged";
+    
+    // extras of QUEUE_CHANGED: the version of the queue, which goes up by one
+    // with every change, and what changed if the queue changed once since the
+    // last broadcast, QUEUE_CHANGE_RESET otherwise
+    public static final String QUEUE_VERSION = "queueversion";
+    public static final String QUEUE_CHANGE = "queuechange";
+    public static final String QUEUE_CHANGE_FIRST = "queuechangefirst";
+    public static final String QUEUE_CHANGE_COUNT = "queuechangecount";
+    public static final String QUEUE_CHANGE_TO = "queuechangeto";
+    
+    public static final int QUEUE_CHANGE_RESET = 0;
+    // QUEUE_CHANGE_COUNT tracks were inserted at QUEUE_CHANGE_FIRST
+    public static final int QUEUE_CHANGE_INSERT = 1;
+    // QUEUE_CHANGE_COUNT tracks were removed from QUEUE_CHANGE_FIRST
+    public static final int QUEUE_CHANGE_REMOVE = 2;
+    // the track at QUEUE_CHANGE_FIRST was moved to QUEUE_CHANGE_TO
+    public static final int QUEUE_CHANGE_MOVE = 3;
     private static final String AVRCP_PLAYSTATE_CHANGED = "com.android.music.playstatechanged";
     private static final String AVRCP_META_CHANGED = "com.android.music.metachanged";
     
@@ -148,19 +180,38 @@ public class MediaPlaybackService extends Service implements
     private static final int FOCUSCHANGE = 4;
     private static final int FADEDOWN = 5;
     private static final int FADEUP = 6;
-    private static final int TRACK_WENT_TO_NEXT = 7;
+    public static final int TRACK_WENT_TO_NEXT = 7;
     public static final int PREPARED = 8;
     public static final int ERROR = 9;
     public static final int INFO = 10;
+    public static final int BUFFER_UPDATE = 11;
     private static final int MAX_HISTORY_SIZE = 100;
     
     private MultiPlayer mPlayer;
+    // owns the player and the queue, see execute()
+    private final PlaybackExecutor mExecutor = new PlaybackExecutor();
+    private volatile PlaybackState mState = new PlaybackState();
+    // the play list copied for readers off the playback thread, see
+    // getQueueSnapshot()
+    private volatile QueueSnapshot mQueueSnapshot;
+    // toasts are shown from the main thread, not the playback thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private String mFileToPlay;
+    // the current track as read from mCursor, only used on the playback
+    // thread
+    private NowPlaying mNowPlaying = NowPlaying.NONE;
+    private Cursor mNowPlayingCursor;
     private int mShuffleMode = SHUFFLE_NONE;
     private int mRepeatMode = REPEAT_NONE;
     private int mMediaMountedCount = 0;
-    private long [] mPlayList = null;
-    private int mPlayListLen = 0;
+    private final LongSequence mPlayList = new LongSequence();
+    private int mQueueVersion = 0;
+    // the version announced last and the change since, if there was one
+    private int mBroadcastQueueVersion = 0;
+    private int mQueueChange = QUEUE_CHANGE_RESET;
+    private int mQueueChangeFirst = 0;
+    private int mQueueChangeCount = 0;
+    private int mQueueChangeTo = 0;
     private Vector<Integer> mHistory = new Vector<Integer>(MAX_HISTORY_SIZE);
     private Cursor mCursor;
     private int mPlayPos = -1;
@@ -186,10 +237,11 @@ public class MediaPlaybackService extends Service implements
     private AudioManager mAudioManager;
     private boolean mQueueIsSaveable = true;
     // used to track what type of audio focus loss caused the playback to pause
-    private boolean mPausedByTransientLossOfFocus = false;
+    private volatile boolean mPausedByTransientLossOfFocus = false;
     private boolean mPausedByConnectivityReceiver = false;
 
     private SharedPreferences mPreferences;
+    private QueueStore mQueueStore;
     // We use this to distinguish between different cards when saving/restoring playlists.
     // This will have to change if we want to support multiple simultaneous cards.
     private int mCardId;    
@@ -210,12 +262,22 @@ public class MediaPlaybackService extends Service implements
     private boolean mRetrieveShoutCastMetadata = false;
     private ShoutCastRetrieverTask mShoutCastRetrieverTask;
     private MetadataRetrieverTask mMetadataRetrieverTask;
+    private MediaPrefetcher mPrefetcher;
     
     private DatabaseImageResizer mNotificationImageFetcher;
     private DatabaseImageResizer mLockScreenImageFetcher;
+    // decodes the album art that isn't in memory yet, see getAlbumArt()
+    private final ExecutorService mArtworkExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "MediaPlaybackService artwork");
+        }
+    });
+    private final Set<String> mPendingArtwork = Collections.synchronizedSet(new HashSet<String>());
+    private volatile boolean mIsNotificationShown = false;
     
     @SuppressLint("HandlerLeak")
-    private Handler mMediaplayerHandler = new Handler() {
+    private Handler mMediaplayerHandler = new Handler(mExecutor.getLooper()) {
         float mCurrentVolume = 1.0f;
         @Override
         public void handleMessage(Message msg) {
@@ -256,7 +318,7 @@ public class MediaPlaybackService extends Service implements
                         mCursor.close();
                         mCursor = null;
                     }
-                    mCursor = getCursorForId(mPlayList[mPlayPos]);
+                    mCursor = getCursorForId(mPlayList.get(mPlayPos));
                     notifyChange(META_CHANGED);
                     updateNotification(false);
                     setNextTrack();
@@ -286,7 +348,7 @@ public class MediaPlaybackService extends Service implements
             				mShoutCastRetrieverTask = null;
             			}
             			
-            			mShoutCastRetrieverTask = new ShoutCastRetrieverTask(MediaPlaybackService.this, mPlayList[mPlayPos]);
+            			mShoutCastRetrieverTask = new ShoutCastRetrieverTask(MediaPlaybackService.this, mPlayList.get(mPlayPos));
             			mShoutCastRetrieverTask.start();
             		}
             		break;
@@ -309,6 +371,9 @@ public class MediaPlaybackService extends Service implements
                 case INFO:
                    	notifyChange(META_CHANGED);
                 	break;
+                case BUFFER_UPDATE:
+                	updatePrefetchPause();
+                	break;
                 case RELEASE_WAKELOCK:
                     mWakeLock.release();
                     break;
@@ -319,7 +384,7 @@ public class MediaPlaybackService extends Service implements
                     switch (msg.arg1) {
                         case AudioManager.AUDIOFOCUS_LOSS:
                             Log.v(LOGTAG, "AudioFocus: received AUDIOFOCUS_LOSS");
-                            if(isPlaying()) {
+                            if(mIsSupposedToBePlaying) {
                                 mPausedByTransientLossOfFocus = false;
                             }
                             pause(true);
@@ -330,14 +395,14 @@ public class MediaPlaybackService extends Service implements
                             break;
                         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                             Log.v(LOGTAG, "AudioFocus: received AUDIOFOCUS_LOSS_TRANSIENT");
-                            if(isPlaying()) {
+                            if(mIsSupposedToBePlaying) {
                                 mPausedByTransientLossOfFocus = true;
                             }
                             pause(true);
                             break;
                         case AudioManager.AUDIOFOCUS_GAIN:
                             Log.v(LOGTAG, "AudioFocus: received AUDIOFOCUS_GAIN");
-                            if(!isPlaying() && mPausedByTransientLossOfFocus) {
+                            if(!mIsSupposedToBePlaying && mPausedByTransientLossOfFocus) {
                                 mPausedByTransientLossOfFocus = false;
                                 mCurrentVolume = 0f;
                                 mPlayer.setVolume(mCurrentVolume);
@@ -355,17 +420,18 @@ public class MediaPlaybackService extends Service implements
                 default:
                     break;
             }
+            publishState();
         }
     };
     
     @SuppressLint("HandlerLeak")
-    private Handler mInitialMediaplayerHandler = new Handler() {
+    private Handler mInitialMediaplayerHandler = new Handler(mExecutor.getLooper()) {
         @Override
         public void handleMessage(Message msg) {
             MusicUtils.debugLog("mInitialMediaplayerHandler.handleMessage " + msg.what);
             switch (msg.what) {
                 case PREPARED:
-                    long seekpos = mPreferences.getLong("seekpos", 0);
+                    long seekpos = mQueueStore.getSeekPos();
                     seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
                     Log.d(LOGTAG, "restored queue, currently at position "
                             + position() + "/" + duration()
@@ -385,14 +451,24 @@ public class MediaPlaybackService extends Service implements
                 default:
                     break;
             }
+            publishState();
         }
     };
     
 	/* (non-Javadoc)
 	 * @see android.content.SharedPreferences.OnSharedPreferenceChangeListener#onSharedPreferenceChanged(android.content.SharedPreferences, java.lang.String)
 	 */
-	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
-			String key) {
+	public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+			final String key) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				applyPreference(sharedPreferences, key);
+			}
+		});
+	}
+	
+	private void applyPreference(SharedPreferences sharedPreferences, String key) {
   	    if (key.equals(PreferenceConstants.WIFI_LOCK)) {
 			if (sharedPreferences.getBoolean(PreferenceConstants.WIFI_LOCK, true)) {
 				final boolean lockingWifi = mPreferences.getBoolean(PreferenceConstants.WIFI_LOCK, true);
@@ -400,33 +476,49 @@ public class MediaPlaybackService extends Service implements
   	        }
   	    } else if (key.equals(PreferenceConstants.RETRIEVE_SHOUTCAST_METADATA)) {
   	    	mRetrieveShoutCastMetadata = sharedPreferences.getBoolean(PreferenceConstants.RETRIEVE_SHOUTCAST_METADATA, false);
+  	    	updateStreamProxy();
   	    	
   	    	if (mShoutCastRetrieverTask != null) {
   	    		mShoutCastRetrieverTask.stop();
   	    		mShoutCastRetrieverTask = null;
   	    	}
   	    	if (mRetrieveShoutCastMetadata &&
-  	    			mPlayList != null && mPlayList.length > 0) {
-  	    		mShoutCastRetrieverTask = new ShoutCastRetrieverTask(this, mPlayList[mPlayPos]);
+  	    			mPlayList.size() > 0) {
+  	    		mShoutCastRetrieverTask = new ShoutCastRetrieverTask(this, mPlayList.get(mPlayPos));
   	    		mShoutCastRetrieverTask.start();
   	    	}
-  	    } else if (key.equals(PreferenceConstants.RETRIEVE_METADATA)) {
+  	    } else if (key.equals(PreferenceConstants.RETRIEVE_METADATA) ||
+  	    		key.equals(PreferenceConstants.METADATA_CONNECTIONS)) {
   	    	if (mMetadataRetrieverTask != null &&
   	    			mMetadataRetrieverTask.getStatus() != AsyncTask.Status.FINISHED) {
   	    		mMetadataRetrieverTask.cancel();
   	    		mMetadataRetrieverTask = null;
   	    	}
   	    	if (sharedPreferences.getBoolean(PreferenceConstants.RETRIEVE_METADATA, false) &&
-  	    			mPlayList != null && mPlayList.length > 0) {
-  	    		mMetadataRetrieverTask = new MetadataRetrieverTask(this, mPlayList);
-  	    		mMetadataRetrieverTask.execute();
+  	    			mPlayList.size() > 0) {
+  	    		startMetadataRetrieverTask(mPlayList.toArray());
   	    	}
+  	    } else if (key.equals(PreferenceConstants.PREFETCH_COUNT) ||
+  	    		key.equals(PreferenceConstants.PREFETCH_SIZE) ||
+  	    		key.equals(PreferenceConstants.PROGRESSIVE_DOWNLOAD)) {
+  	    	schedulePrefetch();
+  	    } else if (key.equals(PreferenceConstants.LIVE_BUFFER)) {
+  	    	updateStreamProxy();
   	    }
   	}
     
     private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onReceive(Context context, final Intent intent) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handleCommand(intent);
+                }
+            });
+        }
+        
+        private void handleCommand(Intent intent) {
             String action = intent.getAction();
             String cmd = intent.getStringExtra("command");
             if (CMDNEXT.equals(cmd) || NEXT_ACTION.equals(action)) {
@@ -438,7 +530,7 @@ public class MediaPlaybackService extends Service implements
             		return;
             	}
             	
-                if (isPlaying()) {
+                if (mIsSupposedToBePlaying) {
                     pause(true);
                     mPausedByTransientLossOfFocus = false;
                 } else {
@@ -524,6 +616,7 @@ public class MediaPlaybackService extends Service implements
         
         mPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         mPreferences.registerOnSharedPreferenceChangeListener(this);
+        mQueueStore = new QueueStore(this);
         
 		final boolean lockingWifi = mPreferences.getBoolean(PreferenceConstants.WIFI_LOCK, true);
 		mConnectivityManager = new ConnectivityReceiver(this, lockingWifi);
@@ -536,13 +629,29 @@ public class MediaPlaybackService extends Service implements
         
         registerExternalStorageListener();
 
-        // Needs to be done in this thread, since otherwise ApplicationContext.getPowerManager() crashes.
-        mPlayer = new MultiPlayer(this);
-        mPlayer.setHandler(mMediaplayerHandler);
-
-        reloadQueue();
-        notifyChange(QUEUE_CHANGED);
-        notifyChange(META_CHANGED);
+        // the players deliver their events to the looper of the thread that
+        // creates them, which has to be the playback thread
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPlayer = new MultiPlayer(MediaPlaybackService.this);
+                mPlayer.setHandler(mMediaplayerHandler);
+                updateStreamProxy();
+            }
+        });
+        
+        mPrefetcher = new MediaPrefetcher(this);
+
+        // reading the queue can take a while, the service doesn't wait
+        // for it to start
+        post(new Runnable() {
+            @Override
+            public void run() {
+                reloadQueue();
+                notifyChange(QUEUE_CHANGED);
+                notifyChange(META_CHANGED);
+            }
+        });
 
         IntentFilter commandFilter = new IntentFilter();
         commandFilter.addAction(SERVICECMD);
@@ -565,6 +674,30 @@ public class MediaPlaybackService extends Service implements
             Log.e(LOGTAG, "Service being destroyed while still playing.");
         }
         
+        unregisterReceiver(mIntentReceiver);
+        if (mUnmountReceiver != null) {
+            unregisterReceiver(mUnmountReceiver);
+            mUnmountReceiver = null;
+        }
+        
+        // the player is released by the thread that owns it, after the
+        // commands that are still queued
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                releasePlayer();
+            }
+        });
+        mExecutor.quit();
+        
+        mArtworkExecutor.shutdownNow();
+        mNotificationImageFetcher.closeCache();
+        mLockScreenImageFetcher.closeCache();
+        
+        super.onDestroy();
+    }
+    
+    private void releasePlayer() {
         mAppWidgetProvider.notifyChange(this, PLAYER_CLOSED);
         
         mConnectivityManager.cleanup();
@@ -590,145 +723,63 @@ public class MediaPlaybackService extends Service implements
         // make sure there aren't any other messages coming
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mMediaplayerHandler.removeCallbacksAndMessages(null);
+        mDelayedPlaybackHandler.removeCallbacksAndMessages(null);
+        mSleepTimerHandler.removeCallbacksAndMessages(null);
 
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
         }
-
-        unregisterReceiver(mIntentReceiver);
-        if (mUnmountReceiver != null) {
-            unregisterReceiver(mUnmountReceiver);
-            mUnmountReceiver = null;
-        }
-    	Utils.deleteAllFiles();
         
-        mNotificationImageFetcher.closeCache();
-        mLockScreenImageFetcher.closeCache();
+        mPrefetcher.stop();
         
-        super.onDestroy();
+        // the last state of the queue may still be on its way to the disk
+        mQueueStore.flush();
     }
     
-    private final char hexdigits [] = new char [] {
-            '0', '1', '2', '3',
-            '4', '5', '6', '7',
-            '8', '9', 'a', 'b',
-            'c', 'd', 'e', 'f'
-    };
-
     private void saveQueue(boolean full) {
         if (!mQueueIsSaveable) {
             return;
         }
 
-        Editor ed = mPreferences.edit();
-        //long start = System.currentTimeMillis();
+        // the state is copied here and written in the background, the copy
+        // is all the time the caller pays for
+        long start = System.nanoTime();
+        QueueStore.Editor ed = mQueueStore.edit();
         if (full) {
-            StringBuilder q = new StringBuilder();
-            
-            // The current playlist is saved as a list of "reverse hexadecimal"
-            // numbers, which we can generate faster than normal decimal or
-            // hexadecimal numbers, which in turn allows us to save the playlist
-            // more often without worrying too much about performance.
-            // (saving the full state takes about 40 ms under no-load conditions
-            // on the phone)
-            int len = mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                long n = mPlayList[i];
-                if (n < 0) {
-                    continue;
-                } else if (n == 0) {
-                    q.append("0;");
-                } else {
-                    while (n != 0) {
-                        int digit = (int)(n & 0xf);
-                        n >>>= 4;
-                        q.append(hexdigits[digit]);
-                    }
-                    q.append(";");
-                }
-            }
-            //Log.i("@@@@ service", "created queue string in " + (System.currentTimeMillis() - start) + " ms");
-            ed.putString("queue", q.toString());
-            ed.putInt("cardid", mCardId);
-            if (mShuffleMode != SHUFFLE_NONE) {
-                // In shuffle mode we need to save the history too
-                len = mHistory.size();
-                q.setLength(0);
-                for (int i = 0; i < len; i++) {
-                    int n = mHistory.get(i);
-                    if (n == 0) {
-                        q.append("0;");
-                    } else {
-                        while (n != 0) {
-                            int digit = (n & 0xf);
-                            n >>>= 4;
-                            q.append(hexdigits[digit]);
-                        }
-                        q.append(";");
-                    }
-                }
-                ed.putString("history", q.toString());
-            }
+            long [] list = mPlayList.toArray();
+            ed.putQueue(list, list.length, mCardId);
+            // In shuffle mode we need to save the history too
+            ed.putHistory(mShuffleMode != SHUFFLE_NONE ? mHistory : null);
         }
-        ed.putInt("curpos", mPlayPos);
+        ed.putPlayPos(mPlayPos);
         if (mPlayer.isInitialized()) {
-            ed.putLong("seekpos", mPlayer.position());
+            ed.putSeekPos(mPlayer.position());
         }
-        ed.putInt("repeatmode", mRepeatMode);
-        ed.putInt("shufflemode", mShuffleMode);
-        ed.commit();
+        ed.putRepeatMode(mRepeatMode);
+        ed.putShuffleMode(mShuffleMode);
+        ed.apply();
 
-        //Log.i("@@@@ service", "saved state in " + (System.currentTimeMillis() - start) + " ms");
+        if (full && Log.isLoggable(LOGTAG, Log.VERBOSE)) {
+            Log.v(LOGTAG, "copied a queue of " + mPlayList.size() + " tracks in "
+                    + (System.nanoTime() - start) / 1000 + " us");
+        }
     }
 
     private void reloadQueue() {
-        String q = null;
+        QueueStore.State state = mQueueStore.load(mPreferences, mCardId);
         
-        boolean newstyle = false;
-        int id = mCardId;
-        if (mPreferences.contains("cardid")) {
-            newstyle = true;
-            id = mPreferences.getInt("cardid", ~mCardId);
-        }
-        if (id == mCardId) {
-            // Only restore the saved playlist if the card is still
-            // the same one as when the playlist was saved
-            q = mPreferences.getString("queue", "");
-        }
-        int qlen = q != null ? q.length() : 0;
-        if (qlen > 1) {
-            //Log.i("@@@@ service", "loaded queue: " + q);
-            int plen = 0;
-            int n = 0;
-            int shift = 0;
-            for (int i = 0; i < qlen; i++) {
-                char c = q.charAt(i);
-                if (c == ';') {
-                    ensurePlayListCapacity(plen + 1);
-                    mPlayList[plen] = n;
-                    plen++;
-                    n = 0;
-                    shift = 0;
-                } else {
-                    if (c >= '0' && c <= '9') {
-                        n += ((c - '0') << shift);
-                    } else if (c >= 'a' && c <= 'f') {
-                        n += ((10 + c - 'a') << shift);
-                    } else {
-                        // bogus playlist data
-                        plen = 0;
-                        break;
-                    }
-                    shift += 4;
-                }
-            }
-            mPlayListLen = plen;
-
-            int pos = mPreferences.getInt("curpos", 0);
-            if (pos < 0 || pos >= mPlayListLen) {
+        // Only restore the saved playlist if the card is still
+        // the same one as when the playlist was saved
+        if (state != null && state.mCardId == mCardId && state.mPlayList.length > 0) {
+            mPlayList.clear();
+            mPlayList.insert(0, state.mPlayList);
+            recordQueueChange(QUEUE_CHANGE_RESET, 0, 0, 0);
+
+            int pos = state.mPlayPos;
+            if (pos < 0 || pos >= mPlayList.size()) {
                 // The saved playlist is bogus, discard it
-                mPlayListLen = 0;
+                mPlayList.clear();
                 return;
             }
             mPlayPos = pos;
@@ -740,13 +791,13 @@ public class MediaPlaybackService extends Service implements
             // assume there is a problem and don't restore the state.
             Cursor crsr = MusicUtils.query(this,
             			Media.MediaColumns.CONTENT_URI,
-                        new String [] {"_id"}, "_id=" + mPlayList[mPlayPos] , null, null);
+                        new String [] {"_id"}, "_id=" + mPlayList.get(mPlayPos) , null, null);
             if (crsr == null || crsr.getCount() == 0) {
                 // wait a bit and try again
                 SystemClock.sleep(3000);
                 crsr = getContentResolver().query(
                 		Media.MediaColumns.CONTENT_URI,
-                        mCursorCols, "_id=" + mPlayList[mPlayPos] , null, null);
+                        mCursorCols, "_id=" + mPlayList.get(mPlayPos) , null, null);
             }
             if (crsr != null) {
                 crsr.close();
@@ -768,7 +819,7 @@ public class MediaPlaybackService extends Service implements
             mQuietMode = false;
             /*if (!mPlayer.isInitialized()) {
                 // couldn't restore the saved state
-                mPlayListLen = 0;
+                mPlayList.clear();
                 return;
             }
             
@@ -778,49 +829,27 @@ public class MediaPlaybackService extends Service implements
                     + position() + "/" + duration()
                     + " (requested " + seekpos + ")");*/
             
-            int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
+            int repmode = state.mRepeatMode;
             if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
                 repmode = REPEAT_NONE;
             }
             mRepeatMode = repmode;
 
-            int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
+            int shufmode = state.mShuffleMode;
             if (shufmode != SHUFFLE_ON) {
                 shufmode = SHUFFLE_NONE;
             }
-            if (shufmode != SHUFFLE_NONE) {
+            if (shufmode != SHUFFLE_NONE && state.mHistory != null) {
                 // in shuffle mode we need to restore the history too
-                q = mPreferences.getString("history", "");
-                qlen = q != null ? q.length() : 0;
-                if (qlen > 1) {
-                    plen = 0;
-                    n = 0;
-                    shift = 0;
-                    mHistory.clear();
-                    for (int i = 0; i < qlen; i++) {
-                        char c = q.charAt(i);
-                        if (c == ';') {
-                            if (n >= mPlayListLen) {
-                                // bogus history data
-                                mHistory.clear();
-                                break;
-                            }
-                            mHistory.add(n);
-                            n = 0;
-                            shift = 0;
-                        } else {
-                            if (c >= '0' && c <= '9') {
-                                n += ((c - '0') << shift);
-                            } else if (c >= 'a' && c <= 'f') {
-                                n += ((10 + c - 'a') << shift);
-                            } else {
-                                // bogus history data
-                                mHistory.clear();
-                                break;
-                            }
-                            shift += 4;
-                        }
+                mHistory.clear();
+                for (int i = 0; i < state.mHistory.length; i++) {
+                    int n = state.mHistory[i];
+                    if (n < 0 || n >= mPlayList.size()) {
+                        // bogus history data
+                        mHistory.clear();
+                        break;
                     }
+                    mHistory.add(n);
                 }
             }
             /*if (shufmode == SHUFFLE_AUTO) {
@@ -846,56 +875,17 @@ public class MediaPlaybackService extends Service implements
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
         mServiceStartId = startId;
         mDelayedStopHandler.removeCallbacksAndMessages(null);
 
         if (intent != null) {
-            String action = intent.getAction();
-            String cmd = intent.getStringExtra("command");
-
-            if (CMDNEXT.equals(cmd) || NEXT_ACTION.equals(action)) {
-                gotoNext(true);
-            } else if (CMDPREVIOUS.equals(cmd) || PREVIOUS_ACTION.equals(action)) {
-                if (position() < 2000) {
-                    prev();
-                } else {
-                    seek(0);
-                    play();
-                }
-            } else if (CMDTOGGLEPAUSE.equals(cmd) || TOGGLEPAUSE_ACTION.equals(action)) {
-                boolean remove_status_icon =  (intent.getIntExtra(CMDNOTIF, 0) != 2);
-                if (isPlaying()) {
-                    pause(remove_status_icon);
-                    mPausedByTransientLossOfFocus = false;
-                } else {
-                    play();
-                }
-                
-                if (!remove_status_icon) {
-                	updateNotification(true);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handleStartCommand(intent);
                 }
-            } else if (CMDPAUSE.equals(cmd) || PAUSE_ACTION.equals(action)) {
-                pause(true);
-                mPausedByTransientLossOfFocus = false;
-            } else if (CMDPLAY.equals(cmd)) {
-                play();
-            } else if (CMDSTOP.equals(cmd)) {
-                pause(true);
-                mPausedByTransientLossOfFocus = false;
-                seek(0);
-            } else if (BLUETOOTH_DEVICE_PAIRED.equals(action)) {
-        		Uri uri = TransportFactory.getUri(intent.getStringExtra("uri"));
-
-        		if (uri != null) {
-        			UriBean uriBean = TransportFactory.getTransport(uri.getScheme()).createUri(uri);
-        			
-        			AbsTransport transport = TransportFactory.getTransport(uriBean.getProtocol());
-        			transport.setUri(uriBean);
-        	   
-        			new DetermineActionTask(this, uriBean, this).execute();
-        		}
-            }
+            });
         }
         
         // make sure the service will shut down on its own if it was
@@ -906,12 +896,65 @@ public class MediaPlaybackService extends Service implements
         return START_STICKY;
     }
     
+    private void handleStartCommand(Intent intent) {
+        String action = intent.getAction();
+        String cmd = intent.getStringExtra("command");
+
+        if (CMDNEXT.equals(cmd) || NEXT_ACTION.equals(action)) {
+            gotoNext(true);
+        } else if (CMDPREVIOUS.equals(cmd) || PREVIOUS_ACTION.equals(action)) {
+            if (position() < 2000) {
+                prev();
+            } else {
+                seek(0);
+                play();
+            }
+        } else if (CMDTOGGLEPAUSE.equals(cmd) || TOGGLEPAUSE_ACTION.equals(action)) {
+            boolean remove_status_icon =  (intent.getIntExtra(CMDNOTIF, 0) != 2);
+            if (mIsSupposedToBePlaying) {
+                pause(remove_status_icon);
+                mPausedByTransientLossOfFocus = false;
+            } else {
+                play();
+            }
+            
+            if (!remove_status_icon) {
+            	updateNotification(true);
+            }
+        } else if (CMDPAUSE.equals(cmd) || PAUSE_ACTION.equals(action)) {
+            pause(true);
+            mPausedByTransientLossOfFocus = false;
+        } else if (CMDPLAY.equals(cmd)) {
+            play();
+        } else if (CMDSTOP.equals(cmd)) {
+            pause(true);
+            mPausedByTransientLossOfFocus = false;
+            seek(0);
+        } else if (BLUETOOTH_DEVICE_PAIRED.equals(action)) {
+    		Uri uri = TransportFactory.getUri(intent.getStringExtra("uri"));
+
+    		if (uri != null) {
+    			UriBean uriBean = TransportFactory.getTransport(uri.getScheme()).createUri(uri);
+    			
+    			AbsTransport transport = TransportFactory.getTransport(uriBean.getProtocol());
+    			transport.setUri(uriBean);
+    	   
+    			new DetermineActionTask(this, uriBean, this).execute();
+    		}
+        }
+    }
+    
     @Override
     public boolean onUnbind(Intent intent) {
         mServiceInUse = false;
 
         // Take a snapshot of the current playlist
-        saveQueue(true);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                saveQueue(true);
+            }
+        });
         
         if (isPlaying() || mPausedByTransientLossOfFocus) {
             // something is currently playing, or will be playing once 
@@ -922,7 +965,7 @@ public class MediaPlaybackService extends Service implements
         // If there is a playlist but playback is paused, then wait a while
         // before stopping the service, so that pause/resume isn't slow.
         // Also delay stopping the service if we're transitioning between tracks.
-        if (mPlayListLen > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
+        if (getQueueSize() > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
             Message msg = mDelayedStopHandler.obtainMessage();
             mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
             return true;
@@ -944,7 +987,12 @@ public class MediaPlaybackService extends Service implements
             // save the queue again, because it might have changed
             // since the user exited the music app (because of
             // party-shuffle or because the play-position changed)
-            saveQueue(true);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    saveQueue(true);
+                }
+            });
             stopSelf(mServiceStartId);
         }
     };
@@ -970,19 +1018,30 @@ public class MediaPlaybackService extends Service implements
         if (mUnmountReceiver == null) {
             mUnmountReceiver = new BroadcastReceiver() {
                 @Override
-                public void onReceive(Context context, Intent intent) {
+                public void onReceive(Context context, final Intent intent) {
                     String action = intent.getAction();
                     if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
-                        saveQueue(true);
-                        mQueueIsSaveable = false;
-                        closeExternalStorageFiles(intent.getData().getPath());
+                        // the files have to be closed before the card goes away
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                saveQueue(true);
+                                mQueueIsSaveable = false;
+                                closeExternalStorageFiles(intent.getData().getPath());
+                            }
+                        });
                     } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
-                        mMediaMountedCount++;
-                        mCardId = MusicUtils.getCardId(MediaPlaybackService.this);
-                        reloadQueue();
-                        mQueueIsSaveable = true;
-                        notifyChange(QUEUE_CHANGED);
-                        notifyChange(META_CHANGED);
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mMediaMountedCount++;
+                                mCardId = MusicUtils.getCardId(MediaPlaybackService.this);
+                                reloadQueue();
+                                mQueueIsSaveable = true;
+                                notifyChange(QUEUE_CHANGED);
+                                notifyChange(META_CHANGED);
+                            }
+                        });
                     }
                 }
             };
@@ -1014,6 +1073,8 @@ public class MediaPlaybackService extends Service implements
      * or that the play-state changed (paused/resumed).
      */
     private void notifyChange(String what) {
+        // the receivers read the state back through the getters
+        publishState();
 
         Intent i = new Intent(what);
         i.putExtra("id", Long.valueOf(getAudioId()));
@@ -1021,6 +1082,9 @@ public class MediaPlaybackService extends Service implements
         i.putExtra("album",getAlbumName());
         i.putExtra("track", getTrackName());
         i.putExtra("playing", isPlaying());
+        if (what.equals(QUEUE_CHANGED)) {
+            putQueueChange(i);
+        }
         sendStickyBroadcast(i);
         
         bluetoothNotifyChange(what);
@@ -1030,7 +1094,7 @@ public class MediaPlaybackService extends Service implements
             		RemoteControlClientCompat.PLAYSTATE_PLAYING : RemoteControlClientCompat.PLAYSTATE_PAUSED);
             
             if (isPlaying() && mRetrieveShoutCastMetadata) {
-    			mShoutCastRetrieverTask = new ShoutCastRetrieverTask(MediaPlaybackService.this, mPlayList[mPlayPos]);
+    			mShoutCastRetrieverTask = new ShoutCastRetrieverTask(MediaPlaybackService.this, mPlayList.get(mPlayPos));
     			mShoutCastRetrieverTask.start();
             } else {
                 if (mShoutCastRetrieverTask != null) {
@@ -1081,67 +1145,40 @@ public class MediaPlaybackService extends Service implements
         i.putExtra("album", getAlbumName());
         i.putExtra("track", getTrackName());
         i.putExtra("playing", isPlaying());        
-        i.putExtra("ListSize", getQueue());
+        i.putExtra("ListSize", Long.valueOf(getQueueSize()));
 		i.putExtra("duration", duration());
 		i.putExtra("position", position());
         sendBroadcast(i);
     }
     
-    private void ensurePlayListCapacity(int size) {
-        if (mPlayList == null || size > mPlayList.length) {
-            // reallocate at 2x requested size so we don't
-            // need to grow and copy the array for every
-            // insert
-            long [] newlist = new long[size * 2];
-            int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                newlist[i] = mPlayList[i];
-            }
-            mPlayList = newlist;
-        }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
-    }
-    
     // insert the list of songs at the specified position in the playlist
     private void addToPlayList(long [] list, int position) {
         int addlen = list.length;
         if (position < 0) { // overwrite
-            mPlayListLen = 0;
+            mPlayList.clear();
             position = 0;
+            recordQueueChange(QUEUE_CHANGE_RESET, 0, 0, 0);
+        } else {
+            recordQueueChange(QUEUE_CHANGE_INSERT, Math.min(position, mPlayList.size()), addlen, 0);
         }
-        ensurePlayListCapacity(mPlayListLen + addlen);
-        if (position > mPlayListLen) {
-            position = mPlayListLen;
-        }
-        
-        // move part of list after insertion point
-        int tailsize = mPlayListLen - position;
-        for (int i = tailsize ; i > 0 ; i--) {
-            mPlayList[position + i] = mPlayList[position + i - addlen]; 
+        if (position > mPlayList.size()) {
+            position = mPlayList.size();
         }
         
-        // copy list into playlist
-        for (int i = 0; i < addlen; i++) {
-            mPlayList[position + i] = list[i];
-        }
-        mPlayListLen += addlen;
-        if (mPlayListLen == 0) {
+        mPlayList.insert(position, list);
+        if (mPlayList.size() == 0) {
             mCursor.close();
             mCursor = null;
             notifyChange(META_CHANGED);
         } else {
-        	long [] newlist = list;
     		if (mPreferences.getBoolean(PreferenceConstants.RETRIEVE_METADATA, false)) {
+    			// add the new tracks to the running task rather than
+    			// starting over from the beginning of the playlist
     			if (mMetadataRetrieverTask != null &&
       	    			mMetadataRetrieverTask.getStatus() != AsyncTask.Status.FINISHED) {
-      	    		mMetadataRetrieverTask.cancel();
-      	    		mMetadataRetrieverTask = null;
-      	    		newlist = mPlayList;
-      	    	}
-      	    	if (mPreferences.getBoolean(PreferenceConstants.RETRIEVE_METADATA, true)) {
-      	    		mMetadataRetrieverTask = new MetadataRetrieverTask(this, newlist);
-      	    		mMetadataRetrieverTask.execute();
+      	    		mMetadataRetrieverTask.add(list);
+      	    	} else {
+      	    		startMetadataRetrieverTask(list);
       	    	}
         	}
         }
@@ -1157,27 +1194,25 @@ public class MediaPlaybackService extends Service implements
      * @param action NOW, NEXT or LAST
      */
     public void enqueue(long [] list, int action) {
-        synchronized(this) {
-            if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
-                addToPlayList(list, mPlayPos + 1);
-                notifyChange(QUEUE_CHANGED);
-            } else {
-                // action == LAST || action == NOW || mPlayPos + 1 == mPlayListLen
-                addToPlayList(list, Integer.MAX_VALUE);
-                notifyChange(QUEUE_CHANGED);
-                if (action == NOW) {
-                    mPlayPos = mPlayListLen - list.length;
-                    openCurrentAndNext();
-                    notifyChange(META_CHANGED);
-                    return;
-                }
-            }
-            if (mPlayPos < 0) {
-                mPlayPos = 0;
+        if (action == NEXT && mPlayPos + 1 < mPlayList.size()) {
+            addToPlayList(list, mPlayPos + 1);
+            notifyChange(QUEUE_CHANGED);
+        } else {
+            // action == LAST || action == NOW || mPlayPos + 1 == mPlayList.size()
+            addToPlayList(list, Integer.MAX_VALUE);
+            notifyChange(QUEUE_CHANGED);
+            if (action == NOW) {
+                mPlayPos = mPlayList.size() - list.length;
                 openCurrentAndNext();
                 notifyChange(META_CHANGED);
+                return;
             }
         }
+        if (mPlayPos < 0) {
+            mPlayPos = 0;
+            openCurrentAndNext();
+            notifyChange(META_CHANGED);
+        }
     }
 
     /**
@@ -1188,36 +1223,34 @@ public class MediaPlaybackService extends Service implements
      * @param list The new list of tracks.
      */
     public void open(long [] list, int position) {
-        synchronized (this) {
-            long oldId = getAudioId();
-            int listlength = list.length;
-            boolean newlist = true;
-            if (mPlayListLen == listlength) {
-                // possible fast path: list might be the same
-                newlist = false;
-                for (int i = 0; i < listlength; i++) {
-                    if (list[i] != mPlayList[i]) {
-                        newlist = true;
-                        break;
-                    }
+        long oldId = currentAudioId();
+        int listlength = list.length;
+        boolean newlist = true;
+        if (mPlayList.size() == listlength) {
+            // possible fast path: list might be the same
+            newlist = false;
+            for (int i = 0; i < listlength; i++) {
+                if (list[i] != mPlayList.get(i)) {
+                    newlist = true;
+                    break;
                 }
             }
-            if (newlist) {
-                addToPlayList(list, -1);
-                notifyChange(QUEUE_CHANGED);
-            }
-            int oldpos = mPlayPos;
-            if (position >= 0) {
-                mPlayPos = position;
-            } else {
-                mPlayPos = mRand.nextInt(mPlayListLen);
-            }
-            mHistory.clear();
+        }
+        if (newlist) {
+            addToPlayList(list, -1);
+            notifyChange(QUEUE_CHANGED);
+        }
+        int oldpos = mPlayPos;
+        if (position >= 0) {
+            mPlayPos = position;
+        } else {
+            mPlayPos = mRand.nextInt(mPlayList.size());
+        }
+        mHistory.clear();
 
-            openCurrentAndNext();
-            if (oldId != getAudioId()) {
-                notifyChange(META_CHANGED);
-            }
+        openCurrentAndNext();
+        if (oldId != currentAudioId()) {
+            notifyChange(META_CHANGED);
         }
     }
     
@@ -1227,38 +1260,31 @@ public class MediaPlaybackService extends Service implements
      * @param index2
      */
     public void moveQueueItem(int index1, int index2) {
-        synchronized (this) {
-            if (index1 >= mPlayListLen) {
-                index1 = mPlayListLen - 1;
-            }
-            if (index2 >= mPlayListLen) {
-                index2 = mPlayListLen - 1;
+        if (index1 >= mPlayList.size()) {
+            index1 = mPlayList.size() - 1;
+        }
+        if (index2 >= mPlayList.size()) {
+            index2 = mPlayList.size() - 1;
+        }
+        if (index1 < index2) {
+            mPlayList.move(index1, index2);
+            if (mPlayPos == index1) {
+                mPlayPos = index2;
+            } else if (mPlayPos >= index1 && mPlayPos <= index2) {
+                    mPlayPos--;
             }
-            if (index1 < index2) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i < index2; i++) {
-                    mPlayList[i] = mPlayList[i+1];
-                }
-                mPlayList[index2] = tmp;
-                if (mPlayPos == index1) {
-                    mPlayPos = index2;
-                } else if (mPlayPos >= index1 && mPlayPos <= index2) {
-                        mPlayPos--;
-                }
-            } else if (index2 < index1) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i > index2; i--) {
-                    mPlayList[i] = mPlayList[i-1];
-                }
-                mPlayList[index2] = tmp;
-                if (mPlayPos == index1) {
-                    mPlayPos = index2;
-                } else if (mPlayPos >= index2 && mPlayPos <= index1) {
-                        mPlayPos++;
-                }
+        } else if (index2 < index1) {
+            mPlayList.move(index1, index2);
+            if (mPlayPos == index1) {
+                mPlayPos = index2;
+            } else if (mPlayPos >= index2 && mPlayPos <= index1) {
+                    mPlayPos++;
             }
-            notifyChange(QUEUE_CHANGED);
         }
+        if (index1 != index2) {
+            recordQueueChange(QUEUE_CHANGE_MOVE, index1, 1, index2);
+        }
+        notifyChange(QUEUE_CHANGED);
     }
 
     /**
@@ -1266,14 +1292,98 @@ public class MediaPlaybackService extends Service implements
      * @return An array of integers containing the IDs of the tracks in the play list
      */
     public long [] getQueue() {
-        synchronized (this) {
-            int len = mPlayListLen;
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                list[i] = mPlayList[i];
+        if (mExecutor.isCurrentThread()) {
+            return mPlayList.toArray();
+        }
+        return getQueueSnapshot().clone();
+    }
+
+    /**
+     * Returns part of the current play list, so a long list can be read
+     * as it is shown.
+     * @param offset The index of the first track
+     * @param count The maximum number of tracks
+     * @return The IDs of the tracks, fewer than count at the end of the list
+     */
+    public long [] getQueueSlice(int offset, int count) {
+        if (mExecutor.isCurrentThread()) {
+            if (offset < 0 || count < 0 || offset >= mPlayList.size()) {
+                return new long[0];
             }
+            long [] list = new long[Math.min(count, mPlayList.size() - offset)];
+            mPlayList.getRange(offset, list, 0, list.length);
             return list;
         }
+        
+        long [] queue = getQueueSnapshot();
+        if (offset < 0 || count < 0 || offset >= queue.length) {
+            return new long[0];
+        }
+        long [] list = new long[Math.min(count, queue.length - offset)];
+        System.arraycopy(queue, offset, list, 0, list.length);
+        return list;
+    }
+
+    /**
+     * @return the play list as of the published queue version, for threads
+     * other than the playback thread. The list is copied on the playback
+     * thread the first time a version is asked for, later reads of the same
+     * version don't wait. The array is shared and must not be changed.
+     */
+    private long [] getQueueSnapshot() {
+        QueueSnapshot snapshot = mQueueSnapshot;
+        if (snapshot != null && snapshot.mVersion == mState.mQueueVersion) {
+            return snapshot.mList;
+        }
+        
+        return mExecutor.call(new Callable<long []>() {
+            @Override
+            public long [] call() {
+                QueueSnapshot snapshot = mQueueSnapshot;
+                if (snapshot == null || snapshot.mVersion != mQueueVersion) {
+                    snapshot = new QueueSnapshot(mQueueVersion, mPlayList.toArray());
+                    mQueueSnapshot = snapshot;
+                }
+                return snapshot.mList;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of tracks in the current play list
+     */
+    public int getQueueSize() {
+        return mState.mQueueSize;
+    }
+
+    /**
+     * Returns the version of the current play list, which goes up by one
+     * with every change to it. A client that knows the version of the list
+     * it shows can apply the change described by the next QUEUE_CHANGED
+     * broadcast instead of reading the list again.
+     */
+    public int getQueueVersion() {
+        return mState.mQueueVersion;
+    }
+
+    private void recordQueueChange(int change, int first, int count, int to) {
+        mQueueVersion++;
+        mQueueChange = change;
+        mQueueChangeFirst = first;
+        mQueueChangeCount = count;
+        mQueueChangeTo = to;
+    }
+
+    private void putQueueChange(Intent i) {
+        i.putExtra(QUEUE_VERSION, mQueueVersion);
+        // several changes since the last broadcast can't be described
+        // by one
+        i.putExtra(QUEUE_CHANGE, mQueueVersion == mBroadcastQueueVersion + 1 ?
+                mQueueChange : QUEUE_CHANGE_RESET);
+        i.putExtra(QUEUE_CHANGE_FIRST, mQueueChangeFirst);
+        i.putExtra(QUEUE_CHANGE_COUNT, mQueueChangeCount);
+        i.putExtra(QUEUE_CHANGE_TO, mQueueChangeTo);
+        mBroadcastQueueVersion = mQueueVersion;
     }
 
     private Cursor getCursorForId(long lid) {
@@ -1289,52 +1399,34 @@ public class MediaPlaybackService extends Service implements
     }
 
     private void openCurrentAndNext() {
-        synchronized (this) {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+
+        if (mPlayList.size() == 0) {
+            return;
+        }
+        stop(false);
+
+        // TODO is there a better place for this?
+        //MusicUtils.clearAlbumArtCache();
+        
+        mCursor = getCursorForId(mPlayList.get(mPlayPos));
+        /*while(true) {
+            if (mCursor != null && mCursor.getCount() != 0 &&
+            		open(mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI)))) {
+                break;
+            }
+            // if we get here then opening the file failed. We can close the cursor now, because
+            // we're either going to create a new one next, or stop trying
             if (mCursor != null) {
                 mCursor.close();
                 mCursor = null;
             }
-
-            if (mPlayListLen == 0) {
-                return;
-            }
-            stop(false);
-
-            // TODO is there a better place for this?
-            //MusicUtils.clearAlbumArtCache();
-            
-            mCursor = getCursorForId(mPlayList[mPlayPos]);
-            /*while(true) {
-                if (mCursor != null && mCursor.getCount() != 0 &&
-                		open(mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI)))) {
-                    break;
-                }
-                // if we get here then opening the file failed. We can close the cursor now, because
-                // we're either going to create a new one next, or stop trying
-                if (mCursor != null) {
-                    mCursor.close();
-                    mCursor = null;
-                }
-                if (mOpenFailedCounter++ < 10 &&  mPlayListLen > 1) {
-                    int pos = getNextPosition(false);
-                    if (pos < 0) {
-                        gotoIdleState();
-                        if (mIsSupposedToBePlaying) {
-                            mIsSupposedToBePlaying = false;
-                            notifyChange(PLAYSTATE_CHANGED);
-                        }
-                        return;
-                    }
-                    mPlayPos = pos;
-                    stop(false);
-                    mPlayPos = pos;
-                    mCursor = getCursorForId(mPlayList[mPlayPos]);
-                } else {
-                    mOpenFailedCounter = 0;
-                    if (!mQuietMode) {
-                        Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
-                    }
-                    Log.d(LOGTAG, "Failed to open file for playback");
+            if (mOpenFailedCounter++ < 10 &&  mPlayList.size() > 1) {
+                int pos = getNextPosition(false);
+                if (pos < 0) {
                     gotoIdleState();
                     if (mIsSupposedToBePlaying) {
                         mIsSupposedToBePlaying = false;
@@ -1342,25 +1434,57 @@ public class MediaPlaybackService extends Service implements
                     }
                     return;
                 }
+                mPlayPos = pos;
+                stop(false);
+                mPlayPos = pos;
+                mCursor = getCursorForId(mPlayList.get(mPlayPos));
+            } else {
+                mOpenFailedCounter = 0;
+                if (!mQuietMode) {
+                    showToast(R.string.playback_failed);
+                }
+                Log.d(LOGTAG, "Failed to open file for playback");
+                gotoIdleState();
+                if (mIsSupposedToBePlaying) {
+                    mIsSupposedToBePlaying = false;
+                    notifyChange(PLAYSTATE_CHANGED);
+                }
+                return;
             }
+        }
 
-            setNextTrack();
-        }*/
+        setNextTrack();
+    }*/
         
-            if (mCursor != null && mCursor.getCount() != 0) {
-            	open(mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI)));
-            	setNextTrack();
-            }
+        if (mCursor != null && mCursor.getCount() != 0) {
+        	open(mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI)));
+        	setNextTrack();
         }
     }
 
     private void setNextTrack() {
         mNextPlayPos = getNextPosition(false);
-        if (mNextPlayPos >= 0) {
-            Cursor cursor = getCursorForId(mPlayList[mNextPlayPos]);
-            mPlayer.setNextDataSource(cursor.getString(cursor.getColumnIndex(Media.MediaColumns.URI)));
-            cursor.close();
+        
+        prioritizeMetadata();
+        schedulePrefetch();
+        
+        // progressively downloaded files are not prepared ahead of time
+        if (mNextPlayPos < 0 || mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false)) {
+            mPlayer.setNextDataSource(null, false);
+            return;
+        }
+        
+        Cursor cursor = getCursorForId(mPlayList.get(mNextPlayPos));
+        if (cursor == null) {
+            mPlayer.setNextDataSource(null, false);
+            return;
         }
+        
+        String path = cursor.getCount() != 0 ? cursor.getString(cursor.getColumnIndex(Media.MediaColumns.URI)) : null;
+        cursor.close();
+        
+        boolean useFFmpegPlayer = mPreferences.getBoolean(PreferenceConstants.USE_FFMPEG_PLAYER, false);
+        mPlayer.setNextDataSource(path, useFFmpegPlayer);
     }
 
     /**
@@ -1369,60 +1493,58 @@ public class MediaPlaybackService extends Service implements
      * @param path The full path of the file to be opened.
      */
     public void open(String path) {
-        synchronized (this) {
-            if (path == null) {
-                return;
+        if (path == null) {
+            return;
+        }
+        
+        // if mCursor is null, try to associate path with a database cursor
+        if (mCursor == null) {
+
+            ContentResolver resolver = getContentResolver();
+            Uri uri;
+            String where;
+            String selectionArgs[];
+            if (path.startsWith("content://media/")) {
+                uri = Uri.parse(path);
+                where = null;
+                selectionArgs = null;
+            } else {
+               uri = MediaStore.Audio.Media.getContentUriForPath(path);
+               where = MediaStore.Audio.Media.DATA + "=?";
+               selectionArgs = new String[] { path };
             }
             
-            // if mCursor is null, try to associate path with a database cursor
-            if (mCursor == null) {
-
-                ContentResolver resolver = getContentResolver();
-                Uri uri;
-                String where;
-                String selectionArgs[];
-                if (path.startsWith("content://media/")) {
-                    uri = Uri.parse(path);
-                    where = null;
-                    selectionArgs = null;
-                } else {
-                   uri = MediaStore.Audio.Media.getContentUriForPath(path);
-                   where = MediaStore.Audio.Media.DATA + "=?";
-                   selectionArgs = new String[] { path };
-                }
-                
-                try {
-                    mCursor = resolver.query(uri, mCursorCols, where, selectionArgs, null);
-                    if  (mCursor != null) {
-                        if (mCursor.getCount() == 0) {
-                            mCursor.close();
-                            mCursor = null;
-                        } else {
-                            mCursor.moveToNext();
-                            ensurePlayListCapacity(1);
-                            mPlayListLen = 1;
-                            mPlayList[0] = mCursor.getLong(IDCOLIDX);
-                            mPlayPos = 0;
-                        }
+            try {
+                mCursor = resolver.query(uri, mCursorCols, where, selectionArgs, null);
+                if  (mCursor != null) {
+                    if (mCursor.getCount() == 0) {
+                        mCursor.close();
+                        mCursor = null;
+                    } else {
+                        mCursor.moveToNext();
+                        mPlayList.clear();
+                        mPlayList.add(mCursor.getLong(IDCOLIDX));
+                        recordQueueChange(QUEUE_CHANGE_RESET, 0, 0, 0);
+                        mPlayPos = 0;
                     }
-                } catch (UnsupportedOperationException ex) {
                 }
-            }
-            
-            mFileToPlay = path;
-            
-            Log.i(LOGTAG, "Opening: " + mFileToPlay);
-            
-            sendStickyBroadcast(new Intent(START_DIALOG));
-            
-            boolean isLocalFile = mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false);
-            boolean useFFmpegPlayer = mPreferences.getBoolean(PreferenceConstants.USE_FFMPEG_PLAYER, false);   	
-            if (isLocalFile) {
-            	mPlayer.setDataSource(this, mPlayList[mPlayPos]);
-            } else {
-            	mPlayer.setDataSource(mFileToPlay, useFFmpegPlayer);
+            } catch (UnsupportedOperationException ex) {
             }
         }
+        
+        mFileToPlay = path;
+        
+        Log.i(LOGTAG, "Opening: " + mFileToPlay);
+        
+        sendStickyBroadcast(new Intent(START_DIALOG));
+        
+        boolean isLocalFile = mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false);
+        boolean useFFmpegPlayer = mPreferences.getBoolean(PreferenceConstants.USE_FFMPEG_PLAYER, false);   	
+        if (isLocalFile) {
+        	mPlayer.setDataSource(this, mPlayList.get(mPlayPos));
+        } else {
+        	mPlayer.setDataSource(mFileToPlay, useFFmpegPlayer);
+        }
     }
 
     /**
@@ -1499,6 +1621,7 @@ public class MediaPlaybackService extends Service implements
 	    }
 	    
     	status.setSmallIcon(R.drawable.notification_icon);
+    	mIsNotificationShown = true;
         
 	    Notification notification = status.build();
 	    
@@ -1548,7 +1671,7 @@ public class MediaPlaybackService extends Service implements
         }
         
         if (updateNotification) {
-        	if (isPlaying()) {
+        	if (mIsSupposedToBePlaying) {
         		rv.setImageViewResource(R.id.play_pause, android.R.drawable.ic_media_pause);
         	} else {
         		rv.setImageViewResource(R.id.play_pause, android.R.drawable.ic_media_play);
@@ -1588,7 +1711,7 @@ public class MediaPlaybackService extends Service implements
     	String album = getAlbumName();
         
         if (updateNotification) {
-        	if (isPlaying()) {
+        	if (mIsSupposedToBePlaying) {
         		rv.setImageViewResource(R.id.play_pause, android.R.drawable.ic_media_pause);
         	} else {
         		rv.setImageViewResource(R.id.play_pause, android.R.drawable.ic_media_play);
@@ -1625,7 +1748,9 @@ public class MediaPlaybackService extends Service implements
     }
     
     private void stop(boolean remove_status_icon) {
+        mPlayer.cancelReconnect();
         if (mPlayer.isInitialized()) {
+            logLiveBufferStats();
             mPlayer.stop();
         }
         mFileToPlay = null;
@@ -1654,20 +1779,18 @@ public class MediaPlaybackService extends Service implements
      * Pauses playback (call play() to resume)
      */
     public void pause(boolean remove_status_icon) {
-        synchronized(this) {
-            mMediaplayerHandler.removeMessages(FADEUP);
-            if (isPlaying()) {
-                mPlayer.pause();
-                if (remove_status_icon) {
-                    gotoIdleState();
-                } else {
-                    stopForeground(false);
-                }
-                mIsSupposedToBePlaying = false;
-                notifyChange(PLAYSTATE_CHANGED);
+        mMediaplayerHandler.removeMessages(FADEUP);
+        if (mIsSupposedToBePlaying) {
+            mPlayer.pause();
+            if (remove_status_icon) {
+                gotoIdleState();
+            } else {
+                stopForeground(false);
             }
-            mPausedByConnectivityReceiver = false;
+            mIsSupposedToBePlaying = false;
+            notifyChange(PLAYSTATE_CHANGED);
         }
+        mPausedByConnectivityReceiver = false;
     }
 
     /** Returns whether something is currently playing
@@ -1676,7 +1799,7 @@ public class MediaPlaybackService extends Service implements
      * we're currently transitioning between tracks), false if not.
      */
     public boolean isPlaying() {
-        return mIsSupposedToBePlaying;
+        return mState.mIsPlaying;
     }
 
     /*
@@ -1704,32 +1827,30 @@ public class MediaPlaybackService extends Service implements
      */
 
     public void prev() {
-        synchronized (this) {
-            if (mPlayListLen <= 0) {
-                Log.d(LOGTAG, "No play queue");
+        if (mPlayList.size() <= 0) {
+            Log.d(LOGTAG, "No play queue");
+            return;
+        }
+        
+        if (mShuffleMode == SHUFFLE_ON) {
+            // go to previously-played track and remove it from the history
+            int histsize = mHistory.size();
+            if (histsize == 0) {
+                // prev is a no-op
                 return;
             }
-        	
-            if (mShuffleMode == SHUFFLE_ON) {
-                // go to previously-played track and remove it from the history
-                int histsize = mHistory.size();
-                if (histsize == 0) {
-                    // prev is a no-op
-                    return;
-                }
-                Integer pos = mHistory.remove(histsize - 1);
-                mPlayPos = pos.intValue();
+            Integer pos = mHistory.remove(histsize - 1);
+            mPlayPos = pos.intValue();
+        } else {
+            if (mPlayPos > 0) {
+                mPlayPos--;
             } else {
-                if (mPlayPos > 0) {
-                    mPlayPos--;
-                } else {
-                    mPlayPos = mPlayListLen - 1;
-                }
+                mPlayPos = mPlayList.size() - 1;
             }
-            stop(false);
-            openCurrentAndNext();
-            notifyChange(META_CHANGED);
         }
+        stop(false);
+        openCurrentAndNext();
+        notifyChange(META_CHANGED);
     }
 
     /**
@@ -1755,7 +1876,7 @@ public class MediaPlaybackService extends Service implements
                 mHistory.removeElementAt(0);
             }
 
-            int numTracks = mPlayListLen;
+            int numTracks = mPlayList.size();
             int[] tracks = new int[numTracks];
             for (int i=0;i < numTracks; i++) {
                 tracks[i] = i;
@@ -1799,7 +1920,7 @@ public class MediaPlaybackService extends Service implements
             }
             return cnt;
         } else {
-            if (mPlayPos >= mPlayListLen - 1) {
+            if (mPlayPos >= mPlayList.size() - 1) {
                 // we're at the end of the list
                 if (mRepeatMode == REPEAT_NONE && !force) {
                     // all done
@@ -1815,27 +1936,25 @@ public class MediaPlaybackService extends Service implements
     }
 
     public void gotoNext(boolean force) {
-        synchronized (this) {
-            if (mPlayListLen <= 0) {
-                Log.d(LOGTAG, "No play queue");
-                return;
-            }
+        if (mPlayList.size() <= 0) {
+            Log.d(LOGTAG, "No play queue");
+            return;
+        }
 
-            int pos = getNextPosition(force);
-            if (pos < 0) {
-                gotoIdleState();
-                if (mIsSupposedToBePlaying) {
-                    mIsSupposedToBePlaying = false;
-                    notifyChange(PLAYSTATE_CHANGED);
-                }
-                return;
+        int pos = getNextPosition(force);
+        if (pos < 0) {
+            gotoIdleState();
+            if (mIsSupposedToBePlaying) {
+                mIsSupposedToBePlaying = false;
+                notifyChange(PLAYSTATE_CHANGED);
             }
-            mPlayPos = pos;
-            stop(false);
-            mPlayPos = pos;
-            openCurrentAndNext();
-            notifyChange(META_CHANGED);
+            return;
         }
+        mPlayPos = pos;
+        stop(false);
+        mPlayPos = pos;
+        openCurrentAndNext();
+        notifyChange(META_CHANGED);
     }
     
     private void gotoIdleState() {
@@ -1843,6 +1962,7 @@ public class MediaPlaybackService extends Service implements
         Message msg = mDelayedStopHandler.obtainMessage();
         mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
         stopForeground(true);
+        mIsNotificationShown = false;
     }
     
     // A simple variation of Random that makes sure that the
@@ -1878,47 +1998,44 @@ public class MediaPlaybackService extends Service implements
     }
     
     private int removeTracksInternal(int first, int last) {
-        synchronized (this) {
-            if (last < first) return 0;
-            if (first < 0) first = 0;
-            if (last >= mPlayListLen) last = mPlayListLen - 1;
-
-            boolean gotonext = false;
-            if (first <= mPlayPos && mPlayPos <= last) {
-                mPlayPos = first;
-                gotonext = true;
-            } else if (mPlayPos > last) {
-                mPlayPos -= (last - first + 1);
-            }
-            int num = mPlayListLen - last - 1;
-            for (int i = 0; i < num; i++) {
-                mPlayList[first + i] = mPlayList[last + 1 + i];
-            }
-            mPlayListLen -= last - first + 1;
-            
-            if (gotonext) {
-                if (mPlayListLen == 0) {
-                    stop(true);
-                    mPlayPos = -1;
-                    if (mCursor != null) {
-                        mCursor.close();
-                        mCursor = null;
-                    }
-                } else {
-                    if (mPlayPos >= mPlayListLen) {
-                        mPlayPos = 0;
-                    }
-                    boolean wasPlaying = isPlaying();
-                    stop(false);
-                    openCurrentAndNext();
-                    if (wasPlaying) {
-                        play();
-                    }
+        if (last < first) return 0;
+        if (first < 0) first = 0;
+        if (last >= mPlayList.size()) last = mPlayList.size() - 1;
+
+        boolean gotonext = false;
+        if (first <= mPlayPos && mPlayPos <= last) {
+            mPlayPos = first;
+            gotonext = true;
+        } else if (mPlayPos > last) {
+            mPlayPos -= (last - first + 1);
+        }
+        if (last >= first) {
+            mPlayList.remove(first, last - first + 1);
+            recordQueueChange(QUEUE_CHANGE_REMOVE, first, last - first + 1, 0);
+        }
+        
+        if (gotonext) {
+            if (mPlayList.size() == 0) {
+                stop(true);
+                mPlayPos = -1;
+                if (mCursor != null) {
+                    mCursor.close();
+                    mCursor = null;
+                }
+            } else {
+                if (mPlayPos >= mPlayList.size()) {
+                    mPlayPos = 0;
+                }
+                boolean wasPlaying = mIsSupposedToBePlaying;
+                stop(false);
+                openCurrentAndNext();
+                if (wasPlaying) {
+                    play();
                 }
-                notifyChange(META_CHANGED);
             }
-            return last - first + 1;
+            notifyChange(META_CHANGED);
         }
+        return last - first + 1;
     }
     
     /**
@@ -1929,12 +2046,28 @@ public class MediaPlaybackService extends Service implements
      */
     public int removeTrack(long id) {
         int numremoved = 0;
-        synchronized (this) {
-            for (int i = 0; i < mPlayListLen; i++) {
-                if (mPlayList[i] == id) {
-                    numremoved += removeTracksInternal(i, i);
-                    i--;
-                }
+        int i = 0;
+        while ((i = mPlayList.indexOf(id, i)) != -1) {
+            numremoved += removeTracksInternal(i, i);
+        }
+        if (numremoved > 0) {
+            notifyChange(QUEUE_CHANGED);
+        }
+        return numremoved;
+    }
+    
+    /**
+     * Removes all instances of the tracks with the given ids
+     * from the playlist, announcing the change once.
+     * @param list The ids to be removed
+     * @return how many instances of the tracks were removed
+     */
+    public int removeTrackIds(long [] list) {
+        int numremoved = 0;
+        for (long id : list) {
+            int i = 0;
+            while ((i = mPlayList.indexOf(id, i)) != -1) {
+                numremoved += removeTracksInternal(i, i);
             }
         }
         if (numremoved > 0) {
@@ -1944,27 +2077,23 @@ public class MediaPlaybackService extends Service implements
     }
     
     public void setShuffleMode(int shufflemode) {
-        synchronized(this) {
-            if (mShuffleMode == shufflemode && mPlayListLen > 0) {
-                return;
-            }
-            mShuffleMode = shufflemode;
-            saveQueue(false);
+        if (mShuffleMode == shufflemode && mPlayList.size() > 0) {
+            return;
         }
+        mShuffleMode = shufflemode;
+        saveQueue(false);
     }
     public int getShuffleMode() {
-        return mShuffleMode;
+        return mState.mShuffleMode;
     }
     
     public void setRepeatMode(int repeatmode) {
-        synchronized(this) {
-            mRepeatMode = repeatmode;
-            setNextTrack();
-            saveQueue(false);
-        }
+        mRepeatMode = repeatmode;
+        setNextTrack();
+        saveQueue(false);
     }
     public int getRepeatMode() {
-        return mRepeatMode;
+        return mState.mRepeatMode;
     }
 
     public int getMediaMountedCount() {
@@ -1976,7 +2105,7 @@ public class MediaPlaybackService extends Service implements
      * no file is currently playing.
      */
     public String getPath() {
-        return mFileToPlay;
+        return mState.mPath;
     }
     
     /**
@@ -1984,10 +2113,12 @@ public class MediaPlaybackService extends Service implements
      * no file is currently playing.
      */
     public long getAudioId() {
-        synchronized (this) {
-            if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-                return mPlayList[mPlayPos];
-            }
+        return mState.mAudioId;
+    }
+    
+    private long currentAudioId() {
+        if (mPlayPos >= 0 && mPlayPos < mPlayList.size() && mPlayer != null && mPlayer.isInitialized()) {
+            return mPlayList.get(mPlayPos);
         }
         return -1;
     }
@@ -1997,9 +2128,7 @@ public class MediaPlaybackService extends Service implements
      * @return the position in the queue
      */
     public int getQueuePosition() {
-        synchronized(this) {
-            return mPlayPos;
-        }
+        return mState.mQueuePosition;
     }
     
     /**
@@ -2007,83 +2136,111 @@ public class MediaPlaybackService extends Service implements
      * @param pos The position in the queue of the track that will be played.
      */
     public void setQueuePosition(int pos) {
-        synchronized(this) {
-            stop(false);
-            mPlayPos = pos;
-            openCurrentAndNext();
-            notifyChange(META_CHANGED);
-        }
+        stop(false);
+        mPlayPos = pos;
+        openCurrentAndNext();
+        notifyChange(META_CHANGED);
     }
 
     public String getArtistName() {
-        synchronized(this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-        }
+        return getNowPlaying().mArtist;
     }
     
     public long getArtistId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID));
-        }
+        return getNowPlaying().mArtistId;
     }
 
     public String getAlbumName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM));
-        }
+        return getNowPlaying().mAlbum;
     }
 
     public long getAlbumId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
-        }
+        return getNowPlaying().mAlbumId;
     }
 
     public String getTrackName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
-        }
+        return getNowPlaying().mTitle;
     }
 
     public int getDuration() {
-    	synchronized(this) {
-    		if (mCursor == null) {
-    		    return -1;
-    		}
-    		
-    		return mCursor.getInt(mCursor.getColumnIndexOrThrow(Media.MediaColumns.DURATION));
-    	}
+    	return getNowPlaying().mDuration;
     }
     
     public Bitmap getAlbumArt(boolean small) {
-    	synchronized(this) {
-    		if (mCursor == null) {
-    		    return null;
-    		}
-    		
-    		if (small) {
-    			return mNotificationImageFetcher.loadImage(getTrackId());
-    		} else {
-    			return mLockScreenImageFetcher.loadImage(getTrackId());
+    	NowPlaying nowPlaying = getNowPlaying();
+    	if (nowPlaying == NowPlaying.NONE) {
+    	    return null;
+    	}
+    	
+    	// only the memory cache is read here, a miss is decoded in the
+    	// background and the art is pushed out again once it's there
+    	DatabaseImageResizer imageFetcher = small ? mNotificationImageFetcher : mLockScreenImageFetcher;
+    	Bitmap bitmap = imageFetcher.getBitmapFromMemCache(nowPlaying.mTrackId);
+    	if (bitmap == null) {
+    		loadAlbumArt(small, nowPlaying.mTrackId);
+    	}
+    	return bitmap;
+    }
+    
+    private void loadAlbumArt(final boolean small, final int trackId) {
+    	final String key = (small ? "small:" : "large:") + trackId;
+    	if (!mPendingArtwork.add(key)) {
+    		return;
+    	}
+    	
+    	try {
+    		mArtworkExecutor.execute(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					DatabaseImageResizer imageFetcher = small ? mNotificationImageFetcher : mLockScreenImageFetcher;
+    					final Bitmap bitmap = imageFetcher.loadImage(trackId);
+    					if (bitmap != null) {
+    						post(new Runnable() {
+    							@Override
+    							public void run() {
+    								onAlbumArtLoaded(small, trackId, bitmap);
+    							}
+    						});
+    					}
+    				} finally {
+    					mPendingArtwork.remove(key);
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		// the service is being destroyed
+    		mPendingArtwork.remove(key);
+    	}
+    }
+    
+    private void onAlbumArtLoaded(boolean small, int trackId, Bitmap bitmap) {
+    	if (getTrackId() != trackId ||
+    			!mPreferences.getBoolean(PreferenceConstants.RETRIEVE_ALBUM_ART, false)) {
+    		return;
+    	}
+    	
+    	if (small) {
+    		if (mIsNotificationShown) {
+    			updateNotification(true);
     		}
+    		mAppWidgetProvider.notifyChange(this, META_CHANGED);
+    	} else {
+    		MetadataEditorCompat metadataEditor = mRemoteControlClientCompat.editMetadata(false);
+    		metadataEditor.putBitmap(100, bitmap);
+    		metadataEditor.apply();
     	}
     }
     
+    private void showToast(final int resId) {
+    	mMainHandler.post(new Runnable() {
+    		@Override
+    		public void run() {
+    			Toast.makeText(MediaPlaybackService.this, resId, Toast.LENGTH_SHORT).show();
+    		}
+    	});
+    }
+    
     /**
      * Returns the duration of the file in milliseconds.
      * Currently this method returns -1 for the duration of MIDI files.
@@ -2125,20 +2282,139 @@ public class MediaPlaybackService extends Service implements
      * @param sessionId: the audio session ID.
      */
     public void setAudioSessionId(int sessionId) {
-        synchronized (this) {
-            mPlayer.setAudioSessionId(sessionId);
-        }
+        mPlayer.setAudioSessionId(sessionId);
     }
 
     /**
      * Returns the audio session ID.
      */
     public int getAudioSessionId() {
-        synchronized (this) {
-            return mPlayer.getAudioSessionId();
+        return mPlayer.getAudioSessionId();
+    }
+
+    /**
+     * The state of the player as the getters return it. The playback
+     * thread publishes a new one after every command and before every
+     * change is announced, so other threads read it without waiting for
+     * the thread.
+     */
+    private static final class PlaybackState {
+        final long mAudioId;
+        final int mQueuePosition;
+        final int mQueueSize;
+        final int mQueueVersion;
+        final int mShuffleMode;
+        final int mRepeatMode;
+        final boolean mIsPlaying;
+        final String mPath;
+        final NowPlaying mNowPlaying;
+
+        PlaybackState() {
+            this(-1, -1, 0, 0, SHUFFLE_NONE, REPEAT_NONE, false, null, NowPlaying.NONE);
+        }
+
+        PlaybackState(long audioId, int queuePosition, int queueSize, int queueVersion,
+                int shuffleMode, int repeatMode, boolean isPlaying, String path,
+                NowPlaying nowPlaying) {
+            mAudioId = audioId;
+            mQueuePosition = queuePosition;
+            mQueueSize = queueSize;
+            mQueueVersion = queueVersion;
+            mShuffleMode = shuffleMode;
+            mRepeatMode = repeatMode;
+            mIsPlaying = isPlaying;
+            mPath = path;
+            mNowPlaying = nowPlaying;
         }
     }
 
+    /**
+     * A copy of the play list and the queue version it was made at.
+     */
+    private static final class QueueSnapshot {
+        final int mVersion;
+        final long [] mList;
+
+        QueueSnapshot(int version, long [] list) {
+            mVersion = version;
+            mList = list;
+        }
+    }
+
+    private void publishState() {
+        updateNowPlaying();
+        mState = new PlaybackState(currentAudioId(), mPlayPos, mPlayList.size(), mQueueVersion,
+                mShuffleMode, mRepeatMode, mIsSupposedToBePlaying, mFileToPlay, mNowPlaying);
+    }
+
+    /**
+     * Rereads the current track from mCursor if the cursor has been
+     * replaced or closed since the last time, which is once per track
+     * or metadata update rather than once per getter call.
+     */
+    private void updateNowPlaying() {
+        if (mCursor != mNowPlayingCursor) {
+            mNowPlaying = NowPlaying.fromCursor(mCursor);
+            mNowPlayingCursor = mCursor;
+        }
+    }
+
+    /**
+     * @return the current track. The playback thread sees mCursor as it
+     * is, other threads the track of the last published state.
+     */
+    private NowPlaying getNowPlaying() {
+        if (mExecutor.isCurrentThread()) {
+            updateNowPlaying();
+            return mNowPlaying;
+        }
+        return mState.mNowPlaying;
+    }
+
+    /**
+     * Runs a command on the playback thread, which owns the player and the
+     * queue, and waits for it. Everything that changes the state of the
+     * player goes through here or through a handler on the thread, so none
+     * of it needs a lock.
+     */
+    private void execute(final Runnable command) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                command.run();
+                publishState();
+            }
+        });
+    }
+
+    /**
+     * Runs a command on the playback thread and waits for its result.
+     */
+    private <T> T call(final Callable<T> command) {
+        return mExecutor.call(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                T result = command.call();
+                publishState();
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs a command on the playback thread without waiting for it, for
+     * callbacks on the main thread.
+     */
+    private void post(final Runnable command) {
+        mExecutor.post(new Runnable() {
+            @Override
+            public void run() {
+                command.run();
+                publishState();
+            }
+        });
+    }
+
     /*
      * By making this a static class with a WeakReference to the Service, we
      * ensure that the Service can be GCd even when the system process still
@@ -2151,36 +2427,90 @@ public class MediaPlaybackService extends Service implements
             mService = new WeakReference<MediaPlaybackService>(service);
         }
 
-        public void openFile(String path)
-        {
-            mService.get().open(path);
+        // commands are posted to the playback thread in the order they
+        // arrive and don't wait for it, the getters that the state snapshot
+        // answers catch up once a command has run; only the calls that
+        // return a value wait for the playback thread
+
+        public void openFile(final String path) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.open(path);
+                }
+            });
         }
-        public void open(long [] list, int position) {
-            mService.get().open(list, position);
+        public void open(long [] list, final int position) {
+            final MediaPlaybackService service = mService.get();
+            // a caller in this process could still change the array
+            final long [] copy = list.clone();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.open(copy, position);
+                }
+            });
         }
         public int getQueuePosition() {
             return mService.get().getQueuePosition();
         }
-        public void setQueuePosition(int index) {
-            mService.get().setQueuePosition(index);
+        public void setQueuePosition(final int index) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setQueuePosition(index);
+                }
+            });
         }
         public boolean isPlaying() {
             return mService.get().isPlaying();
         }
         public void stop() {
-            mService.get().stop();
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.stop();
+                }
+            });
         }
         public void pause() {
-            mService.get().pause(true);
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.pause(true);
+                }
+            });
         }
         public void play() {
-            mService.get().play();
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.play();
+                }
+            });
         }
         public void prev() {
-            mService.get().prev();
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.prev();
+                }
+            });
         }
         public void next() {
-            mService.get().gotoNext(true);
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.gotoNext(true);
+                }
+            });
         }
         public String getTrackName() {
             return mService.get().getTrackName();
@@ -2197,14 +2527,37 @@ public class MediaPlaybackService extends Service implements
         public long getArtistId() {
             return mService.get().getArtistId();
         }
-        public void enqueue(long [] list , int action) {
-            mService.get().enqueue(list, action);
+        public void enqueue(long [] list, final int action) {
+            final MediaPlaybackService service = mService.get();
+            // a caller in this process could still change the array
+            final long [] copy = list.clone();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.enqueue(copy, action);
+                }
+            });
         }
         public long [] getQueue() {
             return mService.get().getQueue();
         }
-        public void moveQueueItem(int from, int to) {
-            mService.get().moveQueueItem(from, to);
+        public long [] getQueueSlice(int offset, int count) {
+            return mService.get().getQueueSlice(offset, count);
+        }
+        public int getQueueSize() {
+            return mService.get().getQueueSize();
+        }
+        public int getQueueVersion() {
+            return mService.get().getQueueVersion();
+        }
+        public void moveQueueItem(final int from, final int to) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.moveQueueItem(from, to);
+                }
+            });
         }
         public String getPath() {
             return mService.get().getPath();
@@ -2213,131 +2566,391 @@ public class MediaPlaybackService extends Service implements
             return mService.get().getAudioId();
         }
         public long position() {
-            return mService.get().position();
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return service.position();
+                }
+            });
         }
         public long duration() {
-            return mService.get().duration();
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return service.duration();
+                }
+            });
         }
-        public long seek(long pos) {
-            return mService.get().seek(pos);
+        public long seek(final long pos) {
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return service.seek(pos);
+                }
+            });
         }
-        public void setShuffleMode(int shufflemode) {
-            mService.get().setShuffleMode(shufflemode);
+        public void setShuffleMode(final int shufflemode) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setShuffleMode(shufflemode);
+                }
+            });
         }
         public int getShuffleMode() {
             return mService.get().getShuffleMode();
         }
-        public int removeTracks(int first, int last) {
-            return mService.get().removeTracks(first, last);
+        public int removeTracks(final int first, final int last) {
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return service.removeTracks(first, last);
+                }
+            });
         }
-        public int removeTrack(long id) {
-            return mService.get().removeTrack(id);
+        public int removeTrack(final long id) {
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return service.removeTrack(id);
+                }
+            });
         }
-        public void setRepeatMode(int repeatmode) {
-            mService.get().setRepeatMode(repeatmode);
+        public void setRepeatMode(final int repeatmode) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setRepeatMode(repeatmode);
+                }
+            });
         }
         public int getRepeatMode() {
             return mService.get().getRepeatMode();
         }
         public int getAudioSessionId() {
-            return mService.get().getAudioSessionId();
+            final MediaPlaybackService service = mService.get();
+            return service.call(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return service.getAudioSessionId();
+                }
+            });
         }
         
         // new
         public String getTrackNumber() {
-        	return mService.get().getTrackNumber();
+            return mService.get().getTrackNumber();
         }
         public int getTrackId() {
-        	return mService.get().getTrackId();
+            return mService.get().getTrackId();
         }
         public String getMediaUri() {
-        	return mService.get().getMediaUri();
+            return mService.get().getMediaUri();
         }
-        public void setSleepTimerMode(int sleepmode) {
-        	mService.get().setSleepTimerMode(sleepmode);
+        public void setSleepTimerMode(final int sleepmode) {
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setSleepTimerMode(sleepmode);
+                }
+            });
         }
         public int getSleepTimerMode() {
-        	return mService.get().getSleepTimerMode();
+            return mService.get().getSleepTimerMode();
+        }
+        public void prioritizeMetadata(final long [] list) {
+            // only a hint, the list doesn't wait for it
+            final MediaPlaybackService service = mService.get();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.prioritizeMetadata(list);
+                }
+            });
+        }
+        public void removeTrackIds(long [] list) {
+            final MediaPlaybackService service = mService.get();
+            final long [] copy = list.clone();
+            service.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.removeTrackIds(copy);
+                }
+            });
         }
     }
 
     @Override
-    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-        writer.println("" + mPlayListLen + " items in queue, currently at index " + mPlayPos);
-        writer.println("Currently loaded:");
-        writer.println(getArtistName());
-        writer.println(getAlbumName());
-        writer.println(getTrackName());
-        writer.println(getPath());
-        writer.println("playing: " + mIsSupposedToBePlaying);
-        // TODO fix this!
-        //writer.println("actual: " + mPlayer.mCurrentMediaPlayer.isPlaying());
-        writer.println("shuffle mode: " + mShuffleMode);
+    protected void dump(FileDescriptor fd, final PrintWriter writer, String[] args) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writer.println("" + mPlayList.size() + " items in queue, currently at index " + mPlayPos);
+                writer.println("Currently loaded:");
+                writer.println(getArtistName());
+                writer.println(getAlbumName());
+                writer.println(getTrackName());
+                writer.println(mFileToPlay);
+                writer.println("playing: " + mIsSupposedToBePlaying);
+                // TODO fix this!
+                //writer.println("actual: " + mPlayer.mCurrentMediaPlayer.isPlaying());
+                writer.println("shuffle mode: " + mShuffleMode);
+            }
+        });
     }
 
     private final IBinder mBinder = new ServiceStub(this);
     
     public String getTrackNumber() {
-    	synchronized (this) {
-    		return ((mPlayPos + 1) + " / " + mPlayListLen);
-    	}
+    	PlaybackState state = mState;
+    	return ((state.mQueuePosition + 1) + " / " + state.mQueueSize);
     }
     
     public int getTrackId() {
-    	synchronized(this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getInt(mCursor.getColumnIndexOrThrow(Media.MediaColumns._ID));
-        }
+        return getNowPlaying().mTrackId;
     }
     
     public String getMediaUri() {
-        synchronized(this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(Media.MediaColumns.URI));
-        }
+        return getNowPlaying().mUri;
     }
     
-    private int mSleepTimerMode = SLEEP_TIMER_OFF;
+    private volatile int mSleepTimerMode = SLEEP_TIMER_OFF;
     
-    private Handler mSleepTimerHandler = new Handler() {
+    private Handler mSleepTimerHandler = new Handler(mExecutor.getLooper()) {
     	@Override
     	public void handleMessage(Message msg) {
     		Log.v(LOGTAG, "mSleepTimerHandler called");
     		stop();
+    		publishState();
     	}
     };
     
     public void setSleepTimerMode(int minutes) {
-    	synchronized(this) {
-    		mSleepTimerHandler.removeCallbacksAndMessages(null);
+    	mSleepTimerHandler.removeCallbacksAndMessages(null);
     	
-    		if (minutes != SLEEP_TIMER_OFF) {
-    			Message msg = mSleepTimerHandler.obtainMessage();
-    			mSleepTimerHandler.sendMessageDelayed(msg, minutes * 60000);
-    		}
-    		
-    		mSleepTimerMode = minutes;
+    	if (minutes != SLEEP_TIMER_OFF) {
+    		Message msg = mSleepTimerHandler.obtainMessage();
+    		mSleepTimerHandler.sendMessageDelayed(msg, minutes * 60000);
     	}
+    	
+    	mSleepTimerMode = minutes;
     }
     
     public int getSleepTimerMode() {
     	return mSleepTimerMode;
     }
     
-    @Override
-	public synchronized void onMetadataParsed(long id, Metadata metadata) {
-    	if (updateMetadata(id, metadata) > 0) {
-    		notifyChange(META_RETRIEVED);
+    private void startMetadataRetrieverTask(long [] list) {
+    	int maxConcurrency = MetadataRetrieverTask.DEFAULT_MAX_CONCURRENCY;
+    	
+    	try {
+    		maxConcurrency = Integer.parseInt(mPreferences.getString(PreferenceConstants.METADATA_CONNECTIONS,
+    				String.valueOf(MetadataRetrieverTask.DEFAULT_MAX_CONCURRENCY)));
+    	} catch (NumberFormatException e) {
     	}
     	
-		if (mPlayList == null || id != mPlayList[mPlayPos]) {
-			return;
-		}
-		
+    	mMetadataRetrieverTask = new MetadataRetrieverTask(this, list,
+    			Math.max(1, Math.min(maxConcurrency, MetadataRetrieverTask.MAX_CONCURRENCY)));
+    	prioritizeMetadata();
+    	mMetadataRetrieverTask.execute();
+    }
+    
+    /**
+     * Moves the current and next track to the front of the metadata
+     * retrieval queue.
+     */
+    private void prioritizeMetadata() {
+    	if (mMetadataRetrieverTask == null || mPlayPos < 0 || mPlayPos >= mPlayList.size()) {
+    		return;
+    	}
+    	
+    	mMetadataRetrieverTask.prioritize(new long [] { mPlayList.get(mPlayPos) },
+    			MetadataRetrieverTask.PRIORITY_CURRENT);
+    	
+    	long [] next = mNextPlayPos >= 0 && mNextPlayPos < mPlayList.size() ?
+    			new long [] { mPlayList.get(mNextPlayPos) } : new long[0];
+    	mMetadataRetrieverTask.prioritize(next, MetadataRetrieverTask.PRIORITY_NEXT);
+    }
+    
+    /**
+     * Hands the upcoming tracks to the prefetcher. Only progressively
+     * downloaded tracks are played from the media cache.
+     */
+    private void schedulePrefetch() {
+    	int count = 0;
+    	long maxBytes = 0;
+    	
+    	try {
+    		count = Integer.parseInt(mPreferences.getString(PreferenceConstants.PREFETCH_COUNT, "2"));
+    		maxBytes = Long.parseLong(mPreferences.getString(PreferenceConstants.PREFETCH_SIZE, "100")) * 1024 * 1024;
+    	} catch (NumberFormatException e) {
+    	}
+    	
+    	if (!mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false)) {
+    		count = 0;
+    	}
+    	
+    	mPrefetcher.setQueue(getUpcomingTracks(count), maxBytes);
+    	
+    	updatePrefetchPause();
+    }
+    
+    /**
+     * @return up to count tracks that play after the current one. In
+     * shuffle mode only the next track is known ahead of time.
+     */
+    private long [] getUpcomingTracks(int count) {
+    	if (count <= 0 || mNextPlayPos < 0 || mNextPlayPos >= mPlayList.size() ||
+    			mRepeatMode == REPEAT_CURRENT) {
+    		return new long[0];
+    	}
+    	
+    	ArrayList<Long> tracks = new ArrayList<Long>();
+    	tracks.add(mPlayList.get(mNextPlayPos));
+    	
+    	int pos = mNextPlayPos;
+    	while (mShuffleMode == SHUFFLE_NONE && tracks.size() < count) {
+    		pos++;
+    		if (pos >= mPlayList.size()) {
+    			if (mRepeatMode != REPEAT_ALL) {
+    				break;
+    			}
+    			pos = 0;
+    		}
+    		
+    		if (pos == mPlayPos) {
+    			break;
+    		}
+    		tracks.add(mPlayList.get(pos));
+    	}
+    	
+    	long [] list = new long[tracks.size()];
+    	for (int i = 0; i < list.length; i++) {
+    		list[i] = tracks.get(i);
+    	}
+    	return list;
+    }
+    
+    /**
+     * Applies the live stream buffer setting. Streams are played through the
+     * stream proxy when it buffers them or extracts their ICY metadata.
+     */
+    private void updateStreamProxy() {
+    	long liveBufferMillis = 0;
+    	
+    	try {
+    		liveBufferMillis = Long.parseLong(mPreferences.getString(PreferenceConstants.LIVE_BUFFER, "2")) * 1000;
+    	} catch (NumberFormatException e) {
+    	}
+    	
+    	StreamProxy.setLiveBufferTime(liveBufferMillis);
+    	mPlayer.setUseStreamProxy(mRetrieveShoutCastMetadata || liveBufferMillis > 0);
+    }
+    
+    /**
+     * @return the amount of audio in the live stream buffer in
+     * milliseconds, or 0 if the current track isn't a buffered live stream.
+     */
+    public long getLiveBufferDepth() {
+    	return mPlayer.liveBufferDepth();
+    }
+    
+    /**
+     * @return the number of times the live stream buffer of the current
+     * track ran dry.
+     */
+    public int getUnderrunCount() {
+    	return mPlayer.underrunCount();
+    }
+    
+    /**
+     * @return the time the current track spent rebuffering in milliseconds.
+     */
+    public long getRebufferTime() {
+    	return mPlayer.rebufferTime();
+    }
+    
+    private void logLiveBufferStats() {
+    	if (mPlayer.liveBufferTarget() > 0) {
+    		Log.i(LOGTAG, "live buffer: target " + mPlayer.liveBufferTarget() + " ms, depth " +
+    				mPlayer.liveBufferDepth() + " ms, " + mPlayer.underrunCount() + " underruns, " +
+    				mPlayer.rebufferTime() + " ms rebuffering");
+    	}
+    }
+    
+    /**
+     * Pauses prefetching while the current track is short of buffered data.
+     */
+    private void updatePrefetchPause() {
+    	mPrefetcher.setForegroundBuffer(mPlayer.isDownloading() ? mPlayer.bufferedBytes() : -1);
+    }
+    
+    /**
+     * Moves the tracks that are visible to the user to the front of the
+     * metadata retrieval queue, behind the current and next track.
+     */
+    public void prioritizeMetadata(long [] list) {
+    	if (mMetadataRetrieverTask != null && list != null) {
+    		mMetadataRetrieverTask.prioritize(list, MetadataRetrieverTask.PRIORITY_VISIBLE);
+    	}
+    }
+    
+    @Override
+	public void onMetadataParsed(final long id, Metadata metadata) {
+    	// the database is written on the retriever's thread, only the
+    	// player's part is left to the playback thread
+    	final boolean isUpdated = updateMetadata(id, metadata) > 0;
+    	
+    	post(new Runnable() {
+    		@Override
+    		public void run() {
+    			if (isUpdated) {
+    				notifyChange(META_RETRIEVED);
+    			}
+    			
+    			if (mPlayPos < 0 || mPlayPos >= mPlayList.size() || id != mPlayList.get(mPlayPos)) {
+    				return;
+    			}
+    			
+    			refreshCursor(id);
+    		}
+    	});
+    }
+    
+    @Override
+	public void onMetadataParsed(final long [] ids, Metadata [] metadata) {
+    	final boolean isUpdated = updateMetadata(ids, metadata) > 0;
+    	
+    	post(new Runnable() {
+    		@Override
+    		public void run() {
+    			if (isUpdated) {
+    				notifyChange(META_RETRIEVED);
+    			}
+    			
+    			if (mPlayPos < 0 || mPlayPos >= mPlayList.size()) {
+    				return;
+    			}
+    			
+    			for (int i = 0; i < ids.length; i++) {
+    				if (ids[i] == mPlayList.get(mPlayPos)) {
+    					refreshCursor(ids[i]);
+    					break;
+    				}
+    			}
+    		}
+    	});
+    }
+    
+    private void refreshCursor(long id) {
     	Cursor cursor;
     	Cursor tempCursor;
     	
@@ -2365,16 +2978,7 @@ public class MediaPlaybackService extends Service implements
     private int updateMetadata(long id, Metadata metadata) {
 		int rows = 0;
 		
-		// Form an array specifying which columns to return. 
-		ContentValues values = new ContentValues();
-		values.put(Media.MediaColumns.TITLE, validateAttribute(metadata.getString(Metadata.METADATA_KEY_TITLE)));
-		values.put(Media.MediaColumns.ALBUM, validateAttribute(metadata.getString(Metadata.METADATA_KEY_ALBUM)));
-		values.put(Media.MediaColumns.ARTIST, validateAttribute(metadata.getString(Metadata.METADATA_KEY_ARTIST)));
-		values.put(Media.MediaColumns.DURATION, convertToInteger(metadata.getString(Metadata.METADATA_KEY_DURATION)));
-		
-		if (metadata.getByteArray(Metadata.METADATA_KEY_ARTWORK) != null) {
-			values.put(Media.MediaColumns.ARTWORK, metadata.getByteArray(Metadata.METADATA_KEY_ARTWORK));
-		}
+		ContentValues values = getContentValues(metadata);
 		
 		// Get the base URI for the Media Files table in the Media content provider.
         Uri mediaFile = ContentUris.withAppendedId(Media.MediaColumns.CONTENT_URI, id);
@@ -2389,6 +2993,57 @@ public class MediaPlaybackService extends Service implements
 		return rows;
 	}
     
+    /**
+     * Writes the metadata of several media files in a single transaction.
+     */
+    private int updateMetadata(long [] ids, Metadata [] metadata) {
+    	int rows = 0;
+    	
+    	ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    	for (int i = 0; i < ids.length; i++) {
+    		operations.add(ContentProviderOperation.newUpdate(
+    				ContentUris.withAppendedId(Media.MediaColumns.CONTENT_URI, ids[i]))
+    				.withValues(getContentValues(metadata[i]))
+    				.build());
+    	}
+    	
+    	try {
+    		ContentProviderResult [] results = getContentResolver().applyBatch(Media.AUTHORITY, operations);
+    		for (int i = 0; i < results.length; i++) {
+    			if (results[i].count != null) {
+    				rows += results[i].count;
+    			}
+    		}
+    	} catch (RemoteException e) {
+    		Log.e(LOGTAG, "Unable to store metadata", e);
+    	} catch (OperationApplicationException e) {
+    		Log.e(LOGTAG, "Unable to store metadata", e);
+    	}
+    	
+    	return rows;
+    }
+    
+    private ContentValues getContentValues(Metadata metadata) {
+		ContentValues values = new ContentValues();
+		values.put(Media.MediaColumns.TITLE, validateAttribute(metadata.getString(Metadata.METADATA_KEY_TITLE)));
+		values.put(Media.MediaColumns.ALBUM, validateAttribute(metadata.getString(Metadata.METADATA_KEY_ALBUM)));
+		values.put(Media.MediaColumns.ARTIST, validateAttribute(metadata.getString(Metadata.METADATA_KEY_ARTIST)));
+		values.put(Media.MediaColumns.DURATION, convertToInteger(metadata.getString(Metadata.METADATA_KEY_DURATION)));
+		
+		if (metadata.getByteArray(Metadata.METADATA_KEY_ARTWORK) != null) {
+			values.put(Media.MediaColumns.ARTWORK, metadata.getByteArray(Metadata.METADATA_KEY_ARTWORK));
+		}
+		
+		// the validators let the metadata be revalidated instead of read again
+		if (metadata.has(Metadata.METADATA_KEY_CONTENT_LENGTH)) {
+			values.put(Media.MediaColumns.ETAG, metadata.getString(Metadata.METADATA_KEY_ETAG));
+			values.put(Media.MediaColumns.LAST_MODIFIED, metadata.getString(Metadata.METADATA_KEY_LAST_MODIFIED));
+			values.put(Media.MediaColumns.CONTENT_LENGTH, Long.valueOf(metadata.getString(Metadata.METADATA_KEY_CONTENT_LENGTH)));
+		}
+		
+		return values;
+	}
+    
     private String validateAttribute(String attribute) {
 		if (attribute == null) {
 			return Media.UNKNOWN_STRING;
@@ -2413,11 +3068,12 @@ public class MediaPlaybackService extends Service implements
 		return integerAttribute;
 	}
     
-    private Handler mDelayedPlaybackHandler = new Handler() {
+    private Handler mDelayedPlaybackHandler = new Handler(mExecutor.getLooper()) {
         @Override
         public void handleMessage(Message msg) {
             gotoNext(false);
             notifyChange(META_CHANGED);
+            publishState();
         }
     };
 	
@@ -2429,8 +3085,8 @@ public class MediaPlaybackService extends Service implements
             stop(true);
             mOpenFailedCounter++;
             
-            if (mPlayListLen > 1) {
-            	if (mOpenFailedCounter == mPlayListLen) {
+            if (mPlayList.size() > 1) {
+            	if (mOpenFailedCounter == mPlayList.size()) {
             		mOpenFailedCounter = 0;
             	} else {
             		mDelayedPlaybackHandler.sendEmptyMessageDelayed(0, 2500);
@@ -2438,7 +3094,7 @@ public class MediaPlaybackService extends Service implements
             }
             
             if (!mQuietMode) {
-            	Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+            	showToast(R.string.playback_failed);
             }
             
             Log.d(LOGTAG, "Failed to open file for playback");
@@ -2448,9 +3104,14 @@ public class MediaPlaybackService extends Service implements
     }
 
 	@Override
-	public void onMusicRetrieverPrepared(String action, UriBean uri, long[] list) {
+	public void onMusicRetrieverPrepared(String action, UriBean uri, final long[] list) {
 		if (action.equals(DetermineActionTask.URL_ACTION_PLAY)) {
-			open(list, 0);
+			post(new Runnable() {
+				@Override
+				public void run() {
+					open(list, 0);
+				}
+			});
 		}
 	}
 }
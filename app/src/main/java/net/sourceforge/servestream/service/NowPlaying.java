@@ -0,0 +1,96 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import net.sourceforge.servestream.provider.Media;
+
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+/**
+ * The details of the current track, read from its cursor once when the
+ * cursor changes, so the getters and the notifications don't go back to
+ * the cursor for every value.
+ */
+final class NowPlaying {
+
+	/**
+	 * No track is loaded.
+	 */
+	static final NowPlaying NONE = new NowPlaying(-1, null, null, null, null, -1, -1, -1);
+
+	final int mTrackId;
+	final String mUri;
+	final String mTitle;
+	final String mAlbum;
+	final String mArtist;
+	final int mDuration;
+	final long mAlbumId;
+	final long mArtistId;
+
+	private NowPlaying(int trackId, String uri, String title, String album, String artist,
+			int duration, long albumId, long artistId) {
+		mTrackId = trackId;
+		mUri = uri;
+		mTitle = title;
+		mAlbum = album;
+		mArtist = artist;
+		mDuration = duration;
+		mAlbumId = albumId;
+		mArtistId = artistId;
+	}
+
+	/**
+	 * @param cursor A cursor positioned on the track, or null.
+	 * @return the details of the track, or {@link #NONE} if the cursor
+	 * isn't on a row.
+	 */
+	static NowPlaying fromCursor(Cursor cursor) {
+		if (cursor == null || cursor.isBeforeFirst() || cursor.isAfterLast()) {
+			return NONE;
+		}
+
+		return new NowPlaying(
+				getInt(cursor, Media.MediaColumns._ID),
+				getString(cursor, Media.MediaColumns.URI),
+				getString(cursor, Media.MediaColumns.TITLE),
+				getString(cursor, Media.MediaColumns.ALBUM),
+				getString(cursor, Media.MediaColumns.ARTIST),
+				getInt(cursor, Media.MediaColumns.DURATION),
+				getLong(cursor, MediaStore.Audio.Media.ALBUM_ID),
+				getLong(cursor, MediaStore.Audio.Media.ARTIST_ID));
+	}
+
+	// the album and artist ids aren't in the service's projection, a
+	// missing column reads as unknown
+
+	private static String getString(Cursor cursor, String column) {
+		int index = cursor.getColumnIndex(column);
+		return index != -1 ? cursor.getString(index) : null;
+	}
+
+	private static int getInt(Cursor cursor, String column) {
+		int index = cursor.getColumnIndex(column);
+		return index != -1 ? cursor.getInt(index) : -1;
+	}
+
+	private static long getLong(Cursor cursor, String column) {
+		int index = cursor.getColumnIndex(column);
+		return index != -1 ? cursor.getLong(index) : -1;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Runs the commands of the playback service one at a time on a thread of
+ * their own. The thread owns the player and the queue, so the commands
+ * don't need a lock and never overlap, and callers that only read the
+ * state don't have to wait for them.
+ * <p>
+ * A command issued on the thread itself runs right away.
+ */
+final class PlaybackExecutor {
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+
+	PlaybackExecutor() {
+		mThread = new HandlerThread("MediaPlaybackService");
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * @return the looper of the thread, for handlers whose messages change
+	 * the state of the player.
+	 */
+	Looper getLooper() {
+		return mThread.getLooper();
+	}
+
+	boolean isCurrentThread() {
+		return Looper.myLooper() == mThread.getLooper();
+	}
+
+	/**
+	 * Runs the command later, without waiting for it.
+	 */
+	void post(Runnable command) {
+		mHandler.post(command);
+	}
+
+	/**
+	 * Runs the command and waits for it to finish.
+	 */
+	void execute(Runnable command) {
+		call(new FutureTask<Void>(command, null));
+	}
+
+	/**
+	 * Runs the command and waits for its result.
+	 */
+	<T> T call(Callable<T> command) {
+		if (isCurrentThread()) {
+			try {
+				return command.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		return call(new FutureTask<T>(command));
+	}
+
+	/**
+	 * Stops the thread once the commands issued so far have run.
+	 */
+	void quit() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mThread.quit();
+			}
+		});
+	}
+
+	private <T> T call(FutureTask<T> task) {
+		if (isCurrentThread() || !mHandler.post(task)) {
+			// the thread is gone, the service is being torn down
+			task.run();
+		}
+
+		// a binder thread isn't interrupted, but if it is the command still
+		// has to finish before the caller goes on
+		boolean isInterrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			if (isInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Stores the play queue of the service in a file. The queue is written as
+ * a list of variable length deltas between consecutive ids, which takes a
+ * byte or two per track for a queue built from the database. Writes happen
+ * on a background thread; when the queue changes faster than it can be
+ * written only the latest state is written.
+ * <p>
+ * Layout, all numbers are varints and signed numbers are zigzag encoded:
+ * <pre>
+ * magic (4 bytes), card id, play position, seek position, repeat mode,
+ * shuffle mode, queue length, id deltas, history length + 1 (0 if there is
+ * no history), history entries
+ * </pre>
+ */
+final class QueueStore {
+	private static final String TAG = QueueStore.class.getName();
+
+	private static final String FILE_NAME = "queue";
+	private static final String TEMP_FILE_NAME = "queue.tmp";
+
+	// "SSQ" and the version of the layout
+	private static final int MAGIC = 0x53535101;
+
+	// the keys the queue was stored under in the preferences before
+	private static final String [] LEGACY_KEYS = {
+		"queue", "history", "cardid", "curpos", "seekpos", "repeatmode", "shufflemode"
+	};
+
+	private final Context mContext;
+
+	// the state of the last edit, the next edit starts from it
+	private State mState = new State();
+
+	// the state waiting to be written, null if there is none
+	private State mPending = null;
+	private boolean mIsWriting = false;
+
+	/**
+	 * A saved queue. The arrays are never modified once the state is
+	 * saved, so states can share them.
+	 */
+	static final class State {
+		int mCardId = 0;
+		long [] mPlayList = new long[0];
+		int [] mHistory = null;
+		int mPlayPos = 0;
+		long mSeekPos = 0;
+		int mRepeatMode = 0;
+		int mShuffleMode = 0;
+
+		private State copy() {
+			State state = new State();
+			state.mCardId = mCardId;
+			state.mPlayList = mPlayList;
+			state.mHistory = mHistory;
+			state.mPlayPos = mPlayPos;
+			state.mSeekPos = mSeekPos;
+			state.mRepeatMode = mRepeatMode;
+			state.mShuffleMode = mShuffleMode;
+			return state;
+		}
+	}
+
+	/**
+	 * Changes to the saved state, applied with {@link #apply()}. Values that
+	 * aren't put keep what was saved last.
+	 */
+	final class Editor {
+		private final State mEdit = mState.copy();
+
+		private Editor() {
+
+		}
+
+		Editor putQueue(long [] playList, int length, int cardId) {
+			long [] copy = new long[length];
+			if (length > 0) {
+				System.arraycopy(playList, 0, copy, 0, length);
+			}
+			mEdit.mPlayList = copy;
+			mEdit.mCardId = cardId;
+			return this;
+		}
+
+		/**
+		 * @param history The shuffle history, or null if shuffle is off.
+		 */
+		Editor putHistory(List<Integer> history) {
+			if (history == null) {
+				mEdit.mHistory = null;
+				return this;
+			}
+
+			int [] copy = new int[history.size()];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = history.get(i);
+			}
+			mEdit.mHistory = copy;
+			return this;
+		}
+
+		Editor putPlayPos(int playPos) {
+			mEdit.mPlayPos = playPos;
+			return this;
+		}
+
+		Editor putSeekPos(long seekPos) {
+			mEdit.mSeekPos = seekPos;
+			return this;
+		}
+
+		Editor putRepeatMode(int repeatMode) {
+			mEdit.mRepeatMode = repeatMode;
+			return this;
+		}
+
+		Editor putShuffleMode(int shuffleMode) {
+			mEdit.mShuffleMode = shuffleMode;
+			return this;
+		}
+
+		/**
+		 * Writes the state in the background.
+		 */
+		void apply() {
+			save(mEdit);
+		}
+	}
+
+	QueueStore(Context context) {
+		mContext = context;
+	}
+
+	synchronized Editor edit() {
+		return new Editor();
+	}
+
+	/**
+	 * @return the playback position saved last, in milliseconds.
+	 */
+	synchronized long getSeekPos() {
+		return mState.mSeekPos;
+	}
+
+	/**
+	 * Reads the saved queue, or the queue stored in the preferences by an
+	 * earlier version.
+	 *
+	 * @param cardId The card id to assume for a queue stored before card
+	 * ids were.
+	 * @return the saved state, or null if there is none or it can't be
+	 * read.
+	 */
+	State load(SharedPreferences preferences, int cardId) {
+		long start = System.nanoTime();
+		State state = null;
+
+		try {
+			state = decode(read());
+		} catch (IOException e) {
+			// there is no file yet
+		}
+
+		if (state == null && preferences.contains("queue")) {
+			state = loadLegacy(preferences, cardId);
+		}
+
+		if (state != null) {
+			synchronized (this) {
+				mState = state;
+			}
+
+			Log.d(TAG, "restored a queue of " + state.mPlayList.length + " tracks in " +
+					(System.nanoTime() - start) / 1000 + " us");
+		}
+
+		return state;
+	}
+
+	/**
+	 * Waits until the pending state is written, e.g. before the service is
+	 * destroyed.
+	 */
+	synchronized void flush() {
+		while (mPending != null || mIsWriting) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void save(State state) {
+		synchronized (this) {
+			mState = state;
+			boolean isWriterRunning = mPending != null || mIsWriting;
+			mPending = state;
+
+			// the running writer picks the state up when it is done
+			if (isWriterRunning) {
+				return;
+			}
+			mIsWriting = true;
+		}
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writePending();
+			}
+		}, "").start();
+	}
+
+	private void writePending() {
+		while (true) {
+			State state;
+
+			synchronized (this) {
+				state = mPending;
+				mPending = null;
+
+				if (state == null) {
+					mIsWriting = false;
+					notifyAll();
+					return;
+				}
+			}
+
+			long start = System.nanoTime();
+			byte [] data = encode(state);
+
+			try {
+				write(data);
+				removeLegacyQueue();
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to save the queue: " + e.getMessage());
+				continue;
+			}
+
+			Log.v(TAG, "saved a queue of " + state.mPlayList.length + " tracks (" + data.length +
+					" bytes) in " + (System.nanoTime() - start) / 1000 + " us");
+		}
+	}
+
+	private void write(byte [] data) throws IOException {
+		File temp = new File(mContext.getFilesDir(), TEMP_FILE_NAME);
+		FileOutputStream out = new FileOutputStream(temp);
+
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		// a queue is never left half written
+		if (!temp.renameTo(new File(mContext.getFilesDir(), FILE_NAME))) {
+			throw new IOException("Unable to rename " + temp);
+		}
+	}
+
+	private byte [] read() throws IOException {
+		InputStream in = new FileInputStream(new File(mContext.getFilesDir(), FILE_NAME));
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte [] buffer = new byte[8 * 1024];
+			int count;
+
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static byte [] encode(State state) {
+		int historyLength = state.mHistory != null ? state.mHistory.length : 0;
+		Writer writer = new Writer(32 + state.mPlayList.length * 2 + historyLength);
+
+		writer.writeFixedInt(MAGIC);
+		writer.writeSigned(state.mCardId);
+		writer.writeSigned(state.mPlayPos);
+		writer.writeSigned(state.mSeekPos);
+		writer.writeUnsigned(state.mRepeatMode);
+		writer.writeUnsigned(state.mShuffleMode);
+
+		writer.writeUnsigned(state.mPlayList.length);
+		long previous = 0;
+		for (int i = 0; i < state.mPlayList.length; i++) {
+			writer.writeSigned(state.mPlayList[i] - previous);
+			previous = state.mPlayList[i];
+		}
+
+		if (state.mHistory == null) {
+			writer.writeUnsigned(0);
+		} else {
+			writer.writeUnsigned(historyLength + 1);
+			for (int i = 0; i < historyLength; i++) {
+				writer.writeUnsigned(state.mHistory[i]);
+			}
+		}
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * @return the state, or null if the data isn't a saved queue.
+	 */
+	static State decode(byte [] data) {
+		Reader reader = new Reader(data);
+
+		try {
+			if (reader.readFixedInt() != MAGIC) {
+				return null;
+			}
+
+			State state = new State();
+			state.mCardId = (int) reader.readSigned();
+			state.mPlayPos = (int) reader.readSigned();
+			state.mSeekPos = reader.readSigned();
+			state.mRepeatMode = (int) reader.readUnsigned();
+			state.mShuffleMode = (int) reader.readUnsigned();
+
+			int length = reader.readLength();
+			state.mPlayList = new long[length];
+			long id = 0;
+			for (int i = 0; i < length; i++) {
+				id += reader.readSigned();
+				state.mPlayList[i] = id;
+			}
+
+			int historyLength = reader.readLength() - 1;
+			if (historyLength >= 0) {
+				state.mHistory = new int[historyLength];
+				for (int i = 0; i < historyLength; i++) {
+					state.mHistory[i] = (int) reader.readUnsigned();
+				}
+			}
+
+			return state;
+		} catch (IOException e) {
+			Log.e(TAG, "Discarding the saved queue: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private State loadLegacy(SharedPreferences preferences, int cardId) {
+		State state = new State();
+		state.mCardId = preferences.getInt("cardid", cardId);
+		state.mPlayList = parseLegacyList(preferences.getString("queue", ""));
+		state.mPlayPos = preferences.getInt("curpos", 0);
+		state.mSeekPos = preferences.getLong("seekpos", 0);
+		state.mRepeatMode = preferences.getInt("repeatmode", 0);
+		state.mShuffleMode = preferences.getInt("shufflemode", 0);
+
+		if (preferences.contains("history")) {
+			long [] history = parseLegacyList(preferences.getString("history", ""));
+			state.mHistory = new int[history.length];
+			for (int i = 0; i < history.length; i++) {
+				state.mHistory[i] = (int) history[i];
+			}
+		}
+
+		return state;
+	}
+
+	/**
+	 * Parses a list of "reverse hexadecimal" numbers, each followed by a
+	 * semicolon, the format of the queue in the preferences.
+	 */
+	private static long [] parseLegacyList(String q) {
+		long [] list = new long[16];
+		int length = 0;
+		long n = 0;
+		int shift = 0;
+
+		for (int i = 0; i < q.length(); i++) {
+			char c = q.charAt(i);
+			if (c == ';') {
+				if (length == list.length) {
+					long [] newList = new long[length * 2];
+					System.arraycopy(list, 0, newList, 0, length);
+					list = newList;
+				}
+				list[length++] = n;
+				n = 0;
+				shift = 0;
+			} else if (c >= '0' && c <= '9') {
+				n += ((long) (c - '0') << shift);
+				shift += 4;
+			} else if (c >= 'a' && c <= 'f') {
+				n += ((long) (10 + c - 'a') << shift);
+				shift += 4;
+			} else {
+				// bogus playlist data
+				return new long[0];
+			}
+		}
+
+		long [] result = new long[length];
+		System.arraycopy(list, 0, result, 0, length);
+		return result;
+	}
+
+	private void removeLegacyQueue() {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+		if (!preferences.contains("queue")) {
+			return;
+		}
+
+		SharedPreferences.Editor ed = preferences.edit();
+		for (int i = 0; i < LEGACY_KEYS.length; i++) {
+			ed.remove(LEGACY_KEYS[i]);
+		}
+		ed.commit();
+	}
+
+	private static final class Writer {
+		private byte [] mBuffer;
+		private int mLength = 0;
+
+		private Writer(int capacity) {
+			mBuffer = new byte[capacity];
+		}
+
+		private void writeFixedInt(int value) {
+			ensureCapacity(4);
+			mBuffer[mLength++] = (byte) (value >>> 24);
+			mBuffer[mLength++] = (byte) (value >>> 16);
+			mBuffer[mLength++] = (byte) (value >>> 8);
+			mBuffer[mLength++] = (byte) value;
+		}
+
+		private void writeSigned(long value) {
+			writeUnsigned((value << 1) ^ (value >> 63));
+		}
+
+		private void writeUnsigned(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7fL) != 0) {
+				mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			mBuffer[mLength++] = (byte) value;
+		}
+
+		private void ensureCapacity(int count) {
+			if (mLength + count > mBuffer.length) {
+				byte [] buffer = new byte[Math.max(mBuffer.length * 2, mLength + count)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+				mBuffer = buffer;
+			}
+		}
+
+		private byte [] toByteArray() {
+			byte [] data = new byte[mLength];
+			System.arraycopy(mBuffer, 0, data, 0, mLength);
+			return data;
+		}
+	}
+
+	private static final class Reader {
+		private final byte [] mData;
+		private int mPosition = 0;
+
+		private Reader(byte [] data) {
+			mData = data;
+		}
+
+		private int readFixedInt() throws IOException {
+			if (mPosition + 4 > mData.length) {
+				throw new IOException("Truncated queue");
+			}
+
+			return (mData[mPosition++] & 0xff) << 24 | (mData[mPosition++] & 0xff) << 16 |
+					(mData[mPosition++] & 0xff) << 8 | (mData[mPosition++] & 0xff);
+		}
+
+		private long readSigned() throws IOException {
+			long value = readUnsigned();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readUnsigned() throws IOException {
+			long value = 0;
+
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (mPosition == mData.length) {
+					throw new IOException("Truncated queue");
+				}
+
+				byte b = mData[mPosition++];
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * @return a count that fits in what is left of the data, each entry
+		 * takes at least a byte.
+		 */
+		private int readLength() throws IOException {
+			long length = readUnsigned();
+			if (length > mData.length - mPosition + 1) {
+				throw new IOException("Bad length " + length);
+			}
+			return (int) length;
+		}
+	}
+}
@@ -105,4 +105,39 @@ public abstract class AbsTransport {
 	public abstract boolean usesNetwork();
 	
 	public abstract boolean isPotentialPlaylist();
+	
+	/**
+	 * Sets the request method, ignored by transports that aren't HTTP based.
+	 * Must be called before {@link #connect()}.
+	 * 
+	 * @param method the request method, e.g. "GET" or "HEAD"
+	 */
+	public void setRequestMethod(String method) {
+	}
+	
+	/**
+	 * Sets a request header, ignored by transports that aren't HTTP based.
+	 * Must be called before {@link #connect()}.
+	 * 
+	 * @param field the header name
+	 * @param value the header value
+	 */
+	public void setRequestProperty(String field, String value) {
+	}
+	
+	/**
+	 * @return the response code of the request, or -1 if the transport
+	 * isn't HTTP based
+	 */
+	public int getResponseCode() {
+		return -1;
+	}
+	
+	/**
+	 * @param field the header name
+	 * @return the value of the response header, or null if it is not present
+	 */
+	public String getHeaderField(String field) {
+		return null;
+	}
 }
@@ -26,11 +26,11 @@ import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.HashMap;
 import java.util.Map;
 
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.database.StreamDatabase;
-import net.sourceforge.servestream.utils.Utils;
 
 import android.net.Uri;
 
@@ -43,6 +43,8 @@ public class HTTP extends AbsTransport {
 	private InputStream is = null;
 	private int mResponseCode = -1;
 	private String mContentType = null;
+	private String mRequestMethod = "GET";
+	private Map<String, String> mRequestProperties = new HashMap<String, String>();
 	
 	public HTTP() {
 		super();
@@ -175,11 +177,11 @@ public class HTTP extends AbsTransport {
     		url = uri.getURL();
     	}
 
-    	conn = (HttpURLConnection) url.openConnection();        	
-    	conn.setConnectTimeout(6000);
-    	conn.setReadTimeout(6000);
-	    conn.setRequestMethod("GET");
-    	conn.setRequestProperty("User-Agent", "ServeStream");
+    	conn = HttpClient.open(url);
+	    conn.setRequestMethod(mRequestMethod);
+    	for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+    		conn.setRequestProperty(property.getKey(), property.getValue());
+    	}
     		
 	    mResponseCode = conn.getResponseCode();
 		    
@@ -188,13 +190,17 @@ public class HTTP extends AbsTransport {
 	    }
 	        
 	    mContentType = conn.getContentType();
-	    is = conn.getInputStream();
+	    
+	    // a HEAD request or a 304 response has no body
+	    if (!mRequestMethod.equals("HEAD") &&
+	    		mResponseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+	    	is = conn.getInputStream();
+	    }
 	}
 
 	@Override
 	public void close() {
-		Utils.closeInputStream(is);
-		Utils.closeHttpConnection(conn);		
+		HttpClient.release(conn, is);
 	}
 
 	@Override
@@ -293,4 +299,28 @@ public class HTTP extends AbsTransport {
 	public boolean isPotentialPlaylist() {
 		return true;
 	}
+	
+	@Override
+	public void setRequestMethod(String method) {
+		mRequestMethod = method;
+	}
+	
+	@Override
+	public void setRequestProperty(String field, String value) {
+		mRequestProperties.put(field, value);
+	}
+	
+	@Override
+	public int getResponseCode() {
+		return mResponseCode;
+	}
+	
+	@Override
+	public String getHeaderField(String field) {
+		if (conn == null) {
+			return null;
+		}
+		
+		return conn.getHeaderField(field);
+	}
 }
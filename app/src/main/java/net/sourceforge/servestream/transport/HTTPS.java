@@ -36,11 +36,11 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.Map;
 
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.database.StreamDatabase;
-import net.sourceforge.servestream.utils.Utils;
 
 import android.net.Uri;
 
@@ -53,6 +53,8 @@ public class HTTPS extends AbsTransport {
 	private InputStream is = null;
 	private int mResponseCode = -1;
 	private String mContentType = null;
+	private String mRequestMethod = "GET";
+	private Map<String, String> mRequestProperties = new HashMap<String, String>();
 	
 	public HTTPS() {
 		super();
@@ -186,12 +188,12 @@ public class HTTPS extends AbsTransport {
     	}
 
     	trustAllHosts();
-    	conn = (HttpsURLConnection) url.openConnection();   
+    	conn = (HttpsURLConnection) HttpClient.open(url);
     	conn.setHostnameVerifier(DO_NOT_VERIFY);
-    	conn.setConnectTimeout(6000);
-    	conn.setReadTimeout(6000);
-	    conn.setRequestMethod("GET");
-    	conn.setRequestProperty("User-Agent", "ServeStream");
+	    conn.setRequestMethod(mRequestMethod);
+    	for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+    		conn.setRequestProperty(property.getKey(), property.getValue());
+    	}
     	
 	    mResponseCode = conn.getResponseCode();
 		    
@@ -200,13 +202,17 @@ public class HTTPS extends AbsTransport {
 	    }
 	        
 	    mContentType = conn.getContentType();
-	    is = conn.getInputStream();
+	    
+	    // a HEAD request or a 304 response has no body
+	    if (!mRequestMethod.equals("HEAD") &&
+	    		mResponseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+	    	is = conn.getInputStream();
+	    }
 	}
 
 	@Override
 	public void close() {
-		Utils.closeInputStream(is);
-		Utils.closeHttpConnection(conn);		
+		HttpClient.release(conn, is);
 	}
 
 	@Override
@@ -306,6 +312,30 @@ public class HTTPS extends AbsTransport {
 		return true;
 	}
 	
+	@Override
+	public void setRequestMethod(String method) {
+		mRequestMethod = method;
+	}
+	
+	@Override
+	public void setRequestProperty(String field, String value) {
+		mRequestProperties.put(field, value);
+	}
+	
+	@Override
+	public int getResponseCode() {
+		return mResponseCode;
+	}
+	
+	@Override
+	public String getHeaderField(String field) {
+		if (conn == null) {
+			return null;
+		}
+		
+		return conn.getHeaderField(field);
+	}
+	
 	// always verify the host - dont check for certificate
 	private final HostnameVerifier DO_NOT_VERIFY = new HostnameVerifier() {
 	        public boolean verify(String hostname, SSLSession session) {
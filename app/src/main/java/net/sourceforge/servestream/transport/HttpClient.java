@@ -0,0 +1,181 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases the HTTP connections of the app so they are kept
+ * alive and reused per host. The pooling itself is done by the platform's
+ * HttpURLConnection, which only reuses a connection whose response was
+ * read to the end and closed without calling disconnect(); this class
+ * configures the pool and releases connections the way it needs them.
+ */
+public final class HttpClient {
+	private static final long IDLE_TIMEOUT = 30000;
+	private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+
+	private static final int CONNECT_TIMEOUT = 6000;
+	private static final int READ_TIMEOUT = 6000;
+
+	// the rest of a response is read to keep the connection if it is at most
+	// this long, longer responses are cheaper to abandon
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	private static boolean sIsConfigured = false;
+
+	private HttpClient() {
+
+	}
+
+	/**
+	 * Opens a connection with the app's user agent and timeouts. The
+	 * connection should be released with {@link #release} once the response
+	 * has been read.
+	 */
+	public static HttpURLConnection open(URL url) throws IOException {
+		synchronized (HttpClient.class) {
+			configure();
+		}
+
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setRequestProperty("User-Agent", "ServeStream");
+		return conn;
+	}
+
+	/**
+	 * Returns the connection to the pool. What is left of the response is
+	 * read first, unless it is too long or has no end, in which case the
+	 * connection is closed instead.
+	 *
+	 * @param conn The connection, may be null.
+	 * @param in The response stream of the connection, or null if it was
+	 * never opened.
+	 */
+	public static void release(HttpURLConnection conn, InputStream in) {
+		if (conn == null) {
+			return;
+		}
+
+		long length = getContentLength(conn);
+		boolean reusable = false;
+
+		try {
+			if (in == null) {
+				// the response wasn't read, a body it may have is in the way
+				reusable = length == 0;
+			} else if (length > MAX_DRAIN_BYTES) {
+				// e.g. a media file that was only probed, the rest isn't
+				// worth downloading to keep the connection
+				reusable = false;
+			} else if (length != -1 ||
+					"chunked".equalsIgnoreCase(conn.getHeaderField("Transfer-Encoding"))) {
+				reusable = drain(in);
+			} else {
+				// a response without a length or chunks ends when the
+				// connection is closed, it can't be reused
+				reusable = false;
+			}
+		} catch (IOException e) {
+			reusable = false;
+		}
+
+		if (reusable) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				reusable = false;
+			}
+		}
+
+		if (!reusable) {
+			disconnect(conn, in);
+		}
+	}
+
+	/**
+	 * Closes the connection without returning it to the pool, for responses
+	 * that were abandoned part way.
+	 */
+	public static void disconnect(HttpURLConnection conn, InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		if (conn != null) {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * @return the Content-Length of the response, which may be longer than
+	 * an int holds, or -1 if it has none or it can't be read.
+	 */
+	public static long getContentLength(HttpURLConnection conn) {
+		String value = conn.getHeaderField("Content-Length");
+		if (value == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void configure() {
+		if (sIsConfigured) {
+			return;
+		}
+
+		// read by the platform's connection pool when it is created
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS_PER_HOST));
+		System.setProperty("http.keepAliveDuration", String.valueOf(IDLE_TIMEOUT));
+		sIsConfigured = true;
+	}
+
+	/**
+	 * Reads the stream to the end.
+	 *
+	 * @return false if the stream is longer than {@link #MAX_DRAIN_BYTES}.
+	 */
+	private static boolean drain(InputStream in) throws IOException {
+		byte [] buffer = new byte[4096];
+		int total = 0;
+		int count;
+
+		while ((count = in.read(buffer)) != -1) {
+			total += count;
+			if (total > MAX_DRAIN_BYTES) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers what connecting to a URI revealed about it for a short while,
+ * so the content type doesn't have to be requested again when a stream
+ * that was just browsed to is played.
+ */
+public final class ProbeCache {
+
+	private static final long TTL = 60000;
+
+	private static final String [] ICY_HEADERS = {
+		"icy-name", "icy-genre", "icy-url", "icy-br", "icy-metaint"
+	};
+
+	private static final Map<String, Result> sResults = new HashMap<String, Result>();
+
+	private ProbeCache() {
+
+	}
+
+	/**
+	 * The content type and ICY headers of a response.
+	 */
+	public static final class Result {
+		private final String mContentType;
+		private final Map<String, String> mHeaders = new HashMap<String, String>();
+		private final long mTime = System.currentTimeMillis();
+
+		private Result(String contentType) {
+			mContentType = contentType;
+		}
+
+		public String getContentType() {
+			return mContentType;
+		}
+
+		/**
+		 * @param name The lower case name of an icy-* header.
+		 * @return the value of the header, or null if it wasn't sent.
+		 */
+		public String getHeaderField(String name) {
+			return mHeaders.get(name);
+		}
+	}
+
+	/**
+	 * Stores what the connected transport revealed about the URI.
+	 */
+	public static void put(String uri, AbsTransport transport) {
+		String contentType = transport.getContentType();
+		if (contentType == null) {
+			return;
+		}
+
+		Result result = new Result(contentType);
+		for (int i = 0; i < ICY_HEADERS.length; i++) {
+			String value = transport.getHeaderField(ICY_HEADERS[i]);
+			if (value != null) {
+				result.mHeaders.put(ICY_HEADERS[i], value);
+			}
+		}
+
+		synchronized (sResults) {
+			expire();
+			sResults.put(getKey(uri), result);
+		}
+	}
+
+	/**
+	 * @return the result of a recent connection to the URI, or null if
+	 * there was none.
+	 */
+	public static Result get(String uri) {
+		synchronized (sResults) {
+			expire();
+			return sResults.get(getKey(uri));
+		}
+	}
+
+	/**
+	 * @return the URI with a lower case scheme and host and without a
+	 * default port or fragment, so different spellings of the same URI
+	 * match.
+	 */
+	public static String getKey(String uri) {
+		URL url;
+		try {
+			url = new URL(uri);
+		} catch (MalformedURLException e) {
+			return uri;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(url.getProtocol().toLowerCase(Locale.US)).append("://");
+		if (url.getUserInfo() != null) {
+			sb.append(url.getUserInfo()).append('@');
+		}
+		sb.append(url.getHost().toLowerCase(Locale.US));
+		if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+			sb.append(':').append(url.getPort());
+		}
+		sb.append(url.getPath().length() > 0 ? url.getPath() : "/");
+		if (url.getQuery() != null) {
+			sb.append('?').append(url.getQuery());
+		}
+
+		return sb.toString();
+	}
+
+	private static void expire() {
+		long oldest = System.currentTimeMillis() - TTL;
+		Iterator<Result> it = sResults.values().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().mTime < oldest) {
+				it.remove();
+			}
+		}
+	}
+}
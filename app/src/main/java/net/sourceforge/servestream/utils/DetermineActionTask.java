@@ -18,9 +18,11 @@
 package net.sourceforge.servestream.utils;
 
 import java.net.ProtocolException;
+import java.util.Locale;
 
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.transport.AbsTransport;
+import net.sourceforge.servestream.transport.ProbeCache;
 import net.sourceforge.servestream.transport.TransportFactory;
 import android.content.Context;
 import android.os.AsyncTask;
@@ -36,6 +38,14 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 	public static final String URL_ACTION_BROWSE = "browse";
 	public static final String URL_ACTION_PLAY = "play";
 	
+	// audio and video content types that are used for playlists
+	private static final String [] PLAYLIST_TYPES = {
+		"mpegurl", "scpls", "ms-asf", "x-ms-wax", "x-ms-wvx", "xspf"
+	};
+	private static final String [] PLAYLIST_EXTENSIONS = {
+		".m3u", ".m3u8", ".pls", ".asx", ".xspf"
+	};
+	
 	private Context mContext;
 	private UriBean mUri;
 	private MusicRetrieverPreparedListener mListener;
@@ -60,9 +70,17 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 	private void processUri() {
 		AbsTransport transport = TransportFactory.getTransport(getUri().getProtocol());
 		transport.setUri(getUri());
+		// the metadata is removed by the stream proxy
+		transport.setRequestProperty("Icy-MetaData", "1");
+		boolean isHandedOff = false;
 		
 		try {
 			transport.connect();
+			
+			String uri = getUri().getScrubbedUri().toString();
+			if (transport.usesNetwork()) {
+				ProbeCache.put(uri, transport);
+			}
 		
 			if (transport.getContentType() == null) {
 				mAction = URL_ACTION_UNDETERMINED;
@@ -70,10 +88,16 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 				mAction = URL_ACTION_BROWSE;
 			} else {
 				mAction = URL_ACTION_PLAY;
-				if (transport.isPotentialPlaylist()) {
-					mList = MusicUtils.getFilesInPlaylist(mContext, getUri().getScrubbedUri().toString(), transport.getContentType(), transport.getConnection());
+				if (transport.isPotentialPlaylist() && !isMediaStream(uri, transport.getContentType())) {
+					mList = MusicUtils.getFilesInPlaylist(mContext, uri, transport.getContentType(), transport.getConnection());
 				} else {
-					mList = MusicUtils.storeFile(mContext, getUri().getScrubbedUri().toString());
+					mList = MusicUtils.storeFile(mContext, uri);
+					
+					// the stream is about to be played, keep the response
+					// so it isn't requested again
+					if (transport.usesNetwork()) {
+						isHandedOff = HTTPRequestTask.offerToProxy(uri, transport);
+					}
 				}
 			}
 		} catch (ProtocolException ex) {
@@ -88,8 +112,37 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 			e.printStackTrace();
 			mAction = URL_ACTION_UNDETERMINED;
 		} finally {
-			transport.close();
+			if (!isHandedOff) {
+				transport.close();
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the response is audio or video rather than a playlist
+	 * that lists the streams to play.
+	 */
+	private static boolean isMediaStream(String uri, String contentType) {
+		String type = contentType.toLowerCase(Locale.US);
+		String path = uri.toLowerCase(Locale.US);
+		
+		if (!type.startsWith("audio/") && !type.startsWith("video/")) {
+			return false;
 		}
+		
+		for (int i = 0; i < PLAYLIST_TYPES.length; i++) {
+			if (type.contains(PLAYLIST_TYPES[i])) {
+				return false;
+			}
+		}
+		
+		for (int i = 0; i < PLAYLIST_EXTENSIONS.length; i++) {
+			if (path.endsWith(PLAYLIST_EXTENSIONS[i])) {
+				return false;
+			}
+		}
+		
+		return true;
 	}
 	
     @Override
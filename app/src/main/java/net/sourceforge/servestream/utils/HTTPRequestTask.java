@@ -17,8 +17,12 @@
 
 package net.sourceforge.servestream.utils;
 
+import java.net.HttpURLConnection;
+
 import net.sourceforge.servestream.bean.UriBean;
+import net.sourceforge.servestream.media.StreamProxy;
 import net.sourceforge.servestream.transport.AbsTransport;
+import net.sourceforge.servestream.transport.ProbeCache;
 import net.sourceforge.servestream.transport.TransportFactory;
 import android.net.Uri;
 
@@ -42,9 +46,15 @@ public class HTTPRequestTask implements Runnable {
 	}
 
 	private String processUri() {
+		ProbeCache.Result result = ProbeCache.get(mUri);
+		if (result != null) {
+			return result.getContentType();
+		}
+		
 		UriBean uriBean = null;
 		AbsTransport transport = null;
 		String contentType = null;
+		boolean isHandedOff = false;
 		
 		try {
 			Uri uri = TransportFactory.getUri(mUri);
@@ -56,18 +66,51 @@ public class HTTPRequestTask implements Runnable {
 			if (uriBean != null) {
 				transport = TransportFactory.getTransport(uriBean.getProtocol());
 				transport.setUri(uriBean);
+				// the metadata is removed by the stream proxy
+				transport.setRequestProperty("Icy-MetaData", "1");
 				transport.connect();
 				contentType = transport.getContentType();
+				ProbeCache.put(mUri, transport);
+				
+				// the player reads the response that is already open
+				// instead of requesting the stream again
+				isHandedOff = offerToProxy(mUri, transport);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			transport.close();
+			if (transport != null && !isHandedOff) {
+				transport.close();
+			}
 		}
 		
 		return contentType;
 	}
 	
+	/**
+	 * Hands the connected transport to the {@link StreamProxy} if its
+	 * response can be played.
+	 * 
+	 * @return true if the proxy took the transport and will close it.
+	 */
+	static boolean offerToProxy(String uri, AbsTransport transport) {
+		String contentType = transport.getContentType();
+		
+		if (contentType == null || contentType.contains("text/html") ||
+				transport.getResponseCode() != HttpURLConnection.HTTP_OK ||
+				transport.getConnection() == null) {
+			return false;
+		}
+		
+		StreamProxy proxy = StreamProxy.getInstance();
+		if (proxy == null) {
+			return false;
+		}
+		
+		proxy.offer(uri, transport);
+		return true;
+	}
+	
 	public synchronized void execute() {
 		new Thread(this, "").start();
 	}
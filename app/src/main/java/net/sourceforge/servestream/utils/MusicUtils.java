@@ -22,11 +22,9 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -316,8 +314,9 @@ public class MusicUtils {
                 // The selected file is the file that's currently playing;
                 // figure out if we need to restart with a new playlist,
                 // or just launch the playback activity.
-                long [] playlist = sService.getQueue();
-                if (Arrays.equals(list, playlist)) {
+                // only a list of the same length needs to be compared
+                if (sService.getQueueSize() == list.length &&
+                        Arrays.equals(list, sService.getQueue())) {
                     // we don't need to set a new list, but we should resume playback if needed
                     sService.play();
                     return; // the 'finally' block will still run
@@ -337,6 +336,9 @@ public class MusicUtils {
 
     private final static long [] sEmptyList = new long[0];
     
+    // SQLite refuses statements with more bound arguments than this
+    private final static int MAX_SELECTION_ARGS = 999;
+    
     public static long [] getFilesInPlaylist(Context context, String uri, String contentType, InputStream is) {
     	
     	if (uri == null) {
@@ -390,18 +392,12 @@ public class MusicUtils {
     		return sEmptyList;
     	}	
     	
-    	List<ContentValues> contentValues = new ArrayList<ContentValues>();
-    	
-    	ContentResolver contentResolver = context.getContentResolver();
-    	
-    	Map<String, Integer> uriList = retrieveAllRows(context);
-    	
-    	long [] list = new long[playlist.getPlaylistEntries().size()];
+    	int size = playlist.getPlaylistEntries().size();
+    	String [] uris = new String[size];
+    	ContentValues [] values = new ContentValues[size];
     	
     	// process the returned media files
-    	for (int i = 0; i < playlist.getPlaylistEntries().size(); i++) {
-    		long id = -1;
-    	
+    	for (int i = 0; i < size; i++) {
     		String uri = null;
     		
         	try {
@@ -411,46 +407,43 @@ public class MusicUtils {
     			uri = playlist.getPlaylistEntries().get(i).get(PlaylistEntry.URI);
     		}
     		
-    		if (uriList.get(uri) != null) {
-    			id = uriList.get(uri);
-        		list[i] = id;
-    		} else {    			
-    			// the item doesn't exist, lets put it into the list to be inserted
-    			ContentValues value = new ContentValues();
-        		value.put(Media.MediaColumns.URI, uri);
+    		uris[i] = uri;
+    		
+    		ContentValues value = new ContentValues();
+        	value.put(Media.MediaColumns.URI, uri);
         		
-        		if (playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA) != null) {
-        			value.put(Media.MediaColumns.TITLE, playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA));
-        		}
+        	if (playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA) != null) {
+        		value.put(Media.MediaColumns.TITLE, playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA));
+        	}
 
-        		contentValues.add(value);
-    		}
+        	values[i] = value;
     	}
     	
-    	if (contentValues.size() > 0) {
-    		ContentValues [] values = new ContentValues[contentValues.size()];
-    		values = contentValues.toArray(values);
-    		
-    		int numInserted = contentResolver.bulkInsert(Media.MediaColumns.CONTENT_URI, values);
+    	// uris that are already in the media store are ignored by the provider
+    	context.getContentResolver().bulkInsert(Media.MediaColumns.CONTENT_URI, values);
+    	
+    	Map<String, Long> uriList = retrieveRows(context, uris);
     	
-    		if (numInserted > 0) {
-    			/*uriList = retrieveAllRows(context);
+    	long [] list = new long[size];
+    	int len = 0;
+    	
+    	for (int i = 0; i < size; i++) {
+    		Long id = uriList.get(uris[i]);
     		
-    			for (int i = 0; i < mediaFiles.size(); i++) {
-    				if (uriList.get(mediaFiles.get(i).getUrl()) != null) {
-    					int id = uriList.get(mediaFiles.get(i).getUrl());
-    					list[i] = id;
-    				}
-    			}*/
-    			list = addFilesToMediaStore(context, playlist);
+    		if (id != null) {
+    			list[len++] = id;
     		}
     	}
     	
-    	return list;
+    	return len == size ? list : Arrays.copyOf(list, len);
     }
     
-    private static Map<String, Integer> retrieveAllRows(Context context) {
-    	Map<String, Integer> list = new HashMap<String, Integer>();
+    /**
+     * Looks up the row ids of the specified uris, using as few queries
+     * as the SQLite bound argument limit allows.
+     */
+    private static Map<String, Long> retrieveRows(Context context, String [] uris) {
+    	Map<String, Long> list = new HashMap<String, Long>();
     	
 		// Form an array specifying which columns to return. 
 		String [] projection = new String [] { Media.MediaColumns._ID, Media.MediaColumns.URI };
@@ -458,22 +451,42 @@ public class MusicUtils {
 		// Get the base URI for the Media Files table in the Media content provider.
 		Uri mediaFile =  Media.MediaColumns.CONTENT_URI;
     	
-		// Make the query.
-		Cursor cursor = context.getContentResolver().query(mediaFile, 
-				projection,
-				null,
-				null,
-				null);    	
-	
-		while (cursor.moveToNext()) {
+		for (int offset = 0; offset < uris.length; offset += MAX_SELECTION_ARGS) {
+			int count = Math.min(MAX_SELECTION_ARGS, uris.length - offset);
+			
+			StringBuilder where = new StringBuilder();
+			where.append(Media.MediaColumns.URI).append(" IN (");
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					where.append(",");
+				}
+				where.append("?");
+			}
+			where.append(")");
+			
+			String [] selectionArgs = new String[count];
+			System.arraycopy(uris, offset, selectionArgs, 0, count);
+			
+			// Make the query.
+			Cursor cursor = context.getContentResolver().query(mediaFile, 
+					projection,
+					where.toString(),
+					selectionArgs,
+					null);
+			
+			if (cursor == null) {
+				continue;
+			}
+			
 			int uriColumn = cursor.getColumnIndex(Media.MediaColumns.URI);
 			int idColumn = cursor.getColumnIndex(Media.MediaColumns._ID);
-			String uri = cursor.getString(uriColumn);
-			int id = cursor.getInt(idColumn);
-			list.put(uri, id);
-		}
+			
+			while (cursor.moveToNext()) {
+				list.put(cursor.getString(uriColumn), cursor.getLong(idColumn));
+			}
 
-		cursor.close();
+			cursor.close();
+		}
 		
 		return list;
     }
@@ -21,13 +21,14 @@ import java.util.ArrayList;
 import java.util.List;
 
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
 
 import net.sourceforge.servestream.bean.UriBean;
+import net.sourceforge.servestream.transport.HttpClient;
 import net.sourceforge.servestream.transport.TransportFactory;
 
 import org.jsoup.Jsoup;
@@ -57,6 +58,7 @@ public class WebpageParser {
 		HttpURLConnection conn = null;
         StringBuffer html = new StringBuffer();
         String line = null;
+        InputStream in = null;
         BufferedReader reader = null;
         String link = null;
         
@@ -65,20 +67,12 @@ public class WebpageParser {
         		return;
         	}
         	
-    		if (mURL.getProtocol().equalsIgnoreCase("http")) {
-    			conn = (HttpURLConnection) mURL.openConnection();
-    		} else if (mURL.getProtocol().equalsIgnoreCase("https")) {
-    			conn = (HttpsURLConnection) mURL.openConnection();        		
-    		}
-    	
-    		conn.setRequestProperty("User-Agent", "ServeStream");
-    		conn.setConnectTimeout(6000);
-    		conn.setReadTimeout(6000);
+    		conn = HttpClient.open(mURL);
 		    conn.setRequestMethod(REQUEST_METHOD);
 		    
 		    // Start the query
-		    reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-		    conn.connect();
+		    in = conn.getInputStream();
+		    reader = new BufferedReader(new InputStreamReader(in));
 		    
 		    while ((line = reader.readLine()) != null) {
 		    	html = html.append(line);
@@ -106,8 +100,7 @@ public class WebpageParser {
 		    }
         } catch (Exception ex) {
         } finally {
-        	Utils.closeBufferedReader(reader);
-        	Utils.closeHttpConnection(conn);
+        	HttpClient.release(conn, in);
         }
     }
     
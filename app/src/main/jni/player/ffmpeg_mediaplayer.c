@@ -25,6 +25,7 @@
 #include <android/log.h>
 
 #include <stdio.h>
+#include <stdlib.h>
 
 const char *DURATION = "duration";
 const char *AUDIO_CODEC = "audio_codec";
@@ -37,18 +38,140 @@ const int FAILURE = -1;
 
 static pthread_mutex_t *lock;
 
+/* sentinels queued by the read thread, never freed */
+static AVPacket flush_pkt = { .data = (uint8_t *) "FLUSH" };
+static AVPacket eof_pkt = { .data = (uint8_t *) "EOF" };
+
 int decode_interrupt_cb(void *opaque) {
 	State *state = (State *) opaque;
 	 
     return (state && state->abort_request);
 }
 
+void packet_queue_init(PacketQueue *q)
+{
+	memset(q, 0, sizeof(PacketQueue));
+	pthread_mutex_init(&q->mutex, NULL);
+	pthread_cond_init(&q->cond, NULL);
+}
+
+void packet_queue_flush(PacketQueue *q)
+{
+	AVPacketList *pkt, *pkt1;
+	
+	pthread_mutex_lock(&q->mutex);
+	for (pkt = q->first_pkt; pkt != NULL; pkt = pkt1) {
+		pkt1 = pkt->next;
+		if (pkt->pkt.data != flush_pkt.data && pkt->pkt.data != eof_pkt.data) {
+			av_free_packet(&pkt->pkt);
+		}
+		av_freep(&pkt);
+	}
+	q->last_pkt = NULL;
+	q->first_pkt = NULL;
+	q->nb_packets = 0;
+	q->size = 0;
+	pthread_mutex_unlock(&q->mutex);
+}
+
+void packet_queue_destroy(PacketQueue *q)
+{
+	packet_queue_flush(q);
+	pthread_mutex_destroy(&q->mutex);
+	pthread_cond_destroy(&q->cond);
+}
+
+void packet_queue_abort(PacketQueue *q)
+{
+	pthread_mutex_lock(&q->mutex);
+	q->abort_request = 1;
+	pthread_cond_signal(&q->cond);
+	pthread_mutex_unlock(&q->mutex);
+}
+
+int packet_queue_put(PacketQueue *q, AVPacket *pkt)
+{
+	AVPacketList *pkt1;
+	
+	/* the packet may point into demuxer memory, take a reference before queueing it */
+	if (pkt != &flush_pkt && pkt != &eof_pkt && av_dup_packet(pkt) < 0) {
+		return FAILURE;
+	}
+	
+	pkt1 = av_malloc(sizeof(AVPacketList));
+	if (!pkt1) {
+		return FAILURE;
+	}
+	pkt1->pkt = *pkt;
+	pkt1->next = NULL;
+	
+	pthread_mutex_lock(&q->mutex);
+	
+	if (!q->last_pkt) {
+		q->first_pkt = pkt1;
+	} else {
+		q->last_pkt->next = pkt1;
+	}
+	q->last_pkt = pkt1;
+	q->nb_packets++;
+	q->size += pkt1->pkt.size + sizeof(*pkt1);
+	pthread_cond_signal(&q->cond);
+	
+	pthread_mutex_unlock(&q->mutex);
+	return SUCCESS;
+}
+
+/* return < 0 if aborted, 0 if no packet and > 0 if packet */
+int packet_queue_get(PacketQueue *q, AVPacket *pkt, int block)
+{
+	AVPacketList *pkt1;
+	int ret;
+	
+	pthread_mutex_lock(&q->mutex);
+	
+	for (;;) {
+		if (q->abort_request) {
+			ret = -1;
+			break;
+		}
+		
+		pkt1 = q->first_pkt;
+		if (pkt1) {
+			q->first_pkt = pkt1->next;
+			if (!q->first_pkt) {
+				q->last_pkt = NULL;
+			}
+			q->nb_packets--;
+			q->size -= pkt1->pkt.size + sizeof(*pkt1);
+			*pkt = pkt1->pkt;
+			av_free(pkt1);
+			ret = 1;
+			break;
+		} else if (!block) {
+			ret = 0;
+			break;
+		} else {
+			pthread_cond_wait(&q->cond, &q->mutex);
+		}
+	}
+	
+	pthread_mutex_unlock(&q->mutex);
+	return ret;
+}
+
 void init(State **ps)
 {
     State *state = *ps;
 
     if (!state) {
         state = av_mallocz(sizeof(State));
+        
+        if (state) {
+        	packet_queue_init(&state->audioq);
+        	pthread_mutex_init(&state->mutex, NULL);
+        	pthread_cond_init(&state->continue_cond, NULL);
+        	state->buffering_percent = -1;
+        }
     }
 
     if (!state) {
@@ -58,6 +181,21 @@ void init(State **ps)
     *ps = state;
 }
 
+void free_decoder_output(State *state)
+{
+	if (state->decoded_frame) {
+		avcodec_free_frame(&state->decoded_frame);
+	}
+	
+	if (state->swr_ctx) {
+		swr_free(&state->swr_ctx);
+	}
+	
+	state->swr_ch_layout = 0;
+	state->swr_sample_rate = 0;
+	state->swr_sample_fmt = AV_SAMPLE_FMT_NONE;
+}
+
 void clear_l(State **ps)
 {
 	State *state = *ps;
@@ -66,6 +204,9 @@ void clear_l(State **ps)
 		if (state->pFormatCtx) {
 			avformat_close_input(&state->pFormatCtx);
 	    }
+		
+		free_decoder_output(state);
+		packet_queue_flush(&state->audioq);
 	}
 	
 	if (state && state->fd != -1) {
@@ -81,6 +222,9 @@ void clear_l(State **ps)
 	state->abort_request = 0;
 	state->paused = 0;
 	state->last_paused = -1;
+	state->threads_started = 0;
+	state->audioq.abort_request = 0;
+	state->buffering_percent = -1;
 	state->filename[0] = '\0';
 	state->headers[0] = '\0';
 	state->fd = -1;
@@ -100,6 +244,16 @@ void disconnect(State **ps)
 			close(state->fd);
 		}
 		
+		free_decoder_output(state);
+		
+		if (state->owns_audio_buffer) {
+			av_freep(&state->audio_buffer);
+		}
+		
+		packet_queue_destroy(&state->audioq);
+		pthread_mutex_destroy(&state->mutex);
+		pthread_cond_destroy(&state->continue_cond);
+		
 	    av_freep(&state);
 	    *ps = NULL;
 	}
@@ -129,6 +283,20 @@ int setWriteAudioListener(State **ps, void* clazz, void (*listener) (void*, int1
     return SUCCESS;
 }
 
+int setAudioBuffer(State **ps, void *buffer, int size)
+{
+    State *state = *ps;
+    
+    if (state->owns_audio_buffer) {
+    	av_freep(&state->audio_buffer);
+    	state->owns_audio_buffer = 0;
+    }
+    
+    state->audio_buffer = buffer;
+    state->audio_buffer_size = size;
+    return SUCCESS;
+}
+
 int setDataSourceURI(State **ps, const char *url, const char *headers)
 {
     printf("setDataSource\n");
@@ -242,6 +410,49 @@ int get_metadata(State **ps, const char* key, char** value)
     return 0;
 }*/
 
+int init_resampler(State *state, AVFrame *frame)
+{
+	int ret;
+	
+	if (state->swr_ctx &&
+			state->swr_ch_layout == frame->channel_layout &&
+			state->swr_sample_rate == frame->sample_rate &&
+			state->swr_sample_fmt == frame->format) {
+		return SUCCESS;
+	}
+	
+	/* the input format changed (or this is the first frame), (re)create the resampler context */
+	if (state->swr_ctx) {
+		swr_free(&state->swr_ctx);
+	}
+	
+	state->swr_ctx = swr_alloc();
+	if (!state->swr_ctx) {
+		__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not allocate resampler context\n");
+		return FAILURE;
+	}
+	
+	av_opt_set_int(state->swr_ctx, "in_channel_layout", frame->channel_layout, 0);
+	av_opt_set_int(state->swr_ctx, "out_channel_layout", frame->channel_layout,  0);
+	av_opt_set_int(state->swr_ctx, "in_sample_rate", frame->sample_rate, 0);
+	av_opt_set_int(state->swr_ctx, "out_sample_rate", frame->sample_rate, 0);
+	av_opt_set_sample_fmt(state->swr_ctx, "in_sample_fmt", frame->format, 0);
+	av_opt_set_sample_fmt(state->swr_ctx, "out_sample_fmt", AV_SAMPLE_FMT_S16,  0);
+	
+	/* initialize the resampling context */
+	if ((ret = swr_init(state->swr_ctx)) < 0) {
+		__android_log_print(ANDROID_LOG_INFO, "TAG", "Failed to initialize the resampling context\n");
+		swr_free(&state->swr_ctx);
+		return FAILURE;
+	}
+	
+	state->swr_ch_layout = frame->channel_layout;
+	state->swr_sample_rate = frame->sample_rate;
+	state->swr_sample_fmt = frame->format;
+	
+	return SUCCESS;
+}
+
 int decode_frame_from_packet(State *state, AVPacket *aPacket, int *frame_size_ptr, int from_thread)
 {
 	int n;
@@ -249,29 +460,20 @@ int decode_frame_from_packet(State *state, AVPacket *aPacket, int *frame_size_pt
 	AVPacket *pkt = aPacket;
     AVFrame *decoded_frame = NULL;
     int got_frame = 0;
-    
-	int64_t src_ch_layout, dst_ch_layout;
-	int src_rate, dst_rate;
-	uint8_t **src_data = NULL, **dst_data = NULL;
-	int src_nb_channels = 0, dst_nb_channels = 0;
-	int src_linesize, dst_linesize;
-	int src_nb_samples, dst_nb_samples, max_dst_nb_samples;
-	enum AVSampleFormat src_sample_fmt, dst_sample_fmt;
-	int dst_bufsize;
-	const char *fmt;
-	struct SwrContext *swr_ctx;
-	double t;
+	int dst_nb_channels, dst_nb_samples;
     int ret;
 
     if (aPacket->stream_index == state->audio_stream) {
         	
-    	if (!decoded_frame) {
-    		if (!(decoded_frame = avcodec_alloc_frame())) {
+    	if (!state->decoded_frame) {
+    		if (!(state->decoded_frame = avcodec_alloc_frame())) {
     			__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not allocate audio frame\n");
     	        return -2;
     		}
     	}
     	
+    	decoded_frame = state->decoded_frame;
+    	
     	if (avcodec_decode_audio4(state->audio_st->codec, decoded_frame, &got_frame, aPacket) < 0) {
     		__android_log_print(ANDROID_LOG_ERROR, "TAG", "avcodec_decode_audio4() decoded no frame");
     		return -2;
@@ -279,116 +481,58 @@ int decode_frame_from_packet(State *state, AVPacket *aPacket, int *frame_size_pt
     	
     	int data_size = 0;
     	
-    	if (got_frame) {
-    		/* if a frame has been decoded, output it */
-    		data_size = av_samples_get_buffer_size(NULL, state->audio_st->codec->channels,
-    	    		decoded_frame->nb_samples,
-    	    		state->audio_st->codec->sample_fmt, 1);
-    	} else {
+    	if (!got_frame) {
     		*frame_size_ptr = 0;
     	    return 0;
     	}
     	
         if (decoded_frame->format != AV_SAMPLE_FMT_S16) {
-            src_nb_samples = decoded_frame->nb_samples;
-            src_linesize = (int) decoded_frame->linesize;
-            src_data = decoded_frame->data;
-            
             if (decoded_frame->channel_layout == 0) {
             	decoded_frame->channel_layout = av_get_default_channel_layout(decoded_frame->channels);
             }
             
-            /* create resampler context */
-            swr_ctx = swr_alloc();
-            if (!swr_ctx) {
-            	//fprintf(stderr, "Could not allocate resampler context\n");
-                //ret = AVERROR(ENOMEM);
-                //goto end;
+            if (init_resampler(state, decoded_frame) < 0) {
+            	return -2;
             }
             
-            src_rate = decoded_frame->sample_rate;
-            dst_rate = decoded_frame->sample_rate;
-            src_ch_layout = decoded_frame->channel_layout;
-            dst_ch_layout = decoded_frame->channel_layout;
-            src_sample_fmt = decoded_frame->format;
-            dst_sample_fmt = AV_SAMPLE_FMT_S16;
-            
-            av_opt_set_int(swr_ctx, "in_channel_layout", src_ch_layout, 0);
-            av_opt_set_int(swr_ctx, "out_channel_layout", dst_ch_layout,  0);
-            av_opt_set_int(swr_ctx, "in_sample_rate", src_rate, 0);
-            av_opt_set_int(swr_ctx, "out_sample_rate", dst_rate, 0);
-            av_opt_set_sample_fmt(swr_ctx, "in_sample_fmt", src_sample_fmt, 0);
-            av_opt_set_sample_fmt(swr_ctx, "out_sample_fmt", dst_sample_fmt,  0);
-            
-            /* initialize the resampling context */
-            if ((ret = swr_init(swr_ctx)) < 0) {
-            	__android_log_print(ANDROID_LOG_INFO, "TAG", "Failed to initialize the resampling context\n");
-            	//goto end;
-            }
-
-            /* allocate source and destination samples buffers */
-
-            src_nb_channels = av_get_channel_layout_nb_channels(src_ch_layout);
-            ret = av_samples_alloc_array_and_samples(&src_data, &src_linesize, src_nb_channels,
-            		src_nb_samples, src_sample_fmt, 0);
-            if (ret < 0) {
-            	__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not allocate source samples\n");
-            	//goto end;
-            }
-
-            /* compute the number of converted samples: buffering is avoided
-             * ensuring that the output buffer will contain at least all the
-             * converted input samples */
-            max_dst_nb_samples = dst_nb_samples =
-            	av_rescale_rnd(src_nb_samples, dst_rate, src_rate, AV_ROUND_UP);
-
-            /* buffer is going to be directly written to a rawaudio file, no alignment */
-            dst_nb_channels = av_get_channel_layout_nb_channels(dst_ch_layout);
-            ret = av_samples_alloc_array_and_samples(&dst_data, &dst_linesize, dst_nb_channels,
-            		dst_nb_samples, dst_sample_fmt, 0);
-            if (ret < 0) {
-            	__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not allocate destination samples\n");
-            	//goto end;
+            if (!state->audio_buffer) {
+            	/* no buffer was shared by the Java player, allocate one once */
+            	state->audio_buffer = av_malloc(MAX_AUDIO_FRAME_SIZE);
+            	if (!state->audio_buffer) {
+            		__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not allocate destination samples\n");
+            		return -2;
+            	}
+            	state->audio_buffer_size = MAX_AUDIO_FRAME_SIZE;
+            	state->owns_audio_buffer = 1;
             }
             
-            /* compute destination number of samples */
-            dst_nb_samples = av_rescale_rnd(swr_get_delay(swr_ctx, src_rate) +
-                                            src_nb_samples, dst_rate, src_rate, AV_ROUND_UP);
+            /* the input and output rates are equal, so the converted samples
+             * always fit when the buffer holds nb_samples output samples */
+            dst_nb_channels = av_get_channel_layout_nb_channels(decoded_frame->channel_layout);
+            dst_nb_samples = state->audio_buffer_size /
+            		(dst_nb_channels * av_get_bytes_per_sample(AV_SAMPLE_FMT_S16));
             
-            /* convert to destination format */
-            ret = swr_convert(swr_ctx, dst_data, dst_nb_samples, (const uint8_t **)decoded_frame->data, src_nb_samples);
+            /* convert to destination format, straight into the shared buffer */
+            ret = swr_convert(state->swr_ctx, &state->audio_buffer, dst_nb_samples,
+            		(const uint8_t **)decoded_frame->extended_data, decoded_frame->nb_samples);
             if (ret < 0) {
             	__android_log_print(ANDROID_LOG_INFO, "TAG", "Error while converting\n");
-                //goto end;
+            	return -2;
             }
-            dst_bufsize = av_samples_get_buffer_size(&dst_linesize, dst_nb_channels,
-                                                     ret, dst_sample_fmt, 1);
-            if (dst_bufsize < 0) {
-                fprintf(stderr, "Could not get sample buffer size\n");
-                //goto end;
+            
+            data_size = av_samples_get_buffer_size(NULL, dst_nb_channels,
+            		ret, AV_SAMPLE_FMT_S16, 1);
+            if (data_size < 0) {
+            	__android_log_print(ANDROID_LOG_INFO, "TAG", "Could not get sample buffer size\n");
+            	return -2;
             }
             
-            samples = malloc(dst_bufsize);
-    		memcpy(samples, dst_data[0], dst_bufsize);
-    		data_size = dst_bufsize;
-
-    		if (src_data) {
-    			av_freep(&src_data[0]);
-    		}
-    		av_freep(&src_data);
-
-    		if (dst_data) {
-    			av_freep(&dst_data[0]);
-    		}
-    		av_freep(&dst_data);
-
-    		swr_free(&swr_ctx);
+            samples = (int16_t *) state->audio_buffer;
     	} else {
     		/* if a frame has been decoded, output it */
     	    data_size = av_samples_get_buffer_size(NULL, state->audio_st->codec->channels,
     	    		decoded_frame->nb_samples, state->audio_st->codec->sample_fmt, 1);
-    		samples = malloc(data_size);
-    		memcpy(samples, decoded_frame->data[0], data_size);
+    		samples = (int16_t *) decoded_frame->data[0];
     	}
         
         *frame_size_ptr = data_size;
@@ -407,22 +551,59 @@ int decode_frame_from_packet(State *state, AVPacket *aPacket, int *frame_size_pt
         //*frame_size_ptr = data_size;
         state->write_audio_callback(state->clazz, samples, data_size, from_thread);
         
-    	avcodec_free_frame(&decoded_frame);
-        
-        free(samples);
-        
     	return AUDIO_DATA_ID;
     }
 
     return 0;
 }
 
-void player_decode(void *data)
+int packet_queue_size(PacketQueue *q)
+{
+	int size;
+	
+	pthread_mutex_lock(&q->mutex);
+	size = q->size;
+	pthread_mutex_unlock(&q->mutex);
+	return size;
+}
+
+void update_buffering(State *state)
+{
+	int percent;
+	int notify = 0;
+	
+	/* both the read and the decode thread get here, the queue mutex guards buffering_percent */
+	pthread_mutex_lock(&state->audioq.mutex);
+	percent = (int) ((int64_t) state->audioq.size * 100 / MAX_QUEUE_SIZE);
+	
+	if (percent > 100) {
+		percent = 100;
+	}
+	
+	/* report every few percent, each notification from a thread attaches it to the VM */
+	if (state->buffering_percent < 0 ||
+			abs(percent - state->buffering_percent) >= BUFFERING_UPDATE_STEP ||
+			(percent != state->buffering_percent && (percent == 0 || percent == 100))) {
+		state->buffering_percent = percent;
+		notify = 1;
+	}
+	pthread_mutex_unlock(&state->audioq.mutex);
+	
+	if (notify) {
+		state->notify_callback(state->clazz, MEDIA_BUFFERING_UPDATE, percent, 0, FROM_THREAD);
+	}
+}
+
+void player_read(void *data)
 {
 	State *state = (State *) data;
 	
 	int ret;
 	int eof = 0;
+	int seek_req;
+	int64_t seek_target, seek_min, seek_max;
+	int seek_flags;
+	AVPacket packet;
 
 	for (;;) {
 
@@ -439,63 +620,127 @@ void player_decode(void *data)
             }
         }
 
-        if (state->seek_req) {
-            int64_t seek_target = state->seek_pos;
-            int64_t seek_min = state->seek_rel > 0 ? seek_target - state->seek_rel + 2: INT64_MIN;
-            int64_t seek_max = state->seek_rel < 0 ? seek_target - state->seek_rel - 2: INT64_MAX;
+        pthread_mutex_lock(&state->mutex);
+        seek_req = state->seek_req;
+        seek_target = state->seek_pos;
+        seek_min = state->seek_rel > 0 ? seek_target - state->seek_rel + 2: INT64_MIN;
+        seek_max = state->seek_rel < 0 ? seek_target - state->seek_rel - 2: INT64_MAX;
+        seek_flags = state->seek_flags;
+        pthread_mutex_unlock(&state->mutex);
 
-            ret = avformat_seek_file(state->pFormatCtx, -1, seek_min, seek_target, seek_max, state->seek_flags);
+        if (seek_req) {
+            ret = avformat_seek_file(state->pFormatCtx, -1, seek_min, seek_target, seek_max, seek_flags);
             if (ret < 0) {
                 fprintf(stderr, "%s: error while seeking\n", state->pFormatCtx->filename);
             } else {
                 if (state->audio_stream >= 0) {
-                	avcodec_flush_buffers(state->audio_st->codec);
+                	/* drop the queued packets, the decoder flushes the codec when it sees flush_pkt */
+                	packet_queue_flush(&state->audioq);
+                	packet_queue_put(&state->audioq, &flush_pkt);
                 }
+                eof = 0;
                 state->notify_callback(state->clazz, MEDIA_SEEK_COMPLETE, 0, 0, FROM_THREAD);
             }
+            
+            pthread_mutex_lock(&state->mutex);
             state->seek_req = 0;
-            eof = 0;
+            pthread_mutex_unlock(&state->mutex);
         }
 
-        if (state->paused) {
-        	goto sleep;
+        /* wait until playback resumes, the decoder makes room in the queue or,
+         * once the whole stream has been read, a seek asks for more */
+        pthread_mutex_lock(&state->mutex);
+        if (!state->abort_request && !state->seek_req &&
+        		(eof || state->paused || packet_queue_size(&state->audioq) >= MAX_QUEUE_SIZE)) {
+        	pthread_cond_wait(&state->continue_cond, &state->mutex);
+        	pthread_mutex_unlock(&state->mutex);
+        	continue;
         }
+        pthread_mutex_unlock(&state->mutex);
 
-		AVPacket packet;
-		memset(&packet, 0, sizeof(packet)); //make sure we can safely free it
+		ret = av_read_frame(state->pFormatCtx, &packet);
 
-		int i;
-			
-		for (i = 0; i < state->pFormatCtx->nb_streams; ++i) {
-			//av_init_packet(&packet);
-			ret = av_read_frame(state->pFormatCtx, &packet);
+        if (ret < 0) {
+        	AVIOContext *pb = state->pFormatCtx->pb;
+        	
+        	if (state->abort_request) {
+        		break;
+        	}
+        	
+        	if (ret == AVERROR(EAGAIN) && !(pb && url_feof(pb))) {
+        		continue;
+        	}
+        	
+        	/* avio flags a failed read as end of file too, tell them apart by its error */
+        	if (ret == AVERROR_EOF || (pb && url_feof(pb) && !pb->error)) {
+        		/* let the decoder drain the queue before it reports completion,
+        		 * then stay around in case the player seeks back */
+        		packet_queue_put(&state->audioq, &eof_pkt);
+        		eof = 1;
+        		continue;
+        	}
+        	
+        	state->notify_callback(state->clazz, MEDIA_ERROR, MEDIA_ERROR_UNKNOWN, ret, FROM_THREAD);
+        	break;
+        }
 
-	        if (ret < 0) {
-	            if (ret == AVERROR_EOF || url_feof(state->pFormatCtx->pb)) {
-	                eof = 1;
-	                break;
-	            }
-	        }
+        if (packet.stream_index == state->audio_stream) {
+        	packet_queue_put(&state->audioq, &packet);
+        	update_buffering(state);
+        } else {
+        	av_free_packet(&packet);
+        }
+	}
+}
 
-	        int frame_size_ptr;
-			ret = decode_frame_from_packet(state, &packet, &frame_size_ptr, FROM_THREAD);
-			av_free_packet(&packet);
+void player_decode(void *data)
+{
+	State *state = (State *) data;
+	
+	int ret;
+	AVPacket packet;
 
-			if (ret != 0) { //an error or a frame decoded
-				// TODO add this bacl=k
-			}
+	for (;;) {
+
+        pthread_mutex_lock(&state->mutex);
+        while (state->paused && !state->abort_request) {
+        	pthread_cond_wait(&state->continue_cond, &state->mutex);
+        }
+        pthread_mutex_unlock(&state->mutex);
+
+		if (state->abort_request) {
+			break;
 		}
 
-		if (eof) {
+		if (packet_queue_get(&state->audioq, &packet, 1) < 0) {
 			break;
 		}
 
-		sleep:
-		    usleep(100);
-	}
+		/* there is room in the queue again, wake the read thread */
+		pthread_mutex_lock(&state->mutex);
+		pthread_cond_signal(&state->continue_cond);
+		pthread_mutex_unlock(&state->mutex);
+
+		if (packet.data == flush_pkt.data) {
+			avcodec_flush_buffers(state->audio_st->codec);
+			continue;
+		}
+
+		if (packet.data == eof_pkt.data) {
+			/* keep waiting, a seek queues flush_pkt and more packets */
+			state->notify_callback(state->clazz, MEDIA_PLAYBACK_COMPLETE, 0, 0, FROM_THREAD);
+			continue;
+		}
 
-	if (eof) {
-		state->notify_callback(state->clazz, MEDIA_PLAYBACK_COMPLETE, 0, 0, FROM_THREAD);
+		update_buffering(state);
+
+        int frame_size_ptr;
+		ret = decode_frame_from_packet(state, &packet, &frame_size_ptr, FROM_THREAD);
+		av_free_packet(&packet);
+
+		if (ret != 0) { //an error or a frame decoded
+			// TODO add this bacl=k
+		}
 	}
 }
 
@@ -686,14 +931,16 @@ int start(State **ps)
 {
 	State *state = *ps;
     
-	if (!state->paused) {
-		pthread_mutex_lock(lock);
+	if (!state->threads_started) {
+		pthread_create(&state->read_thread, NULL, (void *) &player_read, state);
 		pthread_create(&state->decoder_thread, NULL, (void *) &player_decode, state);
+		state->threads_started = 1;
 	}
     
+    pthread_mutex_lock(&state->mutex);
     state->paused = 0;
-    
-    pthread_mutex_unlock(lock);
+    pthread_cond_broadcast(&state->continue_cond);
+    pthread_mutex_unlock(&state->mutex);
     
     return 0;
 }
@@ -702,9 +949,12 @@ int stop(State **ps)
 {
 	State *state = *ps;
 	
-    pthread_mutex_lock(lock);
+    pthread_mutex_lock(&state->mutex);
     state->abort_request = 1;
-    pthread_mutex_unlock(lock);
+    pthread_cond_broadcast(&state->continue_cond);
+    pthread_mutex_unlock(&state->mutex);
+    
+    packet_queue_abort(&state->audioq);
 	
     return 0;
 }
@@ -713,9 +963,10 @@ int pause(State **ps)
 {
 	State *state = *ps;
 	
-    pthread_mutex_lock(lock);
+    pthread_mutex_lock(&state->mutex);
 	state->paused = !state->paused;
-    pthread_mutex_lock(lock);
+	pthread_cond_broadcast(&state->continue_cond);
+    pthread_mutex_unlock(&state->mutex);
     
     return 0;
 }
@@ -764,16 +1015,17 @@ int seekTo(State **ps, int msec)
 {
 	State *state = *ps;
 	
-    pthread_mutex_lock(lock);
+    pthread_mutex_lock(&state->mutex);
 
     if (!state->seek_req) {
     	state->seek_pos = msec * 1000;
     	state->seek_rel = msec * 1000;
     	state->seek_flags = AVSEEK_FLAG_FRAME;
         state->seek_req = 1;
+        pthread_cond_broadcast(&state->continue_cond);
     }
 
-    pthread_mutex_unlock(lock);
+    pthread_mutex_unlock(&state->mutex);
 	
     return 0;
 }
@@ -782,14 +1034,19 @@ int reset(State **ps)
 {
 	State *state = *ps;
 	
-    pthread_mutex_lock(lock);
-
     if (state) {
+    	pthread_mutex_lock(&state->mutex);
     	state->abort_request = 1;
-    	pthread_join(state->decoder_thread, NULL);
+    	pthread_cond_broadcast(&state->continue_cond);
+    	pthread_mutex_unlock(&state->mutex);
+    	
+    	packet_queue_abort(&state->audioq);
+    	
+    	if (state->threads_started) {
+    		pthread_join(state->read_thread, NULL);
+    		pthread_join(state->decoder_thread, NULL);
+    	}
     }
-    
-    pthread_mutex_unlock(lock);
 	
     clear_l(ps);
     
@@ -21,10 +21,13 @@
 
 #include <libavcodec/avcodec.h>
 #include <libavformat/avformat.h>
+#include <libswresample/swresample.h>
 #include <pthread.h>
 
 #define AUDIO_DATA_ID 1
-#define MAX_AUDIO_FRAME_SIZE 200000;
+#define MAX_AUDIO_FRAME_SIZE 200000
+#define MAX_QUEUE_SIZE (512 * 1024)
+#define BUFFERING_UPDATE_STEP 5
 
 const int NOT_FROM_THREAD = 0;
 const int FROM_THREAD = 1;
@@ -54,6 +57,15 @@ typedef enum {
     MEDIA_PLAYER_PLAYBACK_COMPLETE  = 1 << 7
 } media_player_states;
 
+typedef struct PacketQueue {
+	AVPacketList *first_pkt, *last_pkt;
+	int nb_packets;
+	int size;
+	int abort_request;
+	pthread_mutex_t mutex;
+	pthread_cond_t cond;
+} PacketQueue;
+
 typedef struct State {
 	AVFormatContext *pFormatCtx;
 	int audio_stream;
@@ -63,7 +75,9 @@ typedef struct State {
 	int buffer_size;
 	int loop;
 
+	pthread_t read_thread;
 	pthread_t decoder_thread;
+	int threads_started;
 	int abort_request;
 	int paused;
 	int last_paused;
@@ -86,6 +100,27 @@ typedef struct State {
 	
 	int             fd;
 	int64_t         offset;
+	
+	// decoder output, reused across frames
+	AVFrame *decoded_frame;
+	struct SwrContext *swr_ctx;
+	int64_t swr_ch_layout;
+	int swr_sample_rate;
+	enum AVSampleFormat swr_sample_fmt;
+	
+	// buffer shared with the Java player that converted samples are written to
+	uint8_t *audio_buffer;
+	int audio_buffer_size;
+	int owns_audio_buffer;
+	
+	// compressed packets handed from the read thread to the decoder thread
+	PacketQueue audioq;
+	// guarded by the mutex of audioq
+	int buffering_percent;
+	
+	// guards paused, seek_req and abort_request for the waiting threads
+	pthread_mutex_t mutex;
+	pthread_cond_t continue_cond;
 } State;
 
 void init(State **ps);
@@ -93,6 +128,7 @@ void disconnect(State **ps);
 int setNotifyListener(State **ps,  void* clazz, void (*listener) (void*, int, int, int, int));
 int setInitAudioTrackListener(State **ps,  void* clazz, int (*listener) (void*, int, int, int));
 int setWriteAudioListener(State **ps,  void* clazz, void (*listener) (void*, int16_t *, int, int));
+int setAudioBuffer(State **ps, void *buffer, int size);
 int setDataSourceURI(State **ps, const char *url, const char *headers);
 int setDataSourceFD(State **ps, int fd, int64_t offset, int64_t length);
 int suspend();
@@ -119,10 +119,24 @@ status_t MediaPlayer::setListener(MediaPlayerListener *listener)
     	::setNotifyListener(&state, this, notifyListener);
     	::setInitAudioTrackListener(&state, this, initAudioTrackListener);
     	::setWriteAudioListener(&state, this, writeAudioListener);
+    	setAudioBuffer_l(state);
     }
     return NO_ERROR;
 }
 
+void MediaPlayer::setAudioBuffer_l(State *player)
+{
+    // let the decoder write converted samples directly into the listener's buffer
+    int size = 0;
+    void *buffer = NULL;
+
+    if (mListener != 0) {
+        buffer = mListener->getAudioBuffer(&size);
+    }
+
+    ::setAudioBuffer(&player, buffer, size);
+}
+
 MediaPlayerListener * MediaPlayer::getListener()
 {
     return mListener;
@@ -173,6 +187,7 @@ status_t MediaPlayer::setDataSource(const char *url, const char *headers)
     	    ::setNotifyListener(&state, this, notifyListener);
     	    ::setInitAudioTrackListener(&state, this, initAudioTrackListener);
     	    ::setWriteAudioListener(&state, this, writeAudioListener);
+    	    setAudioBuffer_l(state);
     	    err = ::setDataSourceURI(&state, url, headers);
     	    if (err == NO_ERROR) {
     	    	err = setDataSource(state);
@@ -194,6 +209,7 @@ status_t MediaPlayer::setDataSource(int fd, int64_t offset, int64_t length)
     	::setNotifyListener(&state, this, notifyListener);
     	::setInitAudioTrackListener(&state, this, initAudioTrackListener);
     	::setWriteAudioListener(&state, this, writeAudioListener);
+    	setAudioBuffer_l(state);
     	err = ::setDataSourceFD(&state, fd, offset, length);
         err = setDataSource(state);
     //}
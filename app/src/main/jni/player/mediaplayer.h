@@ -62,6 +62,7 @@ public:
     virtual void notify(int msg, int ext1, int ext2, int fromThread) = 0;
     virtual int initAudioTrack(int streamType, int sampleRateInHz, int channelConfig, int sessionId, int fromThread) = 0;
     virtual void writeAudio(int16_t *samples, int frame_size_ptr, int fromThread) = 0;
+    virtual void* getAudioBuffer(int *size) = 0;
     virtual int setVolume(float leftVolume, float rightVolume) = 0;
     virtual int attachAuxEffect(int effectId) = 0;
     virtual int setAuxEffectSendLevel(float level) = 0;
@@ -109,6 +110,7 @@ public:
         
 private:
             void            clear_l();
+            void            setAudioBuffer_l(State *player);
             status_t        seekTo_l(int msec);
             status_t        prepareAsync_l();
             status_t        getDuration_l(int *msec);
@@ -65,6 +65,7 @@ public:
     //virtual void notify(int msg, int ext1, int ext2, const Parcel *obj = NULL);
     virtual int initAudioTrack(int streamType, int sampleRateInHz, int channelConfig, int sessionId, int fromThread);
     virtual void writeAudio(int16_t *samples, int frameSizePtr, int fromThread);
+    virtual void* getAudioBuffer(int *size);
     virtual int setVolume(float leftVolume, float rightVolume);
     virtual int attachAuxEffect(int effectId);
     virtual int setAuxEffectSendLevel(float level);
@@ -75,6 +76,7 @@ private:
     jobject     mThiz;
     jbyteArray  mAudioFrameRef;
     jbyte*      mAudioFrameRefBuffer;
+    int         mAudioFrameRefBufferSize;
 };
 
 void jniThrowException(JNIEnv* env, const char* className,
@@ -105,6 +107,7 @@ JNIMediaPlayerListener::JNIMediaPlayerListener(JNIEnv* env, jobject thiz, jobjec
     mAudioFrameRef = (jbyteArray) env->NewGlobalRef(buffer); //lock the array preventing the garbage collector from destructing it
 
     mAudioFrameRefBuffer = env->GetByteArrayElements(mAudioFrameRef, NULL);
+    mAudioFrameRefBufferSize = env->GetArrayLength(mAudioFrameRef);
 }
 
 JNIMediaPlayerListener::~JNIMediaPlayerListener()
@@ -220,7 +223,10 @@ void JNIMediaPlayerListener::writeAudio(int16_t *samples, int frameSizePtr, int
 		isAttached = 1;
 	}
 	
-	memcpy(mAudioFrameRefBuffer, samples, frameSizePtr);
+	// converted samples are already written to the shared buffer by the decoder
+	if ((jbyte *) samples != mAudioFrameRefBuffer) {
+		memcpy(mAudioFrameRefBuffer, samples, frameSizePtr);
+	}
 	env->CallVoidMethod(mThiz, fields.write_audio, frameSizePtr);
 	
     if (env->ExceptionCheck()) {
@@ -234,6 +240,12 @@ void JNIMediaPlayerListener::writeAudio(int16_t *samples, int frameSizePtr, int
     }
 }
 
+void* JNIMediaPlayerListener::getAudioBuffer(int *size)
+{
+	*size = mAudioFrameRefBufferSize;
+	return mAudioFrameRefBuffer;
+}
+
 int JNIMediaPlayerListener::setVolume(float leftVolume, float rightVolume)
 {
 	JNIEnv *env = 0;
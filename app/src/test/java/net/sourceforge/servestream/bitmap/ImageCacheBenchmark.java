@@ -0,0 +1,197 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.bitmap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Times disk cache hits with 1, 4 and 8 concurrent loaders, once with the
+ * decode done under the cache lock, as ImageCache used to, and once with
+ * only the journal lookup under the lock, as
+ * {@link ImageCache#getBitmapFromDiskCache(String)} does now.
+ * <p>
+ * Bitmaps can't be decoded on the JVM, so this doesn't go through
+ * ImageCache itself: the hits go straight to a {@link DiskLruCache} and
+ * the decode is stood in for by reading the entry and checksumming it a
+ * few times. The results are printed, the only thing checked is that
+ * every lookup was a hit. Like the other benchmarks it isn't part of the
+ * unit tests, run it with {@code gradlew test -Pbenchmarks}.
+ */
+public class ImageCacheBenchmark {
+
+    private static final int ENTRIES = 64;
+    private static final int ENTRY_SIZE = 64 * 1024;
+    private static final int HITS_PER_LOADER = 100;
+    private static final int [] LOADERS = { 1, 4, 8 };
+
+    // checksum passes per decode, a few hundred microseconds per hit
+    private static final int DECODE_PASSES = 128;
+
+    private File mDirectory;
+    private DiskLruCache mDiskLruCache;
+    private final Object mDiskCacheLock = new Object();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("ImageCacheBenchmark", "");
+        mDirectory.delete();
+        mDiskLruCache = DiskLruCache.open(mDirectory, 1, 1, ENTRIES * ENTRY_SIZE * 2);
+
+        Random random = new Random(1);
+        byte [] data = new byte[ENTRY_SIZE];
+        for (int i = 0; i < ENTRIES; i++) {
+            random.nextBytes(data);
+            DiskLruCache.Editor editor = mDiskLruCache.edit(key(i));
+            OutputStream out = editor.newOutputStream(0);
+            out.write(data);
+            out.close();
+            editor.commit();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDiskLruCache.delete();
+    }
+
+    @Test
+    public void diskCacheHits() throws Exception {
+        // the first round warms up the JIT and isn't printed
+        for (int round = 0; round < 2; round++) {
+            for (int loaders : LOADERS) {
+                long [] locked = run(loaders, true);
+                long [] unlocked = run(loaders, false);
+
+                if (round > 0) {
+                    System.out.println(String.format(
+                            "%d loaders  decode under lock: median %6d us p95 %6d us"
+                            + "   lookup under lock: median %6d us p95 %6d us",
+                            loaders, percentile(locked, 50), percentile(locked, 95),
+                            percentile(unlocked, 50), percentile(unlocked, 95)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the latency of every hit in microseconds.
+     */
+    private long [] run(int loaders, final boolean decodeUnderLock) throws InterruptedException {
+        final long [] latencies = new long[loaders * HITS_PER_LOADER];
+        final AtomicInteger hits = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread [] threads = new Thread[loaders];
+
+        for (int i = 0; i < loaders; i++) {
+            final int loader = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(loader);
+                    try {
+                        start.await();
+                        for (int j = 0; j < HITS_PER_LOADER; j++) {
+                            String key = key(random.nextInt(ENTRIES));
+                            long begin = System.nanoTime();
+                            if (load(key, decodeUnderLock) != 0) {
+                                hits.incrementAndGet();
+                            }
+                            latencies[loader * HITS_PER_LOADER + j] = (System.nanoTime() - begin) / 1000;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "ImageCacheBenchmark loader " + i);
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(latencies.length, hits.get());
+        return latencies;
+    }
+
+    /**
+     * A disk cache hit the way ImageCache serves it.
+     *
+     * @return the checksum of the entry, 0 on a miss.
+     */
+    private long load(String key, boolean decodeUnderLock) throws IOException {
+        InputStream inputStream = null;
+
+        synchronized (mDiskCacheLock) {
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+            if (snapshot != null) {
+                inputStream = snapshot.getInputStream(0);
+                if (decodeUnderLock) {
+                    return decode(inputStream);
+                }
+            }
+        }
+
+        return inputStream != null ? decode(inputStream) : 0;
+    }
+
+    private static long decode(InputStream inputStream) throws IOException {
+        try {
+            byte [] data = new byte[ENTRY_SIZE];
+            int offset = 0;
+            int count;
+            while (offset < data.length
+                    && (count = inputStream.read(data, offset, data.length - offset)) != -1) {
+                offset += count;
+            }
+
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < DECODE_PASSES; i++) {
+                crc.update(data, 0, offset);
+            }
+            return crc.getValue() | 1;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String key(int index) {
+        return "entry" + index;
+    }
+
+    private static long percentile(long [] values, int percentile) {
+        long [] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
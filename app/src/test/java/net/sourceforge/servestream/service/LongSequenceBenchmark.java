@@ -0,0 +1,196 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Times the queue operations of the playback service on a
+ * {@link LongSequence} and on a flat array shifted with
+ * System.arraycopy, the way the queue was kept before, at 100, 10k and
+ * 100k entries. The results are printed, the only thing checked is that
+ * both end up with the same queue. It isn't part of the unit tests, run
+ * it with {@code gradlew test -Pbenchmarks}.
+ */
+public class LongSequenceBenchmark {
+
+	private static final int [] SIZES = { 100, 10000, 100000 };
+	private static final int OPERATIONS = 2000;
+	private static final int ROUNDS = 3;
+
+	@Test
+	public void queueOperations() {
+		// the first round warms up the JIT and isn't printed
+		for (int round = 0; round <= ROUNDS; round++) {
+			for (int size : SIZES) {
+				run(size, round > 0);
+			}
+		}
+	}
+
+	private static void run(int size, boolean print) {
+		long [] initial = new long[size];
+		for (int i = 0; i < size; i++) {
+			initial[i] = i;
+		}
+
+		LongSequence sequence = new LongSequence();
+		FlatQueue flat = new FlatQueue();
+
+		long start = System.nanoTime();
+		sequence.insert(0, initial);
+		long sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		flat.insert(0, initial);
+		long flatTime = System.nanoTime() - start;
+		report(print, size, "enqueue all", 1, sequenceTime, flatTime);
+
+		// dragging an item one row at a time through the queue
+		start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			sequence.move(i % (size - 1), i % (size - 1) + 1);
+		}
+		sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			flat.move(i % (size - 1), i % (size - 1) + 1);
+		}
+		flatTime = System.nanoTime() - start;
+		report(print, size, "move by one", OPERATIONS, sequenceTime, flatTime);
+
+		// moving items between the ends of the queue
+		start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			sequence.move(0, size - 1);
+		}
+		sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			flat.move(0, size - 1);
+		}
+		flatTime = System.nanoTime() - start;
+		report(print, size, "move end to end", OPERATIONS, sequenceTime, flatTime);
+
+		// play next, a few tracks after the current one
+		int [] positions = positions(size, 1);
+		long [] tracks = { -1, -2, -3 };
+		start = System.nanoTime();
+		for (int position : positions) {
+			sequence.insert(position, tracks);
+		}
+		sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int position : positions) {
+			flat.insert(position, tracks);
+		}
+		flatTime = System.nanoTime() - start;
+		report(print, size, "insert 3", OPERATIONS, sequenceTime, flatTime);
+
+		// removing the same tracks again
+		start = System.nanoTime();
+		for (int i = positions.length - 1; i >= 0; i--) {
+			sequence.remove(positions[i], tracks.length);
+		}
+		sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = positions.length - 1; i >= 0; i--) {
+			flat.remove(positions[i], tracks.length);
+		}
+		flatTime = System.nanoTime() - start;
+		report(print, size, "remove 3", OPERATIONS, sequenceTime, flatTime);
+
+		// a page of the queue as the browser asks for it
+		long [] page = new long[Math.min(size, 100)];
+		positions = positions(size - page.length, 2);
+		start = System.nanoTime();
+		for (int position : positions) {
+			sequence.getRange(position, page, 0, page.length);
+		}
+		sequenceTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int position : positions) {
+			flat.getRange(position, page, 0, page.length);
+		}
+		flatTime = System.nanoTime() - start;
+		report(print, size, "read page", OPERATIONS, sequenceTime, flatTime);
+
+		assertEquals(flat.mSize, sequence.size());
+		for (int i = 0; i < size; i += Math.max(1, size / 1000)) {
+			assertEquals(flat.mValues[i], sequence.get(i));
+		}
+	}
+
+	private static int [] positions(int size, long seed) {
+		Random random = new Random(seed);
+		int [] positions = new int[OPERATIONS];
+		for (int i = 0; i < OPERATIONS; i++) {
+			positions[i] = random.nextInt(size + 1);
+		}
+		return positions;
+	}
+
+	private static void report(boolean print, int size, String operation, int count,
+			long sequenceTime, long flatTime) {
+		if (print) {
+			System.out.println(String.format("%7d %-16s sequence %9d ns/op   array %9d ns/op",
+					size, operation, sequenceTime / count, flatTime / count));
+		}
+	}
+
+	/**
+	 * The queue as a single array, every edit shifts the tail.
+	 */
+	private static final class FlatQueue {
+		long [] mValues = new long[0];
+		int mSize = 0;
+
+		void insert(int index, long [] values) {
+			if (mSize + values.length > mValues.length) {
+				long [] grown = new long[(mSize + values.length) * 2];
+				System.arraycopy(mValues, 0, grown, 0, mSize);
+				mValues = grown;
+			}
+			System.arraycopy(mValues, index, mValues, index + values.length, mSize - index);
+			System.arraycopy(values, 0, mValues, index, values.length);
+			mSize += values.length;
+		}
+
+		void remove(int index, int count) {
+			System.arraycopy(mValues, index + count, mValues, index, mSize - index - count);
+			mSize -= count;
+		}
+
+		void move(int from, int to) {
+			long value = mValues[from];
+			if (from < to) {
+				System.arraycopy(mValues, from + 1, mValues, from, to - from);
+			} else {
+				System.arraycopy(mValues, to, mValues, to + 1, from - to);
+			}
+			mValues[to] = value;
+		}
+
+		void getRange(int index, long [] dest, int offset, int count) {
+			System.arraycopy(mValues, index, dest, offset, count);
+		}
+	}
+}
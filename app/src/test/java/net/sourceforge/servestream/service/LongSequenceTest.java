@@ -0,0 +1,280 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2014 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link LongSequence} against a plain list, with sizes that put
+ * the edits on and across chunk boundaries.
+ */
+public class LongSequenceTest {
+
+	private static final int CHUNK = LongSequence.CHUNK_CAPACITY;
+
+	@Test
+	public void emptySequence() {
+		LongSequence sequence = new LongSequence();
+
+		assertEquals(0, sequence.size());
+		assertEquals(0, sequence.toArray().length);
+		assertEquals(-1, sequence.indexOf(1, 0));
+	}
+
+	@Test
+	public void addAndGet() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+
+		for (int i = 0; i < CHUNK * 3 + 7; i++) {
+			sequence.add(i);
+			expected.add((long) i);
+		}
+
+		assertSame(expected, sequence);
+	}
+
+	@Test
+	public void bulkInsertSpanningChunks() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+
+		insert(sequence, expected, 0, values(CHUNK * 5 + 3, 0));
+		assertSame(expected, sequence);
+
+		// into the middle of a full chunk, which has to be split
+		insert(sequence, expected, CHUNK + 10, values(CHUNK * 2, 100000));
+		assertSame(expected, sequence);
+
+		// at a chunk start, the end and the front
+		insert(sequence, expected, CHUNK / 2, values(3, 200000));
+		insert(sequence, expected, sequence.size(), values(CHUNK + 1, 300000));
+		insert(sequence, expected, 0, values(CHUNK - 1, 400000));
+		assertSame(expected, sequence);
+	}
+
+	@Test
+	public void insertWithOffset() {
+		LongSequence sequence = new LongSequence();
+		sequence.insert(0, new long [] { 1, 2, 3, 4, 5 }, 1, 3);
+
+		assertArrayEquals(new long [] { 2, 3, 4 }, sequence.toArray());
+	}
+
+	@Test
+	public void removeRangesAcrossChunks() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+		insert(sequence, expected, 0, values(CHUNK * 6, 0));
+
+		// across two chunk boundaries
+		remove(sequence, expected, CHUNK / 2 - 5, CHUNK * 2);
+		assertSame(expected, sequence);
+
+		// a single value, the head and the tail
+		remove(sequence, expected, 17, 1);
+		remove(sequence, expected, 0, 40);
+		remove(sequence, expected, sequence.size() - 40, 40);
+		assertSame(expected, sequence);
+
+		remove(sequence, expected, 0, sequence.size());
+		assertSame(expected, sequence);
+	}
+
+	@Test
+	public void removeLeavesSmallChunksMerged() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+		insert(sequence, expected, 0, values(CHUNK * 4, 0));
+
+		// whittle the chunks down one value at a time from several places
+		Random random = new Random(1);
+		while (expected.size() > 10) {
+			remove(sequence, expected, random.nextInt(expected.size()), 1);
+		}
+		assertSame(expected, sequence);
+
+		insert(sequence, expected, 5, values(CHUNK * 2, 500000));
+		assertSame(expected, sequence);
+	}
+
+	@Test
+	public void moveAcrossChunks() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+		insert(sequence, expected, 0, values(CHUNK * 3, 0));
+
+		move(sequence, expected, 0, sequence.size() - 1);
+		move(sequence, expected, sequence.size() - 1, 0);
+		move(sequence, expected, CHUNK - 1, CHUNK);
+		move(sequence, expected, CHUNK * 2 + 5, 3);
+		move(sequence, expected, 10, 10);
+		assertSame(expected, sequence);
+	}
+
+	@Test
+	public void getRangeAcrossChunks() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+		insert(sequence, expected, 0, values(CHUNK * 3, 0));
+		// splits leave the chunks partly filled
+		insert(sequence, expected, CHUNK + 1, values(CHUNK, 100000));
+
+		int from = CHUNK - 3;
+		int count = CHUNK * 2;
+		long [] range = new long[count + 2];
+		sequence.getRange(from, range, 1, count);
+
+		assertEquals(0, range[0]);
+		for (int i = 0; i < count; i++) {
+			assertEquals((long) expected.get(from + i), range[i + 1]);
+		}
+		assertEquals(0, range[count + 1]);
+	}
+
+	@Test
+	public void setAndIndexOf() {
+		LongSequence sequence = new LongSequence();
+		sequence.insert(0, values(CHUNK * 2, 0));
+
+		sequence.set(CHUNK + 3, -7);
+		assertEquals(-7, sequence.get(CHUNK + 3));
+		assertEquals(CHUNK + 3, sequence.indexOf(-7, 0));
+		assertEquals(CHUNK + 3, sequence.indexOf(-7, CHUNK + 3));
+		assertEquals(-1, sequence.indexOf(-7, CHUNK + 4));
+		assertEquals(-1, sequence.indexOf(-8, 0));
+	}
+
+	@Test
+	public void clear() {
+		LongSequence sequence = new LongSequence();
+		sequence.insert(0, values(CHUNK * 2, 0));
+		sequence.clear();
+
+		assertEquals(0, sequence.size());
+		sequence.add(5);
+		assertArrayEquals(new long [] { 5 }, sequence.toArray());
+	}
+
+	@Test
+	public void outOfBounds() {
+		LongSequence sequence = new LongSequence();
+		sequence.insert(0, values(10, 0));
+
+		try {
+			sequence.get(10);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			sequence.insert(11, new long [] { 1 });
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			sequence.remove(5, 6);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			sequence.move(0, 10);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void randomEdits() {
+		LongSequence sequence = new LongSequence();
+		List<Long> expected = new ArrayList<Long>();
+		Random random = new Random(42);
+		long next = 0;
+
+		for (int i = 0; i < 3000; i++) {
+			int size = expected.size();
+			int operation = random.nextInt(4);
+
+			if (operation == 0 || size == 0) {
+				int count = random.nextInt(random.nextBoolean() ? 8 : CHUNK * 2);
+				insert(sequence, expected, random.nextInt(size + 1), values(count, next));
+				next += count;
+			} else if (operation == 1) {
+				int index = random.nextInt(size);
+				remove(sequence, expected, index, random.nextInt(Math.min(size - index, CHUNK)) + 1);
+			} else if (operation == 2) {
+				move(sequence, expected, random.nextInt(size), random.nextInt(size));
+			} else {
+				int index = random.nextInt(size);
+				sequence.set(index, next);
+				expected.set(index, next++);
+			}
+
+			assertEquals(expected.size(), sequence.size());
+			if (i % 100 == 0) {
+				assertSame(expected, sequence);
+			}
+		}
+
+		assertSame(expected, sequence);
+	}
+
+	private static long [] values(int count, long first) {
+		long [] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = first + i;
+		}
+		return values;
+	}
+
+	private static void insert(LongSequence sequence, List<Long> expected, int index, long [] values) {
+		sequence.insert(index, values);
+		List<Long> list = new ArrayList<Long>(values.length);
+		for (long value : values) {
+			list.add(value);
+		}
+		expected.addAll(index, list);
+	}
+
+	private static void remove(LongSequence sequence, List<Long> expected, int index, int count) {
+		sequence.remove(index, count);
+		expected.subList(index, index + count).clear();
+	}
+
+	private static void move(LongSequence sequence, List<Long> expected, int from, int to) {
+		sequence.move(from, to);
+		expected.add(to, expected.remove(from));
+	}
+
+	private static void assertSame(List<Long> expected, LongSequence sequence) {
+		assertEquals(expected.size(), sequence.size());
+
+		long [] array = sequence.toArray();
+		for (int i = 0; i < array.length; i++) {
+			assertEquals("index " + i, (long) expected.get(i), array[i]);
+			assertEquals("index " + i, array[i], sequence.get(i));
+		}
+	}
+}